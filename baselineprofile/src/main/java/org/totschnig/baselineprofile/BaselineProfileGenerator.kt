@@ -0,0 +1,28 @@
+package org.totschnig.baselineprofile
+
+import androidx.benchmark.macro.ExperimentalBaselineProfilesApi
+import androidx.benchmark.macro.junit4.BaselineProfileRule
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Collects the classes and methods used during launch and the first scroll of the transaction
+ * list. Run with `./gradlew :baselineprofile:connectedBenchmarkAndroidTest` on a device with API 33
+ * or a rooted one with API 28, and copy the resulting profile to
+ * `myExpenses/src/main/baseline-prof.txt`.
+ */
+@OptIn(ExperimentalBaselineProfilesApi::class)
+@RunWith(AndroidJUnit4::class)
+class BaselineProfileGenerator {
+    @get:Rule
+    val rule = BaselineProfileRule()
+
+    @Test
+    fun generate() = rule.collectBaselineProfile(PACKAGE_NAME) {
+        pressHome()
+        startActivityAndWait()
+        scrollTransactionList()
+    }
+}
@@ -0,0 +1,23 @@
+package org.totschnig.baselineprofile
+
+import androidx.benchmark.macro.MacrobenchmarkScope
+import androidx.test.uiautomator.By
+import androidx.test.uiautomator.Direction
+import androidx.test.uiautomator.Until
+
+const val PACKAGE_NAME = "org.totschnig.myexpenses"
+
+/**
+ * Scrolls the transaction list of the account shown on startup, if there is one
+ * @param flings number of flings, alternating down and up, without waiting for idle in between
+ */
+fun MacrobenchmarkScope.scrollTransactionList(flings: Int = 1) {
+    device.wait(Until.hasObject(By.scrollable(true)), 5_000)
+    device.findObject(By.scrollable(true))?.let { list ->
+        list.setGestureMargin(device.displayWidth / 5)
+        repeat(flings) {
+            list.fling(if (it % 2 == 0) Direction.DOWN else Direction.UP)
+        }
+        device.waitForIdle()
+    }
+}
@@ -0,0 +1,82 @@
+package org.totschnig.baselineprofile
+
+import androidx.benchmark.macro.BaselineProfileMode
+import androidx.benchmark.macro.CompilationMode
+import androidx.benchmark.macro.ExperimentalMetricApi
+import androidx.benchmark.macro.FrameTimingMetric
+import androidx.benchmark.macro.StartupMode
+import androidx.benchmark.macro.StartupTimingMetric
+import androidx.benchmark.macro.TraceSectionMetric
+import androidx.benchmark.macro.junit4.MacrobenchmarkRule
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Verifies the effect of the baseline profile by comparing runs without compilation against runs
+ * with the profile required. Startup is also broken down by the trace sections of MyApplication.
+ */
+@RunWith(AndroidJUnit4::class)
+class StartupBenchmark {
+    @get:Rule
+    val rule = MacrobenchmarkRule()
+
+    @Test
+    fun startupWithoutCompilation() = startup(CompilationMode.None())
+
+    @Test
+    fun startupWithBaselineProfile() =
+        startup(CompilationMode.Partial(baselineProfileMode = BaselineProfileMode.Require))
+
+    @Test
+    fun scrollWithoutCompilation() = scroll(CompilationMode.None())
+
+    @Test
+    fun scrollWithBaselineProfile() =
+        scroll(CompilationMode.Partial(baselineProfileMode = BaselineProfileMode.Require))
+
+    /**
+     * Rows are recomposed while they scroll in and out, which is where formatting of amounts is
+     * paid for, if it is not memoized
+     */
+    @Test
+    fun fastScrollWithBaselineProfile() =
+        scroll(CompilationMode.Partial(baselineProfileMode = BaselineProfileMode.Require), FAST_SCROLL_FLINGS)
+
+    @OptIn(ExperimentalMetricApi::class)
+    private fun startup(compilationMode: CompilationMode) = rule.measureRepeated(
+        packageName = PACKAGE_NAME,
+        metrics = listOf(
+            StartupTimingMetric(),
+            TraceSectionMetric("MyApplication.onCreate"),
+            TraceSectionMetric("buildAppComponent"),
+            TraceSectionMetric("deferredInitialization")
+        ),
+        compilationMode = compilationMode,
+        iterations = ITERATIONS,
+        startupMode = StartupMode.COLD,
+        setupBlock = { pressHome() }
+    ) {
+        startActivityAndWait()
+    }
+
+    private fun scroll(compilationMode: CompilationMode, flings: Int = 1) = rule.measureRepeated(
+        packageName = PACKAGE_NAME,
+        metrics = listOf(FrameTimingMetric()),
+        compilationMode = compilationMode,
+        iterations = ITERATIONS,
+        startupMode = StartupMode.COLD,
+        setupBlock = {
+            pressHome()
+            startActivityAndWait()
+        }
+    ) {
+        scrollTransactionList(flings)
+    }
+
+    companion object {
+        const val ITERATIONS = 10
+        const val FAST_SCROLL_FLINGS = 6
+    }
+}
@@ -22,6 +22,7 @@ import junit.framework.Assert;
 
 import org.totschnig.myexpenses.test.R;
 import org.totschnig.myexpenses.util.CategoryTree;
+import org.totschnig.myexpenses.util.GrisbiHandler;
 import org.totschnig.myexpenses.util.Result;
 import org.totschnig.myexpenses.util.Utils;
 
@@ -55,6 +56,31 @@ public class GrisbiImportTest extends InstrumentationTestCase {
     ArrayList<String> partiesList = result.getExtra().second;
     Assert.assertEquals("Peter Schnock",partiesList.get(0));
   }
+  public void testGrisbi6Streaming() {
+    final int[] counts = new int[2];
+    final ArrayList<String> partiesList = new ArrayList<>();
+    Result<Integer> result = Utils.streamGrisbiFileWithSAX(
+        getInstrumentation().getContext().getResources().openRawResource(R.raw.grisbi),
+        new GrisbiHandler.Listener() {
+          @Override
+          public void onCategory(String label, int id, int parentId) {
+            if (parentId == 0) {
+              counts[0]++;
+            } else if (parentId == 1) {
+              counts[1]++;
+            }
+          }
+
+          @Override
+          public void onParty(String name) {
+            partiesList.add(name);
+          }
+        });
+    Assert.assertEquals(true, result.isSuccess());
+    Assert.assertEquals(22, counts[0]);
+    Assert.assertEquals(10, counts[1]);
+    Assert.assertEquals("Peter Schnock", partiesList.get(0));
+  }
   public void testGrisbi5() {
     Result<Pair<CategoryTree, ArrayList<String>>> result = analyze(R.raw.grisbi_050);
     Assert.assertEquals(true, result.isSuccess());
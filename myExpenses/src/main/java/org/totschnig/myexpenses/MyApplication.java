@@ -38,8 +38,10 @@ import android.content.res.Configuration;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Looper;
 import android.os.Process;
 import android.os.StrictMode;
+import android.os.Trace;
 import android.provider.CalendarContract;
 import android.provider.CalendarContract.Calendars;
 import android.provider.CalendarContract.Events;
@@ -93,6 +95,8 @@ import java.util.Locale;
 
 import javax.inject.Inject;
 
+import dagger.Lazy;
+
 import timber.log.Timber;
 
 public class MyApplication extends Application implements
@@ -113,11 +117,14 @@ public class MyApplication extends Application implements
   @Inject
   SharedPreferences mSettings;
 
+  /**
+   * only needed when the home currency changes, hence not created during startup
+   */
   @Inject
-  CurrencyContext currencyContext;
+  Lazy<CurrencyContext> currencyContext;
 
   @Inject
-  CurrencyFormatter currencyFormatter;
+  Lazy<CurrencyFormatter> currencyFormatter;
 
   public static final String PLANNER_CALENDAR_NAME = "MyExpensesPlanner";
   public static final String PLANNER_ACCOUNT_NAME = "Local Calendar";
@@ -154,24 +161,55 @@ public class MyApplication extends Application implements
 
   @Override
   public void onCreate() {
-    if (BuildConfig.DEBUG) {
-      enableStrictMode();
+    Trace.beginSection("MyApplication.onCreate");
+    try {
+      if (BuildConfig.DEBUG) {
+        traced("enableStrictMode", this::enableStrictMode);
+      }
+      super.onCreate();
+      checkAppReplacingState();
+      traced("setNightMode", () -> {
+        AppCompatDelegate.setCompatVectorFromResourcesEnabled(true);
+        MoreUiUtilsKt.setNightMode(prefHandler, this);
+      });
+      final boolean syncService = isSyncService();
+      traced("initCrashHandler", () -> crashHandler.initProcess(this, syncService));
+      traced("setupLogging", this::setupLogging);
+      if (!syncService) {
+        ProcessLifecycleOwner.get().getLifecycle().addObserver(this);
+        mSettings.registerOnSharedPreferenceChangeListener(this);
+        Looper.myQueue().addIdleHandler(() -> {
+          traced("deferredInitialization", this::runDeferredInitialization);
+          return false;
+        });
+      }
+      traced("initLicence", licenceHandler::init);
+      traced("createNotificationChannels", () -> NotificationBuilderWrapper.createChannels(this));
+    } finally {
+      Trace.endSection();
     }
-    super.onCreate();
-    checkAppReplacingState();
-    AppCompatDelegate.setCompatVectorFromResourcesEnabled(true);
-    MoreUiUtilsKt.setNightMode(prefHandler, this);
-    final boolean syncService = isSyncService();
-    crashHandler.initProcess(this, syncService);
-    setupLogging();
-    if (!syncService) {
-      ProcessLifecycleOwner.get().getLifecycle().addObserver(this);
-      mSettings.registerOnSharedPreferenceChangeListener(this);
-      DailyScheduler.updatePlannerAlarms(this, false, false);
-      WidgetObserver.Companion.register(this);
+  }
+
+  /**
+   * Work that is not needed for showing the first screen. It is run once the main thread becomes
+   * idle after startup.
+   */
+  private void runDeferredInitialization() {
+    traced("updatePlannerAlarms", () -> DailyScheduler.updatePlannerAlarms(this, false, false));
+    traced("registerWidgetObserver", () -> WidgetObserver.Companion.register(this));
+  }
+
+  /**
+   * Wraps a step of startup in a trace section, so that it can be told apart in system traces and
+   * macrobenchmark results.
+   */
+  private static void traced(String sectionName, Runnable step) {
+    Trace.beginSection(sectionName);
+    try {
+      step.run();
+    } finally {
+      Trace.endSection();
     }
-    licenceHandler.init();
-    NotificationBuilderWrapper.createChannels(this);
   }
 
   @Override
@@ -214,14 +252,18 @@ public class MyApplication extends Application implements
     //has been attached
     final Locale systemLocale = Locale.getDefault();
     super.attachBaseContext(base);
-    appComponent = buildAppComponent(systemLocale);
-    appComponent.inject(this);
-    featureManager.initApplication(this);
+    traced("buildAppComponent", () -> {
+      appComponent = buildAppComponent(systemLocale);
+      appComponent.inject(this);
+    });
+    traced("initFeatureManager", () -> featureManager.initApplication(this));
     crashHandler.onAttachBaseContext(this);
-    DatabaseConstants.buildLocalized(userLocaleProvider.getUserPreferredLocale());
-    final Context wrapped = ContextHelper.wrap(base, UserLocaleProvider.Companion.resolveLocale(
-        PreferenceManager.getDefaultSharedPreferences(base).getString("ui_language", DEFAULT_LANGUAGE), systemLocale));
-    Transaction.buildProjection(wrapped);
+    traced("buildProjections", () -> {
+      DatabaseConstants.buildLocalized(userLocaleProvider.getUserPreferredLocale());
+      final Context wrapped = ContextHelper.wrap(base, UserLocaleProvider.Companion.resolveLocale(
+          PreferenceManager.getDefaultSharedPreferences(base).getString("ui_language", DEFAULT_LANGUAGE), systemLocale));
+      Transaction.buildProjection(wrapped);
+    });
   }
 
   @NonNull
@@ -771,10 +813,11 @@ public class MyApplication extends Application implements
   }
 
   public void invalidateHomeCurrency() {
-    currencyContext.invalidateHomeCurrency();
-    currencyFormatter.invalidate(AggregateAccount.AGGREGATE_HOME_CURRENCY_CODE, getContentResolver());
+    currencyContext.get().invalidateHomeCurrency();
+    currencyFormatter.get().invalidate(AggregateAccount.AGGREGATE_HOME_CURRENCY_CODE, getContentResolver());
     Transaction.buildProjection(this);
     Account.buildProjection();
     getContentResolver().notifyChange(TransactionProvider.TRANSACTIONS_URI, null, false);
+    getContentResolver().notifyChange(TransactionProvider.ACCOUNT_CHANGES_URI, null, false);
   }
 }
@@ -5,7 +5,6 @@ import android.os.Bundle
 import android.view.Menu
 import androidx.lifecycle.ViewModelProvider
 import icepick.State
-import org.apache.commons.csv.CSVRecord
 import org.totschnig.myexpenses.MyApplication
 import org.totschnig.myexpenses.R
 import org.totschnig.myexpenses.dialog.ConfirmationDialogFragment
@@ -35,6 +34,22 @@ class CsvImportActivity : TabbedActivity(), ConfirmationDialogListener {
     @State
     var idle = true
 
+    @JvmField
+    @State
+    var parsedUri: Uri? = null
+
+    @JvmField
+    @State
+    var parsedDelimiter: Char = ','
+
+    @JvmField
+    @State
+    var parsedEncoding: String? = null
+
+    @JvmField
+    @State
+    var totalRecords = 0
+
     private fun setDataReady() {
         dataReady = true
         mSectionsPagerAdapter.notifyDataSetChanged()
@@ -118,15 +133,19 @@ class CsvImportActivity : TabbedActivity(), ConfirmationDialogListener {
         showProgress()
         csvImportViewModel.parseFile(uri, delimiter, encoding).observe(this) { result ->
             hideProgress()
-            result.onSuccess { data ->
+            result.onSuccess { (data, totalCount) ->
                 if (data.isNotEmpty()) {
+                    parsedUri = uri
+                    parsedDelimiter = delimiter
+                    parsedEncoding = encoding
+                    totalRecords = totalCount
                     if (!dataReady) {
                         addTab(1)
                         setDataReady()
                     }
                     (supportFragmentManager.findFragmentByTag(
                             mSectionsPagerAdapter.getFragmentName(1)) as? CsvImportDataFragment)?.let {
-                        it.setData(data)
+                        it.setData(data, totalCount)
                         binding.viewPager.currentItem = 1
                     }
                 } else {
@@ -141,13 +160,18 @@ class CsvImportActivity : TabbedActivity(), ConfirmationDialogListener {
         }
     }
 
-    fun importData(dataSet: List<CSVRecord>, columnToFieldMap: IntArray, discardedRows: Int) {
-        val totalToImport = dataSet.size
+    /**
+     * @param discardedRows positions of records in the preview that should not be imported
+     */
+    fun importData(discardedRows: Set<Int>, columnToFieldMap: IntArray) {
+        val uri = parsedUri ?: return
+        val encoding = parsedEncoding ?: return
+        val totalToImport = totalRecords - discardedRows.size
         showProgress(total = totalToImport)
         csvImportViewModel.progress.observe(this) {
             showProgress(total = totalToImport, progress = it)
         }
-        csvImportViewModel.importData(dataSet, columnToFieldMap, dateFormat, parseFragment.autoFillCategories) {
+        csvImportViewModel.importData(uri, parsedDelimiter, encoding, discardedRows, columnToFieldMap, dateFormat, parseFragment.autoFillCategories, parseFragment.skipDuplicates) {
             if (accountId == 0L) {
                 Account(getString(R.string.pref_import_title, "CSV"), currency, 0, accountType).apply {
                     save()
@@ -163,16 +187,15 @@ class CsvImportActivity : TabbedActivity(), ConfirmationDialogListener {
                     recordUsage(ContribFeature.CSV_IMPORT)
                     mUsageRecorded = true
                 }
-                val success = it.first
-                val failure: Int = it.second
-                val count: Int = success.first
-                val label = success.second
-                var msg = "${getString(R.string.import_transactions_success, count, label)}."
-                if (failure > 0) {
-                    msg += " ${getString(R.string.csv_import_records_failed, failure)}"
+                var msg = "${getString(R.string.import_transactions_success, it.imported, it.accountLabel)}."
+                if (it.failed > 0) {
+                    msg += " ${getString(R.string.csv_import_records_failed, it.failed)}"
+                }
+                if (it.duplicates > 0) {
+                    msg += " ${getString(R.string.import_duplicates_skipped, it.duplicates)}"
                 }
-                if (discardedRows > 0) {
-                    msg += " ${getString(R.string.csv_import_records_discarded, discardedRows)}"
+                if (discardedRows.isNotEmpty()) {
+                    msg += " ${getString(R.string.csv_import_records_discarded, discardedRows.size)}"
                 }
                 showMessage(msg,
                         neutral = MessageDialogFragment.nullButton(R.string.button_label_continue),
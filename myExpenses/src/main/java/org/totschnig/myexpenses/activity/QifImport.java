@@ -43,17 +43,18 @@ public class QifImport extends ProtectedFragmentActivity {
       String currency,
       boolean withTransactions,
       boolean withCategories,
-      boolean withParties, String encoding) {
+      boolean withParties,
+      boolean skipDuplicates, String encoding) {
     TaskExecutionFragment taskExecutionFragment =
         TaskExecutionFragment.newInstanceQifImport(
             mUri, qifDateFormat, accountId, currencyContext.get(currency), withTransactions,
-            withCategories, withParties, encoding);
+            withCategories, withParties, skipDuplicates, encoding);
     getSupportFragmentManager()
         .beginTransaction()
         .add(taskExecutionFragment, ASYNC_TAG)
         .add(ProgressDialogFragment.newInstance(
               getString(R.string.pref_import_title, ExportFormat.QIF.name()),
-                null, ProgressDialog.STYLE_SPINNER, true), PROGRESS_TAG)
+                null, ProgressDialog.STYLE_HORIZONTAL, true), PROGRESS_TAG)
         .commit();
   }
 
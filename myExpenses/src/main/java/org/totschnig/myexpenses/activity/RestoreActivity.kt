@@ -29,6 +29,15 @@ abstract class RestoreActivity: ProtectedFragmentActivity() {
                 }
             }
         }
+        lifecycleScope.launch {
+            repeatOnLifecycle(Lifecycle.State.STARTED) {
+                restoreViewModel.restoredEntries.collect { count ->
+                    count?.let {
+                        progressDialogFragment?.setTitle("${getString(R.string.pref_restore_title)} ($it)")
+                    }
+                }
+            }
+        }
         lifecycleScope.launch {
             repeatOnLifecycle(Lifecycle.State.STARTED) {
                 restoreViewModel.result.collect { result ->
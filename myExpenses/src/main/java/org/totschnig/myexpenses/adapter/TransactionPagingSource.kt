@@ -17,9 +17,9 @@ import kotlinx.coroutines.withContext
 import org.totschnig.myexpenses.BuildConfig
 import org.totschnig.myexpenses.MyApplication
 import org.totschnig.myexpenses.provider.DatabaseConstants
-import org.totschnig.myexpenses.provider.TransactionProvider
 import org.totschnig.myexpenses.provider.asSequence
 import org.totschnig.myexpenses.provider.filter.WhereFilter
+import org.totschnig.myexpenses.provider.includingArchive
 import org.totschnig.myexpenses.util.Utils
 import org.totschnig.myexpenses.viewmodel.data.PageAccount
 import org.totschnig.myexpenses.viewmodel.data.Transaction2
@@ -27,11 +27,15 @@ import timber.log.Timber
 import java.time.Duration
 import java.time.Instant
 
+/**
+ * @param onFirstPage receives the first page loaded without filter
+ */
 open class TransactionPagingSource(
     val context: Context,
     val account: PageAccount,
     val whereFilter: StateFlow<WhereFilter>,
-    coroutineScope: CoroutineScope
+    coroutineScope: CoroutineScope,
+    private val onFirstPage: ((List<Transaction2>) -> Unit)? = null
 ) :
     ClearingPagingSource<Int, Transaction2>() {
 
@@ -58,8 +62,8 @@ open class TransactionPagingSource(
             }
         }
         contentResolver.registerContentObserver(
-            TransactionProvider.TRANSACTIONS_URI,
-            true,
+            account.changesUri,
+            account.isAggregate,
             observer
         )
         coroutineScope.launch {
@@ -104,7 +108,8 @@ open class TransactionPagingSource(
         val startTime = if (BuildConfig.DEBUG) Instant.now() else null
         val data = withContext(Dispatchers.IO) {
             contentResolver.query(
-                uri.buildUpon()
+                //searches reach into archived transactions, the plain list does not
+                (if (whereFilter.value.isEmpty) uri else uri.includingArchive()).buildUpon()
                     .appendQueryParameter(
                         ContentResolver.QUERY_ARG_LIMIT,
                         params.loadSize.toString()
@@ -117,26 +122,27 @@ open class TransactionPagingSource(
                 projection,
                 "$selection AND ${DatabaseConstants.KEY_PARENTID} is null",
                 selectionArgs,
-                "${DatabaseConstants.KEY_DATE} ${account.sortDirection}", null
+                "${DatabaseConstants.KEY_DATE} ${account.sortDirection}, ${DatabaseConstants.KEY_ROWID} ${account.sortDirection}",
+                null
             )?.use { cursor ->
                 if (BuildConfig.DEBUG) {
                     val endTime = Instant.now()
                     val duration = Duration.between(startTime, endTime)
                     Timber.i("Cursor delivered %d rows after %s", cursor.count, duration)
                 }
-                withContext(Dispatchers.Main) {
-                    cursor.asSequence.map {
-                        Transaction2.fromCursor(
-                            context,
-                            it,
-                            (context.applicationContext as MyApplication).appComponent.currencyContext(),
-                            if (account.isHomeAggregate) Utils.getHomeCurrency() else null
-                        )
-                    }.toList()
-                }
+                val mapper = Transaction2.RowMapper(
+                    context,
+                    cursor,
+                    (context.applicationContext as MyApplication).appComponent.currencyContext(),
+                    if (account.isHomeAggregate) Utils.getHomeCurrency() else null
+                )
+                cursor.asSequence.map { mapper.map(it) }.toList()
             } ?: emptyList()
         }
         onLoadFinished()
+        if (position == 0 && whereFilter.value.isEmpty) {
+            onFirstPage?.invoke(data)
+        }
         val prevKey = if (position > 0) (position - params.loadSize).coerceAtLeast(0) else null
         val nextKey = if (data.size < params.loadSize) null else position + params.loadSize
         Timber.i("Setting prevKey %d, nextKey %d", prevKey, nextKey)
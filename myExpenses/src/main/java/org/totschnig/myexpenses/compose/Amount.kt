@@ -17,7 +17,8 @@ import androidx.compose.ui.tooling.preview.Preview
 import androidx.compose.ui.unit.dp
 import org.totschnig.myexpenses.model.CurrencyUnit
 import org.totschnig.myexpenses.model.Money
-import org.totschnig.myexpenses.util.formatMoney
+import kotlin.math.absoluteValue
+import kotlin.math.sign
 
 fun Modifier.amountBorder(color: Color) = this
     .border(
@@ -62,20 +63,50 @@ fun ColoredAmountText(
     prefix: String = "",
     postFix: String = "",
     neutral: Boolean = false
+) {
+    ColoredAmountText(
+        formatted = LocalCurrencyFormatter.current.formatMinor(
+            if (neutral) money.amountMinor.absoluteValue else money.amountMinor,
+            money.currencyUnit
+        ),
+        sign = if (neutral) 0 else money.amountMinor.sign,
+        modifier = modifier,
+        style = style,
+        fontWeight = fontWeight,
+        textAlign = textAlign,
+        withBorder = withBorder,
+        prefix = prefix,
+        postFix = postFix
+    )
+}
+
+/**
+ * @param formatted amount already formatted, e.g. memoized with the row it belongs to
+ * @param sign of the amount, determines the color
+ */
+@Composable
+fun ColoredAmountText(
+    formatted: String,
+    sign: Int,
+    modifier: Modifier = Modifier,
+    style: TextStyle = LocalTextStyle.current,
+    fontWeight: FontWeight? = null,
+    textAlign: TextAlign? = null,
+    withBorder: Boolean = false,
+    prefix: String = "",
+    postFix: String = ""
 ) {
     val color = when {
-        neutral -> Color.Unspecified
-        money.amountMinor > 0 -> LocalColors.current.income
-        money.amountMinor < 0 -> LocalColors.current.expense
+        sign > 0 -> LocalColors.current.income
+        sign < 0 -> LocalColors.current.expense
         else -> Color.Unspecified
     }
-    val amount = if (neutral) money.amountMajor.abs() else money.amountMajor
     Text(
         modifier = if (withBorder) modifier.amountBorder(color) else modifier,
         fontWeight = fontWeight,
         textAlign = textAlign,
         style = style,
-        text = prefix + LocalCurrencyFormatter.current.formatCurrency(amount, money.currencyUnit) + postFix,
+        text = prefix + formatted + postFix,
         color = color
     )
 }
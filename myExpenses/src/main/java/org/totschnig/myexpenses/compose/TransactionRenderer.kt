@@ -314,7 +314,8 @@ class CompactTransactionRenderer(
             text = description,
             icons = secondaryInfo.second
         )
-        ColoredAmountText(money = transaction.equivalentAmount ?:  transaction.amount, neutral = transaction.isTransferAggregate)
+        val formattedAmounts = transaction.formattedAmounts(LocalCurrencyFormatter.current)
+        ColoredAmountText(formatted = formattedAmounts.amount, sign = formattedAmounts.amountSign)
     }
 
     override fun Modifier.height() = this.height(IntrinsicSize.Min)
@@ -364,11 +365,16 @@ class NewTransactionRenderer(
 
         }
         Column(horizontalAlignment = Alignment.End) {
+            val formattedAmounts = transaction.formattedAmounts(LocalCurrencyFormatter.current)
             ColoredAmountText(
-                money = transaction.equivalentAmount ?:  transaction.amount,
-                style = MaterialTheme.typography.body1,
-                neutral = transaction.isTransferAggregate
+                formatted = formattedAmounts.amount,
+                sign = formattedAmounts.amountSign,
+                style = MaterialTheme.typography.body1
             )
+            //the balance is shown with its sign, but without the colors of income and expenses
+            formattedAmounts.runningBalance?.let {
+                Text(text = it, style = MaterialTheme.typography.caption)
+            }
             dateTimeFormatter?.let {
                 Text(text = it.format(transaction.date), style = MaterialTheme.typography.caption)
             }
@@ -378,9 +384,6 @@ class NewTransactionRenderer(
     override fun Modifier.height() = this.heightIn(min = 48.dp)
 }
 
-val Transaction2.isTransferAggregate
-    get() = isTransfer && accountLabel != null
-
 enum class RenderType {
     Legacy, New
 }
@@ -27,6 +27,7 @@ import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_COMMENT
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CR_STATUS
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CURRENCY
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_FINGERPRINT
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ICON
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL_NORMALIZED
@@ -203,6 +204,58 @@ class Repository @Inject constructor(
 
     private fun findOrWritePayee(name: String) = findPayee(name) ?: createPayee(name)
 
+    /**
+     * loads all payees in one query, so that importers can resolve names without a query per row
+     * @return map from payee name to id
+     */
+    fun loadPayeeMap(): MutableMap<String, Long> = HashMap<String, Long>().also { map ->
+        contentResolver.query(
+            TransactionProvider.PAYEES_URI,
+            arrayOf(KEY_ROWID, KEY_PAYEE_NAME),
+            null, null, null
+        )?.use { cursor ->
+            cursor.asSequence.forEach {
+                map.putIfAbsent(it.getString(1), it.getLong(0))
+            }
+        }
+    }
+
+    /**
+     * loads the fingerprints of all transactions in the account in one query, so that importers
+     * can detect likely duplicates without a query per row
+     * @see org.totschnig.myexpenses.provider.fingerprint
+     */
+    fun loadFingerprints(accountId: Long): MutableSet<String> = HashSet<String>().also { set ->
+        contentResolver.query(
+            TransactionProvider.TRANSACTIONS_URI,
+            arrayOf(KEY_FINGERPRINT),
+            "$KEY_ACCOUNTID = ? AND $KEY_FINGERPRINT IS NOT NULL",
+            arrayOf(accountId.toString()), null
+        )?.use { cursor ->
+            cursor.asSequence.forEach {
+                set.add(it.getString(0))
+            }
+        }
+    }
+
+    /**
+     * variant of [findOrWritePayeeInfo] that resolves payees through the map returned by
+     * [loadPayeeMap] instead of querying the database
+     * @param payeeToId new payees are added to this map
+     * @param autoFillCache caches the result of the autoFill lookup per payee
+     */
+    fun findOrWritePayeeInfo(
+        payeeName: String,
+        autoFill: Boolean,
+        payeeToId: MutableMap<String, Long>,
+        autoFillCache: MutableMap<Long, AutoFillInfo?>
+    ): Pair<Long, AutoFillInfo?> = payeeToId[payeeName.trim()]?.let { payeeId ->
+        Pair(payeeId, if (autoFill) {
+            if (autoFillCache.containsKey(payeeId)) autoFillCache[payeeId] else
+                autoFill(payeeId).also { autoFillCache[payeeId] = it }
+        } else null)
+    } ?: Pair(createPayee(payeeName)!!.also { payeeToId[payeeName.trim()] = it }, null)
+
     private fun findPayee(name: String) = contentResolver.query(
         TransactionProvider.PAYEES_URI,
         arrayOf(KEY_ROWID),
@@ -338,6 +391,31 @@ class Repository @Inject constructor(
         } ?: -1
     }
 
+    /**
+     * loads all categories in one query
+     * @return map from category path, with levels separated by ':', to id, in the format expected
+     * by [CategoryHelper.insert]
+     */
+    fun loadCategoryPathMap(): MutableMap<String, Long> {
+        val categories = HashMap<Long, Pair<Long?, String>>()
+        contentResolver.query(
+            CATEGORIES_URI,
+            arrayOf(KEY_ROWID, KEY_PARENTID, KEY_LABEL),
+            null, null, null
+        )?.use { cursor ->
+            cursor.asSequence.forEach {
+                categories[it.getLong(0)] = it.getLongOrNull(1) to it.getString(2)
+            }
+        }
+        val paths = HashMap<Long, String>()
+        fun path(id: Long): String = paths[id] ?: categories.getValue(id).let { (parentId, label) ->
+            (parentId?.takeIf { categories.containsKey(it) }?.let { "${path(it)}:$label" } ?: label)
+        }.also { paths[id] = it }
+        return HashMap<String, Long>().also { map ->
+            categories.keys.forEach { map.putIfAbsent(path(it), it) }
+        }
+    }
+
     @VisibleForTesting
     fun loadCategory(id: Long): Category? = contentResolver.query(
         CATEGORIES_URI,
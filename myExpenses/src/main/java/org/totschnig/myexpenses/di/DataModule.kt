@@ -20,6 +20,7 @@ import org.totschnig.myexpenses.MyApplication
 import org.totschnig.myexpenses.preference.PrefHandler
 import org.totschnig.myexpenses.preference.PrefHandlerImpl
 import org.totschnig.myexpenses.provider.DatabaseVersionPeekHelper
+import org.totschnig.myexpenses.provider.InvalidationBus
 import javax.inject.Named
 import javax.inject.Singleton
 
@@ -37,6 +38,11 @@ open class DataModule(private val frameWorkSqlite: Boolean = BuildConfig.DEBUG)
             application.contentResolver, Schedulers.io()
         )
 
+    @Provides
+    @Singleton
+    fun provideInvalidationBus(application: MyApplication) =
+        InvalidationBus(application.contentResolver)
+
     @Provides
     @Singleton
     open fun providePrefHandler(
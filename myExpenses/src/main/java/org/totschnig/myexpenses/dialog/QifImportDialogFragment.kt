@@ -9,6 +9,7 @@ import android.os.Bundle
 import android.view.View
 import android.widget.AdapterView
 import android.widget.ArrayAdapter
+import android.widget.CheckBox
 import android.widget.SimpleCursorAdapter
 import android.widget.Spinner
 import androidx.appcompat.app.AlertDialog
@@ -38,6 +39,7 @@ class QifImportDialogFragment : TextSourceDialogFragment(), LoaderManager.Loader
     private lateinit var mDateFormatSpinner: Spinner
     private lateinit var mCurrencySpinner: Spinner
     private lateinit var mEncodingSpinner: Spinner
+    private lateinit var mSkipDuplicates: CheckBox
     private var mAccountsAdapter: SimpleCursorAdapter? = null
     private var mAccountsCursor: MergeCursor? = null
     private var accountId: Long = 0
@@ -97,6 +99,7 @@ class QifImportDialogFragment : TextSourceDialogFragment(), LoaderManager.Loader
                 mImportTransactions.isChecked,
                 mImportCategories.isChecked,
                 mImportParties.isChecked,
+                mSkipDuplicates.isChecked,
                 encoding
             )
         } else {
@@ -159,6 +162,7 @@ class QifImportDialogFragment : TextSourceDialogFragment(), LoaderManager.Loader
         LoaderManager.getInstance(this).initLoader(0, null, this)
         mDateFormatSpinner = view.findViewById(R.id.DateFormat)
         mDateFormatSpinner.configureDateFormat(wrappedCtx, prefHandler, PREF_KEY_IMPORT_DATE_FORMAT)
+        mSkipDuplicates = view.findViewById(R.id.skip_duplicates)
         mEncodingSpinner = view.findViewById(R.id.Encoding)
         DialogUtils.configureEncoding(
             mEncodingSpinner,
@@ -39,6 +39,7 @@ import org.totschnig.myexpenses.model.Transaction
 import org.totschnig.myexpenses.provider.DatabaseConstants
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ICON
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
+import org.totschnig.myexpenses.provider.includingArchive
 import org.totschnig.myexpenses.provider.categoryTreeSelect
 import org.totschnig.myexpenses.provider.filter.WhereFilter
 import org.totschnig.myexpenses.util.CurrencyFormatter
@@ -190,7 +191,7 @@ class TransactionListDialogFragment : BaseDialogFragment(), LoaderManager.Loader
         when (id) {
             TRANSACTION_CURSOR -> return CursorLoader(
                 requireActivity(),
-                mAccount.getExtendedUriForTransactionList(type != 0, true),
+                mAccount.getExtendedUriForTransactionList(type != 0, true).includingArchive(),
                 mAccount.extendedProjectionForTransactionList,
                 selection,
                 selectionArgs,
@@ -198,7 +199,7 @@ class TransactionListDialogFragment : BaseDialogFragment(), LoaderManager.Loader
             )
             SUM_CURSOR -> return CursorLoader(
                 requireActivity(),
-                Transaction.EXTENDED_URI, arrayOf("sum($amountCalculation)"), selection,
+                Transaction.EXTENDED_URI.includingArchive(), arrayOf("sum($amountCalculation)"), selection,
                 selectionArgs, null
             )
         }
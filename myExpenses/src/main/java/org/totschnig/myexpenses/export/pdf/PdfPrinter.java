@@ -26,6 +26,9 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_WEEK;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_YEAR;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_YEAR_OF_WEEK_START;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.SPLIT_CATID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_COMMITTED;
+import static org.totschnig.myexpenses.provider.DbConstantsKt.FULL_LABEL;
 import static org.totschnig.myexpenses.util.CurrencyFormatterKt.convAmount;
 import static org.totschnig.myexpenses.util.CurrencyFormatterKt.formatMoney;
 
@@ -87,6 +90,11 @@ import timber.log.Timber;
 
 public class PdfPrinter {
   private static final String VOID_MARKER = "void";
+  /**
+   * number of transactions after which the rows of an incomplete table are written to the document
+   * and released from memory
+   */
+  private static final int ROWS_PER_CHUNK = 50;
   private final Account account;
   private final DocumentFile destDir;
   private final WhereFilter filter;
@@ -125,7 +133,7 @@ public class PdfPrinter {
     Document document = new Document();
     transactionCursor = Model.cr().query(
         account.getExtendedUriForTransactionList(false, false), account.getExtendedProjectionForTransactionList(),
-        selection + " AND " + KEY_PARENTID + " is null", selectionArgs, KEY_DATE + " ASC");
+        selection + " AND " + KEY_PARENTID + " is null", selectionArgs, KEY_DATE + " ASC, " + KEY_ROWID + " ASC");
     //first we check if there are any exportable transactions
     //String selection = KEY_ACCOUNTID + " = " + getId() + " AND " + KEY_PARENTID + " is null";
     if (transactionCursor.getCount() == 0) {
@@ -231,6 +239,8 @@ public class PdfPrinter {
         itemDateFormat = Utils.localizedYearLessDateFormat(ctx);
     }
     PdfPTable table = null;
+    int rowsInChunk = 0;
+    SplitTextReader splitTexts = new SplitTextReader();
 
     int prevHeaderId = 0, currentHeaderId;
 
@@ -263,7 +273,7 @@ public class PdfPrinter {
       }
       if (currentHeaderId != prevHeaderId) {
         if (table != null) {
-          document.add(table);
+          completeTable(document, table);
         }
         switch (account.getGrouping()) {
           case DAY:
@@ -362,8 +372,10 @@ public class PdfPrinter {
         table.setWidths(table.getRunDirection() == PdfWriter.RUN_DIRECTION_RTL ?
             new int[]{2, 3, 5, 1} : new int[]{1, 5, 3, 2});
         table.setSpacingBefore(2f);
-        table.setSpacingAfter(2f);
         table.setWidthPercentage(100f);
+        //large table support: rows are written in chunks, so that we do not hold a whole group in memory
+        table.setComplete(false);
+        rowsInChunk = 0;
         prevHeaderId = currentHeaderId;
         groupCursor.moveToNext();
         previousBalance = interimBalance;
@@ -388,33 +400,8 @@ public class PdfPrinter {
       } else {
         Long catId = DbUtils.getLongOrNull(transactionCursor, KEY_CATID);
         if (SPLIT_CATID.equals(catId)) {
-          Cursor splits = Model.cr().query(Transaction.CONTENT_URI, null,
-              KEY_PARENTID + " = " + transactionCursor.getLong(columnIndexRowId), null, null);
-          splits.moveToFirst();
-          StringBuilder catTextBuilder = new StringBuilder();
-          while (splits.getPosition() < splits.getCount()) {
-            String splitText = DbUtils.getString(splits, KEY_LABEL);
-            if (splitText.length() > 0) {
-              if (DbUtils.getLongOrNull(splits, KEY_TRANSFER_PEER) != null) {
-                splitText = "[" + splitText + "]";
-              }
-            } else {
-              splitText = Category.NO_CATEGORY_ASSIGNED_LABEL;
-            }
-            splitText += " " + convAmount(currencyFormatter, splits.getLong(
-                splits.getColumnIndexOrThrow(KEY_AMOUNT)), account.getCurrencyUnit());
-            String splitComment = DbUtils.getString(splits, KEY_COMMENT);
-            if (splitComment != null && splitComment.length() > 0) {
-              splitText += " (" + splitComment + ")";
-            }
-            catTextBuilder.append(splitText);
-            if (splits.getPosition() != splits.getCount() - 1) {
-              catTextBuilder.append("; ");
-            }
-            splits.moveToNext();
-          }
-          catText = catTextBuilder.toString();
-          splits.close();
+          catText = splitTexts.next(transactionCursor.getLong(columnIndexRowId),
+              transactionCursor.getLong(columnIndexDate));
         } else if (catId == null) {
           catText = Category.NO_CATEGORY_ASSIGNED_LABEL;
         }
@@ -476,11 +463,92 @@ public class PdfPrinter {
         }
         table.addCell(helper.emptyCell());
       }
+      if (++rowsInChunk == ROWS_PER_CHUNK) {
+        document.add(table);
+        //spacing only applies before the first chunk
+        table.setSpacingBefore(0f);
+        rowsInChunk = 0;
+      }
       transactionCursor.moveToNext();
     }
     // now add all this to the document
-    document.add(table);
+    completeTable(document, table);
     groupCursor.close();
+    splitTexts.close();
+  }
+
+  private void completeTable(Document document, PdfPTable table) throws DocumentException {
+    table.setSpacingAfter(2f);
+    table.setComplete(true);
+    document.add(table);
+  }
+
+  /**
+   * Streams the parts of split transactions in the same order as the transaction list (date, then
+   * id of the parent), so that the text of each split can be merged in while the list is rendered,
+   * without holding the parts of the whole export in memory.
+   */
+  private class SplitTextReader {
+    private static final String KEY_PARENT_DATE = "parent_date";
+    private final Cursor splits;
+    private boolean hasRow;
+
+    SplitTextReader() {
+      String parentDate = "(SELECT " + KEY_DATE + " FROM " + TABLE_TRANSACTIONS + " parent WHERE parent." +
+          KEY_ROWID + " = " + VIEW_COMMITTED + "." + KEY_PARENTID + ")";
+      splits = Model.cr().query(Transaction.CONTENT_URI,
+          new String[]{KEY_PARENTID, FULL_LABEL, KEY_TRANSFER_PEER, KEY_AMOUNT, KEY_COMMENT,
+              parentDate + " AS " + KEY_PARENT_DATE},
+          account.getSelectionForTransactionList() + " AND " + KEY_PARENTID + " IS NOT NULL",
+          account.getSelectionArgsForTransactionList(),
+          KEY_PARENT_DATE + " ASC, " + KEY_PARENTID + " ASC, " + KEY_DATE + " DESC");
+      hasRow = splits != null && splits.moveToFirst();
+    }
+
+    /**
+     * Must be called with parents in ascending order of (date, id). Parts of parents that are not
+     * part of the export (e.g. excluded by the filter) are skipped.
+     *
+     * @return the text rendered for the parts of the given split
+     */
+    String next(long parentId, long parentDate) {
+      while (hasRow && compare(splits.getLong(5), splits.getLong(0), parentDate, parentId) < 0) {
+        hasRow = splits.moveToNext();
+      }
+      StringBuilder catTextBuilder = new StringBuilder();
+      while (hasRow && splits.getLong(0) == parentId) {
+        if (catTextBuilder.length() > 0) {
+          catTextBuilder.append("; ");
+        }
+        String splitText = splits.getString(1);
+        if (splitText != null && splitText.length() > 0) {
+          if (!splits.isNull(2)) {
+            splitText = "[" + splitText + "]";
+          }
+        } else {
+          splitText = Category.NO_CATEGORY_ASSIGNED_LABEL;
+        }
+        splitText += " " + convAmount(currencyFormatter, splits.getLong(3), account.getCurrencyUnit());
+        String splitComment = splits.getString(4);
+        if (splitComment != null && splitComment.length() > 0) {
+          splitText += " (" + splitComment + ")";
+        }
+        catTextBuilder.append(splitText);
+        hasRow = splits.moveToNext();
+      }
+      return catTextBuilder.toString();
+    }
+
+    private int compare(long date, long id, long otherDate, long otherId) {
+      int result = Long.compare(date, otherDate);
+      return result != 0 ? result : Long.compare(id, otherId);
+    }
+
+    void close() {
+      if (splits != null) {
+        splits.close();
+      }
+    }
   }
 
   private void addEmptyLine(Paragraph paragraph, int number) {
@@ -25,6 +25,10 @@ public class QifAccount {
 
   public Account dbAccount;
   public final List<QifTransaction> transactions = new ArrayList<>();
+  /**
+   * number of transactions found by the parser, also when they are not collected in {@link #transactions}
+   */
+  public int transactionCount = 0;
 
   public static QifAccount fromAccount(Account account) {
     QifAccount qifAccount = new QifAccount();
@@ -17,12 +17,24 @@ import java.io.IOException
  * Created by IntelliJ IDEA.
  * User: Denis Solonenko
  * Date: 10/11/11 10:32 PM
+ *
+ * @param transactionListener if not null, transactions are handed to the listener as soon as
+ * they are parsed, instead of being collected in [QifAccount.transactions], so that memory use
+ * does not grow with the number of transactions in the file
  */
-class QifParser(
+class QifParser @JvmOverloads constructor(
     private val r: QifBufferedReader,
     private val dateFormat: QifDateFormat,
-    private val currency: CurrencyUnit
+    private val currency: CurrencyUnit,
+    private val transactionListener: TransactionListener? = null
 ) {
+    fun interface TransactionListener {
+        /**
+         * @param accountIndex position of the account in [accounts]
+         */
+        fun onTransaction(accountIndex: Int, transaction: QifTransaction)
+    }
+
     @JvmField
     val accounts: MutableList<QifAccount> = ArrayList()
     @JvmField
@@ -85,6 +97,7 @@ class QifParser(
     @Throws(IOException::class)
     private fun parseTransactions(account: QifAccount) {
         accounts.add(account)
+        val accountIndex = accounts.size - 1
         val peek = r.peekLine()
         if (peek != null && peek.startsWith("!Type:")) {
             applyAccountType(account, peek)
@@ -98,7 +111,12 @@ class QifParser(
                 } else {
                     addPayeeFromTransaction(t)
                     addCategoryFromTransaction(t)
-                    account.transactions.add(t)
+                    account.transactionCount++
+                    if (transactionListener != null) {
+                        transactionListener.onTransaction(accountIndex, t)
+                    } else {
+                        account.transactions.add(t)
+                    }
                 }
             } while (shouldReadOn())
         }
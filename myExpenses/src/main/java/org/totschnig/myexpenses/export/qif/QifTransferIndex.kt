@@ -0,0 +1,47 @@
+package org.totschnig.myexpenses.export.qif
+
+import java.math.BigDecimal
+import java.util.*
+
+/**
+ * Indexes the transfers of QIF accounts by counterpart account, date and amount, so that the
+ * other side of a transfer is found with one lookup instead of scanning all transactions of the
+ * target account with [QifUtils.twoSidesOfTheSameTransfer].
+ * Only top level transactions are candidates, as they are in the scan it replaces.
+ */
+class QifTransferIndex {
+    private data class Key(val counterpart: String?, val date: Date?, val amount: BigDecimal)
+
+    private val index = IdentityHashMap<QifAccount, Map<Key, ArrayDeque<QifTransaction>>>()
+    private val claimed: MutableSet<QifTransaction> = Collections.newSetFromMap(IdentityHashMap())
+
+    private fun build(account: QifAccount): Map<Key, ArrayDeque<QifTransaction>> =
+        HashMap<Key, ArrayDeque<QifTransaction>>().also { map ->
+            account.transactions.filter { it.isTransfer }.forEach {
+                map.getOrPut(Key(it.toAccount, it.date, it.amount)) { ArrayDeque() }.add(it)
+            }
+        }
+
+    /**
+     * @return the first transaction in [toAccount] that is the other side of [fromTransaction]
+     * and has not been claimed before, or null if there is none
+     */
+    fun claimCounterpart(
+        fromAccount: QifAccount,
+        fromTransaction: QifTransaction,
+        toAccount: QifAccount
+    ): QifTransaction? = if (fromTransaction.toAccount == toAccount.memo)
+        index.getOrPut(toAccount) { build(toAccount) }[
+                Key(fromAccount.memo, fromTransaction.date, fromTransaction.amount.negate())
+        ]?.pollFirst()?.also { claimed.add(it) }
+    else null
+
+    /**
+     * removes all claimed transactions from the accounts they belong to
+     */
+    fun removeClaimed() {
+        index.keys.forEach { it.transactions.removeAll(claimed) }
+        index.clear()
+        claimed.clear()
+    }
+}
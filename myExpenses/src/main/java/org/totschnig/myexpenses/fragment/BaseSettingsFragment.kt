@@ -27,6 +27,7 @@ import androidx.core.content.res.ResourcesCompat
 import androidx.fragment.app.viewModels
 import androidx.lifecycle.lifecycleScope
 import androidx.preference.*
+import eltos.simpledialogfragment.SimpleDateDialog
 import eltos.simpledialogfragment.SimpleDialog
 import eltos.simpledialogfragment.SimpleDialog.OnDialogResultListener
 import eltos.simpledialogfragment.form.Input
@@ -79,6 +80,7 @@ import org.totschnig.myexpenses.widget.updateWidgets
 import timber.log.Timber
 import java.io.File
 import java.net.URI
+import java.text.DateFormat
 import java.text.DateFormatSymbols
 import java.time.LocalDate
 import java.time.LocalTime
@@ -1254,6 +1256,15 @@ abstract class BaseSettingsFragment : PreferenceFragmentCompat(), OnValidationEr
                 }
                 true
             }
+            matches(preference, PrefKey.ARCHIVE_TRANSACTIONS) -> {
+                SimpleDateDialog.build()
+                    .title(R.string.dialog_title_archive_before)
+                    .maxDate(System.currentTimeMillis())
+                    .neut(R.string.menu_unarchive)
+                    .neg()
+                    .show(this, DIALOG_ARCHIVE)
+                true
+            }
             matches(preference, PrefKey.EXCHANGE_RATES_CLEAR_CACHE) -> {
                 viewModel.clearExchangeRateCache().observe(this) {
                     preferenceActivity.showSnackBar("${getString(R.string.clear_cache)} ($it)")
@@ -1315,6 +1326,53 @@ abstract class BaseSettingsFragment : PreferenceFragmentCompat(), OnValidationEr
                     }
                 }
             }
+            DIALOG_ARCHIVE -> {
+                when (which) {
+                    OnDialogResultListener.BUTTON_POSITIVE -> {
+                        val date = extras.getLong(SimpleDateDialog.DATE)
+                        SimpleDialog.build()
+                            .title(R.string.pref_archive_transactions_title)
+                            .msg(
+                                getString(
+                                    R.string.archive_transactions_confirmation,
+                                    DateFormat.getDateInstance().format(Date(date))
+                                )
+                            )
+                            .pos(R.string.pref_archive_transactions_title)
+                            .neg()
+                            .extra(Bundle().apply { putLong(SimpleDateDialog.DATE, date) })
+                            .show(this, DIALOG_ARCHIVE_CONFIRM)
+                    }
+                    OnDialogResultListener.BUTTON_NEUTRAL -> SimpleDialog.build()
+                        .title(R.string.menu_unarchive)
+                        .msg(R.string.unarchive_transactions_confirmation)
+                        .pos(R.string.menu_unarchive)
+                        .neg()
+                        .show(this, DIALOG_UNARCHIVE_CONFIRM)
+                }
+            }
+            DIALOG_ARCHIVE_CONFIRM -> {
+                if (which == OnDialogResultListener.BUTTON_POSITIVE) {
+                    viewModel.archiveTransactions(
+                        extras.getLong(SimpleDateDialog.DATE) / 1000
+                    ).observe(this) {
+                        val count = it ?: 0
+                        preferenceActivity.showSnackBar(
+                            resources.getQuantityString(R.plurals.archive_transactions_success, count, count)
+                        )
+                    }
+                }
+            }
+            DIALOG_UNARCHIVE_CONFIRM -> {
+                if (which == OnDialogResultListener.BUTTON_POSITIVE) {
+                    viewModel.unarchiveTransactions().observe(this) {
+                        val count = it ?: 0
+                        preferenceActivity.showSnackBar(
+                            resources.getQuantityString(R.plurals.unarchive_transactions_success, count, count)
+                        )
+                    }
+                }
+            }
             DIALOG_SHARE_LOGS -> {
                 if (which == OnDialogResultListener.BUTTON_POSITIVE) {
                     val logDir = File(requireContext().getExternalFilesDir(null), "logs")
@@ -1346,6 +1404,9 @@ abstract class BaseSettingsFragment : PreferenceFragmentCompat(), OnValidationEr
         const val DIALOG_VALIDATE_LICENCE = "validateLicence"
         const val DIALOG_MANAGE_LICENCE = "manageLicence"
         const val DIALOG_SHARE_LOGS = "shareLogs"
+        const val DIALOG_ARCHIVE = "archive"
+        const val DIALOG_ARCHIVE_CONFIRM = "archiveConfirm"
+        const val DIALOG_UNARCHIVE_CONFIRM = "unarchiveConfirm"
         const val KEY_EMAIL = "email"
         const val KEY_KEY = "key"
         const val PICK_FOLDER_REQUEST = 2
@@ -47,6 +47,7 @@ class CsvImportDataFragment : Fragment() {
     private lateinit var mFieldAdapter: ArrayAdapter<Pair<Int, String?>>
     private lateinit var cellParams: LinearLayout.LayoutParams
     private var headerLine = -1
+    private var totalCount = 0
     private var nrOfColumns: Int = 0
     private val allFields: List<Pair<Int, String?>> = listOf(
             R.string.discard to null,
@@ -131,7 +132,10 @@ class CsvImportDataFragment : Fragment() {
         binding.myRecyclerView.setHasFixedSize(true)
 
         if (savedInstanceState != null) {
-            setData(savedInstanceState.getSerializable(KEY_DATA_SET) as? ArrayList<CSVRecord>)
+            setData(
+                savedInstanceState.getSerializable(KEY_DATA_SET) as? ArrayList<CSVRecord>,
+                savedInstanceState.getInt(KEY_TOTAL_COUNT)
+            )
             selectedRows = savedInstanceState.getParcelable(KEY_SELECTED_ROWS)!!
             headerLine = savedInstanceState.getInt(KEY_HEADER_LINE_POSITION)
         }
@@ -143,9 +147,23 @@ class CsvImportDataFragment : Fragment() {
         _binding = null
     }
 
-    fun setData(data: List<CSVRecord>?) {
+    /**
+     * @param totalCount number of records in the file, only the records in [data] can be
+     * deselected
+     */
+    fun setData(data: List<CSVRecord>?, totalCount: Int) {
         if (data == null || data.isEmpty()) return
         dataSet = ArrayList(data)
+        this.totalCount = totalCount
+        with(binding.previewLimit) {
+            if (totalCount > data.size) {
+                maxWidth = resources.displayMetrics.widthPixels
+                text = getString(R.string.csv_import_preview_limited, data.size, totalCount)
+                visibility = View.VISIBLE
+            } else {
+                visibility = View.GONE
+            }
+        }
         nrOfColumns = dataSet.map { it.size() }.maxOrNull()!!
         selectedRows = SparseBooleanArrayParcelable()
         for (i in 0 until dataSet.size) {
@@ -294,6 +312,7 @@ class CsvImportDataFragment : Fragment() {
         outState.putSerializable(KEY_DATA_SET, dataSet)
         outState.putParcelable(KEY_SELECTED_ROWS, selectedRows)
         outState.putInt(KEY_HEADER_LINE_POSITION, headerLine)
+        outState.putInt(KEY_TOTAL_COUNT, totalCount)
     }
 
     override fun onCreateOptionsMenu(menu: Menu, inflater: MenuInflater) {
@@ -321,8 +340,8 @@ class CsvImportDataFragment : Fragment() {
             }
             if (validateMapping(columnToFieldMap)) {
                 prefHandler.putString(PrefKey.CSV_IMPORT_HEADER_TO_FIELD_MAP, header2FieldMap.toString())
-                val selectedData = dataSet.filterIndexed { index, _ -> selectedRows[index] }
-                (activity as? CsvImportActivity)?.importData(selectedData, columnToFieldMap, dataSet.size - selectedData.size)
+                val discardedRows = dataSet.indices.filterTo(HashSet()) { !selectedRows[it] }
+                (activity as? CsvImportActivity)?.importData(discardedRows, columnToFieldMap)
             }
         }
         return super.onOptionsItemSelected(item)
@@ -373,6 +392,7 @@ class CsvImportDataFragment : Fragment() {
         const val KEY_DATA_SET = "DATA_SET"
         const val KEY_SELECTED_ROWS = "SELECTED_ROWS"
         const val KEY_HEADER_LINE_POSITION = "HEADER_LINE_POSITION"
+        const val KEY_TOTAL_COUNT = "TOTAL_COUNT"
         fun newInstance(): CsvImportDataFragment {
             return CsvImportDataFragment()
         }
@@ -296,6 +296,9 @@ class CsvImportParseFragment : Fragment(), View.OnClickListener, LoaderManager.L
     val autoFillCategories: Boolean
         get() = binding.autofillCategories.isChecked
 
+    val skipDuplicates: Boolean
+        get() = binding.skipDuplicates.isChecked
+
     companion object {
         const val PREF_KEY_IMPORT_CSV_DATE_FORMAT = "import_csv_date_format"
         const val PREF_KEY_IMPORT_CSV_ENCODING = "import_csv_encoding"
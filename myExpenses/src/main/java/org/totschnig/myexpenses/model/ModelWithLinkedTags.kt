@@ -33,4 +33,14 @@ fun saveTags(linkUri: Uri, column: String, tags: List<Tag>?, id: Long, contentRe
     }
 
     return contentResolver.applyBatch(TransactionProvider.AUTHORITY, ops).size == ops.size
-}
\ No newline at end of file
+}
+
+/**
+ * Operations that link [tags] to the object inserted at position [backReference] of the same batch
+ */
+fun saveTagsOperations(linkUri: Uri, column: String, tags: List<Tag>?, backReference: Int) =
+    tags?.map {
+        ContentProviderOperation.newInsert(linkUri)
+            .withValueBackReference(column, backReference)
+            .withValue(DatabaseConstants.KEY_TAGID, it.id).build()
+    } ?: emptyList()
@@ -12,6 +12,7 @@ import com.android.calendar.EventRecurrenceFormatter
 import com.android.calendarcommon2.EventRecurrence
 import org.totschnig.myexpenses.MyApplication
 import org.totschnig.myexpenses.preference.PrefKey
+import org.totschnig.myexpenses.provider.CalendarProviderProxy
 import org.totschnig.myexpenses.service.DailyScheduler
 import org.totschnig.myexpenses.util.PermissionHelper.PermissionGroup
 import org.totschnig.myexpenses.util.Utils
@@ -142,10 +143,12 @@ class Plan private constructor(
             }
             uri = cr().insert(CalendarContract.Events.CONTENT_URI, values)!!
             id = ContentUris.parseId(uri)
+            CalendarProviderProxy.invalidateEvents(cr())
             DailyScheduler.updatePlannerAlarms(MyApplication.getInstance(), true, true)
         } else {
             uri = ContentUris.withAppendedId(CalendarContract.Events.CONTENT_URI, id)
             if (cr().update(uri, values, null, null) == 0) return null
+            CalendarProviderProxy.invalidateEvents(cr())
         }
         return uri
     }
@@ -214,6 +217,7 @@ class Plan private constructor(
                         null,
                         null
                     )
+                    CalendarProviderProxy.invalidateEvents(cr())
                 } else {
                     Timber.w(
                         "Attempt to delete event %d, which does not exist in calendar %s, has been blocked",
@@ -655,6 +655,13 @@ public class Transaction extends Model implements ITransaction {
     return ModelWithLinkedTagsKt.saveTags(linkedTagsUri(), linkColumn(), tags, getId(), Model.cr());
   }
 
+  /**
+   * @param offset position of the insert of this new transaction in the batch
+   */
+  public List<ContentProviderOperation> buildSaveTagsOperations(@Nullable List<Tag> tags, int offset) {
+    return ModelWithLinkedTagsKt.saveTagsOperations(linkedTagsUri(), linkColumn(), tags, offset);
+  }
+
   /**
    * factory method for creating an object of the correct type and linked to a given account
    *
@@ -928,7 +935,7 @@ public class Transaction extends Model implements ITransaction {
           .newUpdate(uri.buildUpon().appendPath(String.valueOf(getId())).build())
           .withValues(initialValues).build());
     }
-    addOriginPlanInstance(ops);
+    addOriginPlanInstance(ops, offset);
     return ops;
   }
 
@@ -938,7 +945,10 @@ public class Transaction extends Model implements ITransaction {
     return CONTENT_URI;
   }
 
-  protected void addOriginPlanInstance(ArrayList<ContentProviderOperation> ops) {
+  /**
+   * @param offset position of the insert of this transaction in the batch
+   */
+  protected void addOriginPlanInstance(ArrayList<ContentProviderOperation> ops, int offset) {
     if (originPlanInstanceId != null) {
       if (originTemplateId != null) {
         ContentValues values = new ContentValues();
@@ -947,7 +957,7 @@ public class Transaction extends Model implements ITransaction {
         final ContentProviderOperation.Builder builder =
             ContentProviderOperation.newInsert(TransactionProvider.PLAN_INSTANCE_STATUS_URI);
         if (getId() == 0) {
-          builder.withValueBackReference(KEY_TRANSACTIONID, 0);
+          builder.withValueBackReference(KEY_TRANSACTIONID, offset);
         } else {
           values.put(KEY_TRANSACTIONID, getId());
         }
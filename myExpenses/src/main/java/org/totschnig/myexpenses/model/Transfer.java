@@ -220,7 +220,7 @@ public class Transfer extends Transaction implements ITransfer {
           .newUpdate(transferUri)
           .withValues(transferValues).build());
     }
-    addOriginPlanInstance(ops);
+    addOriginPlanInstance(ops, offset);
     return ops;
   }
 
@@ -159,6 +159,8 @@ enum class PrefKey {
     PURGE_BACKUP(R.string.pref_purge_backup_key),
     PURGE_BACKUP_KEEP(R.string.pref_purge_backup_keep_key),
     PURGE_BACKUP_REQUIRE_CONFIRMATION(R.string.pref_purge_backup_require_confirmation_key),
+    BACKUP_DIFFERENTIAL(R.string.pref_backup_differential_key),
+    ARCHIVE_TRANSACTIONS(R.string.pref_archive_transactions_key),
     DEBUG_LOG_SHARE(R.string.pref_debug_logging_share_key),
     EXCHANGE_RATES_CLEAR_CACHE(R.string.pref_exchange_rates_clear_cache_key),
     DEBUG_REPAIR_987(R.string.pref_debug_repair_987_key),
@@ -0,0 +1,62 @@
+package org.totschnig.myexpenses.provider
+
+import android.net.Uri
+import androidx.sqlite.db.SupportSQLiteDatabase
+import org.totschnig.myexpenses.provider.DatabaseConstants.*
+
+/*
+ * Temporary triggers record the accounts whose transactions are written, so that notifications
+ * about changed transactions can be scoped to the affected accounts, see
+ * TransactionProvider.ACCOUNT_CHANGES_URI. The temporary objects only exist on the connection that
+ * writes to the database, which is why they are read inside a transaction.
+ */
+
+private const val TABLE_CHANGED_ACCOUNTS = "changed_accounts"
+
+private fun recordAccount(accountId: String) =
+    "INSERT OR IGNORE INTO $TABLE_CHANGED_ACCOUNTS VALUES ($accountId);"
+
+private fun recordAccountOfTransaction(transactionId: String) =
+    "INSERT OR IGNORE INTO $TABLE_CHANGED_ACCOUNTS SELECT $KEY_ACCOUNTID FROM main.$TABLE_TRANSACTIONS WHERE $KEY_ROWID = $transactionId;"
+
+private val CHANGED_ACCOUNTS_TRIGGERS = listOf(
+    "changed_accounts_insert" to "AFTER INSERT ON main.$TABLE_TRANSACTIONS BEGIN ${recordAccount("new.$KEY_ACCOUNTID")} END",
+    "changed_accounts_update" to "AFTER UPDATE ON main.$TABLE_TRANSACTIONS BEGIN ${recordAccount("old.$KEY_ACCOUNTID")} ${recordAccount("new.$KEY_ACCOUNTID")} END",
+    "changed_accounts_delete" to "AFTER DELETE ON main.$TABLE_TRANSACTIONS BEGIN ${recordAccount("old.$KEY_ACCOUNTID")} END",
+    "changed_accounts_tag_insert" to "AFTER INSERT ON main.$TABLE_TRANSACTIONS_TAGS BEGIN ${recordAccountOfTransaction("new.$KEY_TRANSACTIONID")} END",
+    "changed_accounts_tag_delete" to "AFTER DELETE ON main.$TABLE_TRANSACTIONS_TAGS BEGIN ${recordAccountOfTransaction("old.$KEY_TRANSACTIONID")} END"
+)
+
+fun createChangedAccountsTracking(db: SupportSQLiteDatabase) {
+    db.execSQL("CREATE TEMP TABLE IF NOT EXISTS $TABLE_CHANGED_ACCOUNTS ($KEY_ACCOUNTID integer primary key)")
+    CHANGED_ACCOUNTS_TRIGGERS.forEach { (name, definition) ->
+        db.execSQL("CREATE TEMP TRIGGER IF NOT EXISTS $name $definition")
+    }
+}
+
+/**
+ * @return the uris to notify for the accounts recorded since the last call, empty if no
+ * transactions have been written. Accounts that have been deleted in the meantime are skipped,
+ * their deletion is notified as unattributed change, as are changes that do not write
+ * transactions, e.g. a renamed payee, see [BaseTransactionProvider.notifyUnattributedChange].
+ */
+fun SupportSQLiteDatabase.collectChangedAccounts(): Set<Uri> {
+    if (isReadOnly) return emptySet()
+    beginTransaction()
+    try {
+        val result = query(
+            "SELECT $TABLE_CHANGED_ACCOUNTS.$KEY_ACCOUNTID, $KEY_CURRENCY FROM $TABLE_CHANGED_ACCOUNTS JOIN $TABLE_ACCOUNTS ON $TABLE_CHANGED_ACCOUNTS.$KEY_ACCOUNTID = $TABLE_ACCOUNTS.$KEY_ROWID"
+        ).use { cursor ->
+            buildSet {
+                while (cursor.moveToNext()) {
+                    add(BaseTransactionProvider.accountChangesUri(cursor.getString(1), cursor.getLong(0)))
+                }
+            }
+        }
+        execSQL("DELETE FROM $TABLE_CHANGED_ACCOUNTS")
+        setTransactionSuccessful()
+        return result
+    } finally {
+        endTransaction()
+    }
+}
@@ -0,0 +1,233 @@
+package org.totschnig.myexpenses.provider
+
+import android.content.ContentResolver
+import android.net.Uri
+import androidx.documentfile.provider.DocumentFile
+import org.totschnig.myexpenses.util.AppDirHelper
+import org.totschnig.myexpenses.util.crypt.EncryptionHelper
+import org.totschnig.myexpenses.util.io.FileCopyUtils
+import timber.log.Timber
+import java.io.File
+import java.io.FileNotFoundException
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.security.GeneralSecurityException
+import java.security.MessageDigest
+import java.util.UUID
+
+const val BACKUP_PICTURE_STORE_DIR_NAME = "backup-pictures"
+
+/**
+ * Content addressed store for pictures referenced by differential backups. Each picture is written
+ * once into [dir], named after the SHA-256 hash of its content, and encrypted with [password] if
+ * one is given. Backups then only need to list the hashes of the pictures they reference in their
+ * manifest (see [org.totschnig.myexpenses.util.ZipUtils.MANIFEST]).
+ *
+ * Pictures are kept in one subdirectory of [BACKUP_PICTURE_STORE_DIR_NAME] per encryption state:
+ * [PLAIN_DIR_NAME] without password, and a directory with a random name per password, recognized
+ * by a [CHECK_FILE_NAME] that only decrypts with that password. So a change of password or of
+ * encryption never makes a backup reference pictures it can not decrypt. Each backup records the
+ * hashes it references in [REFERENCES_DIR_NAME], which allows [cleanup] to remove pictures that
+ * are no longer referenced by any backup.
+ */
+class BackupPictureStore(
+    private val contentResolver: ContentResolver,
+    private val dir: DocumentFile,
+    private val password: String?
+) {
+    /**
+     * names of the files in [dir], listed once, since lookups through the storage access framework are expensive
+     */
+    private val stored: MutableSet<String> by lazy {
+        dir.listFiles().mapNotNullTo(HashSet()) { it.name }
+    }
+
+    var added = 0
+        private set
+
+    /**
+     * @return the hash of the content of [uri], or null if it no longer exists
+     */
+    @Throws(IOException::class, GeneralSecurityException::class)
+    fun put(uri: Uri): String? {
+        val hash = try {
+            openInputStream(uri).use { hash(it) }
+        } catch (e: FileNotFoundException) {
+            //File has been removed
+            return null
+        }
+        if (!stored.contains(hash)) {
+            val target = AppDirHelper.buildFile(dir, hash, MIME_TYPE, allowExisting = true)
+                ?: throw IOException("Unable to create $hash in ${dir.uri}")
+            contentResolver.openOutputStream(target.uri)?.use { out ->
+                openInputStream(uri).use { input ->
+                    if (password.isNullOrEmpty()) {
+                        FileCopyUtils.copy(input, out)
+                    } else {
+                        EncryptionHelper.encrypt(out, password).use { FileCopyUtils.copy(input, it) }
+                    }
+                }
+            } ?: throw IOException("Unable to write to ${target.uri}")
+            stored.add(hash)
+            added++
+            Timber.d("Stored picture %s as %s", uri, hash)
+        }
+        return hash
+    }
+
+    /**
+     * records the [hashes] referenced by the backup named [backupName], see [cleanup]
+     */
+    @Throws(IOException::class)
+    fun addReferences(backupName: String, hashes: Collection<String>) {
+        val referencesDir = dir.findFile(REFERENCES_DIR_NAME)?.takeIf { it.isDirectory }
+            ?: dir.createDirectory(REFERENCES_DIR_NAME)
+            ?: throw IOException("Unable to create $REFERENCES_DIR_NAME in ${dir.uri}")
+        val target = AppDirHelper.buildFile(referencesDir, backupName, TEXT_MIME_TYPE, allowExisting = true)
+            ?: throw IOException("Unable to create $backupName in ${referencesDir.uri}")
+        contentResolver.openOutputStream(target.uri, "wt")?.bufferedWriter()?.use { writer ->
+            hashes.forEach { writer.appendLine(it) }
+        } ?: throw IOException("Unable to write to ${target.uri}")
+    }
+
+    /**
+     * copies the picture with [hash] to [target]
+     * @return false if the store does not contain [hash]
+     */
+    @Throws(IOException::class, GeneralSecurityException::class)
+    fun get(hash: String, target: File): Boolean {
+        val file = dir.findFile(hash) ?: return false
+        val input = contentResolver.openInputStream(file.uri) ?: return false
+        input.use {
+            FileOutputStream(target).use { out ->
+                if (password.isNullOrEmpty()) {
+                    FileCopyUtils.copy(input, out)
+                } else {
+                    EncryptionHelper.decrypt(input, password).use { FileCopyUtils.copy(it, out) }
+                }
+            }
+        }
+        return true
+    }
+
+    private fun openInputStream(uri: Uri): InputStream = if (uri.scheme == "file")
+        File(uri.path!!).inputStream() else
+        contentResolver.openInputStream(uri) ?: throw FileNotFoundException(uri.toString())
+
+    companion object {
+        private const val MIME_TYPE = "application/octet-stream"
+
+        private const val TEXT_MIME_TYPE = "text/plain"
+        const val PLAIN_DIR_NAME = "plain"
+        const val CHECK_FILE_NAME = "check"
+        const val REFERENCES_DIR_NAME = "references"
+        private const val KEY_DIR_PREFIX = "key-"
+        private val CHECK_CONTENT = BACKUP_PICTURE_STORE_DIR_NAME.toByteArray()
+
+        /**
+         * @param create if false, null is returned if the store does not exist yet for the
+         * encryption state given by [password]
+         */
+        @JvmStatic
+        @Throws(IOException::class, GeneralSecurityException::class)
+        fun open(
+            contentResolver: ContentResolver,
+            appDir: DocumentFile,
+            password: String?,
+            create: Boolean
+        ): BackupPictureStore? {
+            val root = appDir.findFile(BACKUP_PICTURE_STORE_DIR_NAME)?.takeIf { it.isDirectory }
+                ?: if (create) appDir.createDirectory(BACKUP_PICTURE_STORE_DIR_NAME) else null
+            val dir = root?.let {
+                if (password.isNullOrEmpty()) {
+                    it.findFile(PLAIN_DIR_NAME)?.takeIf { dir -> dir.isDirectory }
+                        ?: if (create) it.createDirectory(PLAIN_DIR_NAME) else null
+                } else {
+                    findKeyDir(contentResolver, it, password)
+                        ?: if (create) createKeyDir(contentResolver, it, password) else null
+                }
+            }
+            return dir?.let { BackupPictureStore(contentResolver, it, password) }
+        }
+
+        private fun findKeyDir(contentResolver: ContentResolver, root: DocumentFile, password: String) =
+            root.listFiles().firstOrNull { dir ->
+                dir.isDirectory && dir.name?.startsWith(KEY_DIR_PREFIX) == true &&
+                        dir.findFile(CHECK_FILE_NAME)?.let { check ->
+                            contentResolver.openInputStream(check.uri)?.use { input ->
+                                try {
+                                    EncryptionHelper.decrypt(input.readBytes(), password)
+                                        .contentEquals(CHECK_CONTENT)
+                                } catch (e: GeneralSecurityException) {
+                                    //encrypted with another password
+                                    false
+                                }
+                            }
+                        } == true
+            }
+
+        @Throws(IOException::class, GeneralSecurityException::class)
+        private fun createKeyDir(contentResolver: ContentResolver, root: DocumentFile, password: String): DocumentFile {
+            val name = KEY_DIR_PREFIX + UUID.randomUUID()
+            val dir = root.createDirectory(name)
+                ?: throw IOException("Unable to create $name in ${root.uri}")
+            val check = AppDirHelper.buildFile(dir, CHECK_FILE_NAME, MIME_TYPE, allowExisting = false)
+                ?: throw IOException("Unable to create $CHECK_FILE_NAME in ${dir.uri}")
+            contentResolver.openOutputStream(check.uri)?.use {
+                it.write(EncryptionHelper.encrypt(CHECK_CONTENT, password))
+            } ?: throw IOException("Unable to write to ${check.uri}")
+            return dir
+        }
+
+        /**
+         * Removes the references of backups that no longer exist, then the pictures that are not
+         * referenced by any remaining backup, and directories of encryption states that are no
+         * longer used.
+         * @param backupNames names of the backups that exist
+         * @return number of pictures removed
+         */
+        @JvmStatic
+        fun cleanup(contentResolver: ContentResolver, appDir: DocumentFile, backupNames: Set<String>): Int {
+            val root = appDir.findFile(BACKUP_PICTURE_STORE_DIR_NAME)?.takeIf { it.isDirectory }
+                ?: return 0
+            var removed = 0
+            root.listFiles().filter { it.isDirectory }.forEach { dir ->
+                val referenced = HashSet<String>()
+                dir.findFile(REFERENCES_DIR_NAME)?.listFiles()?.forEach { references ->
+                    if (backupNames.contains(references.name)) {
+                        contentResolver.openInputStream(references.uri)?.bufferedReader()?.use {
+                            it.lineSequence().filterTo(referenced) { line -> line.isNotEmpty() }
+                        }
+                    } else {
+                        references.delete()
+                    }
+                }
+                if (referenced.isEmpty()) {
+                    removed += dir.listFiles().count { it.isFile && it.name != CHECK_FILE_NAME }
+                    dir.delete()
+                } else {
+                    dir.listFiles().forEach {
+                        if (it.isFile && it.name != CHECK_FILE_NAME && !referenced.contains(it.name)) {
+                            if (it.delete()) removed++
+                        }
+                    }
+                }
+            }
+            Timber.i("Removed %d pictures no longer referenced by backups", removed)
+            return removed
+        }
+
+        @JvmStatic
+        @Throws(IOException::class)
+        fun hash(inputStream: InputStream): String {
+            val digest = MessageDigest.getInstance("SHA-256")
+            val buffer = ByteArray(8192)
+            var count: Int
+            while (inputStream.read(buffer).also { count = it } != -1) {
+                digest.update(buffer, 0, count)
+            }
+            return digest.digest().joinToString("") { "%02x".format(it) }
+        }
+    }
+}
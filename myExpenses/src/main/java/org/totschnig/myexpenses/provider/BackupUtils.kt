@@ -2,6 +2,7 @@ package org.totschnig.myexpenses.provider
 
 import android.content.ContentResolver
 import android.content.Context
+import android.net.Uri
 import android.text.TextUtils
 import androidx.documentfile.provider.DocumentFile
 import org.totschnig.myexpenses.R
@@ -24,10 +25,14 @@ import java.util.*
 const val BACKUP_DB_FILE_NAME = "BACKUP"
 const val BACKUP_PREF_FILE_NAME = "BACKUP_PREF"
 
+/**
+ * @param onProgress receives the progress of the database snapshot in percent
+ */
 fun doBackup(
     context: Context,
     prefHandler: PrefHandler,
-    withSync: String?
+    withSync: String?,
+    onProgress: ((Int) -> Unit)? = null
 ): Result<Pair<DocumentFile, List<DocumentFile>>> {
     val password = prefHandler.getString(PrefKey.EXPORT_PASSWORD, null)
     if (!AppDirHelper.isExternalStorageAvailable) {
@@ -43,14 +48,28 @@ fun doBackup(
     val backupFile = requireBackupFile(appDir, !TextUtils.isEmpty(password))
         ?: return Result.failure(context, R.string.io_error_backupdir_null)
     val cacheDir = AppDirHelper.cacheDir(context)
-    return backup(cacheDir, context, prefHandler).mapCatching {
+    return backup(cacheDir, context, prefHandler, onProgress).mapCatching {
         try {
-            ZipUtils.zipBackup(
-                cacheDir,
-                backupFile, password
-            )
+            val pictureStore = if (prefHandler.getBoolean(PrefKey.BACKUP_DIFFERENTIAL, false))
+                BackupPictureStore.open(context.contentResolver, appDir, password, true)
+                    ?: throw IOException("Unable to create $BACKUP_PICTURE_STORE_DIR_NAME in ${appDir.uri}")
+            else null
+            ZipUtils.zipBackup(cacheDir, backupFile, password, pictureStore)
 
-            sync(context.contentResolver, withSync, backupFile)
+            //without a name, the references of the new backup could not be recorded
+            if (backupFile.name != null) {
+                BackupPictureStore.cleanup(
+                    context.contentResolver,
+                    appDir,
+                    listBackups(appDir).mapNotNullTo(HashSet()) { it.name }
+                )
+            }
+            sync(
+                context.contentResolver, withSync,
+                if (pictureStore != null && withSync != null && withSync != AccountPreference.SYNCHRONIZATION_NONE)
+                    selfContainedBackupForUpload(context, cacheDir, backupFile, password)
+                else backupFile
+            )
             backupFile to listOldBackups(appDir, prefHandler)
         } catch (e: IOException) {
             CrashHandler.report(e)
@@ -65,18 +84,54 @@ fun doBackup(
     }
 }
 
+private fun listBackups(appDir: DocumentFile) = appDir.listFiles()
+    .filter {
+        it.name?.matches("""backup-\d\d\d\d\d\d\d\d-\d\d\d\d\d\d\..+""".toRegex()) == true
+    }
+
 fun listOldBackups(appDir: DocumentFile, prefHandler: PrefHandler): List<DocumentFile> {
     val keep = prefHandler.getInt(PrefKey.PURGE_BACKUP_KEEP, 0)
     return if (prefHandler.getBoolean(PrefKey.PURGE_BACKUP, false) && keep > 0) {
-        appDir.listFiles()
-            .filter {
-                it.name?.matches("""backup-\d\d\d\d\d\d\d\d-\d\d\d\d\d\d\..+""".toRegex()) == true
-            }
+        listBackups(appDir)
             .sortedBy { it.lastModified() }
             .dropLast(keep)
     } else emptyList()
 }
 
+private const val BACKUP_UPLOAD_DIR_NAME = "backup-upload"
+
+/**
+ * Differential backups only reference their pictures, which are kept in the
+ * [BackupPictureStore] on this device, so the backup uploaded to the sync backend is written once
+ * more with its pictures included. It is deleted once uploaded, see [deleteUploadedBackup].
+ */
+private fun selfContainedBackupForUpload(
+    context: Context,
+    cacheDir: File,
+    backupFile: DocumentFile,
+    password: String?
+): DocumentFile {
+    val uploadDir = File(context.filesDir, BACKUP_UPLOAD_DIR_NAME)
+    //a backup still waiting for upload is replaced by the new one
+    uploadDir.listFiles()?.forEach { it.delete() }
+    if (!uploadDir.isDirectory && !uploadDir.mkdirs()) {
+        throw IOException("Unable to create $uploadDir")
+    }
+    return DocumentFile.fromFile(File(uploadDir, backupFile.name ?: "backup.zip")).also {
+        ZipUtils.zipBackup(cacheDir, it, password)
+    }
+}
+
+/**
+ * Deletes the backup written by [selfContainedBackupForUpload] after it has been uploaded, backups
+ * in the app dir, which are uploaded as they are, are kept
+ */
+fun deleteUploadedBackup(uri: Uri) {
+    if (uri.scheme == ContentResolver.SCHEME_FILE) {
+        uri.path?.let { File(it) }?.takeIf { it.parentFile?.name == BACKUP_UPLOAD_DIR_NAME }?.delete()
+    }
+}
+
 private fun sync(contentResolver: ContentResolver, backend: String?, backupFile: DocumentFile) {
     backend?.takeIf { it != AccountPreference.SYNCHRONIZATION_NONE }?.let {
         var backupFileName = backupFile.name
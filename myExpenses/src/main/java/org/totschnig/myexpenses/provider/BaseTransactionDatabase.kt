@@ -11,7 +11,7 @@ import org.totschnig.myexpenses.preference.PrefKey
 import org.totschnig.myexpenses.provider.DatabaseConstants.*
 import timber.log.Timber
 
-const val DATABASE_VERSION = 133
+const val DATABASE_VERSION = 139
 
 private const val RAISE_UPDATE_SEALED_DEBT = "SELECT RAISE (FAIL, 'attempt to update sealed debt');"
 private const val RAISE_INCONSISTENT_CATEGORY_HIERARCHY =
@@ -83,6 +83,49 @@ CREATE TRIGGER category_label_unique_update
 END
 """
 
+const val TRANSACTIONS_FINGERPRINT_INDEX_CREATE =
+    "CREATE INDEX transactions_fingerprint_index ON $TABLE_TRANSACTIONS($KEY_ACCOUNTID,$KEY_FINGERPRINT)"
+
+/**
+ * New transactions get their fingerprint with the values of their insert, see
+ * [TransactionProvider.insert]. On updates, the row is only touched if the fingerprint actually
+ * changes, so that the update does not show up in the change log
+ */
+private fun updateFingerprint(row: String, where: String) =
+    "UPDATE $TABLE_TRANSACTIONS SET $KEY_FINGERPRINT = ${fingerprintExpression(row)} WHERE $where AND $KEY_FINGERPRINT IS NOT ${fingerprintExpression(row)};"
+
+private val TRANSACTIONS_FINGERPRINT_UPDATE_TRIGGER_CREATE = """
+CREATE TRIGGER fingerprint_update
+AFTER UPDATE OF $KEY_ACCOUNTID,$KEY_DATE,$KEY_AMOUNT,$KEY_PAYEEID,$KEY_COMMENT,$KEY_PARENTID ON $TABLE_TRANSACTIONS
+BEGIN ${updateFingerprint("new", "$KEY_ROWID = new.$KEY_ROWID")} END
+"""
+
+/**
+ * transactions in sealed accounts or linked to sealed debts keep their stale fingerprint, since
+ * they can not be updated
+ */
+private val PAYEE_FINGERPRINT_UPDATE_TRIGGER_CREATE = """
+CREATE TRIGGER fingerprint_payee_update
+AFTER UPDATE OF $KEY_PAYEE_NAME_NORMALIZED ON $TABLE_PAYEES
+BEGIN ${updateFingerprint(TABLE_TRANSACTIONS, """$KEY_PAYEEID = new.$KEY_ROWID AND $KEY_PARENTID IS NULL
+    AND coalesce((SELECT max($KEY_SEALED) FROM $TABLE_ACCOUNTS WHERE $KEY_ROWID IN ($TABLE_TRANSACTIONS.$KEY_ACCOUNTID, $TABLE_TRANSACTIONS.$KEY_TRANSFER_ACCOUNT)), 0) != 1
+    AND coalesce((SELECT $KEY_SEALED FROM $TABLE_DEBTS WHERE $KEY_ROWID = $TABLE_TRANSACTIONS.$KEY_DEBT_ID), 0) != 1""")} END
+"""
+
+private const val TRANSACTIONS_ARCHIVE_INDEX_CREATE =
+    "CREATE INDEX transactions_archive_account_date_index ON $TABLE_TRANSACTIONS_ARCHIVE($KEY_ACCOUNTID,$KEY_DATE)"
+
+/**
+ * The archive has no foreign keys, so we clean up after deleted accounts ourselves
+ */
+private const val ACCOUNTS_DELETE_ARCHIVE_TRIGGER_CREATE = """
+CREATE TRIGGER account_delete_archive
+AFTER DELETE ON $TABLE_ACCOUNTS
+BEGIN
+    DELETE FROM $TABLE_TRANSACTIONS_ARCHIVE WHERE $KEY_ACCOUNTID = old.$KEY_ROWID;
+    UPDATE $TABLE_TRANSACTIONS_ARCHIVE SET $KEY_TRANSFER_PEER = NULL, $KEY_TRANSFER_ACCOUNT = NULL WHERE $KEY_TRANSFER_ACCOUNT = old.$KEY_ROWID;
+END
+"""
 
 abstract class BaseTransactionDatabase :
     SupportSQLiteOpenHelper.Callback(DATABASE_VERSION) {
@@ -274,6 +317,47 @@ abstract class BaseTransactionDatabase :
         )
     }
 
+    fun upgradeTo134(db: SupportSQLiteDatabase) {
+        db.execSQL("ALTER TABLE transactions add column fingerprint text")
+        db.execSQL(TRANSACTIONS_FINGERPRINT_INDEX_CREATE)
+        repairWithSealedAccountsAndDebts(db) {
+            db.execSQL("UPDATE transactions SET fingerprint = ${fingerprintExpression(TABLE_TRANSACTIONS)} WHERE parent_id IS NULL")
+        }
+        createOrRefreshFingerprintTriggers(db)
+    }
+
+    fun upgradeTo135(db: SupportSQLiteDatabase) {
+        createTransactionsArchive(db)
+    }
+
+    /**
+     * The archive is created as a copy of the current structure of [TABLE_TRANSACTIONS], since rows
+     * are moved between both tables with SELECT *. Upgrades that alter [TABLE_TRANSACTIONS] must
+     * apply the same change to [TABLE_TRANSACTIONS_ARCHIVE].
+     */
+    fun createTransactionsArchive(db: SupportSQLiteDatabase) {
+        db.execSQL("CREATE TABLE $TABLE_TRANSACTIONS_ARCHIVE AS SELECT * FROM $TABLE_TRANSACTIONS WHERE 0")
+        db.execSQL(TRANSACTIONS_ARCHIVE_INDEX_CREATE)
+        db.execSQL(ACCOUNTS_DELETE_ARCHIVE_TRIGGER_CREATE)
+    }
+
+    fun upgradeTo136(db: SupportSQLiteDatabase) {
+        createRollup(db)
+    }
+
+    fun upgradeTo137(db: SupportSQLiteDatabase) {
+        createRunningBalances(db)
+    }
+
+    fun upgradeTo138(db: SupportSQLiteDatabase) {
+        createOrRefreshFingerprintTriggers(db)
+    }
+
+    fun hasTransactionsArchive(db: SupportSQLiteDatabase) = db.query(
+        "SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?",
+        arrayOf(TABLE_TRANSACTIONS_ARCHIVE)
+    ).use { it.moveToFirst() }
+
     override fun onCreate(db: SupportSQLiteDatabase) {
         PrefKey.FIRST_INSTALL_DB_SCHEMA_VERSION.putInt(DATABASE_VERSION)
     }
@@ -334,6 +418,16 @@ abstract class BaseTransactionDatabase :
         }
     }
 
+    fun createOrRefreshFingerprintTriggers(db: SupportSQLiteDatabase) {
+        with(db) {
+            execSQL("DROP TRIGGER IF EXISTS fingerprint_insert")
+            execSQL("DROP TRIGGER IF EXISTS fingerprint_update")
+            execSQL("DROP TRIGGER IF EXISTS fingerprint_payee_update")
+            execSQL(TRANSACTIONS_FINGERPRINT_UPDATE_TRIGGER_CREATE)
+            execSQL(PAYEE_FINGERPRINT_UPDATE_TRIGGER_CREATE)
+        }
+    }
+
     fun repairWithSealedAccounts(db: SupportSQLiteDatabase, run: Runnable) {
         db.execSQL("update accounts set sealed = -1 where sealed = 1")
         run.run()
@@ -98,11 +98,25 @@ abstract class BaseTransactionProvider : ContentProvider() {
         }
     }
 
+    /**
+     * For changes that affect how transactions are displayed without writing to the transactions
+     * table, e.g. a renamed payee: notifies [TransactionProvider.ACCOUNT_CHANGES_URI] itself, which
+     * reaches the observers of all accounts.
+     */
+    fun notifyUnattributedChange() {
+        notifyChange(TransactionProvider.ACCOUNT_CHANGES_URI, false)
+    }
+
     private fun notifyChangeDo(uri: Uri, syncToNetwork: Boolean) {
         context!!.contentResolver.notifyChange(
             uri, null,
             syncToNetwork && prefHandler.getBoolean(PrefKey.SYNC_CHANGES_IMMEDIATELY, true)
         )
+        if (isTransactionsChange(uri)) {
+            helper.writableDatabase.collectChangedAccounts().forEach {
+                context!!.contentResolver.notifyChange(it, null, false)
+            }
+        }
     }
 
     fun notifyBulk() {
@@ -127,6 +141,26 @@ abstract class BaseTransactionProvider : ContentProvider() {
     }
 
     companion object {
+        /**
+         * @return true for [TransactionProvider.TRANSACTIONS_URI] and for the uri of a single
+         * transaction, which are notified after transactions have been written, but not for other
+         * uris below, like [TransactionProvider.UNCOMMITTED_URI]
+         */
+        fun isTransactionsChange(uri: Uri): Boolean {
+            val segments = uri.pathSegments
+            return uri.authority == TransactionProvider.AUTHORITY &&
+                    segments.firstOrNull() == TransactionProvider.TRANSACTIONS_URI.lastPathSegment &&
+                    (segments.size == 1 || (segments.size == 2 && segments[1].toLongOrNull() != null))
+        }
+
+        /**
+         * @param accountId null for the aggregate of all accounts with [currency]
+         */
+        fun accountChangesUri(currency: String, accountId: Long?): Uri =
+            TransactionProvider.ACCOUNT_CHANGES_URI.buildUpon().appendPath(currency).apply {
+                accountId?.let { appendPath(it.toString()) }
+            }.build()
+
         const val CURRENCIES_USAGES_TABLE_EXPRESSION =
             "$TABLE_CURRENCIES LEFT JOIN (SELECT coalesce($KEY_ORIGINAL_CURRENCY, $KEY_CURRENCY) AS currency_coalesced, count(*) AS $KEY_USAGES FROM $VIEW_EXTENDED GROUP BY currency_coalesced) on currency_coalesced = $KEY_CODE"
 
@@ -214,16 +248,14 @@ abstract class BaseTransactionProvider : ContentProvider() {
             )
         ) "total" else "sum"
 
-    fun buildAccountQuery(
-        minimal: Boolean,
-        mergeAggregate: String?,
-        selection: String?,
-        sortOrder: String?
-    ): String {
-
-        val aggregateFunction = this.aggregateFunction
+    /**
+     * sums in the rollup are calculated with sum, which fails on overflow
+     */
+    val useRollup: Boolean
+        get() = !prefHandler.getBoolean(PrefKey.DB_SAFE_MODE, false)
 
-        val futureStartsNow = runBlocking {
+    private val futureStartsNow: Boolean
+        get() = runBlocking {
             enumValueOrDefault(
                 dataStore.data.first()[stringPreferencesKey(
                     prefHandler.getKey(
@@ -233,6 +265,28 @@ abstract class BaseTransactionProvider : ContentProvider() {
             )
         } == FutureCriterion.Current
 
+    /**
+     * Base account columns, with current balance and total calculated for each account from its
+     * own transactions. Much cheaper than [buildAccountQuery] when only a few accounts are needed.
+     */
+    val accountBalanceProjection: Array<String>
+        get() {
+            val sum = "SELECT coalesce($aggregateFunction($KEY_AMOUNT), 0) FROM $TABLE_TRANSACTIONS WHERE $KEY_ACCOUNTID = $TABLE_ACCOUNTS.$KEY_ROWID AND $KEY_PARENTID IS NULL AND $KEY_STATUS != $STATUS_UNCOMMITTED AND $WHERE_NOT_VOID"
+            return Account.PROJECTION_BASE + arrayOf(
+                "$KEY_OPENING_BALANCE + ($sum AND $KEY_DATE < ${nowExpression(futureStartsNow)}) AS $KEY_CURRENT_BALANCE",
+                "$KEY_OPENING_BALANCE + ($sum) AS $KEY_TOTAL"
+            )
+        }
+
+    fun buildAccountQuery(
+        minimal: Boolean,
+        mergeAggregate: String?,
+        selection: String?,
+        sortOrder: String?
+    ): String {
+
+        val aggregateFunction = this.aggregateFunction
+
         val cte = accountQueryCTE(homeCurrency, futureStartsNow, aggregateFunction)
 
         val joinWithAggregates =
@@ -399,41 +453,62 @@ abstract class BaseTransactionProvider : ContentProvider() {
         return "$cte\n$query"
     }
 
-    fun backup(context: Context, backupDir: File): Result<Unit> {
+    /**
+     * @param onProgress receives the progress of the database snapshot in percent
+     */
+    fun backup(context: Context, backupDir: File, onProgress: ((Int) -> Unit)? = null): Result<Unit> {
+        val db = helper.writableDatabase
+        if (db.supportsVacuumInto()) {
+            //the snapshot blocks the provider's connection until it is written, see snapshot
+            //it is not taken inside a transaction, changes made after it must leave the data dirty
+            dirty = false
+            return kotlin.runCatching {
+                db.snapshot(getBackupDbFile(backupDir), onProgress)
+                backupPrefs(context, backupDir)
+                if (!dirty) {
+                    prefHandler.putBoolean(PrefKey.AUTO_BACKUP_DIRTY, false)
+                }
+            }.onFailure {
+                dirty = true
+            }
+        }
         val currentDb = File(helper.readableDatabase.path)
         helper.readableDatabase.beginTransaction()
         return try {
             backupDb(getBackupDbFile(backupDir), currentDb).mapCatching {
-                val backupPrefFile = getBackupPrefFile(backupDir)
-                // Samsung has special path on some devices
-                // http://stackoverflow.com/questions/5531289/copy-the-shared-preferences-xml-file-from-data-on-samsung-device-failed
-                val sharedPrefPath = "/shared_prefs/" + context.packageName + "_preferences.xml"
-                var sharedPrefFile =
-                    File("/dbdata/databases/" + context.packageName + sharedPrefPath)
-                if (!sharedPrefFile.exists()) {
-                    sharedPrefFile = File(getInternalAppDir().path + sharedPrefPath)
-                    log(sharedPrefFile.path)
-                    if (!sharedPrefFile.exists()) {
-                        val message = "Unable to find shared preference file at " +
-                                sharedPrefFile.path
-                        report(message)
-                        throw Throwable(message)
-                    }
-                }
-                dirty = if (FileCopyUtils.copy(sharedPrefFile, backupPrefFile)) {
-                    prefHandler.putBoolean(PrefKey.AUTO_BACKUP_DIRTY, false)
-                    false
-                } else {
-                    val message = "Unable to copy preference file from  " +
-                            sharedPrefFile.path + " to " + backupPrefFile.path
-                    throw Throwable(message)
-                }
+                backupPrefs(context, backupDir)
+                prefHandler.putBoolean(PrefKey.AUTO_BACKUP_DIRTY, false)
+                dirty = false
             }
         } finally {
             helper.readableDatabase.endTransaction()
         }
     }
 
+    private fun backupPrefs(context: Context, backupDir: File) {
+        val backupPrefFile = getBackupPrefFile(backupDir)
+        // Samsung has special path on some devices
+        // http://stackoverflow.com/questions/5531289/copy-the-shared-preferences-xml-file-from-data-on-samsung-device-failed
+        val sharedPrefPath = "/shared_prefs/" + context.packageName + "_preferences.xml"
+        var sharedPrefFile =
+            File("/dbdata/databases/" + context.packageName + sharedPrefPath)
+        if (!sharedPrefFile.exists()) {
+            sharedPrefFile = File(getInternalAppDir().path + sharedPrefPath)
+            log(sharedPrefFile.path)
+            if (!sharedPrefFile.exists()) {
+                val message = "Unable to find shared preference file at " +
+                        sharedPrefFile.path
+                report(message)
+                throw Throwable(message)
+            }
+        }
+        if (!FileCopyUtils.copy(sharedPrefFile, backupPrefFile)) {
+            val message = "Unable to copy preference file from  " +
+                    sharedPrefFile.path + " to " + backupPrefFile.path
+            throw Throwable(message)
+        }
+    }
+
     fun budgetCategoryUpsert(db: SupportSQLiteDatabase, uri: Uri, values: ContentValues): Int {
         val (budgetId, catId) = parseBudgetCategoryUri(uri)
         val year: String? = values.getAsString(KEY_YEAR)
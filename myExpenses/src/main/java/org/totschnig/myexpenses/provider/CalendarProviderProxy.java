@@ -1,17 +1,21 @@
 package org.totschnig.myexpenses.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Bundle;
 import android.provider.CalendarContract;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.android.calendarcommon2.EventRecurrence;
 
 import org.totschnig.myexpenses.BuildConfig;
+import org.totschnig.myexpenses.preference.PrefKey;
 
 import java.util.TimeZone;
 
@@ -19,11 +23,15 @@ import hirondelle.date4j.DateTime;
 
 /**
  * Proxy for {@link  CalendarContract.Instances} which allows to swap in
- * alternate implementation in context where the Instances table does not work, e.g. Blackberry
+ * alternate implementation in context where the Instances table does not work, e.g. Blackberry.
+ * Instances of the planner calendar are expanded in process by {@link PlanInstanceCache}, the
+ * Instances table is only queried if that is not possible.
  */
 public class CalendarProviderProxy extends ContentProvider {
   public static final String AUTHORITY = BuildConfig.APPLICATION_ID + ".calendarinstances";
   public static final Uri INSTANCES_URI = Uri.parse("content://" + AUTHORITY + "/instances/when");
+  private static final Uri BASE_URI = Uri.parse("content://" + AUTHORITY);
+  public static final String METHOD_INVALIDATE_EVENTS = "invalidateEvents";
   private static final String[] INSTANCE_PROJECTION = new String[]{
       CalendarContract.Instances.EVENT_ID,
       CalendarContract.Instances.BEGIN,
@@ -32,6 +40,8 @@ public class CalendarProviderProxy extends ContentProvider {
 
   private static final UriMatcher URI_MATCHER;
 
+  private PlanInstanceCache planInstanceCache;
+
   private static final int INSTANCES_WHEN = 1;
   private static final int EVENTS = 2; //currently not used, but possibly in the future we provide
   //an implementation that does not need the platform calendar
@@ -58,6 +68,16 @@ public class CalendarProviderProxy extends ContentProvider {
         }
         long startMilliseconds = Long.parseLong(uri.getPathSegments().get(2));
         long endMilliseconds = Long.parseLong(uri.getPathSegments().get(3));
+        String plannerCalendarId = PrefKey.PLANNER_CALENDAR_ID.getString("-1");
+        if (!"-1".equals(plannerCalendarId)) {
+          Cursor cursor = getPlanInstanceCache().query(plannerCalendarId, INSTANCE_PROJECTION,
+              startMilliseconds, endMilliseconds, selection, selectionArgs, sortOrder);
+          if (cursor != null) {
+            return cursor;
+          }
+        }
+        //events of the planner calendar cannot be expanded in process, we fall back to the
+        //instances table of the calendar provider
         //Instances.Content_URI returns events that fall totally or partially in a given range
         //we additionally select only instances where the begin is inside the range
         //because we want to deal with each instance only once
@@ -79,6 +99,38 @@ public class CalendarProviderProxy extends ContentProvider {
     }
   }
 
+  /**
+   * Makes the next query for instances read the events of the planner calendar again, so that it
+   * sees a plan that has just been saved or deleted, instead of waiting for the asynchronous
+   * notification from the calendar provider.
+   */
+  public static void invalidateEvents(ContentResolver contentResolver) {
+    contentResolver.call(BASE_URI, METHOD_INVALIDATE_EVENTS, null, null);
+  }
+
+  @Nullable
+  @Override
+  public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras) {
+    if (METHOD_INVALIDATE_EVENTS.equals(method)) {
+      PlanInstanceCache cache;
+      synchronized (this) {
+        cache = planInstanceCache;
+      }
+      if (cache != null) {
+        cache.invalidate();
+      }
+      return null;
+    }
+    return super.call(method, arg, extras);
+  }
+
+  private synchronized PlanInstanceCache getPlanInstanceCache() {
+    if (planInstanceCache == null) {
+      planInstanceCache = new PlanInstanceCache(getContext());
+    }
+    return planInstanceCache;
+  }
+
   private boolean isInstanceOfPlan(DateTime dayToCheck, long dtstart, EventRecurrence recurrence) {
     DateTime startDate = DateTime.forInstant(dtstart, TimeZone.getDefault());
     if (recurrence == null) {
@@ -151,6 +151,7 @@ public class DatabaseConstants {
   public static final String KEY_THIS_YEAR_OF_MONTH_START = "this_year_of_month_start";
   public static final String KEY_MAX_VALUE = "max_value";
   public static final String KEY_CURRENT_BALANCE = "current_balance";
+  public static final String KEY_RUNNING_BALANCE = "running_balance";
   public static final String KEY_TOTAL = "total";
   public static final String KEY_CURRENT = "current";
   public static final String KEY_CLEARED_TOTAL = "cleared_total";
@@ -196,6 +197,10 @@ public class DatabaseConstants {
   public static final String KEY_ORIGINAL_AMOUNT = "original_amount";
   public static final String KEY_ORIGINAL_CURRENCY = "original_currency";
   public static final String KEY_EQUIVALENT_AMOUNT = "equivalent_amount";
+  /**
+   * normalized key of account, day, amount and payee or comment, used for detecting duplicates during import
+   */
+  public static final String KEY_FINGERPRINT = "fingerprint";
   public static final String KEY_TRANSFER_PEER_PARENT = "transfer_peer_parent";
   public static final String KEY_BUDGETID = "budget_id";
   public static final String KEY_START = "start";
@@ -300,6 +305,27 @@ public class DatabaseConstants {
   public static final String VIEW_EXTENDED = "transactions_extended";
   static final String VIEW_CHANGES_EXTENDED = "changes_extended";
   static final String VIEW_TEMPLATES_EXTENDED = "templates_extended";
+  /**
+   * transactions moved out of {@link #TABLE_TRANSACTIONS} by archiving, same columns, no constraints
+   */
+  public static final String TABLE_TRANSACTIONS_ARCHIVE = "transactions_archive";
+  static final String VIEW_TRANSACTIONS_WITH_ARCHIVE = "transactions_with_archive";
+  static final String VIEW_COMMITTED_WITH_ARCHIVE = "transactions_committed_with_archive";
+  static final String VIEW_EXTENDED_WITH_ARCHIVE = "transactions_extended_with_archive";
+  static final String VIEW_ARCHIVE_EXTENDED = "transactions_archive_extended";
+  static final String VIEW_WITH_ACCOUNT_WITH_ARCHIVE = "transactions_with_account_with_archive";
+  static final String VIEW_ARCHIVE_WITH_ACCOUNT = "transactions_archive_with_account";
+  /**
+   * sums of committed transactions per account, category and day, see TransactionRollup.kt
+   */
+  static final String TABLE_ROLLUP = "transactions_rollup";
+  static final String TABLE_ROLLUP_DIRTY = "transactions_rollup_dirty";
+  public static final String VIEW_ROLLUP_WITH_ACCOUNT = "transactions_rollup_with_account";
+  /**
+   * balance of the account after each listed transaction, see RunningBalance.kt
+   */
+  static final String TABLE_RUNNING_BALANCE = "transactions_running_balance";
+  static final String TABLE_RUNNING_BALANCE_DIRTY = "transactions_running_balance_dirty";
   public static final String TABLE_PLAN_INSTANCE_STATUS = "planinstance_transaction";
   static final String TABLE_STALE_URIS = "stale_uris";
   static final String TABLE_CHANGES = "changes";
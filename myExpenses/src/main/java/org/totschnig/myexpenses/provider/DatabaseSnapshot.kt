@@ -0,0 +1,67 @@
+package org.totschnig.myexpenses.provider
+
+import androidx.sqlite.db.SupportSQLiteDatabase
+import timber.log.Timber
+import java.io.File
+import java.util.Timer
+import kotlin.concurrent.fixedRateTimer
+
+/**
+ * interval in which the size of the snapshot written by VACUUM INTO is polled for reporting progress
+ */
+private const val PROGRESS_INTERVAL_MILLIS = 250L
+
+private fun SupportSQLiteDatabase.longForQuery(sql: String) =
+    query(sql).use { if (it.moveToFirst()) it.getLong(0) else 0L }
+
+/**
+ * VACUUM INTO is available since SQLite 3.27.0, which is bundled with the requery library, but not
+ * with the framework's SQLite on older devices. It can not be run inside a transaction.
+ */
+fun SupportSQLiteDatabase.supportsVacuumInto(): Boolean {
+    if (inTransaction()) return false
+    val version = query("SELECT sqlite_version()").use {
+        if (it.moveToFirst()) it.getString(0) else null
+    } ?: return false
+    val (major, minor) = version.split('.').map { it.toIntOrNull() ?: 0 } + listOf(0, 0)
+    return major > 3 || (major == 3 && minor >= 27)
+}
+
+/**
+ * Writes a consistent and compacted copy of the database into [target] with VACUUM INTO. Since
+ * SQLite does not report progress of a VACUUM, progress is estimated from the size of [target],
+ * compared to the pages in use in the source.
+ *
+ * This runs on the connection it is called on, which for the provider is its only connection, so
+ * all access to the provider, reads included, waits until the snapshot is written. This stall is
+ * accepted: with write-ahead logging disabled, a separate connection would hold a shared lock for
+ * the same time, and writers would fail with SQLITE_BUSY instead of waiting. The stall is not longer
+ * than the exclusive transaction around a copy of the database file that was used before, since only
+ * pages in use are written.
+ * @param onProgress called with the estimated percentage, from a background thread
+ */
+fun SupportSQLiteDatabase.snapshot(target: File, onProgress: ((Int) -> Unit)?) {
+    if (target.exists() && !target.delete()) {
+        throw IllegalStateException("Unable to delete ${target.path}")
+    }
+    val progressTimer: Timer? = onProgress?.let {
+        val expected = (longForQuery("PRAGMA page_count") - longForQuery("PRAGMA freelist_count")) *
+                longForQuery("PRAGMA page_size")
+        var lastReported = -1
+        fixedRateTimer("DatabaseSnapshot", true, 0, PROGRESS_INTERVAL_MILLIS) {
+            val percent = if (expected > 0) (target.length() * 100 / expected).toInt().coerceIn(0, 99) else 0
+            if (percent != lastReported) {
+                lastReported = percent
+                it(percent)
+            }
+        }
+    }
+    val start = System.currentTimeMillis()
+    try {
+        execSQL("VACUUM INTO ?", arrayOf(target.path))
+    } finally {
+        progressTimer?.cancel()
+    }
+    Timber.i("Snapshot of %d bytes took %d ms", target.length(), System.currentTimeMillis() - start)
+    onProgress?.invoke(100)
+}
@@ -237,18 +237,24 @@ const val FULL_LABEL =
 const val TRANSFER_ACCOUNT_LABEL =
     "CASE WHEN  $KEY_TRANSFER_ACCOUNT THEN (SELECT $KEY_LABEL FROM $TABLE_ACCOUNTS WHERE $KEY_ROWID = $KEY_TRANSFER_ACCOUNT) END AS  $KEY_TRANSFER_ACCOUNT_LABEL"
 
+/**
+ * transactions dated from this point on are considered future
+ */
+fun nowExpression(futureStartsNow: Boolean): String {
+    val futureCriterion =
+        if (futureStartsNow) "'now'" else "'now', 'localtime', 'start of day', '+1 day', 'utc'"
+    return "cast(strftime('%s', $futureCriterion) as integer)"
+}
+
 fun accountQueryCTE(
     homeCurrency: String,
     futureStartsNow: Boolean,
     aggregateFunction: String
 ): String {
-    val futureCriterion =
-        if (futureStartsNow) "'now'" else "'now', 'localtime', 'start of day', '+1 day', 'utc'"
-
     return """
 WITH now as (
     SELECT
-        cast(strftime('%s', $futureCriterion) as integer) AS now
+        ${nowExpression(futureStartsNow)} AS now
 ), amounts AS (
     SELECT
         $KEY_AMOUNT,
@@ -0,0 +1,65 @@
+package org.totschnig.myexpenses.provider
+
+import android.content.ContentValues
+import androidx.sqlite.db.SupportSQLiteDatabase
+import org.totschnig.myexpenses.provider.DatabaseConstants.*
+import org.totschnig.myexpenses.util.Utils
+import java.time.LocalDate
+
+private const val SECONDS_PER_DAY = 86400L
+
+/**
+ * SQL expression computing the fingerprint of [row] (either new/old inside a trigger or the table
+ * name), which must yield the same result as [fingerprint]. The day is taken in UTC, so that the
+ * fingerprint does not depend on the device's time zone. SQLite does not provide a hash function,
+ * so the normalized key is stored as is, and is looked up through an index or a hash set.
+ * Split parts do not get a fingerprint.
+ */
+fun fingerprintExpression(row: String) =
+    "CASE WHEN $row.$KEY_PARENTID IS NULL THEN $row.$KEY_ACCOUNTID || '|' || date($row.$KEY_DATE, 'unixepoch') || '|' || $row.$KEY_AMOUNT || '|' || " +
+            "coalesce((SELECT $KEY_PAYEE_NAME_NORMALIZED FROM $TABLE_PAYEES WHERE $KEY_ROWID = $row.$KEY_PAYEEID), lower(trim($row.$KEY_COMMENT)), '') END"
+
+/**
+ * @param date in seconds since epoch
+ * @param payee name of the payee, normalized the same way as [KEY_PAYEE_NAME_NORMALIZED]
+ * @param comment only taken into account, if there is no payee
+ */
+fun fingerprint(accountId: Long, date: Long, amount: Long, payee: String?, comment: String?) =
+    fingerprint(
+        accountId, date, amount,
+        payee?.takeIf { it.isNotEmpty() }?.let { Utils.normalize(it) } ?: normalizeComment(comment)
+    )
+
+/**
+ * Computes the fingerprint of a new transaction from the values of its insert, with the same result
+ * as [fingerprintExpression], so that no trigger has to update the row after it has been inserted.
+ * The payee is given by id, its normalized name is looked up.
+ * @return null for split parts, or if the values are incomplete
+ */
+fun SupportSQLiteDatabase.fingerprint(values: ContentValues): String? {
+    if (values.getAsLong(KEY_PARENTID) != null) return null
+    val accountId = values.getAsLong(KEY_ACCOUNTID) ?: return null
+    val date = values.getAsLong(KEY_DATE) ?: return null
+    val amount = values.getAsLong(KEY_AMOUNT) ?: return null
+    val payee = values.getAsLong(KEY_PAYEEID)?.let { payeeId ->
+        query(
+            "SELECT $KEY_PAYEE_NAME_NORMALIZED FROM $TABLE_PAYEES WHERE $KEY_ROWID = ?",
+            arrayOf(payeeId)
+        ).use { if (it.moveToFirst()) it.getString(0) else null }
+    }
+    return fingerprint(accountId, date, amount, payee ?: normalizeComment(values.getAsString(KEY_COMMENT)))
+}
+
+private fun fingerprint(accountId: Long, date: Long, amount: Long, text: String): String {
+    val day = LocalDate.ofEpochDay(Math.floorDiv(date, SECONDS_PER_DAY))
+    return "$accountId|$day|$amount|$text"
+}
+
+private fun normalizeComment(comment: String?) = comment?.let { sqlLower(it.trim(' ')) } ?: ""
+
+/**
+ * SQLite's lower() only folds ASCII characters
+ */
+private fun sqlLower(text: String) = buildString(text.length) {
+    text.forEach { append(if (it in 'A'..'Z') it + ('a' - 'A') else it) }
+}
@@ -0,0 +1,119 @@
+package org.totschnig.myexpenses.provider
+
+import android.content.ContentResolver
+import android.database.ContentObserver
+import android.database.Cursor
+import android.net.Uri
+import android.os.SystemClock
+import app.cash.copper.Query
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.channelFlow
+import kotlinx.coroutines.flow.filter
+import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeoutOrNull
+
+/**
+ * Observes all notifications of [TransactionProvider] with a single observer, and lets flows
+ * re-run their queries when uris they depend on are notified. Notifications are coalesced: after
+ * the first one, the query waits until no further notification arrived for [debounceMillis], but
+ * not longer than [maxWaitMillis]. Thus a sync batch that notifies the same uris many times leads
+ * to a few queries, and notifications of unrelated uris lead to none.
+ */
+class InvalidationBus(
+    contentResolver: ContentResolver,
+    private val debounceMillis: Long = DEFAULT_DEBOUNCE_MILLIS,
+    private val maxWaitMillis: Long = DEFAULT_MAX_WAIT_MILLIS
+) {
+    private val changes = MutableSharedFlow<Uri>(extraBufferCapacity = Channel.UNLIMITED)
+
+    init {
+        contentResolver.registerContentObserver(
+            ROOT_URI,
+            true,
+            object : ContentObserver(null) {
+                override fun onChange(selfChange: Boolean, uri: Uri?) {
+                    changes.tryEmit(uri ?: ROOT_URI)
+                }
+            }
+        )
+    }
+
+    /**
+     * Emits once per coalescing window in which at least one of [dependencies] has been notified
+     * @param notifyForDescendants if true, notifications of uris below a dependency are included,
+     * as with [ContentResolver.registerContentObserver]
+     * @param initial if true, emits once as soon as notifications are observed, so that a
+     * notification arriving while the collector handles this emission is not lost
+     */
+    fun invalidations(
+        dependencies: List<Uri>,
+        notifyForDescendants: Boolean,
+        initial: Boolean = false
+    ): Flow<Unit> {
+        val pending = changes.filter { changed ->
+            dependencies.any { affects(changed, it, notifyForDescendants) }
+        }
+        return channelFlow {
+            val signal = Channel<Unit>(Channel.CONFLATED)
+            //the shared flow is subscribed to before this block continues
+            launch(start = CoroutineStart.UNDISPATCHED) { pending.collect { signal.send(Unit) } }
+            if (initial) send(Unit)
+            for (ignored in signal) {
+                val deadline = SystemClock.elapsedRealtime() + maxWaitMillis
+                while (true) {
+                    val remaining = deadline - SystemClock.elapsedRealtime()
+                    if (remaining <= 0 || withTimeoutOrNull(debounceMillis.coerceAtMost(remaining)) {
+                            signal.receive()
+                        } == null) break
+                }
+                send(Unit)
+            }
+        }
+    }
+
+    /**
+     * Like observeQuery from copper, but the query is run again when [dependencies] are notified,
+     * at most once per coalescing window
+     */
+    fun observeQuery(
+        contentResolver: ContentResolver,
+        uri: Uri,
+        projection: Array<String>? = null,
+        selection: String? = null,
+        selectionArgs: Array<String>? = null,
+        sortOrder: String? = null,
+        notifyForDescendants: Boolean = false,
+        dependencies: List<Uri> = listOf(uri)
+    ): Flow<Query> {
+        val query = object : Query() {
+            override fun run(): Cursor? =
+                contentResolver.query(uri, projection, selection, selectionArgs, sortOrder)
+        }
+        return invalidations(dependencies, notifyForDescendants, initial = true).map { query }
+    }
+
+    companion object {
+        const val DEFAULT_DEBOUNCE_MILLIS = 100L
+        const val DEFAULT_MAX_WAIT_MILLIS = 500L
+        private val ROOT_URI: Uri = Uri.parse("content://" + TransactionProvider.AUTHORITY)
+
+        /**
+         * Mirrors the rules of content observers: a notification reaches observers of the notified
+         * uri and of all uris below it, and observers of uris above it if they observe descendants.
+         * Query parameters are ignored.
+         */
+        fun affects(changed: Uri, dependency: Uri, notifyForDescendants: Boolean): Boolean {
+            if (changed.authority != dependency.authority) return false
+            val changedSegments = changed.pathSegments
+            val dependencySegments = dependency.pathSegments
+            return if (changedSegments.size <= dependencySegments.size)
+                dependencySegments.subList(0, changedSegments.size) == changedSegments
+            else
+                notifyForDescendants && changedSegments.subList(0, dependencySegments.size) == dependencySegments
+        }
+    }
+}
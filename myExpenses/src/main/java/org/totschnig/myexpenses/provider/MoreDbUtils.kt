@@ -18,9 +18,6 @@ import androidx.core.database.getStringOrNull
 import androidx.sqlite.db.SupportSQLiteDatabase
 import androidx.sqlite.db.SupportSQLiteQueryBuilder
 import androidx.sqlite.db.SupportSQLiteStatement
-import com.google.gson.Gson
-import com.google.gson.JsonSyntaxException
-import com.google.gson.reflect.TypeToken
 import org.totschnig.myexpenses.MyApplication
 import org.totschnig.myexpenses.R
 import org.totschnig.myexpenses.model.PaymentMethod
@@ -37,7 +34,6 @@ import org.totschnig.myexpenses.util.Utils
 import org.totschnig.myexpenses.util.crashreporting.CrashHandler
 import timber.log.Timber
 import java.io.File
-import java.lang.reflect.Type
 
 fun safeUpdateWithSealed(db: SupportSQLiteDatabase, runnable: Runnable) {
     db.beginTransaction()
@@ -279,16 +275,78 @@ fun Cursor.getLongIfExistsOr0(column: String) = getColumnIndex(column).takeIf {
 fun Cursor.getStringIfExists(column: String) = getColumnIndex(column).takeIf { it != -1 }?.let { getString(it) }
 fun Cursor.getBoolean(column: String) = getInt(column) == 1
 
-private val typeToken: Type = object : TypeToken<List<String>>() {}.type
-private val gson = Gson()
-fun Cursor.getStringListFromJson(colum: String) = getString(colum).let {
-    try {
-        gson.fromJson<List<String>>(it, typeToken)
-    } catch (e: JsonSyntaxException) {
-        // on Robolectric we run without json support, if we ever use an SQLITE version
-        //Without JSON extension in production, we need to change this
-        null
-    } ?: if (it.isEmpty()) emptyList() else it.split(',')
+fun Cursor.getStringListFromJson(colum: String) = getStringListFromJson(getColumnIndexOrThrow(colum))
+
+fun Cursor.getStringListFromJson(columnIndex: Int) = parseStringList(getString(columnIndex))
+
+/**
+ * Tag lists are built with json_group_array, or with group_concat if the SQLite version in use
+ * does not support JSON (e.g. on Robolectric).
+ */
+fun parseStringList(value: String?): List<String> = when {
+    value.isNullOrEmpty() -> emptyList()
+    else -> parseJsonStringArray(value) ?: value.split(',')
+}
+
+/**
+ * Parses a JSON array consisting only of strings, without the overhead of a general purpose
+ * parser. Strings without escape sequences are taken as substrings of [json].
+ * @return null if [json] is not such an array
+ */
+fun parseJsonStringArray(json: String): List<String>? {
+    val length = json.length
+    var position = 0
+    fun skipWhitespace() {
+        while (position < length && json[position].isWhitespace()) position++
+    }
+    skipWhitespace()
+    if (position == length || json[position++] != '[') return null
+    skipWhitespace()
+    val result = ArrayList<String>()
+    if (position < length && json[position] == ']') {
+        position++
+    } else while (true) {
+        skipWhitespace()
+        if (position == length || json[position++] != '"') return null
+        val start = position
+        var builder: StringBuilder? = null
+        while (true) {
+            if (position == length) return null
+            val c = json[position++]
+            if (c == '"') break
+            if (c == '\\') {
+                if (position == length) return null
+                if (builder == null) builder = StringBuilder().append(json, start, position - 1)
+                when (val escaped = json[position++]) {
+                    '"', '\\', '/' -> builder.append(escaped)
+                    'b' -> builder.append('\b')
+                    'f' -> builder.append('\u000C')
+                    'n' -> builder.append('\n')
+                    'r' -> builder.append('\r')
+                    't' -> builder.append('\t')
+                    'u' -> {
+                        if (position + 4 > length) return null
+                        builder.append(
+                            json.substring(position, position + 4).toIntOrNull(16)?.toChar()
+                                ?: return null
+                        )
+                        position += 4
+                    }
+                    else -> return null
+                }
+            } else builder?.append(c)
+        }
+        result.add(builder?.toString() ?: json.substring(start, position - 1))
+        skipWhitespace()
+        if (position == length) return null
+        when (json[position++]) {
+            ',' -> continue
+            ']' -> break
+            else -> return null
+        }
+    }
+    skipWhitespace()
+    return if (position == length) result else null
 }
 
 fun cacheSyncState(context: Context) {
@@ -449,12 +507,17 @@ fun computeWhere(selection: String?, whereClause: java.lang.StringBuilder): Stri
     }
 }
 
-fun backup(backupDir: File, context: Context, prefHandler: PrefHandler): Result<Unit> {
+fun backup(
+    backupDir: File,
+    context: Context,
+    prefHandler: PrefHandler,
+    onProgress: ((Int) -> Unit)? = null
+): Result<Unit> {
     cacheEventData(context, prefHandler)
     cacheSyncState(context)
     return with(context.contentResolver.acquireContentProviderClient(TransactionProvider.AUTHORITY)!!) {
         try {
-            (localContentProvider as BaseTransactionProvider).backup(context, backupDir)
+            (localContentProvider as BaseTransactionProvider).backup(context, backupDir, onProgress)
         } finally {
             release()
         }
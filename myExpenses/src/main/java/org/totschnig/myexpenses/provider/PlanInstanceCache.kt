@@ -0,0 +1,213 @@
+package org.totschnig.myexpenses.provider
+
+import android.content.ContentValues
+import android.content.Context
+import android.database.ContentObserver
+import android.database.Cursor
+import android.database.sqlite.SQLiteDatabase
+import android.provider.CalendarContract.Events
+import android.provider.CalendarContract.Instances
+import androidx.sqlite.db.SupportSQLiteDatabase
+import androidx.sqlite.db.SupportSQLiteOpenHelper
+import androidx.sqlite.db.SupportSQLiteQueryBuilder
+import androidx.sqlite.db.framework.FrameworkSQLiteOpenHelperFactory
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_END
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_START
+import timber.log.Timber
+import java.time.DateTimeException
+import java.time.ZoneId
+
+private const val TABLE_INSTANCES = "instances"
+private const val TABLE_EXPANDED = "expanded"
+private const val KEY_SIGNATURE = "signature"
+
+private const val INSTANCES_CREATE = """
+CREATE TABLE $TABLE_INSTANCES (
+    ${Instances.EVENT_ID} integer not null,
+    ${Instances.BEGIN} integer not null,
+    ${Instances.TITLE} text,
+    ${Instances.CALENDAR_ID} integer not null,
+    primary key (${Instances.EVENT_ID}, ${Instances.BEGIN}))
+"""
+
+private const val EXPANDED_CREATE = """
+CREATE TABLE $TABLE_EXPANDED (
+    ${Instances.EVENT_ID} integer primary key,
+    $KEY_SIGNATURE text not null,
+    $KEY_START integer not null,
+    $KEY_END integer not null)
+"""
+
+/**
+ * Instances of the events in the planner calendar, expanded from their rules with
+ * [expandRecurrence] into an in-memory table, to which the selection and sort order of queries for
+ * [CalendarProviderProxy.INSTANCES_URI] are applied. The instances of an event are expanded again
+ * if its rule has changed, or if a query extends beyond the window already expanded. Rules are read
+ * from the calendar provider on first use, and again after [invalidate], which is called when a plan
+ * is saved or deleted, or after the calendar provider has notified a change of events.
+ */
+class PlanInstanceCache(private val context: Context) {
+
+    private class Event(
+        val id: Long,
+        val dtStart: Long,
+        val rRule: String?,
+        val zoneId: ZoneId,
+        val title: String?
+    ) {
+        val signature = "$dtStart|$rRule|$zoneId|$title"
+    }
+
+    private val db: SupportSQLiteDatabase by lazy {
+        FrameworkSQLiteOpenHelperFactory().create(
+            SupportSQLiteOpenHelper.Configuration.builder(context)
+                .name(null)
+                .callback(object : SupportSQLiteOpenHelper.Callback(1) {
+                    override fun onCreate(db: SupportSQLiteDatabase) {
+                        db.execSQL(INSTANCES_CREATE)
+                        db.execSQL(EXPANDED_CREATE)
+                    }
+
+                    override fun onUpgrade(
+                        db: SupportSQLiteDatabase,
+                        oldVersion: Int,
+                        newVersion: Int
+                    ) {
+                    }
+                }).build()
+        ).writableDatabase
+    }
+
+    @Volatile
+    private var events: List<Event>? = null
+    private var calendarId: String? = null
+    private var observing = false
+
+    private val observer = object : ContentObserver(null) {
+        override fun onChange(selfChange: Boolean) {
+            events = null
+        }
+    }
+
+    /**
+     * Synchronized with [query], so that events loaded by a query that is running are not kept
+     */
+    @Synchronized
+    fun invalidate() {
+        events = null
+    }
+
+    /**
+     * @return null if the instances can not be expanded in process, because the planner calendar
+     * holds an event with exceptions or a rule that is not supported
+     */
+    @Synchronized
+    fun query(
+        calendarId: String,
+        projection: Array<String>,
+        start: Long,
+        end: Long,
+        selection: String?,
+        selectionArgs: Array<String>?,
+        sortOrder: String?
+    ): Cursor? {
+        val events = loadEvents(calendarId) ?: return null
+        db.beginTransaction()
+        try {
+            events.forEach { expand(it, start, end) }
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+        val between = "${Instances.BEGIN} BETWEEN $start AND $end"
+        return db.query(
+            SupportSQLiteQueryBuilder.builder(TABLE_INSTANCES)
+                .columns(projection)
+                .selection(if (selection.isNullOrEmpty()) between else "($selection) AND $between", selectionArgs)
+                .orderBy(sortOrder)
+                .create()
+        )
+    }
+
+    private fun loadEvents(calendarId: String): List<Event>? {
+        if (calendarId != this.calendarId) {
+            this.calendarId = calendarId
+            events = null
+        }
+        events?.let { return it }
+        if (!observing) {
+            context.contentResolver.registerContentObserver(Events.CONTENT_URI, true, observer)
+            observing = true
+        }
+        val loaded = context.contentResolver.query(
+            Events.CONTENT_URI,
+            arrayOf(
+                Events._ID, Events.DTSTART, Events.RRULE, Events.EVENT_TIMEZONE, Events.TITLE,
+                Events.RDATE, Events.EXRULE, Events.EXDATE, Events.ORIGINAL_ID
+            ),
+            "${Events.CALENDAR_ID} = ? AND ${Events.DELETED} = 0",
+            arrayOf(calendarId),
+            null
+        )?.use { cursor ->
+            buildList {
+                while (cursor.moveToNext()) {
+                    val rRule = cursor.getString(2)
+                    if ((5..8).any { !cursor.isNull(it) } || !isRecurrenceSupported(rRule)) {
+                        Timber.i("Event %d can not be expanded in process", cursor.getLong(0))
+                        return null
+                    }
+                    add(
+                        Event(
+                            cursor.getLong(0),
+                            cursor.getLong(1),
+                            rRule,
+                            cursor.getString(3)?.let {
+                                try {
+                                    ZoneId.of(it)
+                                } catch (e: DateTimeException) {
+                                    null
+                                }
+                            } ?: ZoneId.systemDefault(),
+                            cursor.getString(4)
+                        )
+                    )
+                }
+            }
+        } ?: return null
+        db.execSQL(
+            "DELETE FROM $TABLE_INSTANCES WHERE ${Instances.EVENT_ID} NOT IN (${loaded.joinToString { it.id.toString() }})"
+        )
+        db.execSQL(
+            "DELETE FROM $TABLE_EXPANDED WHERE ${Instances.EVENT_ID} NOT IN (${loaded.joinToString { it.id.toString() }})"
+        )
+        events = loaded
+        return loaded
+    }
+
+    private fun expand(event: Event, start: Long, end: Long) {
+        val expanded = db.query(
+            "SELECT $KEY_SIGNATURE, $KEY_START, $KEY_END FROM $TABLE_EXPANDED WHERE ${Instances.EVENT_ID} = ?",
+            arrayOf(event.id)
+        ).use {
+            if (it.moveToFirst() && it.getString(0) == event.signature) it.getLong(1) to it.getLong(2) else null
+        }
+        if (expanded != null && expanded.first <= start && expanded.second >= end) return
+        val from = expanded?.let { minOf(it.first, start) } ?: start
+        val to = expanded?.let { maxOf(it.second, end) } ?: end
+        db.delete(TABLE_INSTANCES, "${Instances.EVENT_ID} = ?", arrayOf(event.id))
+        expandRecurrence(event.dtStart, event.rRule, event.zoneId, from, to)?.forEach { begin ->
+            db.insert(TABLE_INSTANCES, SQLiteDatabase.CONFLICT_IGNORE, ContentValues(4).apply {
+                put(Instances.EVENT_ID, event.id)
+                put(Instances.BEGIN, begin)
+                put(Instances.TITLE, event.title)
+                put(Instances.CALENDAR_ID, calendarId)
+            })
+        }
+        db.insert(TABLE_EXPANDED, SQLiteDatabase.CONFLICT_REPLACE, ContentValues(4).apply {
+            put(Instances.EVENT_ID, event.id)
+            put(KEY_SIGNATURE, event.signature)
+            put(KEY_START, from)
+            put(KEY_END, to)
+        })
+    }
+}
@@ -0,0 +1,200 @@
+package org.totschnig.myexpenses.provider
+
+import com.android.calendarcommon2.EventRecurrence
+import java.time.DayOfWeek
+import java.time.Instant
+import java.time.LocalDate
+import java.time.LocalDateTime
+import java.time.ZoneId
+import java.time.ZoneOffset
+import java.time.format.DateTimeFormatter
+import java.time.format.DateTimeParseException
+import java.time.temporal.ChronoUnit
+import java.time.temporal.TemporalAdjusters
+
+/*
+ * Expands the recurrence rules of plans into the begin of their instances, so that instances can
+ * be computed in process instead of by the instances table of the calendar provider. The rules
+ * created by the app and by the recurrence picker are covered: FREQ from DAILY to YEARLY, with
+ * INTERVAL, COUNT, UNTIL, WKST, BYDAY, BYMONTHDAY, BYMONTH and BYSETPOS. For other rules,
+ * expandRecurrence returns null, and instances have to be taken from the calendar provider.
+ */
+
+/**
+ * @param dtStart begin of the first instance, its time of day is kept for all instances
+ * @param rRule null or empty for an event without recurrence
+ * @param zoneId time zone of the event, in which days, weeks and months are determined
+ * @return the begin of all instances in [from, to], in ascending order, or null if the rule is not
+ * supported
+ */
+fun expandRecurrence(
+    dtStart: Long,
+    rRule: String?,
+    zoneId: ZoneId,
+    from: Long,
+    to: Long
+): List<Long>? {
+    if (rRule.isNullOrEmpty()) return listOf(dtStart).filter { it in from..to }
+    val recurrence = try {
+        EventRecurrence().apply { parse(rRule) }
+    } catch (e: EventRecurrence.InvalidFormatException) {
+        return null
+    }
+    if (!recurrence.isSupported) return null
+    val until = recurrence.until?.let { parseUntil(it, zoneId) ?: return null }
+    val start = Instant.ofEpochMilli(dtStart).atZone(zoneId).toLocalDateTime()
+    val startDate = start.toLocalDate()
+    val lastDate = Instant.ofEpochMilli(to).atZone(zoneId).toLocalDate()
+    val interval = recurrence.interval.coerceAtLeast(1).toLong()
+    val unit = recurrence.periodUnit
+    val firstPeriod = recurrence.periodStart(startDate)
+    var period = 0L
+    if (recurrence.count == 0) {
+        //without count, periods before the window need not be visited
+        val elapsed = unit.between(
+            firstPeriod,
+            recurrence.periodStart(Instant.ofEpochMilli(from).atZone(zoneId).toLocalDate())
+        )
+        period = (elapsed / interval - 1).coerceAtLeast(0)
+    }
+    var count = 0
+    return buildList {
+        while (true) {
+            val periodStart = firstPeriod.plus(period * interval, unit)
+            if (periodStart > lastDate) break
+            for (date in recurrence.candidates(periodStart, startDate)) {
+                if (date < startDate) continue
+                val begin = date.atTime(start.toLocalTime()).atZone(zoneId).toInstant()
+                if (until != null && begin > until) return@buildList
+                val millis = begin.toEpochMilli()
+                if (millis > to) return@buildList
+                if (millis >= from) add(millis)
+                count++
+                if (count == recurrence.count) return@buildList
+            }
+            period++
+        }
+    }
+}
+
+fun isRecurrenceSupported(rRule: String?) = rRule.isNullOrEmpty() || try {
+    EventRecurrence().apply { parse(rRule) }.isSupported
+} catch (e: EventRecurrence.InvalidFormatException) {
+    false
+}
+
+private val EventRecurrence.isSupported: Boolean
+    get() = freq in EventRecurrence.DAILY..EventRecurrence.YEARLY &&
+            bysecondCount == 0 && byminuteCount == 0 && byhourCount == 0 &&
+            byyeardayCount == 0 && byweeknoCount == 0 &&
+            when (freq) {
+                //ordinals only have a meaning inside of months
+                EventRecurrence.DAILY -> (0 until bydayCount).all { bydayNum[it] == 0 }
+                EventRecurrence.WEEKLY -> bymonthdayCount == 0 &&
+                        (0 until bydayCount).all { bydayNum[it] == 0 }
+                //without BYMONTH, BYDAY and BYMONTHDAY would refer to the whole year
+                EventRecurrence.YEARLY -> bymonthCount > 0 || (bydayCount == 0 && bymonthdayCount == 0)
+                else -> true
+            }
+
+private val EventRecurrence.periodUnit: ChronoUnit
+    get() = when (freq) {
+        EventRecurrence.DAILY -> ChronoUnit.DAYS
+        EventRecurrence.WEEKLY -> ChronoUnit.WEEKS
+        EventRecurrence.MONTHLY -> ChronoUnit.MONTHS
+        else -> ChronoUnit.YEARS
+    }
+
+private fun EventRecurrence.periodStart(date: LocalDate): LocalDate = when (freq) {
+    EventRecurrence.DAILY -> date
+    EventRecurrence.WEEKLY -> date.with(
+        TemporalAdjusters.previousOrSame(if (wkst == 0) DayOfWeek.MONDAY else wkst.toDayOfWeek())
+    )
+    EventRecurrence.MONTHLY -> date.withDayOfMonth(1)
+    else -> date.withDayOfYear(1)
+}
+
+/**
+ * @return the days of the period starting at [periodStart] that match the rule, in ascending order
+ */
+private fun EventRecurrence.candidates(periodStart: LocalDate, startDate: LocalDate): List<LocalDate> {
+    val dates = when (freq) {
+        EventRecurrence.DAILY -> listOf(periodStart).filter {
+            matchesMonth(it) && matchesMonthDay(it) && (bydayCount == 0 || matchesDay(it))
+        }
+        EventRecurrence.WEEKLY -> (0L..6L).map { periodStart.plusDays(it) }.filter {
+            (if (bydayCount == 0) it.dayOfWeek == startDate.dayOfWeek else matchesDay(it)) &&
+                    matchesMonth(it)
+        }
+        EventRecurrence.MONTHLY -> if (matchesMonth(periodStart)) daysOfMonth(periodStart, startDate) else emptyList()
+        else -> (if (bymonthCount == 0) listOf(startDate.monthValue) else bymonth.take(bymonthCount).sorted())
+            .flatMap { daysOfMonth(periodStart.withMonth(it), startDate) }
+    }
+    if (bysetposCount == 0) return dates
+    return bysetpos.take(bysetposCount)
+        .mapNotNull { dates.getOrNull(if (it > 0) it - 1 else dates.size + it) }
+        .distinct()
+        .sorted()
+}
+
+private fun EventRecurrence.daysOfMonth(firstOfMonth: LocalDate, startDate: LocalDate): List<LocalDate> {
+    val length = firstOfMonth.lengthOfMonth()
+    val days = (1..length).map { firstOfMonth.withDayOfMonth(it) }
+    return when {
+        bydayCount == 0 && bymonthdayCount == 0 -> days.filter { it.dayOfMonth == startDate.dayOfMonth }
+        else -> days.filter {
+            (bydayCount == 0 || matchesDay(it)) && matchesMonthDay(it)
+        }
+    }
+}
+
+private fun EventRecurrence.matchesMonth(date: LocalDate) =
+    bymonthCount == 0 || bymonth.take(bymonthCount).contains(date.monthValue)
+
+private fun EventRecurrence.matchesMonthDay(date: LocalDate): Boolean {
+    if (bymonthdayCount == 0) return true
+    val length = date.lengthOfMonth()
+    return bymonthday.take(bymonthdayCount).any {
+        date.dayOfMonth == if (it > 0) it else length + it + 1
+    }
+}
+
+/**
+ * BYDAY, with ordinals counted inside of the month
+ */
+private fun EventRecurrence.matchesDay(date: LocalDate) = (0 until bydayCount).any {
+    byday[it].toDayOfWeek() == date.dayOfWeek && when (val ordinal = bydayNum[it]) {
+        0 -> true
+        in 1..5 -> (date.dayOfMonth - 1) / 7 + 1 == ordinal
+        else -> (date.lengthOfMonth() - date.dayOfMonth) / 7 + 1 == -ordinal
+    }
+}
+
+private fun Int.toDayOfWeek() = when (this) {
+    EventRecurrence.SU -> DayOfWeek.SUNDAY
+    EventRecurrence.MO -> DayOfWeek.MONDAY
+    EventRecurrence.TU -> DayOfWeek.TUESDAY
+    EventRecurrence.WE -> DayOfWeek.WEDNESDAY
+    EventRecurrence.TH -> DayOfWeek.THURSDAY
+    EventRecurrence.FR -> DayOfWeek.FRIDAY
+    EventRecurrence.SA -> DayOfWeek.SATURDAY
+    else -> throw IllegalArgumentException("bad day of week: $this")
+}
+
+/**
+ * UNTIL is either a date, which is included, or a date time, in UTC if it ends with Z, in the
+ * time zone of the event otherwise
+ */
+private fun parseUntil(until: String, zoneId: ZoneId): Instant? = try {
+    when {
+        until.length == 8 -> LocalDate.parse(until, DateTimeFormatter.BASIC_ISO_DATE)
+            .plusDays(1).atStartOfDay(zoneId).toInstant().minusMillis(1)
+        until.endsWith("Z") -> LocalDateTime.parse(until.dropLast(1), UNTIL_DATE_TIME)
+            .toInstant(ZoneOffset.UTC)
+        else -> LocalDateTime.parse(until, UNTIL_DATE_TIME).atZone(zoneId).toInstant()
+    }
+} catch (e: DateTimeParseException) {
+    null
+}
+
+private val UNTIL_DATE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss")
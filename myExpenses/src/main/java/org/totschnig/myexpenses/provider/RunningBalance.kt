@@ -0,0 +1,120 @@
+package org.totschnig.myexpenses.provider
+
+import androidx.sqlite.db.SupportSQLiteDatabase
+import org.totschnig.myexpenses.model.CrStatus
+import org.totschnig.myexpenses.provider.DatabaseConstants.*
+
+/*
+ * The balance of an account after each of its transactions, in the order of date and id, is kept
+ * in TABLE_RUNNING_BALANCE, so that the transaction list can show it on every row, whatever the
+ * position of the page it loads. As with the rollup, triggers do not update balances themselves,
+ * since a change affects all later transactions of the account. They record per account the
+ * earliest date from which balances need to be recalculated in TABLE_RUNNING_BALANCE_DIRTY, which
+ * is done by refreshRunningBalances before balances are queried. Archived transactions have no
+ * running balance, their sum is part of the opening balance.
+ */
+
+private const val RUNNING_BALANCE_CREATE = """
+CREATE TABLE $TABLE_RUNNING_BALANCE (
+    $KEY_TRANSACTIONID integer primary key,
+    $KEY_RUNNING_BALANCE integer not null)
+"""
+
+private const val RUNNING_BALANCE_DIRTY_CREATE = """
+CREATE TABLE $TABLE_RUNNING_BALANCE_DIRTY (
+    $KEY_ACCOUNTID integer primary key,
+    $KEY_START integer not null)
+"""
+
+/**
+ * transactions that are shown in the list, and thus get a running balance
+ */
+private const val WHERE_LISTED = "$KEY_PARENTID IS NULL AND $KEY_STATUS != $STATUS_UNCOMMITTED"
+
+private fun markDirty(accountId: String, start: String) =
+    "INSERT OR IGNORE INTO $TABLE_RUNNING_BALANCE_DIRTY ($KEY_ACCOUNTID, $KEY_START) VALUES ($accountId, $start); " +
+            "UPDATE $TABLE_RUNNING_BALANCE_DIRTY SET $KEY_START = min($KEY_START, $start) WHERE $KEY_ACCOUNTID = $accountId;"
+
+private fun markDirty(row: String) = markDirty("$row.$KEY_ACCOUNTID", "$row.$KEY_DATE")
+
+private val RUNNING_BALANCE_TRIGGERS = listOf(
+    "running_balance_transaction_insert" to "AFTER INSERT ON $TABLE_TRANSACTIONS BEGIN ${markDirty("new")} END",
+    "running_balance_transaction_delete" to "AFTER DELETE ON $TABLE_TRANSACTIONS BEGIN DELETE FROM $TABLE_RUNNING_BALANCE WHERE $KEY_TRANSACTIONID = old.$KEY_ROWID; ${markDirty("old")} END",
+    "running_balance_transaction_update" to "AFTER UPDATE OF $KEY_ACCOUNTID,$KEY_DATE,$KEY_AMOUNT,$KEY_CR_STATUS,$KEY_STATUS,$KEY_PARENTID ON $TABLE_TRANSACTIONS BEGIN ${markDirty("old")} ${markDirty("new")} END",
+    "running_balance_opening_balance_update" to "AFTER UPDATE OF $KEY_OPENING_BALANCE ON $TABLE_ACCOUNTS BEGIN ${markDirty("new.$KEY_ROWID", Long.MIN_VALUE.toString())} END"
+)
+
+fun createOrRefreshRunningBalanceTriggers(db: SupportSQLiteDatabase) {
+    RUNNING_BALANCE_TRIGGERS.forEach { (name, definition) ->
+        db.execSQL("DROP TRIGGER IF EXISTS $name")
+        db.execSQL("CREATE TRIGGER $name $definition")
+    }
+}
+
+/**
+ * All accounts are marked dirty, balances are calculated on first use
+ */
+fun createRunningBalances(db: SupportSQLiteDatabase) {
+    db.execSQL(RUNNING_BALANCE_CREATE)
+    db.execSQL(RUNNING_BALANCE_DIRTY_CREATE)
+    db.execSQL("INSERT INTO $TABLE_RUNNING_BALANCE_DIRTY ($KEY_ACCOUNTID, $KEY_START) SELECT $KEY_ROWID, ${Long.MIN_VALUE} FROM $TABLE_ACCOUNTS")
+    createOrRefreshRunningBalanceTriggers(db)
+}
+
+/**
+ * Column for projections on [VIEW_EXTENDED] or [VIEW_COMMITTED], queries using it must set
+ * [TransactionProvider.QUERY_PARAMETER_RUNNING_BALANCE]
+ */
+fun runningBalanceColumn(view: String) =
+    "(SELECT $KEY_RUNNING_BALANCE FROM $TABLE_RUNNING_BALANCE WHERE $KEY_TRANSACTIONID = $view.$KEY_ROWID) AS $KEY_RUNNING_BALANCE"
+
+/**
+ * Recalculates the running balances of dirty accounts from their earliest changed date onward.
+ * Void transactions get the balance of their predecessor.
+ */
+fun SupportSQLiteDatabase.refreshRunningBalances() {
+    if (query("SELECT EXISTS (SELECT 1 FROM $TABLE_RUNNING_BALANCE_DIRTY)").use {
+            it.moveToFirst()
+            it.getInt(0) == 0
+        }) return
+    beginTransaction()
+    try {
+        val dirty = query("SELECT $KEY_ACCOUNTID, $KEY_START FROM $TABLE_RUNNING_BALANCE_DIRTY").use {
+            buildList {
+                while (it.moveToNext()) add(it.getLong(0) to it.getLong(1))
+            }
+        }
+        compileStatement(
+            "INSERT OR REPLACE INTO $TABLE_RUNNING_BALANCE ($KEY_TRANSACTIONID, $KEY_RUNNING_BALANCE) VALUES (?, ?)"
+        ).use { insert ->
+            dirty.forEach { (accountId, start) ->
+                val args = arrayOf<Any>(accountId, start)
+                execSQL(
+                    "DELETE FROM $TABLE_RUNNING_BALANCE WHERE $KEY_TRANSACTIONID IN (SELECT $KEY_ROWID FROM $TABLE_TRANSACTIONS WHERE $KEY_ACCOUNTID = ? AND $KEY_DATE >= ?)",
+                    args
+                )
+                var balance = query(
+                    "SELECT $KEY_OPENING_BALANCE + (SELECT coalesce(sum($KEY_AMOUNT), 0) FROM $TABLE_TRANSACTIONS WHERE $KEY_ACCOUNTID = ? AND $KEY_DATE < ? AND $WHERE_LISTED AND $WHERE_NOT_VOID) FROM $TABLE_ACCOUNTS WHERE $KEY_ROWID = ?",
+                    arrayOf<Any>(accountId, start, accountId)
+                ).use { if (it.moveToFirst()) it.getLong(0) else null } ?: return@forEach
+                query(
+                    "SELECT $KEY_ROWID, $KEY_AMOUNT, $KEY_CR_STATUS FROM $TABLE_TRANSACTIONS WHERE $KEY_ACCOUNTID = ? AND $KEY_DATE >= ? AND $WHERE_LISTED ORDER BY $KEY_DATE, $KEY_ROWID",
+                    args
+                ).use {
+                    while (it.moveToNext()) {
+                        if (it.getString(2) != CrStatus.VOID.name) {
+                            balance += it.getLong(1)
+                        }
+                        insert.bindLong(1, it.getLong(0))
+                        insert.bindLong(2, balance)
+                        insert.executeInsert()
+                    }
+                }
+            }
+        }
+        execSQL("DELETE FROM $TABLE_RUNNING_BALANCE_DIRTY")
+        setTransactionSuccessful()
+    } finally {
+        endTransaction()
+    }
+}
@@ -0,0 +1,159 @@
+package org.totschnig.myexpenses.provider
+
+import android.net.Uri
+import androidx.sqlite.db.SupportSQLiteDatabase
+import androidx.sqlite.db.SupportSQLiteQueryBuilder
+import org.totschnig.myexpenses.provider.DatabaseConstants.*
+
+private const val CANDIDATES = "temp.archive_candidates"
+
+/**
+ * Transactions can only be archived if nothing outside the transactions table depends on them,
+ * and if they will never be touched by sync or edits of sealed accounts:
+ * no pictures, tags, debts, plan instances, synced or sealed accounts.
+ */
+private fun archivable(alias: String) = """
+$alias.$KEY_STATUS != $STATUS_UNCOMMITTED
+AND $alias.$KEY_DEBT_ID IS NULL
+AND $alias.$KEY_PICTURE_URI IS NULL
+AND NOT EXISTS (SELECT 1 FROM $TABLE_TRANSACTIONS_TAGS WHERE $KEY_TRANSACTIONID = $alias.$KEY_ROWID)
+AND NOT EXISTS (SELECT 1 FROM $TABLE_PLAN_INSTANCE_STATUS WHERE $KEY_TRANSACTIONID = $alias.$KEY_ROWID)
+AND $alias.$KEY_ACCOUNTID IN (SELECT $KEY_ROWID FROM $TABLE_ACCOUNTS WHERE $KEY_SYNC_ACCOUNT_NAME IS NULL AND $KEY_SEALED = 0)
+"""
+
+/**
+ * Split transactions are archived together with their parts, which must not be transfers, and
+ * transfers only together with their peer, which must be archivable itself and book the same
+ * amount, since the amount of the peer is not looked up in the archive.
+ */
+private val SELECT_ARCHIVE_CANDIDATES = """
+SELECT t.$KEY_ROWID FROM $TABLE_TRANSACTIONS t WHERE t.$KEY_PARENTID IS NULL AND t.$KEY_DATE < ? AND ${archivable("t")}
+AND NOT EXISTS (SELECT 1 FROM $TABLE_TRANSACTIONS part WHERE part.$KEY_PARENTID = t.$KEY_ROWID
+    AND (part.$KEY_TRANSFER_PEER IS NOT NULL OR NOT (${archivable("part")})))
+AND (t.$KEY_TRANSFER_PEER IS NULL OR EXISTS (SELECT 1 FROM $TABLE_TRANSACTIONS peer WHERE peer.$KEY_ROWID = t.$KEY_TRANSFER_PEER
+    AND peer.$KEY_PARENTID IS NULL AND peer.$KEY_DATE < ? AND peer.$KEY_AMOUNT = -t.$KEY_AMOUNT AND ${archivable("peer")}))
+"""
+
+/**
+ * Transactions of sealed accounts, and transfers from or to them, stay archived.
+ */
+private const val SELECT_UNARCHIVE_CANDIDATES = """
+SELECT $KEY_ROWID FROM $TABLE_TRANSACTIONS_ARCHIVE WHERE $KEY_PARENTID IS NULL
+AND $KEY_ACCOUNTID IN (SELECT $KEY_ROWID FROM $TABLE_ACCOUNTS WHERE $KEY_SEALED = 0)
+AND ($KEY_TRANSFER_ACCOUNT IS NULL OR $KEY_TRANSFER_ACCOUNT IN (SELECT $KEY_ROWID FROM $TABLE_ACCOUNTS WHERE $KEY_SEALED = 0))
+"""
+
+/**
+ * The sum of the top level transactions in [table] that are listed in the candidates table, for
+ * the account of the row updated in [TABLE_ACCOUNTS]
+ */
+private fun candidateSum(table: String) =
+    "(SELECT coalesce(sum($KEY_AMOUNT), 0) FROM $table WHERE $KEY_ROWID IN (SELECT $KEY_ROWID FROM $CANDIDATES) AND $KEY_PARENTID IS NULL AND $KEY_ACCOUNTID = $TABLE_ACCOUNTS.$KEY_ROWID)"
+
+private fun candidateAccounts(table: String) =
+    "$KEY_ROWID IN (SELECT $KEY_ACCOUNTID FROM $table WHERE $KEY_ROWID IN (SELECT $KEY_ROWID FROM $CANDIDATES))"
+
+private fun SupportSQLiteDatabase.collectCandidates(select: String, table: String, bindArgs: LongArray): Int {
+    execSQL("DROP TABLE IF EXISTS $CANDIDATES")
+    execSQL("CREATE TABLE $CANDIDATES ($KEY_ROWID integer primary key)")
+    val count = compileStatement("INSERT INTO $CANDIDATES $select").use {
+        bindArgs.forEachIndexed { index, arg -> it.bindLong(index + 1, arg) }
+        it.executeUpdateDelete()
+    }
+    execSQL("INSERT INTO $CANDIDATES SELECT $KEY_ROWID FROM $table WHERE $KEY_PARENTID IN (SELECT $KEY_ROWID FROM $CANDIDATES)")
+    return count
+}
+
+private fun SupportSQLiteDatabase.inTransaction(block: SupportSQLiteDatabase.() -> Int): Int {
+    beginTransaction()
+    try {
+        return block().also { setTransactionSuccessful() }
+    } finally {
+        endTransaction()
+        execSQL("DROP TABLE IF EXISTS $CANDIDATES")
+    }
+}
+
+/**
+ * Moves transactions dated before [cutoff] from [TABLE_TRANSACTIONS] to [TABLE_TRANSACTIONS_ARCHIVE],
+ * and adds their sum to the opening balance of their accounts, so that balances computed from
+ * [TABLE_TRANSACTIONS] stay the same.
+ * @param cutoff epoch seconds
+ * @return the number of archived transactions, not counting split parts
+ */
+fun SupportSQLiteDatabase.archiveTransactions(cutoff: Long) = inTransaction {
+    val count = collectCandidates(SELECT_ARCHIVE_CANDIDATES, TABLE_TRANSACTIONS, longArrayOf(cutoff, cutoff))
+    if (count > 0) {
+        execSQL("UPDATE $TABLE_ACCOUNTS SET $KEY_OPENING_BALANCE = coalesce($KEY_OPENING_BALANCE, 0) + ${candidateSum(TABLE_TRANSACTIONS)} WHERE ${candidateAccounts(TABLE_TRANSACTIONS)}")
+        execSQL("INSERT INTO $TABLE_TRANSACTIONS_ARCHIVE SELECT * FROM $TABLE_TRANSACTIONS WHERE $KEY_ROWID IN (SELECT $KEY_ROWID FROM $CANDIDATES)")
+        execSQL("DELETE FROM $TABLE_TRANSACTIONS WHERE $KEY_ROWID IN (SELECT $KEY_ROWID FROM $CANDIDATES)")
+    }
+    count
+}
+
+/**
+ * Moves archived transactions back to [TABLE_TRANSACTIONS], reverting the carry-forward of
+ * [archiveTransactions]. References to categories, payees and methods deleted in the meantime are
+ * cleared.
+ * @return the number of restored transactions, not counting split parts
+ */
+fun SupportSQLiteDatabase.unarchiveTransactions() = inTransaction {
+    val count = collectCandidates(SELECT_UNARCHIVE_CANDIDATES, TABLE_TRANSACTIONS_ARCHIVE, LongArray(0))
+    if (count > 0) {
+        arrayOf(
+            KEY_CATID to TABLE_CATEGORIES,
+            KEY_PAYEEID to TABLE_PAYEES,
+            KEY_METHODID to TABLE_METHODS
+        ).forEach { (column, table) ->
+            execSQL("UPDATE $TABLE_TRANSACTIONS_ARCHIVE SET $column = NULL WHERE $column NOT IN (SELECT $KEY_ROWID FROM $table)")
+        }
+        execSQL("UPDATE $TABLE_ACCOUNTS SET $KEY_OPENING_BALANCE = coalesce($KEY_OPENING_BALANCE, 0) - ${candidateSum(TABLE_TRANSACTIONS_ARCHIVE)} WHERE ${candidateAccounts(TABLE_TRANSACTIONS_ARCHIVE)}")
+        execSQL("INSERT INTO $TABLE_TRANSACTIONS SELECT * FROM $TABLE_TRANSACTIONS_ARCHIVE WHERE $KEY_ROWID IN (SELECT $KEY_ROWID FROM $CANDIDATES)")
+        execSQL("DELETE FROM $TABLE_TRANSACTIONS_ARCHIVE WHERE $KEY_ROWID IN (SELECT $KEY_ROWID FROM $CANDIDATES)")
+    }
+    count
+}
+
+/**
+ * @return the counterpart of [view] that includes the archive, aliased as [view] for column
+ * references qualified with the view name
+ */
+fun withArchive(view: String) = "${archiveViews(view).first} AS $view"
+
+/**
+ * @return the counterpart of [view] including the archive, and the view on the archive alone
+ * with the same columns, used for probing
+ */
+private fun archiveViews(view: String) = when (view) {
+    VIEW_COMMITTED -> VIEW_COMMITTED_WITH_ARCHIVE to VIEW_ARCHIVE_EXTENDED
+    VIEW_EXTENDED -> VIEW_EXTENDED_WITH_ARCHIVE to VIEW_ARCHIVE_EXTENDED
+    VIEW_WITH_ACCOUNT -> VIEW_WITH_ACCOUNT_WITH_ARCHIVE to VIEW_ARCHIVE_WITH_ACCOUNT
+    else -> throw IllegalArgumentException("No archive view for $view")
+}
+
+/**
+ * Used for queries that ask for [TransactionProvider.QUERY_PARAMETER_INCLUDE_ARCHIVE]:
+ * probes the archive with the selection of a query on [view], so that the archive is only
+ * included into the query if it holds matching rows. Selections on the date of transactions are
+ * served by the index on the archive.
+ * @return the source to use for the query, either [view] or [withArchive]
+ */
+fun SupportSQLiteDatabase.withArchiveIfMatching(
+    view: String,
+    selection: String?,
+    selectionArgs: Array<String>?
+) = if (query(
+        SupportSQLiteQueryBuilder.builder("${archiveViews(view).second} AS $view")
+            .columns(arrayOf("1"))
+            .selection(selection, selectionArgs)
+            .limit("1")
+            .create()
+    ).use { it.moveToFirst() }
+) withArchive(view) else view
+
+/**
+ * @return this transactions uri with [TransactionProvider.QUERY_PARAMETER_INCLUDE_ARCHIVE] set
+ */
+fun Uri.includingArchive(): Uri = buildUpon()
+    .appendBooleanQueryParameter(TransactionProvider.QUERY_PARAMETER_INCLUDE_ARCHIVE)
+    .build()
@@ -18,6 +18,7 @@ package org.totschnig.myexpenses.provider;
 import static android.database.sqlite.SQLiteDatabase.CONFLICT_IGNORE;
 import static android.database.sqlite.SQLiteDatabase.CONFLICT_NONE;
 import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.ACCOUNT_REMAP_TRANSFER_TRIGGER_CREATE;
+import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.TRANSACTIONS_FINGERPRINT_INDEX_CREATE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.*;
 import static org.totschnig.myexpenses.util.ColorUtils.MAIN_COLORS;
 import static org.totschnig.myexpenses.util.PermissionHelper.PermissionGroup.CALENDAR;
@@ -109,7 +110,8 @@ public class TransactionDatabase extends BaseTransactionDatabase {
           + KEY_ORIGINAL_AMOUNT + " integer, "
           + KEY_ORIGINAL_CURRENCY + " text, "
           + KEY_EQUIVALENT_AMOUNT + " integer,  "
-          + KEY_DEBT_ID + " integer references " + TABLE_DEBTS + "(" + KEY_ROWID + ") ON DELETE SET NULL);";
+          + KEY_DEBT_ID + " integer references " + TABLE_DEBTS + "(" + KEY_ROWID + ") ON DELETE SET NULL, "
+          + KEY_FINGERPRINT + " text);";
 
   private static final String TRANSACTIONS_UUID_INDEX_CREATE = "CREATE UNIQUE INDEX transactions_account_uuid_index ON "
       + TABLE_TRANSACTIONS + "(" + KEY_ACCOUNTID + "," + KEY_UUID + "," + KEY_STATUS + ")";
@@ -123,6 +125,14 @@ public class TransactionDatabase extends BaseTransactionDatabase {
     return String.format(Locale.ROOT, " GROUP BY %1$s.%2$s", tableName, KEY_ROWID);
   }
 
+  /**
+   * @return true for the tables and views holding transactions, as opposed to the change log
+   */
+  private static boolean isTransactionsSource(String tableName) {
+    return tableName.equals(TABLE_TRANSACTIONS) || tableName.equals(TABLE_TRANSACTIONS_ARCHIVE) ||
+        tableName.equals(VIEW_TRANSACTIONS_WITH_ARCHIVE);
+  }
+
   private String buildViewDefinition(String tableName, boolean withTags) {
     StringBuilder stringBuilder = new StringBuilder();
     stringBuilder.append( " AS ").append(DbConstantsKt.getCategoryTreeForView())
@@ -132,7 +142,7 @@ public class TransactionDatabase extends BaseTransactionDatabase {
         .append(TABLE_PAYEES).append(".").append(KEY_PAYEE_NAME).append(", ")
         .append(TABLE_METHODS).append(".").append(KEY_LABEL).append(" AS ").append(KEY_METHOD_LABEL);
 
-    if (tableName.equals(TABLE_TRANSACTIONS)) {
+    if (isTransactionsSource(tableName)) {
       stringBuilder.append(", ").append(TABLE_PLAN_INSTANCE_STATUS).append(".").append(KEY_TEMPLATEID);
     }
 
@@ -145,7 +155,7 @@ public class TransactionDatabase extends BaseTransactionDatabase {
         .append(" LEFT JOIN ").append(TABLE_METHODS).append(" ON ").append(KEY_METHODID).append(" = ").append(TABLE_METHODS).append(".").append(KEY_ROWID)
         .append(" LEFT JOIN Tree ON ").append(KEY_CATID).append(" = TREE.").append(KEY_ROWID);
 
-    if (tableName.equals(TABLE_TRANSACTIONS)) {
+    if (isTransactionsSource(tableName)) {
       stringBuilder.append(" LEFT JOIN ").append(TABLE_PLAN_INSTANCE_STATUS)
           .append(" ON ").append(tableName).append(".").append(KEY_ROWID).append(" = ")
           .append(TABLE_PLAN_INSTANCE_STATUS).append(".").append(KEY_TRANSACTIONID);
@@ -153,14 +163,14 @@ public class TransactionDatabase extends BaseTransactionDatabase {
     return stringBuilder.toString();
   }
 
-  private static String buildViewWithAccount() {
-    return " AS SELECT " + TABLE_TRANSACTIONS + ".*" + ", " +
+  private static String buildViewWithAccount(String tableName) {
+    return " AS SELECT " + tableName + ".*" + ", " +
             KEY_COLOR + ", " +
             KEY_CURRENCY + ", " +
             KEY_EXCLUDE_FROM_TOTALS + ", " +
             TABLE_ACCOUNTS + "." + KEY_TYPE + " AS " + KEY_ACCOUNT_TYPE + ", " +
             TABLE_ACCOUNTS + "." + KEY_LABEL + " AS " + KEY_ACCOUNT_LABEL +
-            " FROM " + TABLE_TRANSACTIONS + " LEFT JOIN " +
+            " FROM " + tableName + " LEFT JOIN " +
             TABLE_ACCOUNTS + " ON " + KEY_ACCOUNTID +
             " = " + TABLE_ACCOUNTS + "." + KEY_ROWID;
   }
@@ -187,7 +197,7 @@ public class TransactionDatabase extends BaseTransactionDatabase {
           .append(TABLE_ACCOUNTS).append(".").append(KEY_LABEL).append(" AS ").append(KEY_ACCOUNT_LABEL);
     }
 
-    if (tableName.equals(TABLE_TRANSACTIONS)) {
+    if (isTransactionsSource(tableName)) {
       stringBuilder.append(", ").append(TABLE_PLAN_INSTANCE_STATUS).append(".").append(KEY_TEMPLATEID);
       stringBuilder.append(", ").append(DbConstantsKt.tagListExpression(supportsJson));
     }
@@ -205,7 +215,7 @@ public class TransactionDatabase extends BaseTransactionDatabase {
            .append(" = TREE.").append(KEY_ROWID);
     }
 
-    if (tableName.equals(TABLE_TRANSACTIONS)) {
+    if (isTransactionsSource(tableName)) {
       stringBuilder.append(" LEFT JOIN ").append(TABLE_PLAN_INSTANCE_STATUS)
           .append(" ON ").append(tableName).append(".").append(KEY_ROWID).append(" = ")
           .append(TABLE_PLAN_INSTANCE_STATUS).append(".").append(KEY_TRANSACTIONID);
@@ -573,6 +583,7 @@ public class TransactionDatabase extends BaseTransactionDatabase {
           + " AND new." + KEY_ACCOUNTID + " = old." + KEY_ACCOUNTID //if account is changed, we need to delete transaction from one account, and add it to the other
           + " AND new." + KEY_TRANSFER_PEER + " IS old." + KEY_TRANSFER_PEER //if a new transfer is inserted, the first peer is updated, after second one is added, and we can skip this update here
           + " AND new." + KEY_UUID + " IS NOT NULL "  //during transfer update, uuid is temporarily set to null, we need to skip this change here, otherwise we run into SQLiteConstraintException
+          + " AND new." + KEY_FINGERPRINT + " IS old." + KEY_FINGERPRINT //fingerprint is maintained by triggers and not synced
           + " BEGIN INSERT INTO " + TABLE_CHANGES + "("
           + KEY_TYPE + ","
           + KEY_SYNC_SEQUENCE_LOCAL + ", "
@@ -728,6 +739,7 @@ public class TransactionDatabase extends BaseTransactionDatabase {
     //to take care of ensuring consistency during upgrades
     if (!db.isReadOnly()) {
       db.execSQL("PRAGMA foreign_keys=ON;");
+      AccountChangesKt.createChangedAccountsTracking(db);
     }
     try {
       String uncommitedSelect = String.format(Locale.ROOT, "(SELECT %s from %s where %s = %d)",
@@ -776,6 +788,7 @@ public class TransactionDatabase extends BaseTransactionDatabase {
     db.execSQL("CREATE INDEX templates_cat_id_index on " + TABLE_TEMPLATES + "(" + KEY_CATID + ")");
     db.execSQL("CREATE INDEX transactions_payee_id_index on " + TABLE_TRANSACTIONS + "(" + KEY_PAYEEID + ")");
     db.execSQL("CREATE INDEX templates_payee_id_index on " + TABLE_TEMPLATES + "(" + KEY_PAYEEID + ")");
+    db.execSQL(TRANSACTIONS_FINGERPRINT_INDEX_CREATE);
 
     // Triggers
     createOrRefreshTransactionTriggers(db);
@@ -812,6 +825,14 @@ public class TransactionDatabase extends BaseTransactionDatabase {
 
     createOrRefreshCategoryHierarchyTrigger(db);
 
+    createOrRefreshFingerprintTriggers(db);
+
+    createTransactionsArchive(db);
+
+    TransactionRollupKt.createRollup(db);
+
+    RunningBalanceKt.createRunningBalances(db);
+
     //Views
     createOrRefreshViews(db);
     //insertTestData(db, 50, 50);
@@ -2121,7 +2142,7 @@ public class TransactionDatabase extends BaseTransactionDatabase {
       }
       if (oldVersion < 105) {
         db.execSQL("DROP VIEW IF EXISTS " + VIEW_WITH_ACCOUNT);
-        db.execSQL("CREATE VIEW " + VIEW_WITH_ACCOUNT + buildViewWithAccount() + " WHERE " + KEY_STATUS + " != " + STATUS_UNCOMMITTED + ";");
+        db.execSQL("CREATE VIEW " + VIEW_WITH_ACCOUNT + buildViewWithAccount(TABLE_TRANSACTIONS) + " WHERE " + KEY_STATUS + " != " + STATUS_UNCOMMITTED + ";");
       }
       if (oldVersion < 106) {
         db.execSQL("DROP TRIGGER IF EXISTS update_change_log");
@@ -2241,6 +2262,32 @@ public class TransactionDatabase extends BaseTransactionDatabase {
       if (oldVersion < 133) {
         upgradeTo133(db);
       }
+      if (oldVersion < 134) {
+        createOrRefreshTransactionTriggers(db);
+        upgradeTo134(db);
+        createOrRefreshViews(db);
+      }
+
+      if (oldVersion < 135) {
+        upgradeTo135(db);
+        createOrRefreshViews(db);
+      }
+
+      if (oldVersion < 136) {
+        upgradeTo136(db);
+      }
+
+      if (oldVersion < 137) {
+        upgradeTo137(db);
+      }
+
+      if (oldVersion < 138) {
+        upgradeTo138(db);
+      }
+
+      if (oldVersion < 139) {
+        createOrRefreshViews(db);
+      }
 
       TransactionProvider.resumeChangeTrigger(db);
     } catch (SQLException e) {
@@ -2325,11 +2372,39 @@ public class TransactionDatabase extends BaseTransactionDatabase {
             tagGroupBy + ";");
 
     db.execSQL("CREATE VIEW " + VIEW_CHANGES_EXTENDED + buildViewDefinitionExtended(TABLE_CHANGES));
-    db.execSQL("CREATE VIEW " + VIEW_WITH_ACCOUNT + buildViewWithAccount() + " WHERE " + KEY_STATUS + " != " + STATUS_UNCOMMITTED + ";");
+    db.execSQL("CREATE VIEW " + VIEW_WITH_ACCOUNT + buildViewWithAccount(TABLE_TRANSACTIONS) + " WHERE " + KEY_STATUS + " != " + STATUS_UNCOMMITTED + ";");
 
+    createOrRefreshArchiveViews(db);
     createOrRefreshTemplateViews(db);
   }
 
+  /**
+   * Views used by {@link TransactionProvider} when a query reaches into archived transactions. On
+   * upgrades from versions before the archive was introduced, they are created once the archive
+   * table exists.
+   */
+  private void createOrRefreshArchiveViews(SupportSQLiteDatabase db) {
+    db.execSQL("DROP VIEW IF EXISTS " + VIEW_COMMITTED_WITH_ARCHIVE);
+    db.execSQL("DROP VIEW IF EXISTS " + VIEW_EXTENDED_WITH_ARCHIVE);
+    db.execSQL("DROP VIEW IF EXISTS " + VIEW_ARCHIVE_EXTENDED);
+    db.execSQL("DROP VIEW IF EXISTS " + VIEW_WITH_ACCOUNT_WITH_ARCHIVE);
+    db.execSQL("DROP VIEW IF EXISTS " + VIEW_ARCHIVE_WITH_ACCOUNT);
+    db.execSQL("DROP VIEW IF EXISTS " + VIEW_TRANSACTIONS_WITH_ARCHIVE);
+    if (!hasTransactionsArchive(db)) return;
+
+    db.execSQL("CREATE VIEW " + VIEW_TRANSACTIONS_WITH_ARCHIVE + " AS SELECT * FROM " + TABLE_TRANSACTIONS +
+        " UNION ALL SELECT * FROM " + TABLE_TRANSACTIONS_ARCHIVE);
+    db.execSQL("CREATE VIEW " + VIEW_COMMITTED_WITH_ARCHIVE + buildViewDefinition(VIEW_TRANSACTIONS_WITH_ARCHIVE, false) + " WHERE " + KEY_STATUS + " != " + STATUS_UNCOMMITTED + ";");
+    db.execSQL("CREATE VIEW " + VIEW_EXTENDED_WITH_ARCHIVE + buildViewDefinitionExtended(VIEW_TRANSACTIONS_WITH_ARCHIVE) +
+        TAG_JOIN(VIEW_TRANSACTIONS_WITH_ARCHIVE, TABLE_TRANSACTIONS_TAGS, KEY_TRANSACTIONID) +
+        " WHERE " + KEY_STATUS + " != " + STATUS_UNCOMMITTED + TAG_GROUP_BY(VIEW_TRANSACTIONS_WITH_ARCHIVE) + ";");
+    db.execSQL("CREATE VIEW " + VIEW_ARCHIVE_EXTENDED + buildViewDefinitionExtended(TABLE_TRANSACTIONS_ARCHIVE) +
+        TAG_JOIN(TABLE_TRANSACTIONS_ARCHIVE, TABLE_TRANSACTIONS_TAGS, KEY_TRANSACTIONID) +
+        TAG_GROUP_BY(TABLE_TRANSACTIONS_ARCHIVE) + ";");
+    db.execSQL("CREATE VIEW " + VIEW_WITH_ACCOUNT_WITH_ARCHIVE + buildViewWithAccount(VIEW_TRANSACTIONS_WITH_ARCHIVE) + " WHERE " + KEY_STATUS + " != " + STATUS_UNCOMMITTED + ";");
+    db.execSQL("CREATE VIEW " + VIEW_ARCHIVE_WITH_ACCOUNT + buildViewWithAccount(TABLE_TRANSACTIONS_ARCHIVE) + ";");
+  }
+
   private void createOrRefreshTemplateViews(SupportSQLiteDatabase db) {
     db.execSQL("DROP VIEW IF EXISTS " + VIEW_TEMPLATES_ALL);
     db.execSQL("DROP VIEW IF EXISTS " + VIEW_TEMPLATES_EXTENDED);
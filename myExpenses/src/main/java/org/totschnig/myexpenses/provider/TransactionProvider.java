@@ -71,6 +71,15 @@ public class TransactionProvider extends BaseTransactionProvider {
       Uri.parse("content://" + AUTHORITY + "/accountsMinimal");
   public static final Uri TRANSACTIONS_URI =
       Uri.parse("content://" + AUTHORITY + "/transactions");
+  /**
+   * Whenever {@link #TRANSACTIONS_URI} is notified, this uri is notified too, with the currency
+   * and the id of each account whose transactions have changed appended. Changes that can not be
+   * attributed to accounts notify this uri itself, see
+   * {@link BaseTransactionProvider#notifyUnattributedChange()}.
+   * @see BaseTransactionProvider#accountChangesUri
+   */
+  public static final Uri ACCOUNT_CHANGES_URI =
+      Uri.parse("content://" + AUTHORITY + "/accountChanges");
   public static final Uri UNCOMMITTED_URI =
       Uri.parse("content://" + AUTHORITY + "/transactions/uncommitted");
   public static final Uri TEMPLATES_URI =
@@ -203,6 +212,27 @@ public class TransactionProvider extends BaseTransactionProvider {
    */
   public static final String QUERY_PARAMETER_INCLUDE_TRANSFERS = "includeTransfers";
 
+  /**
+   * For {@link #TRANSACTIONS_URI}: archived transactions matching the selection are included,
+   * for screens that search through the full history. Without it, only the transactions table is read.
+   * For {@link #TRANSACTIONS_SUM_URI} and the groups below {@link #TRANSACTIONS_URI}: the sums include
+   * archived transactions, unless they are taken from the rollup, which never includes the archive,
+   * since archived sums are carried forward in the opening balance.
+   */
+  public static final String QUERY_PARAMETER_INCLUDE_ARCHIVE = "includeArchive";
+
+  /**
+   * For {@link #TRANSACTIONS_URI}: the projection reads running balances, which are brought up to date
+   */
+  public static final String QUERY_PARAMETER_RUNNING_BALANCE = "runningBalance";
+
+  /**
+   * For {@link #TRANSACTIONS_SUM_URI}: sums are taken from the rollup, which is only possible if
+   * the selection does not refer to other columns than the date.
+   * For {@link #CATEGORIES_URI}: the projection reads sums from the rollup, which is brought up to date
+   */
+  public static final String QUERY_PARAMETER_FROM_ROLLUP = "fromRollup";
+
   /**
    * Colon separated list of account types
    */
@@ -210,6 +240,12 @@ public class TransactionProvider extends BaseTransactionProvider {
 
 
   public static final String QUERY_PARAMETER_WITH_HIDDEN_ACCOUNT_COUNT = "withHiddenAccountCount";
+
+  /**
+   * For {@link #ACCOUNTS_BASE_URI}: current balance and total of each account are included, without
+   * the other sums of {@link #ACCOUNTS_FULL_URI}, projection is ignored
+   */
+  public static final String QUERY_PARAMETER_WITH_BALANCE = "withBalance";
   @Deprecated
   public static final String METHOD_BULK_START = "bulkStart";
   @Deprecated
@@ -218,6 +254,11 @@ public class TransactionProvider extends BaseTransactionProvider {
   public static final String METHOD_SETUP_CATEGORIES = "setup_categories";
   public static final String METHOD_RESET_EQUIVALENT_AMOUNTS = "reset_equivalent_amounts";
   public static final String METHOD_CHECK_CORRUPTED_DATA_987 = "checkCorruptedData";
+  /**
+   * arg: cutoff date in epoch seconds, transactions before are moved to the archive
+   */
+  public static final String METHOD_ARCHIVE = "archive";
+  public static final String METHOD_UNARCHIVE = "unarchive";
 
   public static final String KEY_RESULT = "result";
 
@@ -313,10 +354,6 @@ public class TransactionProvider extends BaseTransactionProvider {
           return c;
         }
         boolean extended = uri.getQueryParameter(QUERY_PARAMETER_EXTENDED) != null;
-        qb = SupportSQLiteQueryBuilder.builder(extended ? VIEW_EXTENDED : VIEW_COMMITTED);
-        if (uri.getQueryParameter(QUERY_PARAMETER_DISTINCT) != null) {
-          qb.distinct();
-        }
         if (sortOrder == null) {
           sortOrder = KEY_DATE + " DESC";
         }
@@ -326,6 +363,9 @@ public class TransactionProvider extends BaseTransactionProvider {
         if (uri.getBooleanQueryParameter(QUERY_PARAMETER_SHORTEN_COMMENT, false)) {
           projection = Companion.shortenComment(projection);
         }
+        if (uri.getBooleanQueryParameter(QUERY_PARAMETER_RUNNING_BALANCE, false)) {
+          RunningBalanceKt.refreshRunningBalances(db);
+        }
         String mergeTransfers = uri.getQueryParameter(QUERY_PARAMETER_MERGE_TRANSFERS);
         if (mergeTransfers != null) {
           String keepTransferPartCriterion = mergeTransfers.equals("1") ?
@@ -335,6 +375,11 @@ public class TransactionProvider extends BaseTransactionProvider {
           selection = selection == null ? mergeTransferSelection :
                   selection + " AND (" + mergeTransferSelection + ")";
         }
+        String view = extended ? VIEW_EXTENDED : VIEW_COMMITTED;
+        qb = SupportSQLiteQueryBuilder.builder(withArchiveIfRequested(db, uri, view, selection, selectionArgs));
+        if (uri.getQueryParameter(QUERY_PARAMETER_DISTINCT) != null) {
+          qb.distinct();
+        }
         //noinspection InlinedApi
         String queryParameterLimit = uri.getQueryParameter(ContentResolver.QUERY_ARG_LIMIT);
         if (queryParameterLimit != null) {
@@ -369,16 +414,22 @@ public class TransactionProvider extends BaseTransactionProvider {
         } else {
           accountSelectionQuery = " = ?";
         }
-        additionalWhere.append(WHERE_TRANSACTION);
+        //the caller guarantees that the selection only refers to the date
+        final boolean fromRollup = !groupByType && getUseRollup() &&
+            uri.getBooleanQueryParameter(QUERY_PARAMETER_FROM_ROLLUP, false);
+        if (fromRollup) {
+          TransactionRollupKt.refreshRollup(db);
+        }
+        additionalWhere.append(fromRollup ? TransactionRollupKt.WHERE_ROLLUP_TRANSACTION : WHERE_TRANSACTION);
 
         if (groupByType) {
           groupBy = KEY_TYPE;
-        } else if (!aggregateTypes) {
+        } else if (!aggregateTypes && !fromRollup) {
           //expenses only
           additionalWhere.append(" AND " + KEY_AMOUNT + " < 0");
         }
         String amountCalculation;
-        qb = SupportSQLiteQueryBuilder.builder(VIEW_WITH_ACCOUNT);
+        qb = SupportSQLiteQueryBuilder.builder(fromRollup ? VIEW_ROLLUP_WITH_ACCOUNT : withArchiveIfRequested(db, uri, VIEW_WITH_ACCOUNT, selection, selectionArgs));
         if (accountSelector != null) {
           selectionArgs = Utils.joinArrays(new String[]{accountSelector}, selectionArgs);
           additionalWhere.append(" AND " + KEY_ACCOUNTID).append(accountSelectionQuery);
@@ -386,7 +437,9 @@ public class TransactionProvider extends BaseTransactionProvider {
         } else {
           amountCalculation = DatabaseConstants.getAmountHomeEquivalent(VIEW_WITH_ACCOUNT);
         }
-        String sumExpression = aggregateFunction + "(" + amountCalculation + ")";
+        String sumExpression = fromRollup ?
+            TransactionRollupKt.rollupTransactionSum(accountSelector == null, !aggregateTypes, aggregateFunction) :
+            aggregateFunction + "(" + amountCalculation + ")";
         if (groupByType) sumExpression = "abs(" + sumExpression + ")";
         final String sumColumn = sumExpression + " as  " + KEY_SUM;
         projection = groupByType ? new String[]{KEY_AMOUNT + " > 0 as " + KEY_TYPE, sumColumn} : new String[]{sumColumn};
@@ -449,7 +502,12 @@ public class TransactionProvider extends BaseTransactionProvider {
             groupBy = KEY_YEAR;
             break;
         }
-        qb = SupportSQLiteQueryBuilder.builder(VIEW_WITH_ACCOUNT);
+        //without a selection on individual transactions, the sums are taken from the rollup
+        final boolean fromRollup = selection == null && getUseRollup();
+        if (fromRollup) {
+          TransactionRollupKt.refreshRollup(db);
+        }
+        qb = SupportSQLiteQueryBuilder.builder(fromRollup ? VIEW_ROLLUP_WITH_ACCOUNT : withArchiveIfRequested(db, uri, VIEW_WITH_ACCOUNT, selection, selectionArgs));
         int projectionSize;
         projectionSize = 5;
         if (withJulianStart) {
@@ -465,14 +523,20 @@ public class TransactionProvider extends BaseTransactionProvider {
         int index = 0;
         projection[index++] = yearExpression + " AS " + KEY_YEAR;
         projection[index++] = secondDef + " AS " + KEY_SECOND_GROUP;
-        projection[index++] = includeTransfers ? getInAggregate(forHome, aggregateFunction) : getIncomeAggregate(forHome, aggregateFunction);
-        projection[index++] = includeTransfers ? getOutAggregate(forHome, aggregateFunction) : getExpenseAggregate(forHome, aggregateFunction);
-        if (!includeTransfers) {
-          //for the Grand total account transfer calculation is neither possible (adding amounts in
-          //different currencies) nor necessary (should result in 0)
-          projection[index++] = (forHome ? "0" : getTransferSum(aggregateFunction)) + " AS " + KEY_SUM_TRANSFERS;
+        if (fromRollup) {
+          for (String column : TransactionRollupKt.rollupGroupSums(forHome, includeTransfers, aggregateFunction)) {
+            projection[index++] = column;
+          }
+        } else {
+          projection[index++] = includeTransfers ? getInAggregate(forHome, aggregateFunction) : getIncomeAggregate(forHome, aggregateFunction);
+          projection[index++] = includeTransfers ? getOutAggregate(forHome, aggregateFunction) : getExpenseAggregate(forHome, aggregateFunction);
+          if (!includeTransfers) {
+            //for the Grand total account transfer calculation is neither possible (adding amounts in
+            //different currencies) nor necessary (should result in 0)
+            projection[index++] = (forHome ? "0" : getTransferSum(aggregateFunction)) + " AS " + KEY_SUM_TRANSFERS;
+          }
+          projection[index++] = MAPPED_CATEGORIES;
         }
-        projection[index++] = MAPPED_CATEGORIES;
         if (withJulianStart) {
           projection[index++] = (group == Grouping.WEEK ? getWeekStartJulian() : DAY_START_JULIAN)
               + " AS " + KEY_GROUP_START;
@@ -499,6 +563,9 @@ public class TransactionProvider extends BaseTransactionProvider {
         }
         if (uri.getBooleanQueryParameter(QUERY_PARAMETER_HIERARCHICAL, false)) {
           final boolean withBudget = projection != null && Arrays.asList(projection).contains(KEY_BUDGET);
+          if (uri.getBooleanQueryParameter(QUERY_PARAMETER_FROM_ROLLUP, false)) {
+            TransactionRollupKt.refreshRollup(db);
+          }
           String sql = withBudget ? categoryTreeWithBudget(sortOrder, selection, projection, uri.getQueryParameter(KEY_YEAR), uri.getQueryParameter(KEY_SECOND_GROUP)) :
                   categoryTreeSelect(sortOrder, selection, projection, null, null,
                   uri.getQueryParameter(QUERY_PARAMETER_CATEGORY_SEPARATOR));
@@ -542,7 +609,9 @@ public class TransactionProvider extends BaseTransactionProvider {
           return c;
         } else {
           qb = SupportSQLiteQueryBuilder.builder(getAccountsWithExchangeRate());
-          if (projection == null)
+          if (uri.getBooleanQueryParameter(QUERY_PARAMETER_WITH_BALANCE, false)) {
+            projection = getAccountBalanceProjection();
+          } else if (projection == null)
             projection = Account.PROJECTION_BASE;
           break;
         }
@@ -877,6 +946,15 @@ public class TransactionProvider extends BaseTransactionProvider {
     return new IllegalArgumentException("Unknown URL " + uri);
   }
 
+  /**
+   * @return view, or its counterpart including the archive if the uri asks for
+   * {@link #QUERY_PARAMETER_INCLUDE_ARCHIVE} and the archive holds rows matching the selection
+   */
+  private String withArchiveIfRequested(SupportSQLiteDatabase db, Uri uri, String view, @Nullable String selection, @Nullable String[] selectionArgs) {
+    return uri.getBooleanQueryParameter(QUERY_PARAMETER_INCLUDE_ARCHIVE, false) ?
+        TransactionArchiveKt.withArchiveIfMatching(db, view, selection, selectionArgs) : view;
+  }
+
   @Override
   public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
     setDirty(true);
@@ -888,6 +966,12 @@ public class TransactionProvider extends BaseTransactionProvider {
     switch (uriMatch) {
       case TRANSACTIONS:
       case UNCOMMITTED:
+        if (values != null && !values.containsKey(KEY_FINGERPRINT)) {
+          String fingerprint = DuplicateDetectionKt.fingerprint(db, values);
+          if (fingerprint != null) {
+            values.put(KEY_FINGERPRINT, fingerprint);
+          }
+        }
         id = MoreDbUtilsKt.insert(db, TABLE_TRANSACTIONS, values);
         newUri = TRANSACTIONS_URI + "/" + id;
         break;
@@ -1193,6 +1277,7 @@ public class TransactionProvider extends BaseTransactionProvider {
     } else {
       if (uriMatch == ACCOUNTS || uriMatch == ACCOUNT_ID) {
         notifyAccountChange();
+        notifyUnattributedChange();
       }
       if (uriMatch == TEMPLATES || uriMatch == TEMPLATE_ID) {
         notifyChange(TEMPLATES_UNCOMMITTED_URI, false);
@@ -1261,6 +1346,7 @@ public class TransactionProvider extends BaseTransactionProvider {
         count = MoreDbUtilsKt.update(db, TABLE_PAYEES, values,
             KEY_ROWID + " = " + uri.getLastPathSegment() + prefixAnd(where), whereArgs);
         notifyChange(TRANSACTIONS_URI, false);
+        notifyUnattributedChange();
         break;
       case CATEGORIES:
         throw new UnsupportedOperationException("Bulk update of categories is not supported");
@@ -1573,12 +1659,15 @@ public class TransactionProvider extends BaseTransactionProvider {
     }
     if (uriMatch == ACCOUNTS || uriMatch == ACCOUNT_ID) {
       notifyAccountChange();
+      //label, color or currency of the account are shown with its transactions
+      notifyUnattributedChange();
     }
     if (uriMatch == UNCOMMITTED_ID || uriMatch == UNCOMMITTED) {
       notifyChange(UNCOMMITTED_URI, false);
     }
     if (uriMatch == CATEGORY_ID) {
       notifyChange(TRANSACTIONS_URI, false);
+      notifyUnattributedChange();
     }
     return count;
   }
@@ -1672,6 +1761,17 @@ public class TransactionProvider extends BaseTransactionProvider {
       case METHOD_CHECK_CORRUPTED_DATA_987: {
         return checkCorruptedData987();
       }
+      case METHOD_ARCHIVE:
+      case METHOD_UNARCHIVE: {
+        final SupportSQLiteDatabase db = getHelper().getWritableDatabase();
+        Bundle result = new Bundle(1);
+        result.putInt(KEY_RESULT, method.equals(METHOD_ARCHIVE) ?
+            TransactionArchiveKt.archiveTransactions(db, Long.parseLong(arg)) :
+            TransactionArchiveKt.unarchiveTransactions(db));
+        notifyChange(TRANSACTIONS_URI, false);
+        notifyChange(ACCOUNTS_URI, false);
+        return result;
+      }
     }
     return null;
   }
@@ -1767,7 +1867,14 @@ public class TransactionProvider extends BaseTransactionProvider {
     boolean result;
     getHelper().close();
     try {
-      result = FileCopyUtils.copy(backupFile, currentDb);
+      //renaming is atomic, if the backup is not in the same directory, we copy it there first
+      if (dataDir.equals(backupFile.getParentFile())) {
+        result = backupFile.renameTo(currentDb);
+      } else {
+        File tempDb = new File(dataDir, getDatabaseName() + ".restore");
+        result = FileCopyUtils.copy(backupFile, tempDb) && tempDb.renameTo(currentDb);
+        tempDb.delete();
+      }
     } finally {
       initOpenHelper();
     }
@@ -0,0 +1,227 @@
+package org.totschnig.myexpenses.provider
+
+import androidx.sqlite.db.SupportSQLiteDatabase
+import org.totschnig.myexpenses.preference.PrefKey
+import org.totschnig.myexpenses.provider.DatabaseConstants.*
+import java.util.TimeZone
+
+/*
+ * Charts, distribution and budgets aggregate transactions per day, week, month or year, so we keep
+ * sums per account, category and local day in TABLE_ROLLUP. Its date column holds the start of the
+ * day, so that the expressions used for grouping and filtering raw transactions by date yield the
+ * same results on the rollup. Triggers do not update the sums themselves, but record the days that
+ * need to be recalculated in TABLE_ROLLUP_DIRTY, which is done by refreshRollup before the rollup is
+ * queried, with the same definitions (void, split, home equivalent) that apply to raw queries.
+ * Archived transactions are not part of the rollup, their sums are carried forward in the opening
+ * balance of their accounts.
+ */
+
+private const val KEY_IS_TRANSFER = "is_transfer"
+private const val KEY_INCOME = "income"
+private const val KEY_EXPENSE = "expense"
+private const val KEY_INCOME_EQUIVALENT = "income_equivalent"
+private const val KEY_EXPENSE_EQUIVALENT = "expense_equivalent"
+
+/**
+ * stores the time zone and home currency the rollup has been calculated for
+ */
+private const val SETTINGS_KEY_ROLLUP_STATE = "rollup_state"
+
+private fun dayStart(date: String) =
+    "CAST(strftime('%s',$date,'unixepoch','localtime','start of day','utc') AS integer)"
+
+private fun dayEnd(date: String) =
+    "CAST(strftime('%s',$date,'unixepoch','localtime','start of day','+1 day','utc') AS integer)"
+
+private const val ROLLUP_CREATE = """
+CREATE TABLE $TABLE_ROLLUP (
+    $KEY_ACCOUNTID integer not null,
+    $KEY_CATID integer,
+    $KEY_IS_TRANSFER boolean not null,
+    $KEY_DATE integer not null,
+    $KEY_INCOME integer not null,
+    $KEY_EXPENSE integer not null,
+    $KEY_INCOME_EQUIVALENT real not null,
+    $KEY_EXPENSE_EQUIVALENT real not null,
+    $KEY_COUNT integer not null)
+"""
+
+private const val ROLLUP_DIRTY_CREATE = """
+CREATE TABLE $TABLE_ROLLUP_DIRTY (
+    $KEY_ACCOUNTID integer not null,
+    $KEY_START integer not null,
+    $KEY_END integer not null,
+    UNIQUE ($KEY_ACCOUNTID, $KEY_START, $KEY_END))
+"""
+
+private const val VIEW_ROLLUP_WITH_ACCOUNT_CREATE = """
+CREATE VIEW $VIEW_ROLLUP_WITH_ACCOUNT AS SELECT $TABLE_ROLLUP.*, $KEY_CURRENCY, $KEY_EXCLUDE_FROM_TOTALS
+FROM $TABLE_ROLLUP JOIN $TABLE_ACCOUNTS ON $KEY_ACCOUNTID = $TABLE_ACCOUNTS.$KEY_ROWID
+"""
+
+private fun markDirty(accountId: String, start: String, end: String) =
+    "INSERT OR IGNORE INTO $TABLE_ROLLUP_DIRTY ($KEY_ACCOUNTID, $KEY_START, $KEY_END) VALUES ($accountId, $start, $end);"
+
+private fun markDayDirty(row: String) =
+    markDirty("$row.$KEY_ACCOUNTID", dayStart("$row.$KEY_DATE"), dayEnd("$row.$KEY_DATE"))
+
+private fun markAccountDirty(accountId: String) =
+    markDirty(accountId, Long.MIN_VALUE.toString(), Long.MAX_VALUE.toString())
+
+private val ROLLUP_TRIGGERS = listOf(
+    "rollup_transaction_insert" to "AFTER INSERT ON $TABLE_TRANSACTIONS BEGIN ${markDayDirty("new")} END",
+    "rollup_transaction_delete" to "AFTER DELETE ON $TABLE_TRANSACTIONS BEGIN ${markDayDirty("old")} END",
+    "rollup_transaction_update" to "AFTER UPDATE OF $KEY_ACCOUNTID,$KEY_DATE,$KEY_AMOUNT,$KEY_CATID,$KEY_TRANSFER_PEER,$KEY_CR_STATUS,$KEY_STATUS,$KEY_EQUIVALENT_AMOUNT,$KEY_PARENTID ON $TABLE_TRANSACTIONS BEGIN ${markDayDirty("old")} ${markDayDirty("new")} END",
+    "rollup_exchange_rate_insert" to "AFTER INSERT ON $TABLE_ACCOUNT_EXCHANGE_RATES BEGIN ${markAccountDirty("new.$KEY_ACCOUNTID")} END",
+    "rollup_exchange_rate_update" to "AFTER UPDATE ON $TABLE_ACCOUNT_EXCHANGE_RATES BEGIN ${markAccountDirty("old.$KEY_ACCOUNTID")} ${markAccountDirty("new.$KEY_ACCOUNTID")} END",
+    "rollup_exchange_rate_delete" to "AFTER DELETE ON $TABLE_ACCOUNT_EXCHANGE_RATES BEGIN ${markAccountDirty("old.$KEY_ACCOUNTID")} END",
+    "rollup_account_currency_update" to "AFTER UPDATE OF $KEY_CURRENCY ON $TABLE_ACCOUNTS BEGIN ${markAccountDirty("new.$KEY_ROWID")} END"
+)
+
+fun createOrRefreshRollupTriggers(db: SupportSQLiteDatabase) {
+    ROLLUP_TRIGGERS.forEach { (name, definition) ->
+        db.execSQL("DROP TRIGGER IF EXISTS $name")
+        db.execSQL("CREATE TRIGGER $name $definition")
+    }
+}
+
+/**
+ * The rollup is left empty, it is calculated on first use
+ */
+fun createRollup(db: SupportSQLiteDatabase) {
+    db.execSQL(ROLLUP_CREATE)
+    db.execSQL("CREATE INDEX rollup_account_date_index ON $TABLE_ROLLUP ($KEY_ACCOUNTID, $KEY_DATE)")
+    db.execSQL(ROLLUP_DIRTY_CREATE)
+    db.execSQL(VIEW_ROLLUP_WITH_ACCOUNT_CREATE)
+    createOrRefreshRollupTriggers(db)
+}
+
+private fun sumIf(condition: String, value: String) =
+    "sum(CASE WHEN $condition THEN $value ELSE 0 END)"
+
+/**
+ * @param rangeOnly if true, the statement is restricted to the transactions of one account
+ * in a date range, bound as arguments
+ */
+private fun calculateRollup(rangeOnly: Boolean): String {
+    val equivalent = getAmountHomeEquivalent(VIEW_WITH_ACCOUNT)
+    val relevant = "$WHERE_NOT_SPLIT AND $WHERE_NOT_VOID"
+    return """
+INSERT INTO $TABLE_ROLLUP ($KEY_ACCOUNTID, $KEY_CATID, $KEY_IS_TRANSFER, $KEY_DATE, $KEY_INCOME, $KEY_EXPENSE, $KEY_INCOME_EQUIVALENT, $KEY_EXPENSE_EQUIVALENT, $KEY_COUNT)
+SELECT $KEY_ACCOUNTID, $KEY_CATID, $KEY_TRANSFER_PEER IS NOT NULL, ${dayStart(KEY_DATE)},
+${sumIf("$relevant AND $KEY_AMOUNT > 0", KEY_AMOUNT)},
+${sumIf("$relevant AND $KEY_AMOUNT < 0", KEY_AMOUNT)},
+${sumIf("$relevant AND $KEY_AMOUNT > 0", equivalent)},
+${sumIf("$relevant AND $KEY_AMOUNT < 0", equivalent)},
+count(CASE WHEN $WHERE_NOT_VOID THEN 1 END)
+FROM $VIEW_WITH_ACCOUNT
+${if (rangeOnly) "WHERE $KEY_ACCOUNTID = ? AND $KEY_DATE >= ? AND $KEY_DATE < ?" else ""}
+GROUP BY 1, 2, 3, 4
+"""
+}
+
+/**
+ * Recalculates each dirty range on its own, so that both statements are restricted by account
+ * and date, instead of correlating all transactions with the dirty table. Ranges of the same
+ * account are either identical days, or the whole account, so recalculating them one after the
+ * other does not create duplicates.
+ */
+private fun SupportSQLiteDatabase.refreshDirtyRanges() {
+    val ranges = query("SELECT $KEY_ACCOUNTID, $KEY_START, $KEY_END FROM $TABLE_ROLLUP_DIRTY").use {
+        buildList {
+            while (it.moveToNext()) {
+                add(longArrayOf(it.getLong(0), it.getLong(1), it.getLong(2)))
+            }
+        }
+    }
+    compileStatement("DELETE FROM $TABLE_ROLLUP WHERE $KEY_ACCOUNTID = ? AND $KEY_DATE >= ? AND $KEY_DATE < ?").use { delete ->
+        compileStatement(calculateRollup(true)).use { insert ->
+            ranges.forEach { range ->
+                arrayOf(delete, insert).forEach { statement ->
+                    statement.clearBindings()
+                    range.forEachIndexed { index, arg -> statement.bindLong(index + 1, arg) }
+                    statement.executeUpdateDelete()
+                }
+            }
+        }
+    }
+}
+
+/**
+ * Brings the rollup up to date. Void transactions and split parents are kept with zero sums, so
+ * that the rollup has a row for each group in which raw queries find transactions. Since buckets
+ * depend on the time zone, and equivalent amounts on the home currency, a change of either leads
+ * to a complete recalculation.
+ */
+fun SupportSQLiteDatabase.refreshRollup() {
+    val state = TimeZone.getDefault().id + ":" + PrefKey.HOME_CURRENCY.getString(null)
+    val storedState = query(
+        "SELECT $KEY_VALUE FROM $TABLE_SETTINGS WHERE $KEY_KEY = ?",
+        arrayOf(SETTINGS_KEY_ROLLUP_STATE)
+    ).use { if (it.moveToFirst()) it.getString(0) else null }
+    val complete = state != storedState
+    if (!complete && query("SELECT EXISTS (SELECT 1 FROM $TABLE_ROLLUP_DIRTY)").use {
+            it.moveToFirst()
+            it.getInt(0) == 0
+        }) return
+    beginTransaction()
+    try {
+        if (complete) {
+            execSQL("DELETE FROM $TABLE_ROLLUP")
+            execSQL(calculateRollup(false))
+        } else {
+            refreshDirtyRanges()
+        }
+        execSQL("DELETE FROM $TABLE_ROLLUP_DIRTY")
+        if (complete) {
+            execSQL(
+                "INSERT OR REPLACE INTO $TABLE_SETTINGS ($KEY_KEY, $KEY_VALUE) VALUES (?, ?)",
+                arrayOf(SETTINGS_KEY_ROLLUP_STATE, state)
+            )
+        }
+        setTransactionSuccessful()
+    } finally {
+        endTransaction()
+    }
+}
+
+private fun rollupIncome(forHome: Boolean) = if (forHome) KEY_INCOME_EQUIVALENT else KEY_INCOME
+private fun rollupExpense(forHome: Boolean) = if (forHome) KEY_EXPENSE_EQUIVALENT else KEY_EXPENSE
+
+/**
+ * Projection of [TransactionProvider.TRANSACTIONS_GROUPS] answered from [VIEW_ROLLUP_WITH_ACCOUNT],
+ * in the same order as the raw query builds it, starting with the sums.
+ */
+fun rollupGroupSums(forHome: Boolean, includeTransfers: Boolean, aggregateFunction: String) =
+    buildList {
+        val condition = if (includeTransfers) "1" else WHERE_ROLLUP_TRANSACTION
+        add("$aggregateFunction(CASE WHEN $condition THEN ${rollupIncome(forHome)} ELSE 0 END) AS $KEY_SUM_INCOME")
+        add("$aggregateFunction(CASE WHEN $condition THEN ${rollupExpense(forHome)} ELSE 0 END) AS $KEY_SUM_EXPENSES")
+        if (!includeTransfers) {
+            add((if (forHome) "0" else "$aggregateFunction(CASE WHEN $KEY_IS_TRANSFER THEN $KEY_INCOME + $KEY_EXPENSE ELSE 0 END)") + " AS $KEY_SUM_TRANSFERS")
+        }
+        add("sum(CASE WHEN $KEY_CATID > 0 THEN $KEY_COUNT ELSE 0 END) AS $KEY_MAPPED_CATEGORIES")
+    }
+
+/**
+ * Selects rollup rows of transactions that are not transfers, as [WHERE_TRANSACTION]. Void
+ * transactions and split parents do not contribute to the sums.
+ */
+const val WHERE_ROLLUP_TRANSACTION = "$KEY_IS_TRANSFER = 0"
+
+/**
+ * @param expensesOnly if false, income and expenses are added up
+ */
+fun rollupTransactionSum(forHome: Boolean, expensesOnly: Boolean, aggregateFunction: String) =
+    "$aggregateFunction(${if (expensesOnly) rollupExpense(forHome) else "${rollupIncome(forHome)} + ${rollupExpense(forHome)}"})"
+
+/**
+ * Sum per category as calculated from raw transactions in the distribution and budget screens,
+ * which include transfers
+ * @param incomeType true for income, false for expenses, null for both
+ */
+fun rollupCategorySum(forHome: Boolean, incomeType: Boolean?) = "sum(" + when (incomeType) {
+    true -> rollupIncome(forHome)
+    false -> rollupExpense(forHome)
+    null -> "${rollupIncome(forHome)} + ${rollupExpense(forHome)}"
+} + ")"
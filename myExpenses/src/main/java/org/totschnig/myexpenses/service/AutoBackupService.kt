@@ -59,6 +59,11 @@ class AutoBackupService : JobIntentService() {
             .notify(NotificationBuilderWrapper.NOTIFICATION_AUTO_BACKUP, notification)
     }
 
+    private fun cancelNotification() {
+        (getSystemService(NOTIFICATION_SERVICE) as NotificationManager)
+            .cancel(NotificationBuilderWrapper.NOTIFICATION_AUTO_BACKUP)
+    }
+
     private fun buildMessage(message: CharSequence) =
         NotificationBuilderWrapper.bigTextStyleBuilder(this, CHANNEL_ID_AUTO_BACKUP, notificationTitle, message)
 
@@ -66,10 +71,15 @@ class AutoBackupService : JobIntentService() {
         when (intent.action) {
             ACTION_AUTO_BACKUP -> {
                 val syncAccount = prefHandler.getString(PrefKey.AUTO_BACKUP_CLOUD, null)
+                val progressBuilder = buildMessage(getString(R.string.menu_backup))
                 val result: Result<Pair<DocumentFile, List<DocumentFile>>> =
-                    doBackup(this, prefHandler, syncAccount)
+                    doBackup(this, prefHandler, syncAccount) {
+                        notify(progressBuilder.setProgress(100, it, false).build())
+                    }
                 result.onSuccess { pair ->
-                    if (pair.second.isNotEmpty()) {
+                    if (pair.second.isEmpty()) {
+                        cancelNotification()
+                    } else {
                         val requireConfirmation =
                             prefHandler.getBoolean(PrefKey.PURGE_BACKUP_REQUIRE_CONFIRMATION, true)
                         if (requireConfirmation) {
@@ -4,11 +4,16 @@ import android.annotation.SuppressLint;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.Intent;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.provider.CalendarContract;
 import android.text.TextUtils;
 
@@ -23,22 +28,30 @@ import org.totschnig.myexpenses.R;
 import org.totschnig.myexpenses.activity.ExpenseEdit;
 import org.totschnig.myexpenses.activity.MyExpenses;
 import org.totschnig.myexpenses.model.Account;
+import org.totschnig.myexpenses.model.SplitTransaction;
 import org.totschnig.myexpenses.model.Template;
 import org.totschnig.myexpenses.model.Transaction;
 import org.totschnig.myexpenses.preference.PrefHandler;
 import org.totschnig.myexpenses.preference.PrefKey;
 import org.totschnig.myexpenses.provider.CalendarProviderProxy;
+import org.totschnig.myexpenses.provider.TransactionProvider;
 import org.totschnig.myexpenses.util.CurrencyFormatter;
 import org.totschnig.myexpenses.util.NotificationBuilderWrapper;
 import org.totschnig.myexpenses.util.PermissionHelper;
 import org.totschnig.myexpenses.util.crashreporting.CrashHandler;
 import org.totschnig.myexpenses.viewmodel.data.Tag;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.inject.Inject;
 
+import androidx.annotation.Nullable;
+import androidx.collection.LongSparseArray;
 import androidx.core.app.JobIntentService;
 import kotlin.Pair;
 import timber.log.Timber;
@@ -47,9 +60,11 @@ import static android.app.PendingIntent.FLAG_UPDATE_CURRENT;
 import static org.totschnig.myexpenses.MyApplication.INVALID_CALENDAR_ID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_INSTANCEID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PLANID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TEMPLATEID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSACTIONID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ACCOUNTS;
 import static org.totschnig.myexpenses.util.CurrencyFormatterKt.formatMoney;
 import static org.totschnig.myexpenses.util.DateUtilsKt.epochMillis2LocalDate;
 import static org.totschnig.myexpenses.util.DateUtilsKt.localDateTime2EpochMillis;
@@ -152,120 +167,14 @@ public class PlanExecutor extends JobIntentService {
           return;
         }
         if (cursor != null) {
-          if (cursor.moveToFirst()) {
-            LocalDate today = LocalDate.now();
-            while (!cursor.isAfterLast()) {
-              long planId = cursor.getLong(cursor.getColumnIndexOrThrow(CalendarContract.Instances.EVENT_ID));
-              long date = cursor.getLong(cursor.getColumnIndexOrThrow(CalendarContract.Instances.BEGIN));
-              LocalDate localDate = epochMillis2LocalDate(date, ZoneId.systemDefault());
-              long diff = ChronoUnit.DAYS.between(today, localDate);
-              long instanceId = CalendarProviderProxy.calculateId(date);
-              //2) check if they are part of a plan linked to a template
-              //3) execute the template
-              log("found instance %d of plan %d", instanceId, planId);
-              //TODO if we have multiple Event instances for one plan, we should maybe cache the template objects
-              Template template = Template.getInstanceForPlanIfInstanceIsOpen(planId, instanceId);
-              if (!(template == null || template.isSealed())) {
-                if (template.getPlanExecutionAdvance() >= diff) {
-                  Account account = Account.getInstanceFromDb(template.getAccountId());
-                  if (account != null) {
-                    log("belongs to template %d", template.getId());
-                    Notification notification;
-                    int notificationId = (int) ((instanceId * planId) % Integer.MAX_VALUE);
-                    log("notification id %d", notificationId);
-                    PendingIntent resultIntent;
-                    NotificationManager notificationManager =
-                        (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-                    String title = account.getLabel() + " : " + template.getTitle();
-                    NotificationBuilderWrapper builder =
-                        new NotificationBuilderWrapper(this, NotificationBuilderWrapper.CHANNEL_ID_PLANNER)
-                            .setSmallIcon(R.drawable.ic_stat_notification_sigma)
-                            .setContentTitle(title);
-                    builder.setWhen(date);
-                    String content = template.getLabel();
-                    if (TextUtils.isEmpty(content)) {
-                      content = "";
-                    } else {
-                      content += " : ";
-                    }
-                    content += formatMoney(currencyFormatter, template.getAmount());
-                    builder.setContentText(content);
-                    if (template.isPlanExecutionAutomatic()) {
-                      Pair<Transaction, List<Tag>> pair = Transaction.getInstanceFromTemplateWithTags(template);
-                      Transaction t = pair.getFirst();
-                      t.setOriginPlanInstanceId(instanceId);
-                      t.setDate(new Date(date));
-                      if (t.save(true) != null && t.saveTags(pair.getSecond())) {
-                        Intent displayIntent = new Intent(this, MyExpenses.class)
-                            .putExtra(KEY_ROWID, template.getAccountId())
-                            .putExtra(KEY_TRANSACTIONID, t.getId());
-                        resultIntent = PendingIntent.getActivity(this, notificationId, displayIntent,
-                            FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
-                        builder.setContentIntent(resultIntent);
-                      } else {
-                        builder.setContentText(getString(R.string.save_transaction_error));
-                      }
-                      builder.setAutoCancel(true);
-                      notification = builder.build();
-                    } else {
-                      Intent cancelIntent = new Intent(this, PlanNotificationClickHandler.class)
-                          .setAction(ACTION_CANCEL)
-                          .putExtra(MyApplication.KEY_NOTIFICATION_ID, notificationId)
-                          .putExtra(KEY_TEMPLATEID, template.getId())
-                          .putExtra(KEY_INSTANCEID, instanceId)
-                          //we also put the title in the intent, because we need it while we update the notification
-                          .putExtra(KEY_TITLE, title);
-                      builder.addAction(
-                          android.R.drawable.ic_menu_close_clear_cancel,
-                          R.drawable.ic_menu_close_clear_cancel,
-                          getString(android.R.string.cancel),
-                          PendingIntent.getService(this, notificationId, cancelIntent, FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE));
-                      Intent editIntent = new Intent(this, ExpenseEdit.class)
-                          .putExtra(MyApplication.KEY_NOTIFICATION_ID, notificationId)
-                          .putExtra(KEY_TEMPLATEID, template.getId())
-                          .putExtra(KEY_INSTANCEID, instanceId);
-                      final boolean useDateFromPlan = "noon".equals(prefHandler.getString(PrefKey.PLANNER_MANUAL_TIME, "noon"));
-                      if (useDateFromPlan) {
-                          editIntent.putExtra(KEY_DATE, date);
-                      }
-                      resultIntent = PendingIntent.getActivity(this, notificationId, editIntent, FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
-                      builder.addAction(
-                          android.R.drawable.ic_menu_edit,
-                          R.drawable.ic_menu_edit,
-                          getString(R.string.menu_edit),
-                          resultIntent);
-                      Intent applyIntent = new Intent(this, PlanNotificationClickHandler.class);
-                      applyIntent.setAction(ACTION_APPLY)
-                          .putExtra(MyApplication.KEY_NOTIFICATION_ID, notificationId)
-                          .putExtra(KEY_TITLE, title)
-                          .putExtra(KEY_TEMPLATEID, template.getId())
-                          .putExtra(KEY_INSTANCEID, instanceId);
-                      if (useDateFromPlan) {
-                        applyIntent.putExtra(KEY_DATE, date);
-                      }
-                      builder.addAction(
-                          android.R.drawable.ic_menu_save,
-                          R.drawable.ic_menu_save,
-                          getString(R.string.menu_apply_template),
-                          PendingIntent.getService(this, notificationId, applyIntent, FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE));
-                      builder.setContentIntent(resultIntent);
-                      notification = builder.build();
-                      notification.flags |= Notification.FLAG_NO_CLEAR;
-                    }
-                    notificationManager.notify(notificationId, notification);
-                  } else {
-                    log("Account.getInstanceFromDb returned null");
-                  }
-                } else {
-                  log("Instance is not ready yet (%d days in the future), advance execution is %d", diff, template.getPlanExecutionAdvance());
-                }
-              } else {
-                log(template == null ? "Template.getInstanceForPlanIfInstanceIsOpen returned null, instance might already have been dealt with" : "Plan refers to a closed account or debt");
-              }
-              cursor.moveToNext();
-            }
+          List<Pair<Long, Long>> instances = new ArrayList<>();
+          while (cursor.moveToNext()) {
+            instances.add(new Pair<>(
+                cursor.getLong(cursor.getColumnIndexOrThrow(CalendarContract.Instances.EVENT_ID)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(CalendarContract.Instances.BEGIN))));
           }
           cursor.close();
+          executeInstances(instances);
         }
 
         prefHandler.putLong(PrefKey.PLANNER_LAST_EXECUTION_TIMESTAMP, nowMillis);
@@ -278,6 +187,287 @@ public class PlanExecutor extends JobIntentService {
     }
   }
 
+  /**
+   * Templates, the status of their instances and their accounts are loaded once for all instances.
+   * Transactions for automatic plans are saved in one batch, and their notifications are posted
+   * after it has been applied. If the batch fails, they are saved one by one.
+   *
+   * @param instances pairs of plan id and begin of instance
+   */
+  private void executeInstances(List<Pair<Long, Long>> instances) {
+    if (instances.isEmpty()) {
+      return;
+    }
+    Set<Long> planIds = new HashSet<>();
+    Set<Long> instanceIds = new HashSet<>();
+    for (Pair<Long, Long> instance : instances) {
+      planIds.add(instance.getFirst());
+      instanceIds.add(CalendarProviderProxy.calculateId(instance.getSecond()));
+    }
+    LongSparseArray<Template> templates = loadTemplates(planIds);
+    Set<Pair<Long, Long>> handledInstances = loadHandledInstances(templates, instanceIds);
+    LongSparseArray<Account> accounts = loadAccounts(templates);
+    LongSparseArray<List<Tag>> tags = new LongSparseArray<>();
+    NotificationManager notificationManager =
+        (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+    ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+    List<AutomaticExecution> automaticExecutions = new ArrayList<>();
+    List<Pair<Integer, Notification>> notifications = new ArrayList<>();
+    LocalDate today = LocalDate.now();
+    for (Pair<Long, Long> instance : instances) {
+      long planId = instance.getFirst();
+      long date = instance.getSecond();
+      LocalDate localDate = epochMillis2LocalDate(date, ZoneId.systemDefault());
+      long diff = ChronoUnit.DAYS.between(today, localDate);
+      long instanceId = CalendarProviderProxy.calculateId(date);
+      //2) check if they are part of a plan linked to a template
+      //3) execute the template
+      log("found instance %d of plan %d", instanceId, planId);
+      Template template = templates.get(planId);
+      if (template == null || handledInstances.contains(new Pair<>(template.getId(), instanceId))) {
+        log("No open instance of template found, instance might already have been dealt with");
+        continue;
+      }
+      if (template.isSealed()) {
+        log("Plan refers to a closed account or debt");
+        continue;
+      }
+      if (template.getPlanExecutionAdvance() < diff) {
+        log("Instance is not ready yet (%d days in the future), advance execution is %d", diff, template.getPlanExecutionAdvance());
+        continue;
+      }
+      Account account = accounts.get(template.getAccountId());
+      if (account == null) {
+        log("Account %d not found", template.getAccountId());
+        continue;
+      }
+      log("belongs to template %d", template.getId());
+      int notificationId = (int) ((instanceId * planId) % Integer.MAX_VALUE);
+      log("notification id %d", notificationId);
+      PendingIntent resultIntent;
+      String title = account.getLabel() + " : " + template.getTitle();
+      NotificationBuilderWrapper builder =
+          new NotificationBuilderWrapper(this, NotificationBuilderWrapper.CHANNEL_ID_PLANNER)
+              .setSmallIcon(R.drawable.ic_stat_notification_sigma)
+              .setContentTitle(title);
+      builder.setWhen(date);
+      String content = template.getLabel();
+      if (TextUtils.isEmpty(content)) {
+        content = "";
+      } else {
+        content += " : ";
+      }
+      content += formatMoney(currencyFormatter, template.getAmount());
+      builder.setContentText(content);
+      if (template.isPlanExecutionAutomatic()) {
+        Transaction t = Transaction.getInstanceFromTemplate(template);
+        List<Tag> templateTags = tags.get(template.getId());
+        if (templateTags == null && !tags.containsKey(template.getId())) {
+          templateTags = template.loadTags();
+          tags.put(template.getId(), templateTags);
+        }
+        t.setOriginPlanInstanceId(instanceId);
+        t.setDate(new Date(date));
+        builder.setAutoCancel(true);
+        if (t instanceof SplitTransaction) {
+          //the parts of a split are already linked to the saved parent, so it is saved on its own
+          if (t.save(true) != null && t.saveTags(templateTags)) {
+            builder.setContentIntent(displayIntent(notificationId, template.getAccountId(), t.getId()));
+          } else {
+            builder.setContentText(getString(R.string.save_transaction_error));
+          }
+          notifications.add(new Pair<>(notificationId, builder.build()));
+        } else {
+          int offset = ops.size();
+          ops.addAll(t.buildSaveOperations(offset, -1, false, true));
+          ops.addAll(t.buildSaveTagsOperations(templateTags, offset));
+          automaticExecutions.add(new AutomaticExecution(notificationId, builder, template.getAccountId(), offset, t, templateTags));
+        }
+      } else {
+        Intent cancelIntent = new Intent(this, PlanNotificationClickHandler.class)
+            .setAction(ACTION_CANCEL)
+            .putExtra(MyApplication.KEY_NOTIFICATION_ID, notificationId)
+            .putExtra(KEY_TEMPLATEID, template.getId())
+            .putExtra(KEY_INSTANCEID, instanceId)
+            //we also put the title in the intent, because we need it while we update the notification
+            .putExtra(KEY_TITLE, title);
+        builder.addAction(
+            android.R.drawable.ic_menu_close_clear_cancel,
+            R.drawable.ic_menu_close_clear_cancel,
+            getString(android.R.string.cancel),
+            PendingIntent.getService(this, notificationId, cancelIntent, FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE));
+        Intent editIntent = new Intent(this, ExpenseEdit.class)
+            .putExtra(MyApplication.KEY_NOTIFICATION_ID, notificationId)
+            .putExtra(KEY_TEMPLATEID, template.getId())
+            .putExtra(KEY_INSTANCEID, instanceId);
+        final boolean useDateFromPlan = "noon".equals(prefHandler.getString(PrefKey.PLANNER_MANUAL_TIME, "noon"));
+        if (useDateFromPlan) {
+          editIntent.putExtra(KEY_DATE, date);
+        }
+        resultIntent = PendingIntent.getActivity(this, notificationId, editIntent, FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+        builder.addAction(
+            android.R.drawable.ic_menu_edit,
+            R.drawable.ic_menu_edit,
+            getString(R.string.menu_edit),
+            resultIntent);
+        Intent applyIntent = new Intent(this, PlanNotificationClickHandler.class);
+        applyIntent.setAction(ACTION_APPLY)
+            .putExtra(MyApplication.KEY_NOTIFICATION_ID, notificationId)
+            .putExtra(KEY_TITLE, title)
+            .putExtra(KEY_TEMPLATEID, template.getId())
+            .putExtra(KEY_INSTANCEID, instanceId);
+        if (useDateFromPlan) {
+          applyIntent.putExtra(KEY_DATE, date);
+        }
+        builder.addAction(
+            android.R.drawable.ic_menu_save,
+            R.drawable.ic_menu_save,
+            getString(R.string.menu_apply_template),
+            PendingIntent.getService(this, notificationId, applyIntent, FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE));
+        builder.setContentIntent(resultIntent);
+        Notification notification = builder.build();
+        notification.flags |= Notification.FLAG_NO_CLEAR;
+        notifications.add(new Pair<>(notificationId, notification));
+      }
+    }
+    ContentProviderResult[] results = null;
+    if (!ops.isEmpty()) {
+      log("saving %d transactions in one batch", automaticExecutions.size());
+      try {
+        results = getContentResolver().applyBatch(TransactionProvider.AUTHORITY, ops);
+      } catch (RemoteException | OperationApplicationException | SQLiteException e) {
+        CrashHandler.report(e);
+      }
+    }
+    for (AutomaticExecution execution : automaticExecutions) {
+      //if the batch failed, each transaction is saved on its own, so that a single failing
+      //instance does not keep the others from being executed
+      Uri uri = results != null ? results[execution.offset].uri : saveOnItsOwn(execution);
+      if (uri != null) {
+        execution.builder.setContentIntent(displayIntent(execution.notificationId, execution.accountId,
+            ContentUris.parseId(uri)));
+      } else {
+        execution.builder.setContentText(getString(R.string.save_transaction_error));
+      }
+      notificationManager.notify(execution.notificationId, execution.builder.build());
+    }
+    for (Pair<Integer, Notification> notification : notifications) {
+      notificationManager.notify(notification.getFirst(), notification.getSecond());
+    }
+  }
+
+  /**
+   * @return the uri of the saved transaction, or null if saving failed
+   */
+  @Nullable
+  private Uri saveOnItsOwn(AutomaticExecution execution) {
+    ArrayList<ContentProviderOperation> ops = execution.transaction.buildSaveOperations(0, -1, false, true);
+    ops.addAll(execution.transaction.buildSaveTagsOperations(execution.tags, 0));
+    try {
+      return getContentResolver().applyBatch(TransactionProvider.AUTHORITY, ops)[0].uri;
+    } catch (RemoteException | OperationApplicationException | SQLiteException e) {
+      CrashHandler.report(e);
+      return null;
+    }
+  }
+
+  private PendingIntent displayIntent(int notificationId, long accountId, long transactionId) {
+    Intent displayIntent = new Intent(this, MyExpenses.class)
+        .putExtra(KEY_ROWID, accountId)
+        .putExtra(KEY_TRANSACTIONID, transactionId);
+    return PendingIntent.getActivity(this, notificationId, displayIntent,
+        FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+  }
+
+  /**
+   * @return templates linked to plans, by plan id
+   */
+  private LongSparseArray<Template> loadTemplates(Collection<Long> planIds) {
+    LongSparseArray<Template> result = new LongSparseArray<>();
+    try (Cursor c = getContentResolver().query(Template.CONTENT_URI, null,
+        KEY_PLANID + " IN (" + TextUtils.join(",", planIds) + ")", null, null)) {
+      if (c != null) {
+        while (c.moveToNext()) {
+          Template template = new Template(c);
+          result.put(template.planId, template);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return pairs of template id and instance id, for instances that have been applied or cancelled
+   */
+  private Set<Pair<Long, Long>> loadHandledInstances(LongSparseArray<Template> templates, Collection<Long> instanceIds) {
+    Set<Pair<Long, Long>> result = new HashSet<>();
+    List<Long> templateIds = new ArrayList<>();
+    for (int i = 0; i < templates.size(); i++) {
+      templateIds.add(templates.valueAt(i).getId());
+    }
+    if (templateIds.isEmpty()) {
+      return result;
+    }
+    try (Cursor c = getContentResolver().query(TransactionProvider.PLAN_INSTANCE_STATUS_URI,
+        new String[]{KEY_TEMPLATEID, KEY_INSTANCEID},
+        KEY_TEMPLATEID + " IN (" + TextUtils.join(",", templateIds) + ") AND " +
+            KEY_INSTANCEID + " IN (" + TextUtils.join(",", instanceIds) + ")", null, null)) {
+      if (c != null) {
+        while (c.moveToNext()) {
+          result.add(new Pair<>(c.getLong(0), c.getLong(1)));
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return accounts of templates, by id
+   */
+  private LongSparseArray<Account> loadAccounts(LongSparseArray<Template> templates) {
+    LongSparseArray<Account> result = new LongSparseArray<>();
+    Set<Long> accountIds = new HashSet<>();
+    for (int i = 0; i < templates.size(); i++) {
+      accountIds.add(templates.valueAt(i).getAccountId());
+    }
+    if (accountIds.isEmpty()) {
+      return result;
+    }
+    try (Cursor c = getContentResolver().query(Account.CONTENT_URI, null,
+        TABLE_ACCOUNTS + "." + KEY_ROWID + " IN (" + TextUtils.join(",", accountIds) + ")", null, null)) {
+      if (c != null) {
+        while (c.moveToNext()) {
+          Account account = new Account(c);
+          result.put(account.getId(), account);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * A transaction for an automatic plan that is saved in the batch, at position offset
+   */
+  private static class AutomaticExecution {
+    final int notificationId;
+    final NotificationBuilderWrapper builder;
+    final long accountId;
+    final int offset;
+    final Transaction transaction;
+    @Nullable
+    final List<Tag> tags;
+
+    AutomaticExecution(int notificationId, NotificationBuilderWrapper builder, long accountId, int offset,
+                       Transaction transaction, @Nullable List<Tag> tags) {
+      this.notificationId = notificationId;
+      this.builder = builder;
+      this.accountId = accountId;
+      this.offset = offset;
+      this.transaction = transaction;
+      this.tags = tags;
+    }
+  }
+
   private void scheduleNextRun(boolean now) {
     DailyScheduler.updatePlannerAlarms(this, false, now);
   }
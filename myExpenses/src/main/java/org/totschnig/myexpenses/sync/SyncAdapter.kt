@@ -33,6 +33,7 @@ import org.totschnig.myexpenses.preference.PrefKey
 import org.totschnig.myexpenses.provider.DatabaseConstants
 import org.totschnig.myexpenses.provider.TransactionProvider
 import org.totschnig.myexpenses.provider.appendBooleanQueryParameter
+import org.totschnig.myexpenses.provider.deleteUploadedBackup
 import org.totschnig.myexpenses.service.SyncNotificationDismissHandler
 import org.totschnig.myexpenses.sync.GenericAccountService.Companion.deactivateSync
 import org.totschnig.myexpenses.sync.SequenceNumber.Companion.parse
@@ -545,6 +546,7 @@ class SyncAdapter : AbstractThreadedSyncAdapter {
                     }
                     log().i("Storing backup %s (%s)", fileName, autoBackupFileUri)
                     backend.storeBackup(Uri.parse(autoBackupFileUri), fileName)
+                    deleteUploadedBackup(Uri.parse(autoBackupFileUri))
                     removeSetting(provider, KEY_UPLOAD_AUTO_BACKUP_URI)
                     removeSetting(provider, KEY_UPLOAD_AUTO_BACKUP_NAME)
                     maybeNotifyUser(
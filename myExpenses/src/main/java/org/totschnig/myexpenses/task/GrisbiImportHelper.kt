@@ -1,57 +1,202 @@
 package org.totschnig.myexpenses.task
 
+import android.content.ContentProviderOperation
+import android.content.ContentProviderResult
 import android.content.ContentUris
 import org.totschnig.myexpenses.db2.Repository
-import org.totschnig.myexpenses.util.CategoryTree
-import org.totschnig.myexpenses.viewmodel.data.Category
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL_NORMALIZED
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEE_NAME
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEE_NAME_NORMALIZED
+import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.util.GrisbiHandler
+import org.totschnig.myexpenses.util.Utils
+import org.totschnig.myexpenses.util.crashreporting.CrashHandler
 import timber.log.Timber
 
-object GrisbiImportHelper {
-    private fun writeCategory(repository: Repository, label: String, parentId: Long? = null) =
-        ContentUris.parseId(repository.saveCategory(Category(label = label, parentId = parentId))!!)
-
-    fun importCats(catTree: CategoryTree, task: GrisbiImportTask): Int {
-        var count = 0
-        var total = 0
-        var label: String
-        var main_id: Long
-        var sub_id: Long
-        val size = catTree.children().size()
-        for (i in 0 until size) {
-            val mainCat = catTree.children().valueAt(i)
-            label = mainCat.label
-            count++
-            main_id = task.repository.findCategory(label, null)
-            if (main_id != -1L) {
-                Timber.i("category with label %s already defined", label)
-            } else {
-                main_id = writeCategory(task.repository, label)
-                if (main_id != -1L) {
-                    total++
-                    if (count % 10 == 0) {
-                        task.publishProgress(count)
+/**
+ * Receives categories and parties from [GrisbiHandler] while the file is parsed, and writes them
+ * in provider batches of [BATCH_SIZE] operations. Existing categories and parties are preloaded
+ * once, so that no query is needed per element. Subcategories reference a parent that is still
+ * pending in the current batch through a back reference. If a batch fails, its elements are
+ * written one by one, so that only the elements that can not be written are lost, and counted as
+ * failed.
+ */
+class GrisbiImportHelper(
+    private val repository: Repository,
+    private val withCategories: Boolean,
+    private val withParties: Boolean
+) : GrisbiHandler.Listener {
+    /**
+     * called after each batch, allows reporting progress
+     */
+    var onBatchApplied: Runnable? = null
+
+    /**
+     * category paths (with levels separated by ':') to id, also for categories written during import
+     */
+    private val categoryToId: MutableMap<String, Long> =
+        if (withCategories) repository.loadCategoryPathMap() else HashMap()
+    private val payees: MutableSet<String> =
+        if (withParties) HashSet(repository.loadPayeeMap().keys) else HashSet()
+
+    /**
+     * label of main categories by their id in the Grisbi file
+     */
+    private val mainCategories = HashMap<Int, String>()
+
+    private sealed class Pending {
+        class Category(val label: String, val path: String, val parentPath: String?) : Pending()
+        class Party(val name: String) : Pending()
+    }
+
+    /**
+     * elements of the pending batch, in the order of their operations
+     */
+    private val pending = ArrayList<Pending>()
+
+    /**
+     * paths of categories in the pending batch
+     */
+    private val pendingCategories = HashSet<String>()
+
+    var importedCategories = 0
+        private set
+    var importedParties = 0
+        private set
+    var failedCategories = 0
+        private set
+    var failedParties = 0
+        private set
+
+    override fun onCategory(label: String, id: Int, parentId: Int) {
+        if (!withCategories) return
+        val trimmed = label.trim()
+        if (parentId == 0) {
+            mainCategories[id] = trimmed
+            insertCategoryIfNew(trimmed, trimmed, null)
+        } else {
+            //like CategoryTree, we drop subcategories whose parent we do not know
+            val parentPath = mainCategories[parentId] ?: return
+            insertCategoryIfNew(trimmed, "$parentPath:$trimmed", parentPath)
+        }
+    }
+
+    private fun insertCategoryIfNew(label: String, path: String, parentPath: String?) {
+        if (categoryToId.containsKey(path) || pendingCategories.contains(path)) {
+            Timber.i("category with label %s already defined", path)
+            return
+        }
+        if (parentPath != null && !categoryToId.containsKey(parentPath) && !pendingCategories.contains(parentPath)) {
+            //parent has been lost with a failed insert
+            failedCategories++
+            return
+        }
+        pendingCategories.add(path)
+        pending.add(Pending.Category(label, path, parentPath))
+        maybeFlush()
+    }
+
+    override fun onParty(name: String) {
+        if (!withParties) return
+        val trimmed = name.trim()
+        if (!payees.add(trimmed)) return
+        pending.add(Pending.Party(trimmed))
+        maybeFlush()
+    }
+
+    private fun maybeFlush() {
+        if (pending.size >= BATCH_SIZE) {
+            flush()
+        }
+    }
+
+    /**
+     * @param offsets positions of categories pending in the same batch, null if a parent must
+     * already have been written
+     */
+    private fun buildOperation(element: Pending, offsets: Map<String, Int>?): ContentProviderOperation? =
+        when (element) {
+            is Pending.Category -> {
+                val builder = ContentProviderOperation.newInsert(TransactionProvider.CATEGORIES_URI)
+                    .withValue(KEY_LABEL, element.label)
+                    .withValue(KEY_LABEL_NORMALIZED, Utils.normalize(element.label))
+                element.parentPath?.let { parentPath ->
+                    val parentId = categoryToId[parentPath]
+                    if (parentId != null) {
+                        builder.withValue(KEY_PARENTID, parentId)
+                    } else {
+                        builder.withValueBackReference(KEY_PARENTID, offsets?.get(parentPath) ?: return null)
                     }
-                } else {
-                    // this should not happen
-                    Timber.w("could neither retrieve nor store main category %s", label)
-                    continue
                 }
+                builder.build()
+            }
+            is Pending.Party -> ContentProviderOperation.newInsert(TransactionProvider.PAYEES_URI)
+                .withValue(KEY_PAYEE_NAME, element.name)
+                .withValue(KEY_PAYEE_NAME_NORMALIZED, Utils.normalize(element.name))
+                .build()
+        }
+
+    private fun onApplied(element: Pending, result: ContentProviderResult) {
+        when (element) {
+            is Pending.Category -> {
+                categoryToId[element.path] = ContentUris.parseId(result.uri!!)
+                importedCategories++
+            }
+            is Pending.Party -> importedParties++
+        }
+    }
+
+    private fun onFailed(element: Pending) {
+        when (element) {
+            is Pending.Category -> failedCategories++
+            is Pending.Party -> failedParties++
+        }
+    }
+
+    fun flush() {
+        if (pending.isEmpty()) return
+        val offsets = HashMap<String, Int>()
+        val ops = pending.mapIndexed { index, element ->
+            if (element is Pending.Category) {
+                offsets[element.path] = index
             }
-            val subSize = mainCat.children().size()
-            for (j in 0 until subSize) {
-                label = mainCat.children().valueAt(j).label
-                count++
-                sub_id = writeCategory(task.repository, label, main_id)
-                if (sub_id != -1L) {
-                    total++
+            buildOperation(element, offsets)!!
+        }
+        try {
+            val result = repository.contentResolver.applyBatch(TransactionProvider.AUTHORITY, ArrayList(ops))
+            pending.forEachIndexed { index, element -> onApplied(element, result[index]) }
+        } catch (e: Exception) {
+            CrashHandler.report(e)
+            pending.forEach { element ->
+                //subcategories of a category that failed are failed too
+                val operation = buildOperation(element, null)
+                if (operation == null) {
+                    onFailed(element)
                 } else {
-                    Timber.i("could not store sub category %s", label)
-                }
-                if (count % 10 == 0) {
-                    task.publishProgress(count)
+                    try {
+                        onApplied(
+                            element,
+                            repository.contentResolver.applyBatch(TransactionProvider.AUTHORITY, arrayListOf(operation))[0]
+                        )
+                    } catch (e: Exception) {
+                        Timber.e(e)
+                        onFailed(element)
+                    }
                 }
             }
+        } finally {
+            pending.clear()
+            pendingCategories.clear()
         }
-        return total
+        onBatchApplied?.run()
+    }
+
+    companion object {
+        /**
+         * number of operations after which the pending batch is applied
+         */
+        const val BATCH_SIZE = 500
     }
-}
\ No newline at end of file
+}
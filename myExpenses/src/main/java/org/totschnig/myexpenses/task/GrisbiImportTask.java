@@ -1,5 +1,6 @@
 package org.totschnig.myexpenses.task;
 
+import android.content.ContentResolver;
 import android.content.Context;
 import android.net.Uri;
 import android.os.AsyncTask;
@@ -10,17 +11,17 @@ import org.totschnig.myexpenses.MyApplication;
 import org.totschnig.myexpenses.R;
 import org.totschnig.myexpenses.db2.Repository;
 import org.totschnig.myexpenses.dialog.ProgressDialogFragment;
+import org.totschnig.myexpenses.provider.TransactionProvider;
 import org.totschnig.myexpenses.ui.ContextHelper;
-import org.totschnig.myexpenses.util.CategoryTree;
 import org.totschnig.myexpenses.util.Result;
 import org.totschnig.myexpenses.util.Utils;
 
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
 
-import androidx.core.util.Pair;
+import androidx.documentfile.provider.DocumentFile;
 import androidx.fragment.app.FragmentActivity;
 import timber.log.Timber;
 
@@ -54,8 +55,6 @@ public class GrisbiImportTask extends AsyncTask<Void, Integer, Result> {
    * onProgressUpdate
    */
   private boolean phaseChangedP = false;
-  private CategoryTree catTree;
-  private ArrayList<String> partiesList;
 
   @Inject
   public Repository repository;
@@ -69,20 +68,28 @@ public class GrisbiImportTask extends AsyncTask<Void, Integer, Result> {
   }
 
   /**
-   * return false upon problem (and sets a result object) or true
+   * Parses the file and hands categories and parties over to helper, which writes them in batches
+   * while the parser proceeds. Progress is reported as percentage of the file that has been read.
    */
-  protected Result<Pair<CategoryTree, ArrayList<String>>> parseXML() {
+  protected Result<Integer> parseXML(GrisbiImportHelper helper) {
     Context app = MyApplication.getInstance();
     InputStream catXML = null;
-    Result<Pair<CategoryTree, ArrayList<String>>> result;
+    Result<Integer> result;
 
     try {
       catXML = app.getContentResolver().openInputStream(fileUri);
-      result = Utils.analyzeGrisbiFileWithSAX(catXML);
-      if (result.isSuccess()) {
-        catTree = result.getExtra().first;
-        partiesList = result.getExtra().second;
+      if (catXML == null) {
+        return Result.ofFailure(R.string.parse_error_file_not_found, sourceStr);
       }
+      DocumentFile documentFile = DocumentFile.fromSingleUri(app, fileUri);
+      long length = documentFile != null ? documentFile.length() : 0;
+      CountingInputStream countingInputStream = new CountingInputStream(catXML);
+      if (length > 0) {
+        setMax(100);
+        helper.setOnBatchApplied(() -> publishProgress((int) (100L * countingInputStream.count / length)));
+      }
+      result = Utils.streamGrisbiFileWithSAX(countingInputStream, helper);
+      helper.flush();
     } catch (FileNotFoundException e) {
       result = Result.ofFailure(R.string.parse_error_file_not_found, sourceStr);
     } finally {
@@ -97,13 +104,35 @@ public class GrisbiImportTask extends AsyncTask<Void, Integer, Result> {
     return result;
   }
 
-  /**
-   * made public to allow passing task to
-   * {@link GrisbiImportHelper#importCats(CategoryTree, GrisbiImportTask)} and
-   * {@link Utils#importParties(ArrayList, GrisbiImportTask)}
-   * 
-   * @param i
-   */
+  private static class CountingInputStream extends FilterInputStream {
+    long count = 0;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int result = super.read();
+      if (result != -1) count++;
+      return result;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int result = super.read(b, off, len);
+      if (result != -1) count += result;
+      return result;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long result = super.skip(n);
+      count += result;
+      return result;
+    }
+  }
+
   public void publishProgress(Integer i) {
     super.publishProgress(i);
   }
@@ -152,43 +181,43 @@ public class GrisbiImportTask extends AsyncTask<Void, Integer, Result> {
   protected Result doInBackground(Void... ignored) {
     final MyApplication application = MyApplication.getInstance();
     final Context context = ContextHelper.wrap(application, application.getAppComponent().userLocaleProvider().getUserPreferredLocale());
-    Result<Pair<CategoryTree, ArrayList<String>>> r = parseXML();
+    setTitle(context.getString(withCategoriesP ? R.string.grisbi_import_categories_loading :
+        R.string.grisbi_import_parties_loading, sourceStr));
+    phaseChangedP = true;
+    GrisbiImportHelper helper = new GrisbiImportHelper(repository, withCategoriesP, withPartiesP);
+    ContentResolver contentResolver = application.getContentResolver();
+    contentResolver.call(TransactionProvider.DUAL_URI, TransactionProvider.METHOD_BULK_START, null, null);
+    Result<Integer> r;
+    try {
+      r = parseXML(helper);
+    } finally {
+      contentResolver.call(TransactionProvider.DUAL_URI, TransactionProvider.METHOD_BULK_END, null, null);
+    }
     if (!r.isSuccess()) {
       return r;
     }
-    setTitle(context.getString(R.string.grisbi_import_categories_loading, sourceStr));
-    phaseChangedP = true;
-    setMax(catTree.getTotal());
-    publishProgress(0);
 
-    int totalImportedCat,totalImportedParty;
-    if (withCategoriesP) {
-      totalImportedCat = GrisbiImportHelper.INSTANCE.importCats(catTree, this);
-    } else {
-      totalImportedCat = -1;
-    }
-    if (withPartiesP) {
-      setTitle(context.getString(R.string.grisbi_import_parties_loading, sourceStr));
-      phaseChangedP = true;
-      setMax(partiesList.size());
-      publishProgress(0);
-      totalImportedParty = Utils.importParties(partiesList, this);
-    } else {
-      totalImportedParty = -1;
-    }
     String msg = "";
-    if (totalImportedCat > -1) {
+    if (withCategoriesP) {
+      int totalImportedCat = helper.getImportedCategories();
       msg += totalImportedCat == 0 ?
           context.getString(R.string.import_categories_none) :
           context.getString(R.string.import_categories_success, totalImportedCat);
+      if (helper.getFailedCategories() > 0) {
+        msg += " " + context.getString(R.string.import_categories_failed, helper.getFailedCategories());
+      }
     }
-    if (totalImportedParty > -1) {
+    if (withPartiesP) {
+      int totalImportedParty = helper.getImportedParties();
       if (!TextUtils.isEmpty(msg)) {
         msg += "\n";
       }
       msg += totalImportedParty == 0 ?
           context.getString(R.string.import_parties_none) :
           context.getString(R.string.import_parties_success, String.valueOf(totalImportedParty));
+      if (helper.getFailedParties() > 0) {
+        msg += " " + context.getString(R.string.import_parties_failed, helper.getFailedParties());
+      }
     }
     return Result.ofSuccess(msg);
   }
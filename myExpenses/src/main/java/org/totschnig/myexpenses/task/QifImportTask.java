@@ -16,15 +16,20 @@
 
 package org.totschnig.myexpenses.task;
 
-import static org.totschnig.myexpenses.provider.DatabaseConstants.STATUS_UNCOMMITTED;
-
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.RemoteException;
 import android.text.TextUtils;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
 import org.totschnig.myexpenses.MyApplication;
 import org.totschnig.myexpenses.R;
 import org.totschnig.myexpenses.db2.CategoryHelper;
@@ -36,13 +41,14 @@ import org.totschnig.myexpenses.export.qif.QifBufferedReader;
 import org.totschnig.myexpenses.export.qif.QifDateFormat;
 import org.totschnig.myexpenses.export.qif.QifParser;
 import org.totschnig.myexpenses.export.qif.QifTransaction;
-import org.totschnig.myexpenses.export.qif.QifUtils;
+import org.totschnig.myexpenses.export.qif.QifTransferIndex;
 import org.totschnig.myexpenses.model.Account;
 import org.totschnig.myexpenses.model.ContribFeature;
 import org.totschnig.myexpenses.model.CurrencyUnit;
 import org.totschnig.myexpenses.model.Payee;
 import org.totschnig.myexpenses.model.Transaction;
 import org.totschnig.myexpenses.provider.DatabaseConstants;
+import org.totschnig.myexpenses.provider.DuplicateDetectionKt;
 import org.totschnig.myexpenses.provider.TransactionProvider;
 import org.totschnig.myexpenses.ui.ContextHelper;
 import org.totschnig.myexpenses.util.crashreporting.CrashHandler;
@@ -54,8 +60,9 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.text.DateFormat;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -65,7 +72,19 @@ import javax.inject.Inject;
 
 import timber.log.Timber;
 
-public class QifImportTask extends AsyncTask<Void, String, Void> {
+public class QifImportTask extends AsyncTask<Void, Object, Void> {
+  /**
+   * number of operations after which the pending batch is applied
+   */
+  private static final int BATCH_SIZE = 1000;
+  /**
+   * maximum number of transactions that could not be inserted, which are listed in the result
+   */
+  private static final int MAX_LISTED_FAILURES = 10;
+  /**
+   * number of transactions without transfers that are collected before they are inserted
+   */
+  private static final int TRANSACTION_BUFFER_SIZE = 500;
   private final TaskExecutionFragment taskExecutionFragment;
   private QifDateFormat dateFormat;
   private String encoding;
@@ -79,6 +98,20 @@ public class QifImportTask extends AsyncTask<Void, String, Void> {
    * should we handle parties/categories?
    */
   boolean withPartiesP, withCategoriesP, withTransactionsP;
+  /**
+   * should we skip transactions that match the fingerprint of one that existed before the import?
+   */
+  boolean skipDuplicatesP;
+  /**
+   * fingerprints of the transactions in the target accounts before the import, by account id
+   */
+  private final Map<Long, Set<String>> existingFingerprints = new HashMap<>();
+  private int duplicates = 0;
+  private int failures = 0;
+  /**
+   * description of the first {@link #MAX_LISTED_FAILURES} transactions that could not be inserted
+   */
+  private final List<String> failedTransactions = new ArrayList<>();
 
   private CurrencyUnit currencyUnit;
 
@@ -93,6 +126,7 @@ public class QifImportTask extends AsyncTask<Void, String, Void> {
     this.withPartiesP = b.getBoolean(TaskExecutionFragment.KEY_WITH_PARTIES);
     this.withCategoriesP = b.getBoolean(TaskExecutionFragment.KEY_WITH_CATEGORIES);
     this.withTransactionsP = b.getBoolean(TaskExecutionFragment.KEY_WITH_TRANSACTIONS);
+    this.skipDuplicatesP = b.getBoolean(TaskExecutionFragment.KEY_SKIP_DUPLICATES);
     this.currencyUnit = (CurrencyUnit) b.getSerializable(DatabaseConstants.KEY_CURRENCY);
     this.encoding = b.getString(TaskExecutionFragment.KEY_ENCODING);
     MyApplication.getInstance().getAppComponent().inject(this);
@@ -106,15 +140,36 @@ public class QifImportTask extends AsyncTask<Void, String, Void> {
     }
   }
 
+  /**
+   * @param values either a message to be appended, or the percentage of transactions of the
+   *               current account that have been imported
+   */
   @Override
-  protected void onProgressUpdate(String... values) {
+  protected void onProgressUpdate(Object... values) {
     if (this.taskExecutionFragment.mCallbacks != null) {
-      for (String progress : values) {
+      for (Object progress : values) {
         this.taskExecutionFragment.mCallbacks.onProgressUpdate(progress);
       }
     }
   }
 
+  private QifBufferedReader openReader() throws IOException {
+    InputStream inputStream = MyApplication.getInstance().getContentResolver().openInputStream(fileUri);
+    if (inputStream == null) {
+      throw new IOException("OpenInputStream returned null");
+    }
+    return new QifBufferedReader(
+        new BufferedReader(
+            new InputStreamReader(
+                inputStream,
+                encoding)));
+  }
+
+  /**
+   * The file is parsed twice: the first pass only collects accounts, payees and categories, the
+   * second one hands transactions to a {@link StreamingInserter}, so that we never hold all
+   * transactions of the file in memory.
+   */
   @Override
   protected Void doInBackground(Void... params) {
     final MyApplication application = MyApplication.getInstance();
@@ -124,12 +179,7 @@ public class QifImportTask extends AsyncTask<Void, String, Void> {
     QifParser parser;
     ContentResolver contentResolver = application.getContentResolver();
     try {
-      InputStream inputStream = contentResolver.openInputStream(fileUri);
-      r = new QifBufferedReader(
-          new BufferedReader(
-              new InputStreamReader(
-                  inputStream,
-                  encoding)));
+      r = openReader();
     } catch (FileNotFoundException e) {
       publishProgress(context.getString(R.string.parse_error_file_not_found, fileUri));
       return null;
@@ -137,7 +187,8 @@ public class QifImportTask extends AsyncTask<Void, String, Void> {
       publishProgress(context.getString(R.string.parse_error_other_exception, e.getMessage()));
       return null;
     }
-    parser = new QifParser(r, dateFormat, currencyUnit);
+    //transactions are only counted in the first pass
+    parser = new QifParser(r, dateFormat, currencyUnit, (accountIndex, transaction) -> {});
     try {
       parser.parse();
       long t1 = System.currentTimeMillis();
@@ -192,7 +243,7 @@ public class QifImportTask extends AsyncTask<Void, String, Void> {
     return encoding;
   }*/
 
-  private void doImport(QifParser parser, Context context) {
+  private void doImport(QifParser parser, Context context) throws IOException {
     if (withPartiesP) {
       int totalParties = insertPayees(parser.payees);
       publishProgress(totalParties == 0 ?
@@ -235,6 +286,13 @@ public class QifImportTask extends AsyncTask<Void, String, Void> {
         }
       }
       insertTransactions(parser.accounts, context);
+      if (duplicates > 0) {
+        publishProgress(context.getString(R.string.import_duplicates_skipped, duplicates));
+      }
+      if (failures > 0) {
+        publishProgress(context.getString(R.string.import_transactions_failed, failures,
+            TextUtils.join("; ", failedTransactions)));
+      }
     }
   }
 
@@ -304,22 +362,40 @@ public class QifImportTask extends AsyncTask<Void, String, Void> {
     return importCount;
   }
 
-  private void insertTransactions(List<QifAccount> accounts, Context context) {
+  private void insertTransactions(List<QifAccount> accounts, Context context) throws IOException {
     long t0 = System.currentTimeMillis();
-    reduceTransfers(accounts);
+    if (skipDuplicatesP) {
+      //loaded before anything is inserted, so that identical transactions in the file are kept
+      for (QifAccount account : accounts) {
+        if (account.dbAccount != null && !existingFingerprints.containsKey(account.dbAccount.getId())) {
+          existingFingerprints.put(account.dbAccount.getId(), repository.loadFingerprints(account.dbAccount.getId()));
+        }
+      }
+    }
+    StreamingInserter inserter = new StreamingInserter(accounts);
+    QifBufferedReader r = openReader();
+    try {
+      new QifParser(r, dateFormat, currencyUnit, inserter).parse();
+    } finally {
+      r.close();
+    }
+    inserter.flush();
     long t1 = System.currentTimeMillis();
-    Timber.i("QIF Import: Reducing transfers done in %d s", TimeUnit.MILLISECONDS.toSeconds(t1 - t0));
-    convertUnknownTransfers(accounts);
+    Timber.i("QIF Import: Streaming transactions done in %d s", TimeUnit.MILLISECONDS.toSeconds(t1 - t0));
+    reduceTransfers(accounts);
     long t2 = System.currentTimeMillis();
-    Timber.i("QIF Import: Converting transfers done in %d s", TimeUnit.MILLISECONDS.toSeconds(t2 - t1));
+    Timber.i("QIF Import: Reducing transfers done in %d s", TimeUnit.MILLISECONDS.toSeconds(t2 - t1));
+    convertUnknownTransfers(accounts);
+    long t3 = System.currentTimeMillis();
+    Timber.i("QIF Import: Converting transfers done in %d s", TimeUnit.MILLISECONDS.toSeconds(t3 - t2));
     int count = accounts.size();
     for (int i = 0; i < count; i++) {
-      long t3 = System.currentTimeMillis();
+      long t4 = System.currentTimeMillis();
       QifAccount account = accounts.get(i);
       Account a = account.dbAccount;
-      int countTransactions = 0;
       if (a != null) {
-        countTransactions = insertTransactions(a, account.transactions);
+        inserter.counts[i] += insertTransactions(a, account.transactions, inserter.counts[i], account.transactionCount);
+        int countTransactions = inserter.counts[i];
         publishProgress(countTransactions == 0 ?
             context.getString(R.string.import_transactions_none, a.getLabel()) :
             context.getString(R.string.import_transactions_success, countTransactions, a.getLabel()));
@@ -328,21 +404,81 @@ public class QifImportTask extends AsyncTask<Void, String, Void> {
       }
       // this might help GC
       account.transactions.clear();
-      long t4 = System.currentTimeMillis();
-      Timber.i("QIF Import: Inserting %d transactions for account %d/%d done in %d s",
-          countTransactions, i, count, TimeUnit.MILLISECONDS.toSeconds(t4 - t3));
+      long t5 = System.currentTimeMillis();
+      Timber.i("QIF Import: Inserting transfers for account %d/%d done in %d s",
+          i, count, TimeUnit.MILLISECONDS.toSeconds(t5 - t4));
+    }
+  }
+
+  /**
+   * Inserts transactions as they are handed over by the parser, in chunks of
+   * {@link #TRANSACTION_BUFFER_SIZE}. Transactions that are or contain transfers are retained in
+   * {@link QifAccount#transactions}, since they can only be inserted after their counterpart has
+   * been looked for in the other accounts.
+   */
+  private class StreamingInserter implements QifParser.TransactionListener {
+    private final List<QifAccount> accounts;
+    private final List<QifTransaction> buffer = new ArrayList<>();
+    private int bufferAccountIndex = -1;
+    final int[] counts;
+
+    StreamingInserter(List<QifAccount> accounts) {
+      this.accounts = accounts;
+      this.counts = new int[accounts.size()];
+    }
+
+    @Override
+    public void onTransaction(int accountIndex, @NonNull QifTransaction transaction) {
+      //both passes see the same accounts, we guard against a file that changed in between
+      if (accountIndex >= accounts.size()) return;
+      if (accountIndex != bufferAccountIndex) {
+        flush();
+        bufferAccountIndex = accountIndex;
+      }
+      if (involvesTransfer(transaction)) {
+        accounts.get(accountIndex).transactions.add(transaction);
+      } else {
+        buffer.add(transaction);
+        if (buffer.size() >= TRANSACTION_BUFFER_SIZE) {
+          flush();
+        }
+      }
+    }
+
+    void flush() {
+      if (bufferAccountIndex != -1 && !buffer.isEmpty()) {
+        QifAccount account = accounts.get(bufferAccountIndex);
+        if (account.dbAccount != null) {
+          counts[bufferAccountIndex] += insertTransactions(account.dbAccount, buffer,
+              counts[bufferAccountIndex], account.transactionCount);
+        }
+        buffer.clear();
+      }
     }
   }
 
+  private static boolean involvesTransfer(QifTransaction transaction) {
+    if (transaction.isTransfer()) return true;
+    if (transaction.splits != null) {
+      for (QifTransaction split : transaction.splits) {
+        if (split.isTransfer()) return true;
+      }
+    }
+    return false;
+  }
+
   private void reduceTransfers(List<QifAccount> accounts) {
+    QifTransferIndex transferIndex = new QifTransferIndex();
     for (QifAccount fromAccount : accounts) {
       List<QifTransaction> transactions = fromAccount.transactions;
-      reduceTransfers(fromAccount, transactions);
+      reduceTransfers(fromAccount, transactions, transferIndex);
     }
+    transferIndex.removeClaimed();
   }
 
   private void reduceTransfers(QifAccount fromAccount,
-                               List<QifTransaction> transactions) {
+                               List<QifTransaction> transactions,
+                               QifTransferIndex transferIndex) {
     for (QifTransaction fromTransaction : transactions) {
       if (fromTransaction.isTransfer() && fromTransaction.amount.signum() == -1) {
         boolean found = false;
@@ -350,17 +486,7 @@ public class QifImportTask extends AsyncTask<Void, String, Void> {
           QifAccount toAccount = accountTitleToAccount
               .get(fromTransaction.toAccount);
           if (toAccount != null) {
-            Iterator<QifTransaction> iterator = toAccount.transactions
-                .iterator();
-            while (iterator.hasNext()) {
-              QifTransaction toTransaction = iterator.next();
-              if (QifUtils.twoSidesOfTheSameTransfer(fromAccount, fromTransaction,
-                  toAccount, toTransaction)) {
-                iterator.remove();
-                found = true;
-                break;
-              }
-            }
+            found = transferIndex.claimCounterpart(fromAccount, fromTransaction, toAccount) != null;
           }
         }
         if (!found) {
@@ -368,7 +494,7 @@ public class QifImportTask extends AsyncTask<Void, String, Void> {
         }
       }
       if (fromTransaction.splits != null) {
-        reduceTransfers(fromAccount, fromTransaction.splits);
+        reduceTransfers(fromAccount, fromTransaction.splits, transferIndex);
       }
     }
   }
@@ -406,33 +532,122 @@ public class QifImportTask extends AsyncTask<Void, String, Void> {
     fromTransaction.toAccount = null;
   }
 
-  private int insertTransactions(Account a, List<QifTransaction> transactions) {
+  /**
+   * Transactions are applied in batches of {@link #BATCH_SIZE} operations, a batch never spans
+   * more than one account. Since the import runs in bulk mode, notifications are only sent
+   * once at the end.
+   * @param alreadyImported number of transactions of this account inserted before, for progress
+   * @param total           number of transactions of this account, for progress
+   */
+  private int insertTransactions(Account a, List<QifTransaction> transactions, int alreadyImported, int total) {
     int count = 0;
+    List<PendingTransaction> pending = new ArrayList<>();
+    ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+    Set<String> fingerprints = existingFingerprints.get(a.getId());
     for (QifTransaction transaction : transactions) {
       Transaction t = transaction.toTransaction(a);
+      if (fingerprints != null && fingerprints.contains(DuplicateDetectionKt.fingerprint(
+          a.getId(), t.getDate(), t.getAmount().getAmountMinor(), transaction.payee, t.getComment()))) {
+        duplicates++;
+        continue;
+      }
       t.setPayeeId(findPayee(transaction.payee));
       // t.projectId = findProject(transaction.categoryClass);
       findToAccount(transaction, t);
-
+      List<Transaction> splits = null;
       if (transaction.splits != null) {
-        t.save();
+        splits = new ArrayList<>();
         for (QifTransaction split : transaction.splits) {
           Transaction s = split.toTransaction(a);
-          s.setParentId(t.getId());
-          s.setStatus(STATUS_UNCOMMITTED);
           findToAccount(split, s);
           findCategory(split, s);
-          s.save();
+          splits.add(s);
         }
       } else {
         findCategory(transaction, t);
       }
-      t.save(true);
-      count++;
+      PendingTransaction pendingTransaction = new PendingTransaction(transaction, t, splits);
+      pendingTransaction.addOperations(ops);
+      pending.add(pendingTransaction);
+      if (ops.size() >= BATCH_SIZE) {
+        count += applyBatch(ops, pending);
+        publishProgress((int) (100L * (alreadyImported + count) / Math.max(total, 1)));
+      }
     }
+    count += applyBatch(ops, pending);
     return count;
   }
 
+  /**
+   * If the batch fails, the transactions in it are applied one by one, so that only the ones that
+   * can not be inserted are lost. They are counted in {@link #failures} and reported at the end.
+   *
+   * @return number of transactions from the batch that were inserted
+   */
+  private int applyBatch(ArrayList<ContentProviderOperation> ops, List<PendingTransaction> pending) {
+    if (pending.isEmpty()) return 0;
+    ContentResolver contentResolver = MyApplication.getInstance().getContentResolver();
+    try {
+      contentResolver.applyBatch(TransactionProvider.AUTHORITY, ops);
+      return pending.size();
+    } catch (RemoteException | OperationApplicationException | SQLiteException e) {
+      CrashHandler.report(e);
+      int count = 0;
+      ArrayList<ContentProviderOperation> singleOps = new ArrayList<>();
+      for (PendingTransaction pendingTransaction : pending) {
+        pendingTransaction.addOperations(singleOps);
+        try {
+          contentResolver.applyBatch(TransactionProvider.AUTHORITY, singleOps);
+          count++;
+        } catch (RemoteException | OperationApplicationException | SQLiteException e1) {
+          Timber.w(e1);
+          if (failures++ < MAX_LISTED_FAILURES) {
+            failedTransactions.add(pendingTransaction.describe());
+          }
+        } finally {
+          singleOps.clear();
+        }
+      }
+      return count;
+    } finally {
+      ops.clear();
+      pending.clear();
+    }
+  }
+
+  /**
+   * A transaction and its split parts, ready to be saved, together with the QIF record they were
+   * read from, for reporting failures.
+   */
+  private static class PendingTransaction {
+    private final QifTransaction source;
+    private final Transaction transaction;
+    @Nullable
+    private final List<Transaction> splits;
+
+    PendingTransaction(QifTransaction source, Transaction transaction, @Nullable List<Transaction> splits) {
+      this.source = source;
+      this.transaction = transaction;
+      this.splits = splits;
+    }
+
+    void addOperations(ArrayList<ContentProviderOperation> ops) {
+      int parentOffset = ops.size();
+      ops.addAll(transaction.buildSaveOperations(parentOffset, -1, false, false));
+      if (splits != null) {
+        for (Transaction split : splits) {
+          ops.addAll(split.buildSaveOperations(ops.size(), parentOffset, false, false));
+        }
+      }
+    }
+
+    String describe() {
+      String result = DateFormat.getDateInstance(DateFormat.SHORT).format(source.date) + " " +
+          source.amount.toPlainString();
+      return TextUtils.isEmpty(source.payee) ? result : result + " " + source.payee;
+    }
+  }
+
   private void findToAccount(QifTransaction transaction, Transaction t) {
     if (transaction.isTransfer()) {
       Account toAccount = findAccount(transaction.toAccount);
@@ -50,6 +50,7 @@ public class TaskExecutionFragment<T> extends Fragment {
   public static final String KEY_WITH_PARTIES = "withParties";
   public static final String KEY_WITH_CATEGORIES = "withCategories";
   public static final String KEY_WITH_TRANSACTIONS = "withTransactions";
+  public static final String KEY_SKIP_DUPLICATES = "skipDuplicates";
   public static final String KEY_FILE_PATH = "filePath";
   public static final String KEY_DATE_FORMAT = "dateFormat";
   public static final String KEY_ENCODING = "encoding";
@@ -118,7 +119,7 @@ public class TaskExecutionFragment<T> extends Fragment {
   public static TaskExecutionFragment newInstanceQifImport(
       Uri mUri, QifDateFormat qifDateFormat, long accountId, CurrencyUnit currency,
       boolean withTransactions, boolean withCategories, boolean withParties,
-      String encoding) {
+      boolean skipDuplicates, String encoding) {
     TaskExecutionFragment f = new TaskExecutionFragment();
     Bundle bundle = new Bundle();
     bundle.putInt(KEY_TASKID, TASK_QIF_IMPORT);
@@ -129,6 +130,7 @@ public class TaskExecutionFragment<T> extends Fragment {
     bundle.putBoolean(KEY_WITH_TRANSACTIONS, withTransactions);
     bundle.putBoolean(KEY_WITH_PARTIES, withParties);
     bundle.putBoolean(KEY_WITH_CATEGORIES, withCategories);
+    bundle.putBoolean(KEY_SKIP_DUPLICATES, skipDuplicates);
     bundle.putString(KEY_ENCODING, encoding);
     f.setArguments(bundle);
     return f;
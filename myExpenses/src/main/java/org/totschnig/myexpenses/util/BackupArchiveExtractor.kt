@@ -0,0 +1,111 @@
+package org.totschnig.myexpenses.util
+
+import org.totschnig.myexpenses.provider.BACKUP_DB_FILE_NAME
+import org.totschnig.myexpenses.provider.BACKUP_PREF_FILE_NAME
+import org.totschnig.myexpenses.util.crypt.EncryptionHelper
+import timber.log.Timber
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.util.Properties
+import java.util.zip.ZipInputStream
+
+/**
+ * Writes the entries of a backup archive to their destinations while the archive is read, instead
+ * of extracting it to the cache directory first. [ZipInputStream] verifies the CRC of each entry
+ * once it has been read completely, and the database entry must start with the SQLite header.
+ * On failure, callers should call [cleanUp] to remove what has already been written.
+ * @param pictureTarget returns the file a picture with the given name from the archive should be
+ * written to, or null if it should be skipped
+ * @param onEntry called after each entry with its name and the number of entries read so far
+ */
+class BackupArchiveExtractor(
+    private val dbTarget: File,
+    private val prefTarget: File,
+    private val pictureTarget: (String) -> File?,
+    private val onEntry: (String, Int) -> Unit
+) {
+    /**
+     * pictures written, by their file name in the archive
+     */
+    val pictures = LinkedHashMap<String, File>()
+    var manifest: Properties? = null
+        private set
+    var aliases: Properties? = null
+        private set
+    var renamed: Properties? = null
+        private set
+    var hasDb = false
+        private set
+    var hasPrefs = false
+        private set
+
+    @Throws(IOException::class)
+    fun extract(inputStream: InputStream) {
+        ZipInputStream(inputStream).use { zin ->
+            var count = 0
+            while (true) {
+                val entry = zin.nextEntry ?: break
+                val name = entry.name
+                Timber.v("Restoring %s", name)
+                when {
+                    entry.isDirectory -> {}
+                    name == BACKUP_DB_FILE_NAME -> {
+                        copy(zin, dbTarget, SQLITE_HEADER)
+                        hasDb = true
+                    }
+                    name == BACKUP_PREF_FILE_NAME -> {
+                        copy(zin, prefTarget, null)
+                        hasPrefs = true
+                    }
+                    name == ZipUtils.MANIFEST -> manifest = Properties().apply { load(zin) }
+                    name == ZipUtils.ALIASES -> aliases = Properties().apply { load(zin) }
+                    name == ZipUtils.RENAMED -> renamed = Properties().apply { load(zin) }
+                    name.startsWith(ZipUtils.PICTURES + "/") -> {
+                        val fileName = name.substring(ZipUtils.PICTURES.length + 1)
+                        if (fileName.isEmpty() || fileName.contains('/') || fileName == "..") {
+                            throw SecurityException("Path Traversal Vulnerability")
+                        }
+                        pictureTarget(fileName)?.let {
+                            pictures[fileName] = it
+                            copy(zin, it, null)
+                        }
+                    }
+                    else -> Timber.w("Ignoring unknown entry %s", name)
+                }
+                zin.closeEntry()
+                onEntry(name, ++count)
+            }
+        }
+    }
+
+    private fun copy(input: InputStream, target: File, expectedHeader: ByteArray?) {
+        target.outputStream().use { out ->
+            if (expectedHeader != null) {
+                val header = ByteArray(expectedHeader.size)
+                if (EncryptionHelper.read(input, header) < header.size || !header.contentEquals(expectedHeader)) {
+                    throw IOException("${target.name} is not a valid database")
+                }
+                out.write(header)
+            }
+            val buffer = ByteArray(8192)
+            var count: Int
+            while (input.read(buffer).also { count = it } != -1) {
+                out.write(buffer, 0, count)
+            }
+        }
+    }
+
+    /**
+     * deletes everything that has been written
+     */
+    fun cleanUp() {
+        dbTarget.delete()
+        prefTarget.delete()
+        pictures.values.forEach { it.delete() }
+    }
+
+    companion object {
+        private val SQLITE_HEADER = "SQLite format 3\u0000".toByteArray(Charsets.US_ASCII)
+    }
+}
@@ -11,11 +11,26 @@ import java.math.BigDecimal
 import java.text.DecimalFormat
 import java.text.NumberFormat
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
 import javax.inject.Inject
 import javax.inject.Singleton
 
 interface ICurrencyFormatter {
+    /**
+     * changes whenever formats are invalidated, so that amounts formatted before can be recognized
+     * as stale
+     */
+    val version: Int
+        get() = 0
+
     fun formatCurrency(amount: BigDecimal, currency: CurrencyUnit): String
+
+    /**
+     * @param amountMinor amount in minor units of currency, as stored in the db
+     */
+    fun formatMinor(amountMinor: Long, currency: CurrencyUnit): String =
+        formatCurrency(Money(currency, amountMinor).amountMajor, currency)
 }
 
 object DebugCurrencyFormatter: ICurrencyFormatter {
@@ -27,10 +42,8 @@ object DebugCurrencyFormatter: ICurrencyFormatter {
  * formats an amount with a currency
  * @return formatted string
  */
-fun ICurrencyFormatter.formatMoney(money: Money): String {
-    val amount = money.amountMajor
-    return formatCurrency(amount, money.currencyUnit)
-}
+fun ICurrencyFormatter.formatMoney(money: Money): String =
+    formatMinor(money.amountMinor, money.currencyUnit)
 
 /**
  * utility method that calls formatters for amount this method can be called
@@ -38,23 +51,29 @@ fun ICurrencyFormatter.formatMoney(money: Money): String {
  *
  * @return formatted string
  */
-fun ICurrencyFormatter.convAmount(amount: Long, currency: CurrencyUnit): String {
-    return formatMoney(Money(currency, amount))
-}
+fun ICurrencyFormatter.convAmount(amount: Long, currency: CurrencyUnit): String =
+    formatMinor(amount, currency)
 
 @Singleton
 open class CurrencyFormatter @Inject constructor(
     private val prefHandler: PrefHandler,
     private val userLocaleProvider: UserLocaleProvider
 ): ICurrencyFormatter {
-    private val numberFormats: MutableMap<String, NumberFormat> = HashMap()
+    private val numberFormats: MutableMap<String, CurrencyFormat> = ConcurrentHashMap()
+    private val versionCounter = AtomicInteger()
+
+    override val version: Int
+        get() = versionCounter.get()
+
     fun invalidate(currency: String, contentResolver: ContentResolver) {
         numberFormats.remove(currency)
+        versionCounter.incrementAndGet()
         notifyUris(contentResolver)
     }
 
     fun invalidateAll(contentResolver: ContentResolver) {
         numberFormats.clear()
+        versionCounter.incrementAndGet()
         notifyUris(contentResolver)
     }
 
@@ -63,6 +82,8 @@ open class CurrencyFormatter @Inject constructor(
         contentResolver.notifyChange(TransactionProvider.TRANSACTIONS_URI, null, false)
         contentResolver.notifyChange(TransactionProvider.ACCOUNTS_URI, null, false)
         contentResolver.notifyChange(TransactionProvider.UNCOMMITTED_URI, null, false)
+        //amounts of all accounts are formatted anew
+        contentResolver.notifyChange(TransactionProvider.ACCOUNT_CHANGES_URI, null, false)
     }
 
     private fun initNumberFormat(): NumberFormat {
@@ -79,10 +100,9 @@ open class CurrencyFormatter @Inject constructor(
         return NumberFormat.getCurrencyInstance(userLocaleProvider.getUserPreferredLocale())
     }
 
-    private fun getNumberFormat(currencyUnit: CurrencyUnit): NumberFormat {
-        var numberFormat = numberFormats[currencyUnit.code]
-        if (numberFormat == null) {
-            numberFormat = initNumberFormat()
+    private fun getNumberFormat(currencyUnit: CurrencyUnit): CurrencyFormat =
+        numberFormats.getOrPut(currencyUnit.code) {
+            val numberFormat = initNumberFormat()
             val fractionDigits = currencyUnit.fractionDigits
             try {
                 numberFormat.currency = Currency.getInstance(currencyUnit.code)
@@ -96,12 +116,106 @@ open class CurrencyFormatter @Inject constructor(
                 numberFormat.minimumFractionDigits = fractionDigits
             }
             numberFormat.maximumFractionDigits = fractionDigits
-            numberFormats[currencyUnit.code] = numberFormat
+            CurrencyFormat(numberFormat, fractionDigits)
         }
-        return numberFormat
+
+    override fun formatCurrency(amount: BigDecimal, currency: CurrencyUnit): String =
+        getNumberFormat(currency).format(amount)
+
+    override fun formatMinor(amountMinor: Long, currency: CurrencyUnit): String =
+        getNumberFormat(currency).format(amountMinor)
+}
+
+/**
+ * A [DecimalFormat] configured for a currency, together with the parts of its pattern (prefixes,
+ * suffixes, separators, grouping), so that amounts in minor units can be formatted without going
+ * through [BigDecimal]. The parts are only used if they reproduce the output of the
+ * [DecimalFormat] for a set of probes, otherwise (e.g. for patterns with secondary grouping) all
+ * amounts are formatted by the [DecimalFormat], which is not thread-safe and hence synchronized on.
+ */
+internal class CurrencyFormat(private val numberFormat: DecimalFormat, private val scale: Int) {
+    private val fractionDigits = scale.coerceIn(0, 18)
+    private val minimumFractionDigits = numberFormat.minimumFractionDigits.coerceAtMost(this.fractionDigits)
+    private val divisor = POWERS_OF_TEN[this.fractionDigits]
+    private val positivePrefix: String = numberFormat.positivePrefix
+    private val positiveSuffix: String = numberFormat.positiveSuffix
+    private val negativePrefix: String = numberFormat.negativePrefix
+    private val negativeSuffix: String = numberFormat.negativeSuffix
+    private val zeroDigit: Char
+    private val groupingSeparator: Char
+    private val decimalSeparator: Char
+    private val groupingSize = if (numberFormat.isGroupingUsed) numberFormat.groupingSize else 0
+    private val minimumIntegerDigits = numberFormat.minimumIntegerDigits
+    private val fastPath: Boolean
+
+    init {
+        val symbols = numberFormat.decimalFormatSymbols
+        zeroDigit = symbols.zeroDigit
+        groupingSeparator = symbols.groupingSeparator
+        decimalSeparator = if (numberFormat.toPattern().contains('\u00A4'))
+            symbols.monetaryDecimalSeparator else symbols.decimalSeparator
+        fastPath = scale == fractionDigits && numberFormat.multiplier == 1 &&
+                !numberFormat.isDecimalSeparatorAlwaysShown &&
+                minimumIntegerDigits <= MAX_DIGITS &&
+                PROBES.all { formatFast(it) == formatSynchronized(it) }
     }
 
-    override fun formatCurrency(amount: BigDecimal, currency: CurrencyUnit): String {
-        return getNumberFormat(currency).format(amount)
+    fun format(amount: BigDecimal): String = synchronized(numberFormat) {
+        numberFormat.format(amount)
     }
-}
\ No newline at end of file
+
+    fun format(amountMinor: Long): String =
+        if (fastPath && amountMinor != Long.MIN_VALUE) formatFast(amountMinor)
+        else formatSynchronized(amountMinor)
+
+    private fun formatSynchronized(amountMinor: Long) =
+        format(BigDecimal.valueOf(amountMinor, scale))
+
+    private fun formatFast(amountMinor: Long): String {
+        val negative = amountMinor < 0
+        val absolute = if (negative) -amountMinor else amountMinor
+        val prefix = if (negative) negativePrefix else positivePrefix
+        val suffix = if (negative) negativeSuffix else positiveSuffix
+        val buffer = CharArray(prefix.length + suffix.length + 2 * MAX_DIGITS + fractionDigits + 1)
+        var position = buffer.size
+        for (i in suffix.length - 1 downTo 0) {
+            buffer[--position] = suffix[i]
+        }
+        var fraction = absolute % divisor
+        var fractionLength = fractionDigits
+        while (fractionLength > minimumFractionDigits && fraction % 10 == 0L) {
+            fraction /= 10
+            fractionLength--
+        }
+        if (fractionLength > 0) {
+            repeat(fractionLength) {
+                buffer[--position] = zeroDigit + (fraction % 10).toInt()
+                fraction /= 10
+            }
+            buffer[--position] = decimalSeparator
+        }
+        var integer = absolute / divisor
+        var digits = 0
+        while (integer > 0 || digits < minimumIntegerDigits) {
+            if (groupingSize > 0 && digits > 0 && digits % groupingSize == 0) {
+                buffer[--position] = groupingSeparator
+            }
+            buffer[--position] = zeroDigit + (integer % 10).toInt()
+            integer /= 10
+            digits++
+        }
+        for (i in prefix.length - 1 downTo 0) {
+            buffer[--position] = prefix[i]
+        }
+        return String(buffer, position, buffer.size - position)
+    }
+
+    companion object {
+        private const val MAX_DIGITS = 19
+        private val POWERS_OF_TEN = LongArray(19).also {
+            it[0] = 1
+            for (i in 1 until it.size) it[i] = it[i - 1] * 10
+        }
+        private val PROBES = longArrayOf(0, 1, -1, 5, 10, 100, -1234567, 98765432100, -123456789012345678)
+    }
+}
@@ -7,6 +7,7 @@ import org.xml.sax.helpers.DefaultHandler;
 
 import java.util.ArrayList;
 
+import androidx.annotation.Nullable;
 import androidx.core.util.Pair;
 
 public class GrisbiHandler extends DefaultHandler {
@@ -23,6 +24,29 @@ public class GrisbiHandler extends DefaultHandler {
       partiesElementName5 = "Tiers",
       nameAttributeName5 = "Nom";
   Integer currentMainCategorieId;
+  /**
+   * if set, categories and parties are handed over as they are parsed, instead of being collected
+   */
+  @Nullable
+  private final Listener listener;
+  private int streamedCount;
+
+  public interface Listener {
+    /**
+     * @param parentId 0 for main categories
+     */
+    void onCategory(String label, int id, int parentId);
+
+    void onParty(String name);
+  }
+
+  public GrisbiHandler() {
+    this(null);
+  }
+
+  public GrisbiHandler(@Nullable Listener listener) {
+    this.listener = listener;
+  }
 
   public class FileVersionNotSupportedException extends SAXException {
 
@@ -45,6 +69,35 @@ public class GrisbiHandler extends DefaultHandler {
     }
   }
 
+  /**
+   * @return number of categories and parties handed over to the listener
+   */
+  public Result<Integer> getStreamingResult() {
+    if (streamedCount > 0) {
+      return Result.ofSuccess(0, streamedCount);
+    } else {
+      return Result.ofFailure(R.string.parse_error_no_data_found);
+    }
+  }
+
+  private void addCategory(String label, int id, int parentId) {
+    if (listener != null) {
+      streamedCount++;
+      listener.onCategory(label, id, parentId);
+    } else {
+      catTree.add(label, id, parentId);
+    }
+  }
+
+  private void addParty(String name) {
+    if (listener != null) {
+      streamedCount++;
+      listener.onParty(name);
+    } else {
+      partiesList.add(name);
+    }
+  }
+
   @Override
   public void characters(char[] ch, int start, int length)
       throws SAXException {
@@ -70,6 +123,7 @@ public class GrisbiHandler extends DefaultHandler {
     catTree = new CategoryTree("root");
     partiesList = new ArrayList<>();
     builder = new StringBuilder();
+    streamedCount = 0;
   }
 
   @Override
@@ -86,37 +140,37 @@ public class GrisbiHandler extends DefaultHandler {
       label = attributes.getValue(nameAttributeName6);
       id = attributes.getValue("Nb");
       if (label != null && id != null) {
-        catTree.add(label, Integer.parseInt(id), 0);
+        addCategory(label, Integer.parseInt(id), 0);
       }
     } else if (localName.equals(subElementName6)) {
       label = attributes.getValue(nameAttributeName6);
       id = attributes.getValue("Nb");
       parent_id = attributes.getValue("Nbc");
       if (label != null && id != null && parent_id != null) {
-        catTree.add(label, Integer.parseInt(id), Integer.parseInt(parent_id));
+        addCategory(label, Integer.parseInt(id), Integer.parseInt(parent_id));
       }
     } else if (localName.equals(mainElementName5)) {
       label = attributes.getValue(nameAttributeName5);
       id = attributes.getValue("No");
       if (label != null && id != null) {
         currentMainCategorieId = Integer.parseInt(id);
-        catTree.add(label, currentMainCategorieId, 0);
+        addCategory(label, currentMainCategorieId, 0);
       }
     } else if (localName.equals(subElementName5)) {
       label = attributes.getValue(nameAttributeName5);
       id = attributes.getValue("No");
       if (label != null && id != null) {
-        catTree.add(label, Integer.parseInt(id), currentMainCategorieId);
+        addCategory(label, Integer.parseInt(id), currentMainCategorieId);
       }
     } else if (localName.equals(partiesElementName6)) {
       label = attributes.getValue(nameAttributeName6);
       if (label != null) {
-        partiesList.add(label);
+        addParty(label);
       }
     } else if (localName.equals(partiesElementName5)) {
       label = attributes.getValue(nameAttributeName5);
       if (label != null) {
-        partiesList.add(label);
+        addParty(label);
       }
     }
     builder.setLength(0);
@@ -156,6 +156,18 @@ public class NotificationBuilderWrapper {
     return this;
   }
 
+  @SuppressWarnings("UnusedReturnValue")
+  public NotificationBuilderWrapper setProgress(int max, int progress, boolean indeterminate) {
+    if (shouldUseNative()) {
+      api23Builder.setProgress(max, progress, indeterminate);
+      api23Builder.setOnlyAlertOnce(true);
+    } else {
+      compatBuilder.setProgress(max, progress, indeterminate);
+      compatBuilder.setOnlyAlertOnce(true);
+    }
+    return this;
+  }
+
   public NotificationBuilderWrapper addAction(int iconCompat, int iconApi23, String title, PendingIntent intent) {
     if (shouldUseNative()) {
       api23Builder.addAction(new Notification.Action.Builder(
@@ -0,0 +1,262 @@
+package org.totschnig.myexpenses.util
+
+import android.content.ContentResolver
+import android.net.Uri
+import timber.log.Timber
+import java.io.ByteArrayOutputStream
+import java.io.Closeable
+import java.io.File
+import java.io.FileNotFoundException
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.security.MessageDigest
+import java.util.ArrayDeque
+import java.util.Properties
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+import java.util.zip.CRC32
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+
+/**
+ * Adds pictures to a backup archive. Pictures are read and hashed on a bounded pool, while their
+ * entries are written to [zip] in the order in which they were added. Formats that are already
+ * compressed are written as STORED entries, since deflating them only costs CPU. Pictures with the
+ * same content are written once, further names are recorded in [ZipUtils.ALIASES]. Pictures whose
+ * last path segment is already taken by another picture are written under a unique name, which is
+ * recorded in [ZipUtils.RENAMED].
+ *
+ * Each picture is read only once: its content is held in memory, as long as all pending pictures
+ * together fit into [memoryBudget] bytes, otherwise it is copied to a temporary file in [spillDir].
+ */
+class PictureZipWriter @JvmOverloads constructor(
+    private val contentResolver: ContentResolver,
+    private val zip: ZipOutputStream,
+    private val directory: String,
+    private val spillDir: File,
+    memoryBudget: Int = MAX_BUFFERED_BYTES
+) : Closeable {
+    private val parallelism = Runtime.getRuntime().availableProcessors().coerceIn(2, 4)
+    private val executor: ExecutorService = Executors.newFixedThreadPool(parallelism)
+    private val memory = Semaphore(memoryBudget)
+
+    /**
+     * pictures being loaded, limited to [parallelism] * 2, which keeps the pool busy while entries
+     * are written, and bounds the number of temporary files
+     */
+    private val pending = ArrayDeque<Future<Loaded?>>()
+    private val uris = HashSet<Uri>()
+    private val names = HashSet<String>()
+    private val written = HashMap<String, String>()
+    private val aliases = Properties()
+    private val renamed = Properties()
+    private val start = System.currentTimeMillis()
+    private var bytes = 0L
+
+    @Volatile
+    private var closed = false
+
+    private class Loaded(
+        val name: String,
+        val size: Long,
+        val crc: Long,
+        val hash: String,
+        /**
+         * null if the picture did not fit into the memory budget, and has been copied to [spilled]
+         */
+        val content: ByteArray?,
+        val spilled: File?
+    )
+
+    /**
+     * schedules [uri] to be added under its last path segment, or under a unique name derived from
+     * it, if the segment is already taken by another picture. Uris that are added a second time are
+     * ignored.
+     */
+    @Throws(IOException::class)
+    fun add(uri: Uri) {
+        val segment = uri.lastPathSegment ?: return
+        if (!uris.add(uri)) return
+        val name = uniqueName(segment)
+        if (name != segment) {
+            renamed.setProperty(uri.toString(), name)
+        }
+        pending.add(executor.submit<Loaded?> { load(uri, name) })
+        if (pending.size >= parallelism * 2) {
+            writeNext()
+        }
+    }
+
+    private fun uniqueName(segment: String): String {
+        if (names.add(segment)) return segment
+        val dot = segment.lastIndexOf('.')
+        val base = if (dot > 0) segment.substring(0, dot) else segment
+        val extension = if (dot > 0) segment.substring(dot) else ""
+        var index = 1
+        while (!names.add("${base}_$index$extension")) {
+            index++
+        }
+        return "${base}_$index$extension"
+    }
+
+    /**
+     * writes the pending pictures, the aliases and the renamed pictures
+     */
+    @Throws(IOException::class)
+    fun finish() {
+        while (pending.isNotEmpty()) {
+            writeNext()
+        }
+        if (!aliases.isEmpty) {
+            zip.putNextEntry(ZipEntry(ZipUtils.ALIASES))
+            aliases.store(zip, null)
+        }
+        if (!renamed.isEmpty) {
+            zip.putNextEntry(ZipEntry(ZipUtils.RENAMED))
+            renamed.store(zip, null)
+        }
+        Timber.i(
+            "Wrote %d pictures (%d bytes, %d aliases, %d renamed) with %d threads in %d ms",
+            written.size, bytes, aliases.size, renamed.size, parallelism, System.currentTimeMillis() - start
+        )
+    }
+
+    /**
+     * Loads that are still running stop at their next chunk, the temporary files of pictures that
+     * have not been written are deleted.
+     */
+    override fun close() {
+        closed = true
+        executor.shutdown()
+        try {
+            executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+        }
+        pending.forEach { future ->
+            if (future.isDone) {
+                runCatching { future.get() }.getOrNull()?.let { release(it) }
+            } else {
+                future.cancel(true)
+            }
+        }
+        pending.clear()
+    }
+
+    private fun open(uri: Uri): InputStream = if (uri.scheme == "file")
+        File(uri.path!!).inputStream() else
+        contentResolver.openInputStream(uri) ?: throw FileNotFoundException(uri.toString())
+
+    private fun load(uri: Uri, name: String): Loaded? {
+        if (closed) return null
+        val crc = CRC32()
+        val digest = MessageDigest.getInstance("SHA-256")
+        var buffer: ByteArrayOutputStream? = ByteArrayOutputStream()
+        var reserved = 0
+        var spilled: File? = null
+        var spillStream: OutputStream? = null
+        var size = 0L
+        fun discard() {
+            spillStream?.close()
+            spilled?.delete()
+            memory.release(reserved)
+        }
+        try {
+            open(uri).use { input ->
+                val chunk = ByteArray(BUFFER_SIZE)
+                var count: Int
+                while (input.read(chunk).also { count = it } != -1) {
+                    if (closed) {
+                        discard()
+                        return null
+                    }
+                    crc.update(chunk, 0, count)
+                    digest.update(chunk, 0, count)
+                    size += count
+                    val inMemory = buffer
+                    if (inMemory != null) {
+                        if (memory.tryAcquire(count)) {
+                            reserved += count
+                            inMemory.write(chunk, 0, count)
+                            continue
+                        }
+                        //the budget is exhausted, we move what we have read so far to a file
+                        val file = File.createTempFile("picture", null, spillDir)
+                        spilled = file
+                        spillStream = file.outputStream().also { inMemory.writeTo(it) }
+                        buffer = null
+                        memory.release(reserved)
+                        reserved = 0
+                    }
+                    spillStream!!.write(chunk, 0, count)
+                }
+            }
+            spillStream?.close()
+        } catch (e: FileNotFoundException) {
+            //File has been removed
+            discard()
+            return null
+        } catch (e: Throwable) {
+            discard()
+            throw e
+        }
+        return Loaded(
+            name, size, crc.value,
+            digest.digest().joinToString("") { "%02x".format(it) },
+            buffer?.toByteArray(), spilled
+        )
+    }
+
+    private fun release(loaded: Loaded) {
+        loaded.content?.let { memory.release(it.size) }
+        loaded.spilled?.delete()
+    }
+
+    private fun writeNext() {
+        val loaded = try {
+            pending.removeFirst().get()
+        } catch (e: ExecutionException) {
+            throw (e.cause as? IOException) ?: IOException(e.cause)
+        } ?: return
+        try {
+            written[loaded.hash]?.let {
+                aliases.setProperty(loaded.name, it)
+                return
+            }
+            val entry = ZipEntry("$directory/${loaded.name}")
+            if (isCompressed(loaded.name)) {
+                entry.method = ZipEntry.STORED
+                entry.size = loaded.size
+                entry.compressedSize = loaded.size
+                entry.crc = loaded.crc
+            }
+            zip.putNextEntry(entry)
+            loaded.content?.let { zip.write(it) }
+                ?: loaded.spilled?.inputStream()?.use { it.copyTo(zip, BUFFER_SIZE) }
+            zip.closeEntry()
+            written[loaded.hash] = loaded.name
+            bytes += loaded.size
+        } finally {
+            release(loaded)
+        }
+    }
+
+    companion object {
+        private const val BUFFER_SIZE = 8192
+
+        /**
+         * bytes of picture content that pending pictures may hold in memory together
+         */
+        const val MAX_BUFFERED_BYTES = 16 * 1024 * 1024
+        private const val CLOSE_TIMEOUT_SECONDS = 10L
+        private val COMPRESSED_EXTENSIONS = setOf("jpg", "jpeg", "png", "webp", "gif", "heic", "heif")
+
+        fun isCompressed(name: String) =
+            name.substringAfterLast('.', "").lowercase() in COMPRESSED_EXTENSIONS
+    }
+}
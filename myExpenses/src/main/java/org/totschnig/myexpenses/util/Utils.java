@@ -58,12 +58,10 @@ import org.totschnig.myexpenses.model.CurrencyContext;
 import org.totschnig.myexpenses.model.CurrencyEnum;
 import org.totschnig.myexpenses.model.CurrencyUnit;
 import org.totschnig.myexpenses.model.Grouping;
-import org.totschnig.myexpenses.model.Payee;
 import org.totschnig.myexpenses.model.SortDirection;
 import org.totschnig.myexpenses.preference.PrefHandler;
 import org.totschnig.myexpenses.preference.PrefKey;
 import org.totschnig.myexpenses.provider.filter.WhereFilter;
-import org.totschnig.myexpenses.task.GrisbiImportTask;
 import org.totschnig.myexpenses.util.crashreporting.CrashHandler;
 import org.totschnig.myexpenses.util.distrib.DistributionHelper;
 import org.totschnig.myexpenses.util.licence.LicenceStatus;
@@ -433,6 +431,23 @@ public class Utils {
 
   public static Result<Pair<CategoryTree, ArrayList<String>>> analyzeGrisbiFileWithSAX(InputStream is) {
     GrisbiHandler handler = new GrisbiHandler();
+    Result<Pair<CategoryTree, ArrayList<String>>> failure = parseGrisbiFile(is, handler);
+    return failure != null ? failure : handler.getResult();
+  }
+
+  /**
+   * hands categories and parties over to listener while the file is parsed, instead of building
+   * them up in memory
+   * @return on success, the number of categories and parties found
+   */
+  public static Result<Integer> streamGrisbiFileWithSAX(InputStream is, GrisbiHandler.Listener listener) {
+    GrisbiHandler handler = new GrisbiHandler(listener);
+    Result<Integer> failure = parseGrisbiFile(is, handler);
+    return failure != null ? failure : handler.getStreamingResult();
+  }
+
+  @Nullable
+  private static <T> Result<T> parseGrisbiFile(InputStream is, GrisbiHandler handler) {
     try {
       Xml.parse(is, Xml.Encoding.UTF_8, handler);
     } catch (IOException e) {
@@ -442,21 +457,7 @@ public class Utils {
     } catch (SAXException e) {
       return Result.ofFailure(R.string.parse_error_parse_exception);
     }
-    return handler.getResult();
-  }
-
-  public static int importParties(ArrayList<String> partiesList,
-                                  GrisbiImportTask task) {
-    int total = 0;
-    for (int i = 0; i < partiesList.size(); i++) {
-      if (Payee.maybeWrite(partiesList.get(i)) != -1) {
-        total++;
-      }
-      if (task != null && i % 10 == 0) {
-        task.publishProgress(i);
-      }
-    }
-    return total;
+    return null;
   }
 
 
@@ -6,6 +6,7 @@ import android.os.Environment;
 import android.text.TextUtils;
 
 import org.totschnig.myexpenses.MyApplication;
+import org.totschnig.myexpenses.provider.BackupPictureStore;
 import org.totschnig.myexpenses.provider.BackupUtilsKt;
 import org.totschnig.myexpenses.provider.DatabaseConstants;
 import org.totschnig.myexpenses.provider.TransactionProvider;
@@ -13,14 +14,15 @@ import org.totschnig.myexpenses.util.crypt.EncryptionHelper;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.GeneralSecurityException;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
 import androidx.annotation.Nullable;
@@ -32,12 +34,37 @@ public class ZipUtils {
 
 
   public static final String PICTURES = Environment.DIRECTORY_PICTURES;
+  /**
+   * entry of differential backups, mapping the file names of pictures to their hash in the
+   * {@link BackupPictureStore}
+   */
+  public static final String MANIFEST = "MANIFEST";
+  /**
+   * entry mapping the file names of pictures, whose content is identical to a picture already
+   * contained in the archive, to the name of that picture
+   */
+  public static final String ALIASES = "ALIASES";
+  /**
+   * entry mapping the uris of pictures, whose file name is shared with another picture, to the
+   * unique name under which they are contained in the archive
+   */
+  public static final String RENAMED = "RENAMED";
 
   private ZipUtils() {
   }
 
   public static void zipBackup(File cacheDir, DocumentFile destZipFile, String password)
       throws IOException, GeneralSecurityException {
+    zipBackup(cacheDir, destZipFile, password, null);
+  }
+
+  /**
+   * @param pictureStore if not null, pictures are not added to the zip, but put into the store,
+   *                     and only referenced from {@link #MANIFEST}
+   */
+  public static void zipBackup(File cacheDir, DocumentFile destZipFile, String password,
+                               @Nullable BackupPictureStore pictureStore)
+      throws IOException, GeneralSecurityException {
     final OutputStream out = MyApplication.getInstance().getContentResolver().openOutputStream(destZipFile.getUri());
     ZipOutputStream zip = new ZipOutputStream(TextUtils.isEmpty(password) ? out : EncryptionHelper.encrypt(out, password));
     /*
@@ -51,36 +78,41 @@ public class ZipUtils {
             new String[]{DatabaseConstants.KEY_PICTURE_URI},
             DatabaseConstants.KEY_PICTURE_URI + " IS NOT NULL",
             null, null);
+    Properties manifest = new Properties();
     if (c != null) {
-      if (c.moveToFirst()) {
-        try {
+      try (PictureZipWriter pictureWriter = new PictureZipWriter(
+          MyApplication.getInstance().getContentResolver(), zip, PICTURES, cacheDir)) {
+        if (c.moveToFirst()) {
           do {
             Uri imageFileUri = Uri.parse(c.getString(0));
-            if (imageFileUri.getScheme().equals("file")) {
-              File imageFile = new File(imageFileUri.getPath());
-              if (imageFile.exists()) {
-                addFileToZip(PICTURES, imageFile, zip);
+            if (pictureStore != null) {
+              String hash = pictureStore.put(imageFileUri);
+              if (hash != null) {
+                manifest.setProperty(imageFileUri.getLastPathSegment(), hash);
               }
             } else {
-              InputStream in;
-              try {
-                in = MyApplication.getInstance().getContentResolver().openInputStream(imageFileUri);
-                addInputStreamToZip(PICTURES + "/" + imageFileUri.getLastPathSegment(),
-                    in,
-                    zip);
-                in.close();
-              } catch (FileNotFoundException e) {
-                //File has been removed
-                //Timber.e(e);
-              }
+              pictureWriter.add(imageFileUri);
             }
           } while (c.moveToNext());
-        } catch (IOException e) {
-          c.close();
-          throw e;
         }
+        pictureWriter.finish();
+      } finally {
+        c.close();
+      }
+    }
+    if (pictureStore != null) {
+      zip.putNextEntry(new ZipEntry(MANIFEST));
+      manifest.store(zip, null);
+      Timber.i("Differential backup references %d pictures, %d added to store",
+          manifest.size(), pictureStore.getAdded());
+      String backupName = destZipFile.getName();
+      if (backupName != null) {
+        Set<String> hashes = new HashSet<>();
+        for (String name : manifest.stringPropertyNames()) {
+          hashes.add(manifest.getProperty(name));
+        }
+        pictureStore.addReferences(backupName, hashes);
       }
-      c.close();
     }
     /*
      * close the zip objects
@@ -165,37 +197,4 @@ public class ZipUtils {
       }
     }
   }
-
-  public static void unzip(InputStream fileIn, File dirOut, @Nullable String password)
-      throws IOException, GeneralSecurityException {
-    ZipInputStream zin = new ZipInputStream(TextUtils.isEmpty(password) ? fileIn : EncryptionHelper.decrypt(fileIn, password));
-    ZipEntry ze;
-    while ((ze = zin.getNextEntry()) != null) {
-      Timber.v("Unzipping %s", ze.getName());
-      File newFile = new File(dirOut, ze.getName());
-      String canonicalPath = newFile.getCanonicalPath();
-      if (!canonicalPath.startsWith(dirOut.getCanonicalPath())) {
-        throw new SecurityException("Path Traversal Vulnerability");
-      }
-      newFile.getParentFile().mkdirs();
-      if (ze.isDirectory()) {
-        newFile.mkdir();
-      } else {
-        FileOutputStream fout = new FileOutputStream(newFile);
-        long startTime = System.currentTimeMillis();
-
-        byte[] buffer = new byte[1024];
-        int count;
-        while ((count = zin.read(buffer)) != -1) {
-          fout.write(buffer, 0, count);
-        }
-        long endTime = System.currentTimeMillis();
-
-        Timber.d("That took %d milliseconds", (endTime - startTime));
-        zin.closeEntry();
-        fout.close();
-      }
-    }
-    zin.close();
-  }
-}
\ No newline at end of file
+}
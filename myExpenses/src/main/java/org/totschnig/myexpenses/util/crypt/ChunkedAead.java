@@ -0,0 +1,252 @@
+package org.totschnig.myexpenses.util.crypt;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Streams in the format written after {@link EncryptionHelper#MAGIC_NUMBER_V2}: a random nonce
+ * prefix, followed by segments of {@link #SEGMENT_SIZE} bytes of plaintext, each encrypted with
+ * AES-GCM and carrying its own tag. The nonce of a segment is built from the prefix, the index of the
+ * segment and a flag marking the last segment (STREAM construction), so that segments can neither
+ * be reordered nor the stream be truncated without detection. Since each segment is authenticated
+ * on its own, data is released after each segment, and memory use does not depend on the size of
+ * the stream.
+ */
+public class ChunkedAead {
+  public static final int SEGMENT_SIZE = 64 * 1024;
+  public static final int NONCE_PREFIX_LENGTH = 7;
+  private static final int TAG_LENGTH = 16;
+  private static final int CIPHER_SEGMENT_SIZE = SEGMENT_SIZE + TAG_LENGTH;
+
+  private ChunkedAead() {
+  }
+
+  private static GCMParameterSpec nonce(byte[] prefix, int segment, boolean last) {
+    byte[] nonce = new byte[EncryptionHelper.ENCRYPTION_IV_LENGTH];
+    System.arraycopy(prefix, 0, nonce, 0, NONCE_PREFIX_LENGTH);
+    nonce[7] = (byte) (segment >>> 24);
+    nonce[8] = (byte) (segment >>> 16);
+    nonce[9] = (byte) (segment >>> 8);
+    nonce[10] = (byte) segment;
+    nonce[11] = (byte) (last ? 1 : 0);
+    return new GCMParameterSpec(TAG_LENGTH * 8, nonce);
+  }
+
+  private static final class SegmentCipher {
+    private final SecretKey key;
+    private final byte[] noncePrefix;
+    private final Cipher cipher;
+    private final int mode;
+    private int segment = 0;
+
+    SegmentCipher(SecretKey key, byte[] noncePrefix, int mode) throws GeneralSecurityException {
+      this.key = key;
+      this.noncePrefix = noncePrefix;
+      this.mode = mode;
+      this.cipher = Cipher.getInstance(EncryptionHelper.ALGORITHM_SYMMETRIC);
+    }
+
+    byte[] next(byte[] input, int length, boolean last) throws IOException {
+      try {
+        cipher.init(mode, key, nonce(noncePrefix, segment, last));
+        segment++;
+        return cipher.doFinal(input, 0, length);
+      } catch (GeneralSecurityException e) {
+        throw new IOException(e);
+      }
+    }
+  }
+
+  /**
+   * Encrypts everything written to it into the wrapped stream, which receives the nonce prefix
+   * immediately, and each segment as soon as it is full. {@link #close()} writes the last segment.
+   */
+  public static class EncryptingOutputStream extends FilterOutputStream {
+    private final SegmentCipher cipher;
+    private final byte[] buffer = new byte[SEGMENT_SIZE];
+    private int position = 0;
+    private boolean closed = false;
+
+    public EncryptingOutputStream(@NonNull OutputStream out, SecretKey key) throws IOException, GeneralSecurityException {
+      super(out);
+      byte[] noncePrefix = EncryptionHelper.generateRandom(NONCE_PREFIX_LENGTH);
+      out.write(noncePrefix);
+      cipher = new SegmentCipher(key, noncePrefix, Cipher.ENCRYPT_MODE);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        //the segment is only written once more data arrives, since the last one has to be flagged
+        if (position == SEGMENT_SIZE) {
+          out.write(cipher.next(buffer, SEGMENT_SIZE, false));
+          position = 0;
+        }
+        int count = Math.min(len, SEGMENT_SIZE - position);
+        System.arraycopy(b, off, buffer, position, count);
+        position += count;
+        off += count;
+        len -= count;
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) return;
+      closed = true;
+      try {
+        out.write(cipher.next(buffer, position, true));
+        Arrays.fill(buffer, (byte) 0);
+      } finally {
+        out.close();
+      }
+    }
+  }
+
+  /**
+   * Reads segments from the wrapped stream and encrypts them on demand, for callers that expect
+   * an input stream of the encrypted data.
+   */
+  public static class EncryptingInputStream extends SegmentedInputStream {
+    private final SegmentCipher cipher;
+    private final byte[] noncePrefix;
+    private boolean prefixDelivered = false;
+
+    public EncryptingInputStream(@NonNull InputStream in, SecretKey key) throws GeneralSecurityException {
+      super(in, SEGMENT_SIZE);
+      noncePrefix = EncryptionHelper.generateRandom(NONCE_PREFIX_LENGTH);
+      cipher = new SegmentCipher(key, noncePrefix, Cipher.ENCRYPT_MODE);
+    }
+
+    @Override
+    protected byte[] nextChunk() throws IOException {
+      if (!prefixDelivered) {
+        prefixDelivered = true;
+        return noncePrefix;
+      }
+      return super.nextChunk();
+    }
+
+    @Override
+    protected byte[] process(byte[] segment, int length, boolean last) throws IOException {
+      return cipher.next(segment, length, last);
+    }
+  }
+
+  /**
+   * Decrypts a stream whose magic number has already been consumed. Each segment is verified
+   * before its plaintext is returned, a failed verification surfaces as an {@link IOException}
+   * caused by a {@link GeneralSecurityException}.
+   */
+  public static class DecryptingInputStream extends SegmentedInputStream {
+    private final SegmentCipher cipher;
+
+    public DecryptingInputStream(@NonNull InputStream in, SecretKey key) throws IOException, GeneralSecurityException {
+      super(in, CIPHER_SEGMENT_SIZE);
+      byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+      if (EncryptionHelper.read(in, noncePrefix) < NONCE_PREFIX_LENGTH) {
+        throw new IOException(new GeneralSecurityException("Truncated header"));
+      }
+      cipher = new SegmentCipher(key, noncePrefix, Cipher.DECRYPT_MODE);
+    }
+
+    @Override
+    protected byte[] process(byte[] segment, int length, boolean last) throws IOException {
+      return cipher.next(segment, length, last);
+    }
+  }
+
+  /**
+   * Splits the wrapped stream into segments of fixed size, and serves the result of
+   * {@link #process} for each of them. To find out if a segment is the last one, one byte is read
+   * ahead.
+   */
+  static abstract class SegmentedInputStream extends InputStream {
+    private final InputStream in;
+    private final byte[] segment;
+    private byte[] chunk = new byte[0];
+    private int chunkPosition = 0;
+    private int lookAhead = -1;
+    private boolean done = false;
+
+    SegmentedInputStream(InputStream in, int segmentSize) {
+      this.in = in;
+      this.segment = new byte[segmentSize];
+    }
+
+    protected abstract byte[] process(byte[] segment, int length, boolean last) throws IOException;
+
+    /**
+     * @return null at the end of the stream
+     */
+    protected byte[] nextChunk() throws IOException {
+      if (done) return null;
+      int length = 0;
+      if (lookAhead != -1) {
+        segment[length++] = (byte) lookAhead;
+        lookAhead = -1;
+      }
+      while (length < segment.length) {
+        int count = in.read(segment, length, segment.length - length);
+        if (count == -1) break;
+        length += count;
+      }
+      boolean last = length < segment.length || (lookAhead = in.read()) == -1;
+      if (last) {
+        done = true;
+      }
+      return process(segment, length, last);
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(@NonNull byte[] b, int off, int len) throws IOException {
+      if (len == 0) return 0;
+      while (chunkPosition == chunk.length) {
+        byte[] next = nextChunk();
+        if (next == null) return -1;
+        chunk = next;
+        chunkPosition = 0;
+      }
+      int count = Math.min(len, chunk.length - chunkPosition);
+      System.arraycopy(chunk, chunkPosition, b, off, count);
+      chunkPosition += count;
+      return count;
+    }
+
+    @Override
+    public int available() {
+      return chunk.length - chunkPosition;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
@@ -36,11 +36,9 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.Arrays;
-import java.util.Collections;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
-import javax.crypto.CipherOutputStream;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
@@ -53,6 +51,12 @@ public class EncryptionHelper {
   public final static int ENCRYPTION_IV_LENGTH = 12;
   public final static String ALGORITHM_SYMMETRIC = "AES/GCM/NoPadding";
   public final static String MAGIC_NUMBER = "ME_ENC_01";
+  /**
+   * marks the chunked format of {@link ChunkedAead}, which is written by the streaming methods
+   */
+  public final static String MAGIC_NUMBER_V2 = "ME_ENC_02";
+
+  private static SecretKey cachedKey;
 
 
   public static byte[] generateRandom(int length) {
@@ -62,11 +66,24 @@ public class EncryptionHelper {
     return raw;
   }
 
-  public static SecretKey generateSymmetricKeyFromPassword(String password)
+  /**
+   * the key for the most recently used password is cached, since backups, pictures and sync
+   * files are usually all encrypted with the same password. The password itself is not kept:
+   * deriving the key only takes one SHA-256, so we compare the derived bytes with the cached key.
+   */
+  public static synchronized SecretKey generateSymmetricKeyFromPassword(String password)
       throws NoSuchAlgorithmException {
     MessageDigest sha = MessageDigest.getInstance("SHA-256");
-
-    return new SecretKeySpec(sha.digest(password.getBytes(StandardCharsets.UTF_8)), "AES");
+    final byte[] keyBytes = sha.digest(password.getBytes(StandardCharsets.UTF_8));
+    try {
+      if (cachedKey == null || !MessageDigest.isEqual(keyBytes, cachedKey.getEncoded())) {
+        cachedKey = new SecretKeySpec(keyBytes, "AES");
+      }
+      return cachedKey;
+    } finally {
+      //SecretKeySpec holds its own copy
+      Arrays.fill(keyBytes, (byte) 0);
+    }
   }
 
   public static byte[] encrypt(byte[] plaintext, String password) throws GeneralSecurityException {
@@ -112,20 +129,23 @@ public class EncryptionHelper {
 
   public static OutputStream encrypt(@NonNull OutputStream outputStream, String password)
       throws IOException, GeneralSecurityException {
-    outputStream.write(MAGIC_NUMBER.getBytes());
-    SecretKey key = generateSymmetricKeyFromPassword(password);
-    final Cipher cipher = Cipher.getInstance(ALGORITHM_SYMMETRIC);
-    final byte[] iv = generateRandom(ENCRYPTION_IV_LENGTH);
-    cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
-    outputStream.write(iv);
-    return new CipherOutputStream(outputStream, cipher);
+    outputStream.write(MAGIC_NUMBER_V2.getBytes());
+    return new ChunkedAead.EncryptingOutputStream(outputStream, generateSymmetricKeyFromPassword(password));
   }
 
+  /**
+   * reads streams in both the chunked format and the original format, where a single GCM tag
+   * covers the whole stream
+   */
   public static InputStream decrypt(InputStream inputStream, String password)
       throws IOException, GeneralSecurityException {
     byte[] magic = new byte[MAGIC_NUMBER.length()];
     read(inputStream, magic);
-    if (!MAGIC_NUMBER.equals(new String(magic))) {
+    final String magicNumber = new String(magic);
+    if (MAGIC_NUMBER_V2.equals(magicNumber)) {
+      return new ChunkedAead.DecryptingInputStream(inputStream, generateSymmetricKeyFromPassword(password));
+    }
+    if (!MAGIC_NUMBER.equals(magicNumber)) {
       throw new GeneralSecurityException("Invalid Magic Number");
     }
     byte[] iv = new byte[ENCRYPTION_IV_LENGTH];
@@ -160,27 +180,14 @@ public class EncryptionHelper {
     if (pb instanceof PushbackInputStream) {
       ((PushbackInputStream) pb).unread(magic);
     }
-    return MAGIC_NUMBER.equals(new String(magic));
+    final String magicNumber = new String(magic);
+    return MAGIC_NUMBER.equals(magicNumber) || MAGIC_NUMBER_V2.equals(magicNumber);
   }
 
   public static InputStream encrypt(InputStream inputStream, String password)
       throws GeneralSecurityException {
-    InputStream magicNumber = new ByteArrayInputStream(MAGIC_NUMBER.getBytes());
-    SecretKey key = generateSymmetricKeyFromPassword(password);
-    final Cipher cipher = Cipher.getInstance(ALGORITHM_SYMMETRIC);
-    final byte[] iv = generateRandom(ENCRYPTION_IV_LENGTH);
-    cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
-    InputStream ivStream = new ByteArrayInputStream(iv);
-    return new SequenceInputStream(Collections.enumeration(Arrays.asList(
-        magicNumber, ivStream, new CipherInputStream(inputStream, cipher) {
-          @Override
-          public void close() throws IOException {
-            try {
-              super.close();
-            } catch (IllegalStateException ignored) {
-              /* https://github.com/google/conscrypt/issues/548#issuecomment-426968330 */
-            }
-          }
-        })));
+    InputStream magicNumber = new ByteArrayInputStream(MAGIC_NUMBER_V2.getBytes());
+    return new SequenceInputStream(magicNumber,
+        new ChunkedAead.EncryptingInputStream(inputStream, generateSymmetricKeyFromPassword(password)));
   }
 }
@@ -77,8 +77,12 @@ open class BudgetViewModel(application: Application) :
                 VIEW_WITH_ACCOUNT
             )
             selectionArgs = filterPersistence.whereFilter.getSelectionArgs(true)
+            sumBuilder.appendBooleanQueryParameter(TransactionProvider.QUERY_PARAMETER_INCLUDE_ARCHIVE)
         } else {
             selectionArgs = null
+            if (useRollup) {
+                sumBuilder.appendBooleanQueryParameter(TransactionProvider.QUERY_PARAMETER_FROM_ROLLUP)
+            }
         }
 
         val allocationBuilder = ContentUris.withAppendedId(
@@ -99,12 +103,12 @@ open class BudgetViewModel(application: Application) :
         }
 
         combine(
-            contentResolver.observeQuery(
+            observeQueryCoalesced(
                 sumBuilder.build(),
                 null, filterClause, selectionArgs, null, true
             )
                 .mapToOne { cursor -> cursor.getLong(0) },
-            contentResolver.observeQuery(
+            observeQueryCoalesced(
                 uri = allocationBuilder.build()
             ).mapToOne(0) { it.getLong(0) }
         ) { spent, allocated ->
@@ -10,7 +10,6 @@ import androidx.lifecycle.SavedStateHandle
 import androidx.lifecycle.liveData
 import androidx.lifecycle.viewModelScope
 import app.cash.copper.flow.mapToOne
-import app.cash.copper.flow.observeQuery
 import arrow.core.Tuple5
 import kotlinx.coroutines.ExperimentalCoroutinesApi
 import kotlinx.coroutines.flow.Flow
@@ -74,7 +73,7 @@ class BudgetViewModel2(application: Application, savedStateHandle: SavedStateHan
     fun initWithBudget(budgetId: Long, groupingYear: Int, groupingSecond: Int) {
 
         viewModelScope.launch {
-            contentResolver.observeQuery(
+            observeQueryCoalesced(
                 TransactionProvider.BUDGETS_URI,
                 BudgetViewModel.PROJECTION,
                 "${BudgetViewModel.q(DatabaseConstants.KEY_ROWID)} = ?",
@@ -116,7 +115,7 @@ class BudgetViewModel2(application: Application, savedStateHandle: SavedStateHan
                     )
                 }
             }
-            contentResolver.observeQuery(
+            observeQueryCoalesced(
                 uri = builder.build()
             ).mapToOne(BudgetAllocation.EMPTY) {
                 BudgetAllocation(
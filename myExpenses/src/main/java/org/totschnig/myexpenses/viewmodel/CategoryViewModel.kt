@@ -13,7 +13,6 @@ import androidx.lifecycle.viewModelScope
 import androidx.lifecycle.viewmodel.compose.SavedStateHandleSaveableApi
 import androidx.lifecycle.viewmodel.compose.saveable
 import app.cash.copper.Query
-import app.cash.copper.flow.observeQuery
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.ExperimentalCoroutinesApi
 import kotlinx.coroutines.flow.Flow
@@ -137,7 +136,7 @@ open class CategoryViewModel(
         keepCriteria: ((Category) -> Boolean)? = null,
         withColors: Boolean = true
     ): Flow<Category> {
-        return contentResolver.observeQuery(
+        return observeQueryCoalesced(
             categoryUri(queryParameter),
             projection,
             selection,
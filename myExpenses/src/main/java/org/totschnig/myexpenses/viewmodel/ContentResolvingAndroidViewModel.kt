@@ -6,12 +6,14 @@ import android.content.ContentResolver
 import android.content.ContentUris
 import android.database.Cursor
 import android.database.sqlite.SQLiteConstraintException
+import android.net.Uri
 import androidx.datastore.core.DataStore
 import androidx.datastore.preferences.core.Preferences
 import androidx.lifecycle.LiveData
 import androidx.lifecycle.MutableLiveData
 import androidx.lifecycle.liveData
 import androidx.lifecycle.viewModelScope
+import app.cash.copper.Query
 import app.cash.copper.flow.mapToList
 import app.cash.copper.flow.mapToOne
 import app.cash.copper.flow.observeQuery
@@ -22,6 +24,7 @@ import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.emitAll
 import kotlinx.coroutines.flow.flow
 import kotlinx.coroutines.flow.flowOn
 import kotlinx.coroutines.flow.map
@@ -43,6 +46,7 @@ import org.totschnig.myexpenses.model.Transaction
 import org.totschnig.myexpenses.preference.PrefHandler
 import org.totschnig.myexpenses.preference.PrefKey
 import org.totschnig.myexpenses.provider.DatabaseConstants.*
+import org.totschnig.myexpenses.provider.InvalidationBus
 import org.totschnig.myexpenses.provider.TransactionProvider
 import org.totschnig.myexpenses.provider.TransactionProvider.*
 import org.totschnig.myexpenses.provider.checkForSealedDebt
@@ -83,6 +87,9 @@ abstract class ContentResolvingAndroidViewModel(application: Application) :
     @Inject
     lateinit var dataStore: DataStore<Preferences>
 
+    @Inject
+    lateinit var invalidationBus: InvalidationBus
+
     private val bulkDeleteStateInternal: MutableStateFlow<DeleteState?> = MutableStateFlow(null)
     val bulkDeleteState: StateFlow<DeleteState?> = bulkDeleteStateInternal
 
@@ -99,6 +106,35 @@ abstract class ContentResolvingAndroidViewModel(application: Application) :
 
     private val debts = MutableLiveData<List<Debt>>()
 
+    /**
+     * Re-queries at most once per coalescing window of [invalidationBus], see
+     * [InvalidationBus.observeQuery]. The bus is only accessed on collection, so that the flow can
+     * be set up during construction, before injection.
+     */
+    fun observeQueryCoalesced(
+        uri: Uri,
+        projection: Array<String>? = null,
+        selection: String? = null,
+        selectionArgs: Array<String>? = null,
+        sortOrder: String? = null,
+        notifyForDescendants: Boolean = false,
+        dependencies: List<Uri> = listOf(uri)
+    ): Flow<Query> = flow {
+        emitAll(
+            invalidationBus.observeQuery(
+                contentResolver, uri, projection, selection, selectionArgs, sortOrder,
+                notifyForDescendants, dependencies
+            )
+        )
+    }
+
+    /**
+     * if true, sums without filter other than dates are taken from the rollup of transactions,
+     * which is not used in safe mode
+     */
+    protected val useRollup: Boolean
+        get() = !prefHandler.getBoolean(PrefKey.DB_SAFE_MODE, false)
+
     val renderer: Flow<RenderType> by lazy {
         dataStore.data.map {
             if (it[prefHandler.getBooleanPreferencesKey(PrefKey.UI_ITEM_RENDERER_LEGACY)] == true)
@@ -233,6 +269,8 @@ abstract class ContentResolvingAndroidViewModel(application: Application) :
                     DeleteState.DeleteProgress(success + failure, ids.size)
                 }
             }
+            //flushes the notifications queued for the deleted transactions, which notifies their accounts
+            contentResolver.call(TransactionProvider.DUAL_URI, TransactionProvider.METHOD_BULK_END, null, null)
             contentResolver.notifyChange(TRANSACTIONS_URI, null, true)
             contentResolver.notifyChange(ACCOUNTS_URI, null, false)
             contentResolver.notifyChange(DEBTS_URI, null, false)
@@ -2,12 +2,14 @@ package org.totschnig.myexpenses.viewmodel
 
 import android.app.Application
 import android.content.ContentProviderOperation
+import android.content.ContentUris
 import android.net.Uri
 import android.text.TextUtils
 import androidx.lifecycle.LiveData
 import androidx.lifecycle.MutableLiveData
 import androidx.lifecycle.liveData
 import org.apache.commons.csv.CSVFormat
+import org.apache.commons.csv.CSVParser
 import org.apache.commons.csv.CSVRecord
 import org.apache.commons.text.StringTokenizer
 import org.apache.commons.text.matcher.StringMatcherFactory
@@ -27,30 +29,114 @@ import org.totschnig.myexpenses.model.Transfer
 import org.totschnig.myexpenses.model.extractTagIds
 import org.totschnig.myexpenses.model.saveTagLinks
 import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.provider.fingerprint
+import org.totschnig.myexpenses.util.crashreporting.CrashHandler
+import timber.log.Timber
 import java.io.InputStreamReader
 import java.math.BigDecimal
 
+/**
+ * @param records the first [CsvImportViewModel.PREVIEW_SIZE] records of the file, used for column mapping
+ * @param totalCount number of records in the whole file
+ */
+data class CsvPreview(val records: List<CSVRecord>, val totalCount: Int)
+
+data class CsvImportResult(val imported: Int, val accountLabel: String, val failed: Int, val duplicates: Int)
+
 class CsvImportViewModel(application: Application) : ContentResolvingAndroidViewModel(application) {
     private val _progress: MutableLiveData<Int> = MutableLiveData()
     val progress: LiveData<Int> = _progress
 
-    fun parseFile(uri: Uri, delimiter: Char, encoding: String): LiveData<Result<List<CSVRecord>>> =
+    private fun <T> withParser(uri: Uri, delimiter: Char, encoding: String, block: (CSVParser) -> T): T =
+        contentResolver.openInputStream(uri)?.use { inputStream ->
+            CSVFormat.DEFAULT.withDelimiter(delimiter).parse(InputStreamReader(inputStream, encoding)).use(block)
+        } ?: throw java.lang.Exception("OpenInputStream returned null")
+
+    /**
+     * Only the first [PREVIEW_SIZE] records are retained, the remainder of the file is only counted,
+     * so that memory usage does not depend on the size of the file.
+     */
+    fun parseFile(uri: Uri, delimiter: Char, encoding: String): LiveData<Result<CsvPreview>> =
             liveData(context = coroutineContext()) {
         try {
-            contentResolver.openInputStream(uri)?.use {
-                emit(Result.success(CSVFormat.DEFAULT.withDelimiter(delimiter).parse(InputStreamReader(it, encoding)).records))
-            } ?: throw java.lang.Exception("OpenInputStream returned null")
+            emit(Result.success(withParser(uri, delimiter, encoding) { parser ->
+                val preview = ArrayList<CSVRecord>()
+                var count = 0
+                for (record in parser) {
+                    if (count < PREVIEW_SIZE) {
+                        preview.add(record)
+                    }
+                    count++
+                }
+                CsvPreview(preview, count)
+            }))
+        } catch (e: Exception) {
+            emit(Result.failure(e))
+        }
+    }
+
+    /**
+     * Streams the file a second time and imports it in chunks of [chunkSize] records.
+     * @param discardedRows positions of records from the preview that should not be imported
+     */
+    fun importData(
+        uri: Uri,
+        delimiter: Char,
+        encoding: String,
+        discardedRows: Set<Int>,
+        columnToFieldMap: IntArray,
+        dateFormat: QifDateFormat,
+        autoFill: Boolean,
+        skipDuplicates: Boolean,
+        chunkSize: Int = IMPORT_CHUNK_SIZE,
+        accountCreator: () -> Account
+    ): LiveData<Result<CsvImportResult>> = liveData(context = coroutineContext()) {
+        try {
+            emit(withParser(uri, delimiter, encoding) { parser ->
+                importRecords(
+                    parser.asSequence()
+                        .filter { !discardedRows.contains((it.recordNumber - 1).toInt()) }
+                        .chunked(chunkSize),
+                    columnToFieldMap, dateFormat, autoFill, skipDuplicates, accountCreator
+                )
+            })
         } catch (e: Exception) {
             emit(Result.failure(e))
         }
     }
 
-    fun importData(data: List<CSVRecord>, columnToFieldMap: IntArray, dateFormat: QifDateFormat, autoFill: Boolean, accountCreator: () -> Account): LiveData<Result<Pair<Pair<Int, String>, Int>>> = liveData(context = coroutineContext()) {
+    /**
+     * Payees and categories are resolved through maps preloaded in bulk, each chunk is committed
+     * with one [android.content.ContentResolver.applyBatch] while the provider is in bulk mode,
+     * so that change notifications are only dispatched once at the end. If the batch of a chunk
+     * fails, its records are committed one by one, a split together with its parts, so that only
+     * the records that fail are lost.
+     * If [skipDuplicates] is set, records whose fingerprint matches a transaction that already
+     * existed in the account before the import are skipped, together with their split parts.
+     */
+    private fun importRecords(
+        chunks: Sequence<List<CSVRecord>>,
+        columnToFieldMap: IntArray,
+        dateFormat: QifDateFormat,
+        autoFill: Boolean,
+        skipDuplicates: Boolean,
+        accountCreator: () -> Account
+    ): Result<CsvImportResult> {
         var totalImported = 0
         var totalFailed = 0
-        val payeeCache: MutableMap<String, Pair<Long, AutoFillInfo>> = HashMap()
-        val categoryToId: MutableMap<String, Long> = HashMap()
+        var totalDuplicates = 0
+        val payeeToId = repository.loadPayeeMap()
+        val autoFillCache: MutableMap<Long, AutoFillInfo?> = HashMap()
+        val categoryToId = repository.loadCategoryPathMap()
+        val methodToId: MutableMap<String, Long> = HashMap()
+        val accountToId: MutableMap<String, Long> = HashMap()
+        val tagToId: MutableMap<String, Long> = HashMap()
         val account: Account = accountCreator()
+        //only transactions that existed before the import count, identical rows in the file are kept
+        val existingFingerprints: Set<String> = if (skipDuplicates) repository.loadFingerprints(account.id) else emptySet()
+        var skipSplitParts = false
+        //parts of a split whose parent or previous parts were in a chunk that failed
+        var skipFailedSplitParts = false
         val columnIndexAmount: Int = columnToFieldMap.indexOf(R.string.amount)
         val columnIndexExpense: Int = columnToFieldMap.indexOf(R.string.expense)
         val columnIndexIncome: Int = columnToFieldMap.indexOf(R.string.income)
@@ -64,147 +150,242 @@ class CsvImportViewModel(application: Application) : ContentResolvingAndroidView
         val columnIndexStatus: Int = columnToFieldMap.indexOf(R.string.status)
         val columnIndexNumber: Int = columnToFieldMap.indexOf(R.string.reference_number)
         val columnIndexSplit: Int = columnToFieldMap.indexOf(R.string.split_transaction)
+        val columnIndexTags: Int = columnToFieldMap.indexOf(R.string.tags)
+        val localizedMethods = PreDefinedPaymentMethod.values().associateBy { it.getLocalizedLabel(getApplication()) }
+        val transferLabel = localizedContext.getString(R.string.transfer)
+
+        fun findTransferAccount(label: String) = accountToId.getOrPut(label) { Account.findAnyOpen(label) }
 
         var isSplitParent = false
         var isSplitPart = false
         var t: Transaction
+        //id of the current split parent once it has been committed
         var splitParent: Long? = null
+        val startTime = System.currentTimeMillis()
         contentResolver.call(TransactionProvider.DUAL_URI, TransactionProvider.METHOD_BULK_START, null, null)
-        for (i in data.indices) {
-            var transferAccountId: Long = -1
-            val record: CSVRecord = data[i]
-            var categoryInfo: String? = null
-            if (columnIndexSplit != -1) {
-                isSplitPart = saveGetFromRecord(record, columnIndexSplit) == SplitTransaction.CSV_PART_INDICATOR
-                isSplitParent = saveGetFromRecord(record, columnIndexSplit) == SplitTransaction.CSV_INDICATOR
-            }
-            val amount = try {
-                if (columnIndexAmount != -1) {
-                    QifUtils.parseMoney(saveGetFromRecord(record, columnIndexAmount), account.currencyUnit)
-                } else {
-                    val income = if (columnIndexIncome != -1) QifUtils.parseMoney(saveGetFromRecord(record, columnIndexIncome), account.currencyUnit).abs() else BigDecimal(0)
-                    val expense = if (columnIndexExpense != -1) QifUtils.parseMoney(saveGetFromRecord(record, columnIndexExpense), account.currencyUnit).abs() else BigDecimal(0)
-                    income.subtract(expense)
-                }
-            } catch (e: IllegalArgumentException) {
-                emit(Result.failure(Exception("Amounts in data exceed storage limit")))
-                return@liveData
-            }
-            val m = Money(account.currencyUnit, amount)
-            if (!isSplitParent && columnIndexCategory != -1) {
-                val category: String = saveGetFromRecord(record, columnIndexCategory)
-                if (category != "") {
-                    val subCategory = if (columnIndexSubcategory != -1) saveGetFromRecord(record, columnIndexSubcategory) else ""
-                    if (category == localizedContext.getString(R.string.transfer) &&
-                            subCategory != "" &&
-                            QifUtils.isTransferCategory(subCategory)) {
-                        transferAccountId = Account.findAnyOpen(subCategory.substring(1, subCategory.length - 1))
-                    } else if (QifUtils.isTransferCategory(category)) {
-                        transferAccountId = Account.findAnyOpen(category.substring(1, category.length - 1))
-                    }
-                    if (transferAccountId == -1L) {
-                        categoryInfo = category
-                        if (subCategory != "") {
-                            categoryInfo += ":$subCategory"
+        try {
+            for (chunk in chunks) {
+                val pending = ArrayList<PendingRecord>()
+                //the split parent whose parts are still being read, as long as it is not committed
+                var openSplit: PendingRecord? = null
+                for (record in chunk) {
+                    var transferAccountId: Long = -1
+                    var categoryInfo: String? = null
+                    if (columnIndexSplit != -1) {
+                        isSplitPart = saveGetFromRecord(record, columnIndexSplit) == SplitTransaction.CSV_PART_INDICATOR
+                        isSplitParent = saveGetFromRecord(record, columnIndexSplit) == SplitTransaction.CSV_INDICATOR
+                    }
+                    if (isSplitPart && skipSplitParts) continue
+                    if (isSplitPart && skipFailedSplitParts) {
+                        totalFailed++
+                        continue
+                    }
+                    val amount = try {
+                        if (columnIndexAmount != -1) {
+                            QifUtils.parseMoney(saveGetFromRecord(record, columnIndexAmount), account.currencyUnit)
+                        } else {
+                            val income = if (columnIndexIncome != -1) QifUtils.parseMoney(saveGetFromRecord(record, columnIndexIncome), account.currencyUnit).abs() else BigDecimal(0)
+                            val expense = if (columnIndexExpense != -1) QifUtils.parseMoney(saveGetFromRecord(record, columnIndexExpense), account.currencyUnit).abs() else BigDecimal(0)
+                            income.subtract(expense)
                         }
+                    } catch (e: IllegalArgumentException) {
+                        return Result.failure(Exception("Amounts in data exceed storage limit"))
                     }
-                }
-            }
-            if (isSplitPart) {
-                if (transferAccountId != -1L) {
-                    t = Transfer.getNewInstance(account.id, transferAccountId, splitParent)
-                    t.setAmount(m)
-                } else {
-                    t = Transaction.getNewInstance(account.id, splitParent)
-                    t.amount = m
-                }
-            } else {
-                t = if (isSplitParent) {
-                    SplitTransaction(account.id, m)
-                } else {
-                    if (transferAccountId != -1L) {
-                        Transfer(account.id, m, transferAccountId)
+                    val m = Money(account.currencyUnit, amount)
+                    if (!isSplitParent && columnIndexCategory != -1) {
+                        val category: String = saveGetFromRecord(record, columnIndexCategory)
+                        if (category != "") {
+                            val subCategory = if (columnIndexSubcategory != -1) saveGetFromRecord(record, columnIndexSubcategory) else ""
+                            if (category == transferLabel &&
+                                    subCategory != "" &&
+                                    QifUtils.isTransferCategory(subCategory)) {
+                                transferAccountId = findTransferAccount(subCategory.substring(1, subCategory.length - 1))
+                            } else if (QifUtils.isTransferCategory(category)) {
+                                transferAccountId = findTransferAccount(category.substring(1, category.length - 1))
+                            }
+                            if (transferAccountId == -1L) {
+                                categoryInfo = category
+                                if (subCategory != "") {
+                                    categoryInfo += ":$subCategory"
+                                }
+                            }
+                        }
+                    }
+                    t = if (isSplitPart) {
+                        if (transferAccountId != -1L) {
+                            Transfer(account.id, m, transferAccountId, splitParent)
+                        } else {
+                            Transaction(account.id, m, splitParent)
+                        }
                     } else {
-                        Transaction(account.id, m)
+                        if (isSplitParent) {
+                            SplitTransaction(account.id, m)
+                        } else {
+                            if (transferAccountId != -1L) {
+                                Transfer(account.id, m, transferAccountId)
+                            } else {
+                                Transaction(account.id, m)
+                            }
+                        }
                     }
-                }
-            }
-            if (!TextUtils.isEmpty(categoryInfo)) {
-                CategoryHelper.insert(repository, categoryInfo!!, categoryToId, false)
-                t.catId = categoryToId[categoryInfo]
-            }
-            if (columnIndexDate != -1) {
-                t.date = QifUtils.parseDate(saveGetFromRecord(record, columnIndexDate), dateFormat).time / 1000
-            }
-            if (columnIndexValueDate != -1) {
-                t.valueDate = QifUtils.parseDate(saveGetFromRecord(record, columnIndexValueDate), dateFormat).time / 1000
-            }
-            if (columnIndexPayee != -1) {
-                val payee: String = saveGetFromRecord(record, columnIndexPayee)
-                if (payee != "") {
-                    val payeeInfo = payeeCache[payee] ?: run {
-                        repository.findOrWritePayeeInfo(payee, autoFill && t.catId == null)
+                    if (!TextUtils.isEmpty(categoryInfo)) {
+                        t.catId = categoryToId[categoryInfo] ?: run {
+                            CategoryHelper.insert(repository, categoryInfo!!, categoryToId, false)
+                            categoryToId[categoryInfo]
+                        }
                     }
-                    t.payeeId = payeeInfo.first
-                    payeeInfo.second?.categoryId?.let {
-                        t.catId = it
+                    if (columnIndexDate != -1) {
+                        t.date = QifUtils.parseDate(saveGetFromRecord(record, columnIndexDate), dateFormat).time / 1000
                     }
-                }
-            }
-            if (columnIndexNotes != -1) {
-                t.comment = saveGetFromRecord(record, columnIndexNotes)
-            }
-            if (columnIndexMethod != -1) {
-                var method: String = saveGetFromRecord(record, columnIndexMethod)
-                if (method != "") {
-                    for (preDefined in PreDefinedPaymentMethod.values()) {
-                        if (preDefined.getLocalizedLabel(getApplication()) == method) {
-                            method = preDefined.name
-                            break
+                    if (columnIndexValueDate != -1) {
+                        t.valueDate = QifUtils.parseDate(saveGetFromRecord(record, columnIndexValueDate), dateFormat).time / 1000
+                    }
+                    if (!isSplitPart) {
+                        skipSplitParts = false
+                        skipFailedSplitParts = false
+                        if (existingFingerprints.isNotEmpty() && existingFingerprints.contains(
+                                fingerprint(
+                                    account.id, t.date, m.amountMinor,
+                                    if (columnIndexPayee != -1) saveGetFromRecord(record, columnIndexPayee) else null,
+                                    if (columnIndexNotes != -1) saveGetFromRecord(record, columnIndexNotes) else null
+                                )
+                            )
+                        ) {
+                            totalDuplicates++
+                            skipSplitParts = isSplitParent
+                            continue
                         }
                     }
-                    val methodId = PaymentMethod.find(method)
-                    if (methodId != -1L) {
-                        t.methodId = methodId
+                    if (columnIndexPayee != -1) {
+                        val payee: String = saveGetFromRecord(record, columnIndexPayee)
+                        if (payee != "") {
+                            val payeeInfo = repository.findOrWritePayeeInfo(payee, autoFill && t.catId == null, payeeToId, autoFillCache)
+                            t.payeeId = payeeInfo.first
+                            payeeInfo.second?.categoryId?.let {
+                                t.catId = it
+                            }
+                        }
+                    }
+                    if (columnIndexNotes != -1) {
+                        t.comment = saveGetFromRecord(record, columnIndexNotes)
+                    }
+                    if (columnIndexMethod != -1) {
+                        val method: String = saveGetFromRecord(record, columnIndexMethod)
+                        if (method != "") {
+                            val methodId = methodToId.getOrPut(method) {
+                                PaymentMethod.find(localizedMethods[method]?.name ?: method)
+                            }
+                            if (methodId != -1L) {
+                                t.methodId = methodId
+                            }
+                        }
+                    }
+                    if (columnIndexStatus != -1) {
+                        t.crStatus = CrStatus.fromQifName(saveGetFromRecord(record, columnIndexStatus))
+                    }
+                    if (columnIndexNumber != -1) {
+                        t.referenceNumber = saveGetFromRecord(record, columnIndexNumber)
+                    }
+                    if (isSplitParent) {
+                        splitParent = null
+                    }
+                    val tagIds = if (columnIndexTags != -1) {
+                        saveGetFromRecord(record, columnIndexTags).takeIf { it != "" }?.let { tagList ->
+                            val tokenizer = StringTokenizer(tagList)
+                            tokenizer.quoteMatcher = StringMatcherFactory.INSTANCE.quoteMatcher()
+                            tokenizer.delimiterMatcher = StringMatcherFactory.INSTANCE.commaMatcher()
+                            extractTagIds(tokenizer.tokenList, tagToId)
+                        }
+                    } else null
+                    val parentInChunk = openSplit
+                    if (isSplitPart && parentInChunk != null) {
+                        parentInChunk.add(t, tagIds)
+                    } else {
+                        val pendingRecord = PendingRecord(!isSplitPart).apply { add(t, tagIds) }
+                        pending.add(pendingRecord)
+                        openSplit = if (isSplitParent) pendingRecord else null
                     }
                 }
-            }
-            if (columnIndexStatus != -1) {
-                t.crStatus = CrStatus.fromQifName(saveGetFromRecord(record, columnIndexStatus))
-            }
-            if (columnIndexNumber != -1) {
-                t.referenceNumber = saveGetFromRecord(record, columnIndexNumber)
-            }
-            val ops = ArrayList<ContentProviderOperation>()
-            ops.addAll(t.buildSaveOperations(false))
-            columnToFieldMap.indexOf(R.string.tags).takeIf { it != -1 }?.let { it ->
-                saveGetFromRecord(record, it).takeIf { it != "" }?.let { tagList ->
-                    val tokenizer = StringTokenizer(tagList)
-                    tokenizer.quoteMatcher = StringMatcherFactory.INSTANCE.quoteMatcher()
-                    tokenizer.delimiterMatcher = StringMatcherFactory.INSTANCE.commaMatcher()
-                    ops.addAll(saveTagLinks(extractTagIds(tokenizer.tokenList, java.util.HashMap()), null, 0, false))
+                val ops = ArrayList<ContentProviderOperation>()
+                val offsets = pending.map { it.addOperations(ops) }
+                try {
+                    val result = contentResolver.applyBatch(TransactionProvider.AUTHORITY, ops)
+                    openSplit?.let {
+                        //parts of the split in the next chunk reference the parent by id
+                        splitParent = ContentUris.parseId(result[offsets[pending.indexOf(it)]].uri!!)
+                    }
+                    totalImported += pending.count { it.countsAsImported }
+                } catch (e: Exception) {
+                    CrashHandler.report(e)
+                    //we retry record by record, so that only the records that fail are lost
+                    for (record in pending) {
+                        val recordOps = ArrayList<ContentProviderOperation>()
+                        record.addOperations(recordOps)
+                        try {
+                            val result = contentResolver.applyBatch(TransactionProvider.AUTHORITY, recordOps)
+                            if (record === openSplit) {
+                                splitParent = ContentUris.parseId(result[0].uri!!)
+                            }
+                            if (record.countsAsImported) totalImported++
+                        } catch (recordException: Exception) {
+                            Timber.w(recordException)
+                            if (record === openSplit) {
+                                splitParent = null
+                                //without their parent, remaining parts would be imported as standalone transactions
+                                skipFailedSplitParts = true
+                            }
+                            if (record.countsAsImported) totalFailed++
+                        }
+                    }
                 }
+                _progress.postValue(totalImported)
+                Timber.d("Imported %d rows, %d rows/s", totalImported, rowsPerSecond(totalImported, startTime))
             }
+        } finally {
+            contentResolver.call(TransactionProvider.DUAL_URI, TransactionProvider.METHOD_BULK_END, null, null)
+        }
+        Timber.i("Imported %d rows in %d ms, %d rows/s", totalImported, System.currentTimeMillis() - startTime, rowsPerSecond(totalImported, startTime))
+        return Result.success(CsvImportResult(totalImported, account.label, totalFailed, totalDuplicates))
+    }
 
-            val result = contentResolver.applyBatch(TransactionProvider.AUTHORITY, ops)
-            if (result.size == ops.size) {
-                if (isSplitParent) {
-                    t.updateFromResult(result)
-                    splitParent = t.id
-                }
-                if (!isSplitPart) {
-                    totalImported++
-                }
-            } else {
-                totalFailed++
+    /**
+     * A transaction read from one record, together with the parts that follow it in the same chunk,
+     * if it is a split, so that it can be saved on its own if the batch of its chunk fails.
+     * @param countsAsImported false for parts of a split whose parent was committed with an earlier chunk
+     */
+    private class PendingRecord(val countsAsImported: Boolean) {
+        private val transactions = ArrayList<Pair<Transaction, List<Long>?>>()
+
+        fun add(transaction: Transaction, tagIds: List<Long>?) {
+            transactions.add(transaction to tagIds)
+        }
+
+        /**
+         * @return the position of the first operation, which saves the parent of the parts
+         */
+        fun addOperations(ops: ArrayList<ContentProviderOperation>): Int {
+            val parentOffset = ops.size
+            transactions.forEachIndexed { index, (transaction, tagIds) ->
+                val offset = ops.size
+                ops.addAll(transaction.buildSaveOperations(offset, if (index == 0) -1 else parentOffset, false, false))
+                tagIds?.let { ops.addAll(saveTagLinks(it, null, offset, false)) }
             }
-            _progress.postValue(totalImported)
+            return parentOffset
         }
-        contentResolver.call(TransactionProvider.DUAL_URI, TransactionProvider.METHOD_BULK_END, null, null)
-        emit(Result.success(Pair(Pair(totalImported, account.label), totalFailed)))
     }
 
+    private fun rowsPerSecond(rows: Int, startTime: Long) =
+        rows * 1000L / (System.currentTimeMillis() - startTime).coerceAtLeast(1)
+
     private fun saveGetFromRecord(record: CSVRecord, index: Int): String {
         return if (record.size() > index) record[index].trim() else ""
     }
+
+    companion object {
+        const val PREVIEW_SIZE = 100
+        /**
+         * number of records committed in one batch
+         */
+        const val IMPORT_CHUNK_SIZE = 500
+    }
 }
\ No newline at end of file
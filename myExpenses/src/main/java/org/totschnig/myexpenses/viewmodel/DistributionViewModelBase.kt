@@ -24,6 +24,9 @@ import org.totschnig.myexpenses.provider.TransactionProvider
 import org.totschnig.myexpenses.provider.appendBooleanQueryParameter
 import org.totschnig.myexpenses.provider.asSequence
 import org.totschnig.myexpenses.provider.filter.WhereFilter
+import org.totschnig.myexpenses.provider.includingArchive
+import org.totschnig.myexpenses.provider.rollupCategorySum
+import org.totschnig.myexpenses.provider.withArchive
 import org.totschnig.myexpenses.viewmodel.data.*
 import java.util.*
 
@@ -261,21 +264,29 @@ abstract class DistributionViewModelBase<T : DistributionAccountInfo>(
                 (accountInfo as? Budget)?.id?.let { add(it.toString()) }
                 addAll(whereFilter.getSelectionArgs(true))
             }.toTypedArray(),
-            queryParameter = queryParameter,
+            queryParameter = if (sumsFromRollup(whereFilter))
+                queryParameter + (TransactionProvider.QUERY_PARAMETER_FROM_ROLLUP to "1")
+            else queryParameter,
             keepCriteria = keepCriteria
         )
 
+    /**
+     * without a filter on individual transactions, the sums are taken from the rollup
+     */
+    private fun sumsFromRollup(whereFilter: WhereFilter) = whereFilter.isEmpty && useRollup
+
     private fun sumColumn(
         accountInfo: T,
         incomeType: Boolean?,
         grouping: GroupingInfo,
         whereFilter: WhereFilter
     ): String {
+        val forHome = accountInfo.accountId == Account.HOME_AGGREGATE_ID
         val accountSelection: String?
         var amountCalculation = KEY_AMOUNT
         var table = VIEW_COMMITTED
         when {
-            accountInfo.accountId == Account.HOME_AGGREGATE_ID -> {
+            forHome -> {
                 accountSelection = null
                 amountCalculation =
                     getAmountHomeEquivalent(VIEW_WITH_ACCOUNT)
@@ -289,8 +300,18 @@ abstract class DistributionViewModelBase<T : DistributionAccountInfo>(
                 accountSelection = " = ${accountInfo.accountId}"
             }
         }
+        if (sumsFromRollup(whereFilter)) {
+            val rollupFilter = listOfNotNull(
+                accountSelection?.let { "+$KEY_ACCOUNTID$it" },
+                "$KEY_CATID = $TREE_CATEGORIES.$KEY_ROWID",
+                dateFilterClause(grouping)
+            ).joinToString(" AND ")
+            return "(SELECT ${rollupCategorySum(forHome, incomeType)} FROM $VIEW_ROLLUP_WITH_ACCOUNT WHERE $rollupFilter) AS $KEY_SUM"
+        }
+        //like the filtered transaction list, filtered sums reach into the archive
+        val source = if (whereFilter.isEmpty) table else withArchive(table)
         var catFilter =
-            "FROM $table WHERE ${WHERE_NOT_VOID}${if (accountSelection == null) "" else " AND +${KEY_ACCOUNTID}$accountSelection"} AND $KEY_CATID = $TREE_CATEGORIES.${KEY_ROWID}"
+            "FROM $source WHERE ${WHERE_NOT_VOID}${if (accountSelection == null) "" else " AND +${KEY_ACCOUNTID}$accountSelection"} AND $KEY_CATID = $TREE_CATEGORIES.${KEY_ROWID}"
         if (incomeType != null) {
             catFilter += " AND " + KEY_AMOUNT + (if (incomeType) ">" else "<") + "0"
         }
@@ -358,8 +379,8 @@ abstract class DistributionViewModelBase<T : DistributionAccountInfo>(
                 }
             }
             //if we have no income or expense, there is no row in the cursor
-            contentResolver.observeQuery(
-                builder.build(),
+            observeQueryCoalesced(
+                builder.build().let { if (whereFilter.isEmpty) it else it.includingArchive() },
                 null,
                 buildFilterClause(grouping, whereFilter, VIEW_WITH_ACCOUNT),
                 whereFilter.getSelectionArgs(true),
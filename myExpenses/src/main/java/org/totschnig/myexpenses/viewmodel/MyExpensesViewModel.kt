@@ -24,11 +24,13 @@ import androidx.paging.PagingConfig
 import androidx.paging.PagingData
 import androidx.paging.cachedIn
 import app.cash.copper.flow.mapToOne
-import app.cash.copper.flow.observeQuery
 import com.google.accompanist.pager.ExperimentalPagerApi
 import com.google.accompanist.pager.PagerState
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.FlowPreview
+import kotlinx.coroutines.async
+import kotlinx.coroutines.channels.BufferOverflow
 import kotlinx.coroutines.flow.*
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
@@ -59,7 +61,9 @@ import org.totschnig.myexpenses.util.enumValueOrDefault
 import org.totschnig.myexpenses.util.licence.LicenceHandler
 import org.totschnig.myexpenses.util.toggle
 import org.totschnig.myexpenses.viewmodel.data.*
+import java.io.File
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 import javax.inject.Inject
 
 open class MyExpensesViewModel(
@@ -193,16 +197,69 @@ open class MyExpensesViewModel(
     val pageSize = if (BuildConfig.DEBUG) 1500 else 150
 
     val items: Map<PageAccount, Flow<PagingData<Transaction2>>> = lazyMap {
-        Pager(
-            PagingConfig(
-                initialLoadSize = pageSize,
-                pageSize = pageSize,
-                prefetchDistance = 1,
-                enablePlaceholders = true
-            ),
-            pagingSourceFactory = pagingSourceFactories.getValue(it)
+        flow {
+            if (!liveFirstPages.containsKey(it.id)) {
+                warmStartFor(it)?.let { snapshot -> emit(PagingData.from(snapshot.firstPage)) }
+            }
+            emitAll(
+                Pager(
+                    PagingConfig(
+                        initialLoadSize = pageSize,
+                        pageSize = pageSize,
+                        prefetchDistance = 1,
+                        enablePlaceholders = true
+                    ),
+                    pagingSourceFactory = pagingSourceFactories.getValue(it)
+                ).flow
+            )
+        }.cachedIn(viewModelScope)
+    }
+
+    private val warmStartCache by lazy {
+        WarmStartCache(
+            File(getApplication<Application>().cacheDir, WarmStartCache.FILE_NAME),
+            currencyContext
         )
-            .flow.cachedIn(viewModelScope)
+    }
+
+    /**
+     * read on first use, which is the first collection of [accountData]
+     */
+    private val warmStart by lazy {
+        viewModelScope.async(Dispatchers.IO) { warmStartCache.read() }
+    }
+
+    /**
+     * The snapshot, if it has been taken for [account] in its current grouping without filter.
+     * Callers only use it as long as they have not received live data, which supersedes it, so
+     * that a restarted flow does not show stale data from the snapshot again.
+     */
+    private suspend fun warmStartFor(account: PageAccount) = warmStart.await()?.takeIf {
+        it.accountId == account.id && it.grouping == account.grouping &&
+                filterPersistence.getValue(account.id).whereFilter.isEmpty
+    }
+
+    private val liveAccounts = MutableStateFlow<List<FullAccount>?>(null)
+    private val liveHeaders = ConcurrentHashMap<Long, Pair<Grouping, Map<Int, HeaderRow>>>()
+    private val liveFirstPages = ConcurrentHashMap<Long, List<Transaction2>>()
+    private val warmStartContentChanged = MutableSharedFlow<Unit>(
+        extraBufferCapacity = 1,
+        onBufferOverflow = BufferOverflow.DROP_OLDEST
+    )
+
+    init {
+        viewModelScope.launch(Dispatchers.IO) {
+            @OptIn(FlowPreview::class)
+            warmStartContentChanged.debounce(WARM_START_WRITE_DELAY).collect {
+                val accounts = liveAccounts.value ?: return@collect
+                val accountId = selectedAccount
+                val header = liveHeaders[accountId] ?: return@collect
+                val firstPage = liveFirstPages[accountId] ?: return@collect
+                warmStartCache.write(
+                    WarmStartCache.Snapshot(accounts, accountId, header.first, header.second, firstPage)
+                )
+            }
+        }
     }
 
     @OptIn(ExperimentalPagerApi::class, SavedStateHandleSaveableApi::class)
@@ -227,7 +284,10 @@ open class MyExpensesViewModel(
             account,
             filterPersistence.getValue(account.id).whereFilterAsFlow,
             viewModelScope
-        )
+        ) {
+            liveFirstPages[account.id] = it.take(WARM_START_PAGE_SIZE)
+            warmStartContentChanged.tryEmit(Unit)
+        }
 
 
     val currentFilter: FilterPersistence
@@ -253,7 +313,7 @@ open class MyExpensesViewModel(
             )
         }
 
-    val accountData: StateFlow<Result<List<FullAccount>>?> = contentResolver.observeQuery(
+    val accountData: StateFlow<Result<List<FullAccount>>?> = observeQueryCoalesced(
         uri = ACCOUNTS_URI.buildUpon()
             .appendBooleanQueryParameter(QUERY_PARAMETER_MERGE_CURRENCY_AGGREGATES)
             .appendBooleanQueryParameter(QUERY_PARAMETER_WITH_HIDDEN_ACCOUNT_COUNT)
@@ -269,16 +329,29 @@ open class MyExpensesViewModel(
             }
         }
         .map { result -> result.map { it.second } }
+        .onEach { result ->
+            result.onSuccess {
+                liveAccounts.value = it
+                warmStartContentChanged.tryEmit(Unit)
+            }
+        }
+        .onStart {
+            if (liveAccounts.value == null) {
+                warmStart.await()?.let { emit(Result.success(it.accounts)) }
+            }
+        }
         .stateIn(viewModelScope, SharingStarted.Lazily, null)
 
     @OptIn(ExperimentalCoroutinesApi::class)
     fun headerData(account: PageAccount): Flow<HeaderData> =
         filterPersistence.getValue(account.id).whereFilterAsFlow.flatMapLatest { filter ->
             val groupingQuery = account.groupingQuery(filter)
-            contentResolver.observeQuery(
+            observeQueryCoalesced(
                 uri = groupingQuery.first,
                 selection = groupingQuery.second,
-                selectionArgs = groupingQuery.third
+                selectionArgs = groupingQuery.third,
+                notifyForDescendants = account.isAggregate,
+                dependencies = listOf(account.changesUri)
             ).map { query ->
                 withContext(Dispatchers.IO) {
                     try {
@@ -290,6 +363,15 @@ open class MyExpensesViewModel(
                         HeaderData.fromSequence(account, cursor.asSequence)
                     } ?: emptyMap()
                 }
+            }.onEach {
+                if (filter.isEmpty) {
+                    liveHeaders[account.id] = account.grouping to it
+                    warmStartContentChanged.tryEmit(Unit)
+                }
+            }.onStart {
+                if (!liveHeaders.containsKey(account.id)) {
+                    warmStartFor(account)?.let { emit(it.headerGroups) }
+                }
             }.combine(dateInfo) { headerData, dateInfo ->
                 HeaderData(account, headerData, dateInfo, !filter.isEmpty)
             }
@@ -298,7 +380,7 @@ open class MyExpensesViewModel(
 
     fun budgetData(account: PageAccount): Flow<BudgetData?> =
         if (licenceHandler.hasTrialAccessTo(ContribFeature.BUDGET)) {
-            contentResolver.observeQuery(
+            observeQueryCoalesced(
                 uri = BaseTransactionProvider.defaultBudgetAllocationUri(
                     account.id,
                     account.grouping
@@ -323,12 +405,14 @@ open class MyExpensesViewModel(
                 }
         } else emptyFlow()
 
-    fun sumInfo(account: FullAccount): Flow<SumInfo> = contentResolver.observeQuery(
+    fun sumInfo(account: FullAccount): Flow<SumInfo> = observeQueryCoalesced(
         uri = TRANSACTIONS_URI.buildUpon()
             .appendBooleanQueryParameter(QUERY_PARAMETER_MAPPED_OBJECTS)
             .build(),
         selection = account.selection,
-        selectionArgs = account.selectionArgs
+        selectionArgs = account.selectionArgs,
+        notifyForDescendants = account.isAggregate,
+        dependencies = listOf(account.changesUri)
     ).mapToOne {
         SumInfoLoaded.fromCursor(it)
     }
@@ -675,6 +759,12 @@ open class MyExpensesViewModel(
     }
 
     companion object {
+        /**
+         * enough rows to fill the first screen
+         */
+        const val WARM_START_PAGE_SIZE = 50
+        const val WARM_START_WRITE_DELAY = 1000L
+
         fun prefNameForCriteria(accountId: Long) = "filter_%s_${accountId}"
     }
 }
@@ -18,6 +18,7 @@ import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.SharedFlow
 import kotlinx.coroutines.flow.StateFlow
 import kotlinx.coroutines.flow.update
+import kotlinx.coroutines.job
 import kotlinx.coroutines.launch
 import org.totschnig.myexpenses.MyApplication
 import org.totschnig.myexpenses.R
@@ -25,7 +26,9 @@ import org.totschnig.myexpenses.model.Account
 import org.totschnig.myexpenses.model.Template
 import org.totschnig.myexpenses.preference.PrefKey
 import org.totschnig.myexpenses.provider.BACKUP_DB_FILE_NAME
+import org.totschnig.myexpenses.provider.BACKUP_PICTURE_STORE_DIR_NAME
 import org.totschnig.myexpenses.provider.BACKUP_PREF_FILE_NAME
+import org.totschnig.myexpenses.provider.BackupPictureStore
 import org.totschnig.myexpenses.provider.CALENDAR_FULL_PATH_PROJECTION
 import org.totschnig.myexpenses.provider.DATABASE_VERSION
 import org.totschnig.myexpenses.provider.DatabaseConstants
@@ -33,16 +36,14 @@ import org.totschnig.myexpenses.provider.DatabaseVersionPeekHelper
 import org.totschnig.myexpenses.provider.DbUtils
 import org.totschnig.myexpenses.provider.TransactionProvider
 import org.totschnig.myexpenses.provider.filter.WhereFilter
-import org.totschnig.myexpenses.provider.getBackupDbFile
-import org.totschnig.myexpenses.provider.getBackupPrefFile
 import org.totschnig.myexpenses.provider.getCalendarPath
 import org.totschnig.myexpenses.sync.GenericAccountService
 import org.totschnig.myexpenses.sync.SyncAdapter
 import org.totschnig.myexpenses.sync.SyncBackendProvider
 import org.totschnig.myexpenses.sync.SyncBackendProviderFactory
 import org.totschnig.myexpenses.util.AppDirHelper
+import org.totschnig.myexpenses.util.BackupArchiveExtractor
 import org.totschnig.myexpenses.util.PictureDirHelper
-import org.totschnig.myexpenses.util.ZipUtils
 import org.totschnig.myexpenses.util.crashreporting.CrashHandler
 import org.totschnig.myexpenses.util.crypt.EncryptionHelper
 import org.totschnig.myexpenses.util.io.FileCopyUtils
@@ -57,10 +58,16 @@ import javax.inject.Inject
 class RestoreViewModel(application: Application) : ContentResolvingAndroidViewModel(application) {
 
     private val _publishProgress: MutableSharedFlow<String?> = MutableSharedFlow()
+    private val _restoredEntries: MutableStateFlow<Int?> = MutableStateFlow(null)
     private val _result: MutableStateFlow<Result<Unit>?> = MutableStateFlow(null)
     val publishProgress: SharedFlow<String?> = _publishProgress
     val result: StateFlow<Result<Unit>?> = _result
 
+    /**
+     * number of entries read from the archive
+     */
+    val restoredEntries: StateFlow<Int?> = _restoredEntries
+
     @Inject
     lateinit var versionPeekHelper: DatabaseVersionPeekHelper
 
@@ -101,14 +108,48 @@ class RestoreViewModel(application: Application) : ContentResolvingAndroidViewMo
             val backupFromSync: String? =
                 if (fileUri == null) args.getString(KEY_BACKUP_FROM_SYNC) else null
             val password: String? = args.getString(KEY_PASSWORD)
-            val workingDir: File
+            var isEncrypted = false
             var currentPlannerId: String? = null
             var currentPlannerPath: String? = null
             val application = getApplication<MyApplication>()
 
-            workingDir = AppDirHelper.cacheDir(application)
+            //preferences are read from a copy in the shared preferences directory
+            val internalAppDir = application.filesDir.parentFile!!
+            val sharedPrefsDir = File(internalAppDir.path + "/shared_prefs/")
+            sharedPrefsDir.mkdir()
+            if (!sharedPrefsDir.isDirectory) {
+                CrashHandler.report(
+                    Exception("Could not access shared preferences directory at ${sharedPrefsDir.absolutePath}")
+                )
+                failureResult(R.string.restore_preferences_failure)
+                return@launch
+            }
+            val tempPrefFile = File(sharedPrefsDir, "backup_temp.xml")
+            //the database is written next to the current one, from where it can be swapped in by renaming
+            val backupFile = application.getDatabasePath(BACKUP_DB_FILE_NAME)
+            backupFile.parentFile?.mkdirs()
+            val backupPref by lazy { application.getSharedPreferences("backup_temp", 0) }
+            //pictures go to the directory selected by the protection setting of the restored preferences
+            val securePictures by lazy {
+                if (tempPrefFile.exists())
+                    backupPref.getBoolean(prefHandler.getKey(PrefKey.PROTECTION_LEGACY), false) ||
+                            backupPref.getBoolean(prefHandler.getKey(PrefKey.PROTECTION_DEVICE_LOCK_SCREEN), false)
+                else application.isProtected
+            }
+            val extractor = BackupArchiveExtractor(
+                backupFile,
+                tempPrefFile,
+                { fileName -> pictureTarget(fileName, securePictures) }
+            ) { _, count -> _restoredEntries.value = count }
+            _restoredEntries.value = 0
+            var dbRestored = false
+            //whatever was extracted is discarded unless the database has been swapped in
+            coroutineContext.job.invokeOnCompletion {
+                if (!dbRestored) {
+                    extractor.cleanUp()
+                }
+            }
             try {
-
                 val syncBackendProvider: SyncBackendProvider
                 val inputStream: PushbackInputStream? = if (syncAccountName != null) {
                     val account = GenericAccountService.getAccount(syncAccountName)
@@ -141,7 +182,7 @@ class RestoreViewModel(application: Application) : ContentResolvingAndroidViewMo
                     failureResult("Unable to open backup file")
                     return@launch
                 }
-                val isEncrypted = EncryptionHelper.isEncrypted(inputStream)
+                isEncrypted = EncryptionHelper.isEncrypted(inputStream)
                 if (isEncrypted) {
                     if (TextUtils.isEmpty(password)) {
                         failureResult(R.string.backup_is_encrypted)
@@ -150,7 +191,9 @@ class RestoreViewModel(application: Application) : ContentResolvingAndroidViewMo
                 }
                 inputStream.use {
                     try {
-                        ZipUtils.unzip(inputStream, workingDir, if (isEncrypted) password else null)
+                        extractor.extract(
+                            if (isEncrypted) EncryptionHelper.decrypt(inputStream, password) else inputStream
+                        )
                     } catch (e: IOException) {
                         if (e.cause is GeneralSecurityException) {
                             failureResult(R.string.backup_wrong_password)
@@ -170,19 +213,41 @@ class RestoreViewModel(application: Application) : ContentResolvingAndroidViewMo
                 failureResult(e)
                 return@launch
             }
-            val backupFile = getBackupDbFile(workingDir)
-            val backupPrefFile = getBackupPrefFile(workingDir)
-            if (!backupFile.exists()) {
+            //pictures missing from the store are not restored, but do not prevent the restore
+            val missingPictures = mutableSetOf<String>()
+            extractor.manifest?.let {
+                try {
+                    restorePicturesFromStore(
+                        it, if (isEncrypted) password else null, securePictures, extractor.pictures,
+                        missingPictures
+                    )
+                } catch (e: Exception) {
+                    CrashHandler.report(e)
+                    failureResult(e)
+                    return@launch
+                }
+            }
+            extractor.aliases?.let {
+                try {
+                    restorePictureAliases(it, securePictures, extractor.pictures, missingPictures)
+                } catch (e: Exception) {
+                    CrashHandler.report(e)
+                    failureResult(e)
+                    return@launch
+                }
+            }
+            val archiveName = fileUri?.lastPathSegment ?: backupFromSync
+            if (!extractor.hasDb) {
                 failureResult(
                     R.string.restore_backup_file_not_found,
-                    BACKUP_DB_FILE_NAME, workingDir
+                    BACKUP_DB_FILE_NAME, archiveName
                 )
                 return@launch
             }
-            if (!backupPrefFile.exists()) {
+            if (!extractor.hasPrefs) {
                 failureResult(
                     R.string.restore_backup_file_not_found,
-                    BACKUP_PREF_FILE_NAME, workingDir
+                    BACKUP_PREF_FILE_NAME, archiveName
                 )
                 return@launch
             }
@@ -204,30 +269,6 @@ class RestoreViewModel(application: Application) : ContentResolvingAndroidViewMo
             }
 
             //peek into preferences to see if there is a calendar configured
-            val internalAppDir = application.filesDir.parentFile!!
-            val sharedPrefsDir = File(internalAppDir.path + "/shared_prefs/")
-            sharedPrefsDir.mkdir()
-            if (!sharedPrefsDir.isDirectory) {
-                CrashHandler.report(
-                    Exception("Could not access shared preferences directory at ${sharedPrefsDir.absolutePath}")
-                )
-                failureResult(R.string.restore_preferences_failure)
-                return@launch
-            }
-            val tempPrefFile = File(sharedPrefsDir, "backup_temp.xml")
-            if (!FileCopyUtils.copy(backupPrefFile, tempPrefFile)) {
-                CrashHandler.report(
-                    Exception("Preferences restore failed"),
-                    "FAILED_COPY_OPERATION", String.format(
-                        "%s => %s",
-                        backupPrefFile.absolutePath,
-                        tempPrefFile.absolutePath
-                    )
-                )
-                failureResult(R.string.restore_preferences_failure)
-                return@launch
-            }
-            val backupPref = application.getSharedPreferences("backup_temp", 0)
             when (restorePlanStrategy) {
                 R.id.restore_calendar_handling_create_new -> {
                     currentPlannerId = MyApplication.getInstance().createPlanner(false)
@@ -276,6 +317,7 @@ class RestoreViewModel(application: Application) : ContentResolvingAndroidViewMo
                 }
             }
             if (DbUtils.restore(backupFile)) {
+                dbRestored = true
                 publishProgress(R.string.restore_db_success)
 
                 //since we already started reading settings, we can not just copy the file
@@ -334,10 +376,6 @@ class RestoreViewModel(application: Application) : ContentResolvingAndroidViewMo
                 application.settings
                     .registerOnSharedPreferenceChangeListener(application)
                 tempPrefFile.delete()
-                if (fileUri != null) {
-                    backupFile.delete()
-                    backupPrefFile.delete()
-                }
                 publishProgress(R.string.restore_preferences_success)
                 //if a user restores a backup we do not want past plan instances to flood the database
                 prefHandler.putLong(PrefKey.PLANNER_LAST_EXECUTION_TIMESTAMP, System.currentTimeMillis())
@@ -365,12 +403,13 @@ class RestoreViewModel(application: Application) : ContentResolvingAndroidViewMo
                     TransactionProvider.STALE_IMAGES_URI, null, null
                 )
                 //2. all images that are left over in external and
-                //internal picture dir are now stale
-                registerAsStale(false)
-                registerAsStale(true)
+                //internal picture dir are now stale, except those we have just restored
+                val restoredPictures = extractor.pictures.values.toSet()
+                registerAsStale(false, restoredPictures)
+                registerAsStale(true, restoredPictures)
 
-                //3. move pictures home and update uri
-                val backupPictureDir = File(workingDir, ZipUtils.PICTURES)
+                //3. update uris of pictures, which were restored while reading the archive
+                val unusedPictures = HashSet(restoredPictures)
                 contentResolver.query(
                     TransactionProvider.TRANSACTIONS_URI,
                     arrayOf(
@@ -393,29 +432,18 @@ class RestoreViewModel(application: Application) : ContentResolvingAndroidViewMo
                                 transferAccount?.let { arrayOf(accountId, it) }
                                     ?: arrayOf(accountId)
                             val fromBackup = Uri.parse(cursor.getString(1))
-                            val fileName = fromBackup.lastPathSegment
-                            val backupImage = fileName?.let { File(backupPictureDir, it) }
+                            val fileName = extractor.renamed?.getProperty(fromBackup.toString())
+                                ?: fromBackup.lastPathSegment
+                            val restoredImage = fileName?.let { extractor.pictures[it] }
                             var restored: Uri? = null
-                            if (backupImage?.exists() == true) {
-                                val restoredImage = PictureDirHelper.getOutputMediaFile(
-                                    fileName.substring(0, fileName.lastIndexOf('.')), false, true
-                                )
-                                if (restoredImage == null || !FileCopyUtils.copy(
-                                        backupImage,
+                            if (restoredImage?.exists() == true) {
+                                unusedPictures.remove(restoredImage)
+                                restored =
+                                    AppDirHelper.getContentUriForFile(
+                                        application,
                                         restoredImage
                                     )
-                                ) {
-                                    CrashHandler.report(
-                                        Exception("Could not restore file $fromBackup from backup")
-                                    )
-                                } else {
-                                    restored =
-                                        AppDirHelper.getContentUriForFile(
-                                            application,
-                                            restoredImage
-                                        )
-                                }
-                            } else {
+                            } else if (fileName !in missingPictures) {
                                 CrashHandler.report(
                                     Exception("Could not restore file $fromBackup from backup")
                                 )
@@ -469,6 +497,17 @@ class RestoreViewModel(application: Application) : ContentResolvingAndroidViewMo
                         failureResult(R.string.restore_db_failure)
                         return@launch
                     }
+                unusedPictures.forEach { it.delete() }
+                if (missingPictures.isNotEmpty()) {
+                    publishProgress(
+                        application.resources.getQuantityString(
+                            R.plurals.restore_pictures_missing,
+                            missingPictures.size,
+                            missingPictures.size,
+                            BACKUP_PICTURE_STORE_DIR_NAME
+                        )
+                    )
+                }
 
                 restoreSyncState().takeIf { it.isNotEmpty() }?.let { publishProgress(it) }
                 _result.update { Result.success(Unit) }
@@ -478,6 +517,86 @@ class RestoreViewModel(application: Application) : ContentResolvingAndroidViewMo
         }
     }
 
+    /**
+     * @return the file in the picture directory a picture from the backup is restored to
+     * @throws SecurityException if [fileName], which is read from the archive, would resolve to a
+     * file outside the picture directory
+     */
+    private fun pictureTarget(fileName: String, secure: Boolean): File? {
+        if (fileName.isEmpty() || fileName.contains('/') || fileName.contains('\\') || fileName.contains("..")) {
+            throw SecurityException("Path Traversal Vulnerability")
+        }
+        val pictureDir = PictureDirHelper.getPictureDir(secure) ?: return null
+        return PictureDirHelper.getOutputMediaFile(fileName.substringBeforeLast('.'), pictureDir, true).also {
+            if (it.parentFile?.canonicalPath != pictureDir.canonicalPath) {
+                throw SecurityException("Path Traversal Vulnerability")
+            }
+        }
+    }
+
+    /**
+     * Differential backups only reference their pictures in the manifest, we copy them from the
+     * [BackupPictureStore] in the app dir into the picture dir. If the store, or a picture in it,
+     * is not found, e.g. when the backup has been copied to another device without the store,
+     * the database is restored without the pictures.
+     * @param pictures receives the restored pictures by their file name in the backup
+     * @param missing receives the file names of pictures not found in the store
+     */
+    private fun restorePicturesFromStore(
+        manifest: Properties,
+        password: String?,
+        secure: Boolean,
+        pictures: MutableMap<String, File>,
+        missing: MutableSet<String>
+    ) {
+        if (manifest.isEmpty) return
+        val application = getApplication<MyApplication>()
+        val store = AppDirHelper.getAppDir(application)?.let {
+            BackupPictureStore.open(contentResolver, it, password, false)
+        }
+        if (store == null) {
+            Timber.w("%s not found, pictures can not be restored", BACKUP_PICTURE_STORE_DIR_NAME)
+            missing.addAll(manifest.stringPropertyNames())
+            return
+        }
+        manifest.stringPropertyNames().forEach { fileName ->
+            val hash = manifest.getProperty(fileName)
+            val target = pictureTarget(fileName, secure) ?: return@forEach
+            if (store.get(hash, target)) {
+                pictures[fileName] = target
+            } else {
+                Timber.w("Picture %s (%s) missing in store", fileName, hash)
+                missing.add(fileName)
+            }
+        }
+    }
+
+    /**
+     * pictures with identical content are only contained once in the archive, we copy them to each
+     * of their names
+     * @param missing aliases of missing pictures are added
+     */
+    private fun restorePictureAliases(
+        aliases: Properties,
+        secure: Boolean,
+        pictures: MutableMap<String, File>,
+        missing: MutableSet<String>
+    ) {
+        aliases.stringPropertyNames().forEach { alias ->
+            val original = aliases.getProperty(alias)
+            val source = pictures[original] ?: run {
+                if (original in missing) missing.add(alias)
+                return@forEach
+            }
+            val target = pictureTarget(alias, secure) ?: return@forEach
+            if (FileCopyUtils.copy(source, target)) {
+                pictures[alias] = target
+            } else {
+                Timber.w("Could not copy picture %s to %s", source, alias)
+            }
+        }
+    }
+
     private fun restoreSyncState(): String {
         var message = ""
         val application = getApplication<MyApplication>()
@@ -535,11 +654,12 @@ class RestoreViewModel(application: Application) : ContentResolvingAndroidViewMo
         return message
     }
 
-    private fun registerAsStale(secure: Boolean) {
+    private fun registerAsStale(secure: Boolean, exclude: Set<File>) {
         val dir = PictureDirHelper.getPictureDir(secure) ?: return
         val files = dir.listFiles() ?: return
         val values = ContentValues()
         for (file: File in files) {
+            if (file in exclude) continue
             val uri = if (secure) FileProvider.getUriForFile(
                 getApplication(),
                 "org.totschnig.myexpenses.fileprovider", file
@@ -128,6 +128,24 @@ class SettingsViewModel(application: Application) : ContentResolvingAndroidViewM
         )
     }
 
+    fun archiveTransactions(cutoff: Long) = liveData(context = coroutineContext()) {
+        emit(
+            contentResolver.call(
+                TransactionProvider.DUAL_URI,
+                TransactionProvider.METHOD_ARCHIVE, cutoff.toString(), null
+            )?.getInt(TransactionProvider.KEY_RESULT)
+        )
+    }
+
+    fun unarchiveTransactions() = liveData(context = coroutineContext()) {
+        emit(
+            contentResolver.call(
+                TransactionProvider.DUAL_URI,
+                TransactionProvider.METHOD_UNARCHIVE, null, null
+            )?.getInt(TransactionProvider.KEY_RESULT)
+        )
+    }
+
     fun clearExchangeRateCache() = liveData(context = coroutineContext()) {
         emit(exchangeRateRepository.deleteAll())
     }
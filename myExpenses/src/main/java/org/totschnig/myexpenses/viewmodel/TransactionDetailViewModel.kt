@@ -8,6 +8,7 @@ import org.totschnig.myexpenses.model.Transaction
 import org.totschnig.myexpenses.provider.DatabaseConstants
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
+import org.totschnig.myexpenses.provider.includingArchive
 import org.totschnig.myexpenses.viewmodel.data.Tag
 import org.totschnig.myexpenses.viewmodel.data.Transaction.Companion.fromCursor
 import org.totschnig.myexpenses.viewmodel.data.Transaction.Companion.projection
@@ -22,7 +23,7 @@ class TransactionDetailViewModel(application: Application) :
     private val transactionLiveData: Map<Long, LiveData<List<TData>>> = lazyMap { transactionId ->
         val liveData = MutableLiveData<List<TData>>()
         disposable = briteContentResolver.createQuery(
-            Transaction.EXTENDED_URI,
+            Transaction.EXTENDED_URI.includingArchive(),
             projection(application),
             "$KEY_ROWID = ? OR $KEY_PARENTID = ?",
             Array(2) { transactionId.toString() },
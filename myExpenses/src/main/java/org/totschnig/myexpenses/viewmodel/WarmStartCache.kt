@@ -0,0 +1,265 @@
+package org.totschnig.myexpenses.viewmodel
+
+import android.net.Uri
+import androidx.core.util.AtomicFile
+import org.totschnig.myexpenses.model.AccountType
+import org.totschnig.myexpenses.model.CrStatus
+import org.totschnig.myexpenses.model.CurrencyContext
+import org.totschnig.myexpenses.model.CurrencyUnit
+import org.totschnig.myexpenses.model.Grouping
+import org.totschnig.myexpenses.model.Money
+import org.totschnig.myexpenses.model.SortDirection
+import org.totschnig.myexpenses.viewmodel.data.FullAccount
+import org.totschnig.myexpenses.viewmodel.data.HeaderRow
+import org.totschnig.myexpenses.viewmodel.data.Transaction2
+import timber.log.Timber
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileNotFoundException
+import java.io.IOException
+
+/**
+ * Persists what the main screen showed last, the account list, and the headers and first page of
+ * the selected account, so that it can be rendered on startup, before the queries for live data
+ * have finished. Amounts are stored with their currency code and resolved with [currencyContext]
+ * when read. A snapshot written with a different [FORMAT_VERSION] is ignored.
+ */
+class WarmStartCache(file: File, private val currencyContext: CurrencyContext) {
+
+    data class Snapshot(
+        val accounts: List<FullAccount>,
+        val accountId: Long,
+        val grouping: Grouping,
+        val headerGroups: Map<Int, HeaderRow>,
+        val firstPage: List<Transaction2>
+    )
+
+    private val atomicFile = AtomicFile(file)
+
+    fun read(): Snapshot? = try {
+        DataInputStream(atomicFile.openRead().buffered()).use {
+            if (it.readInt() == FORMAT_VERSION) it.readSnapshot() else null
+        }
+    } catch (e: FileNotFoundException) {
+        null
+    } catch (e: Exception) {
+        Timber.w(e, "Discarding warm start snapshot")
+        atomicFile.delete()
+        null
+    }
+
+    fun write(snapshot: Snapshot) {
+        val stream = try {
+            atomicFile.startWrite()
+        } catch (e: IOException) {
+            Timber.w(e)
+            return
+        }
+        try {
+            DataOutputStream(stream.buffered()).apply {
+                writeInt(FORMAT_VERSION)
+                writeSnapshot(snapshot)
+                flush()
+            }
+            atomicFile.finishWrite(stream)
+        } catch (e: IOException) {
+            Timber.w(e)
+            atomicFile.failWrite(stream)
+        }
+    }
+
+    private fun DataOutputStream.writeSnapshot(snapshot: Snapshot) {
+        writeInt(snapshot.accounts.size)
+        snapshot.accounts.forEach { writeAccount(it) }
+        writeLong(snapshot.accountId)
+        writeUTF(snapshot.grouping.name)
+        writeInt(snapshot.headerGroups.size)
+        snapshot.headerGroups.forEach { (groupId, row) ->
+            writeInt(groupId)
+            writeHeaderRow(row)
+        }
+        writeInt(snapshot.firstPage.size)
+        snapshot.firstPage.forEach { writeTransaction(it) }
+    }
+
+    private fun DataInputStream.readSnapshot(): Snapshot {
+        val accounts = List(readInt()) { readAccount() }
+        val accountId = readLong()
+        val grouping = Grouping.valueOf(readUTF())
+        val currency = accounts.first { it.id == accountId }.currency
+        val headerGroups = buildMap {
+            repeat(readInt()) { put(readInt(), readHeaderRow(currency)) }
+        }
+        return Snapshot(accounts, accountId, grouping, headerGroups, List(readInt()) { readTransaction() })
+    }
+
+    private fun DataOutputStream.writeAccount(account: FullAccount) = with(account) {
+        writeLong(id)
+        writeUTF(label)
+        writeNullableUTF(description)
+        writeUTF(currency.code)
+        writeInt(_color)
+        writeNullableUTF(type?.name)
+        writeDouble(exchangeRate)
+        writeBoolean(sealed)
+        writeLong(openingBalance)
+        writeLong(currentBalance)
+        writeLong(sumIncome)
+        writeLong(sumExpense)
+        writeLong(sumTransfer)
+        writeUTF(grouping.name)
+        writeUTF(sortDirection.name)
+        writeNullableUTF(syncAccountName)
+        writeLong(reconciledTotal)
+        writeLong(clearedTotal)
+        writeBoolean(hasCleared)
+        writeNullableUTF(uuid)
+        writeNullableLong(criterion)
+        writeNullableLong(total)
+    }
+
+    private fun DataInputStream.readAccount() = FullAccount(
+        id = readLong(),
+        label = readUTF(),
+        description = readNullableUTF(),
+        currency = currencyContext.get(readUTF()),
+        _color = readInt(),
+        type = readNullableUTF()?.let { AccountType.valueOf(it) },
+        exchangeRate = readDouble(),
+        sealed = readBoolean(),
+        openingBalance = readLong(),
+        currentBalance = readLong(),
+        sumIncome = readLong(),
+        sumExpense = readLong(),
+        sumTransfer = readLong(),
+        grouping = Grouping.valueOf(readUTF()),
+        sortDirection = SortDirection.valueOf(readUTF()),
+        syncAccountName = readNullableUTF(),
+        reconciledTotal = readLong(),
+        clearedTotal = readLong(),
+        hasCleared = readBoolean(),
+        uuid = readNullableUTF(),
+        criterion = readNullableLong(),
+        total = readNullableLong()
+    )
+
+    private fun DataOutputStream.writeHeaderRow(row: HeaderRow) = with(row) {
+        writeInt(year)
+        writeInt(second)
+        writeLong(incomeSum.amountMinor)
+        writeLong(expenseSum.amountMinor)
+        writeLong(transferSum.amountMinor)
+        writeLong(previousBalance.amountMinor)
+        writeBoolean(mappedCategories)
+        writeInt(weekStart)
+        writeInt(weekEnd)
+    }
+
+    private fun DataInputStream.readHeaderRow(currency: CurrencyUnit) =
+        HeaderRow.create(
+            year = readInt(),
+            second = readInt(),
+            currency = currency,
+            incomeSum = readLong(),
+            expenseSum = readLong(),
+            transferSum = readLong(),
+            previousBalance = readLong(),
+            mappedCategories = readBoolean(),
+            weekStart = readInt(),
+            weekEnd = readInt()
+        )
+
+    private fun DataOutputStream.writeTransaction(transaction: Transaction2) = with(transaction) {
+        writeLong(id)
+        writeLong(_date)
+        writeLong(_valueDate)
+        writeMoney(amount)
+        writeBoolean(equivalentAmount != null)
+        equivalentAmount?.let { writeMoney(it) }
+        writeNullableUTF(comment)
+        writeNullableLong(catId)
+        writeNullableUTF(label)
+        writeNullableUTF(payee)
+        writeNullableLong(transferPeer)
+        writeNullableLong(transferAccount)
+        writeLong(accountId)
+        writeNullableLong(methodId)
+        writeNullableUTF(methodLabel)
+        writeUTF(crStatus.name)
+        writeNullableUTF(referenceNumber)
+        writeNullableUTF(pictureUri?.toString())
+        writeNullableLong(color?.toLong())
+        writeNullableLong(transferPeerParent)
+        writeInt(status)
+        writeNullableUTF(accountLabel)
+        writeNullableUTF(accountType?.name)
+        writeInt(tagList.size)
+        tagList.forEach { writeUTF(it) }
+        writeInt(year)
+        writeInt(month)
+        writeInt(week)
+        writeInt(day)
+        writeNullableUTF(icon)
+        writeBoolean(runningBalance != null)
+        runningBalance?.let { writeMoney(it) }
+    }
+
+    private fun DataInputStream.readTransaction() = Transaction2(
+        id = readLong(),
+        _date = readLong(),
+        _valueDate = readLong(),
+        amount = readMoney(),
+        equivalentAmount = if (readBoolean()) readMoney() else null,
+        comment = readNullableUTF(),
+        catId = readNullableLong(),
+        label = readNullableUTF(),
+        payee = readNullableUTF(),
+        transferPeer = readNullableLong(),
+        transferAccount = readNullableLong(),
+        accountId = readLong(),
+        methodId = readNullableLong(),
+        methodLabel = readNullableUTF(),
+        crStatus = CrStatus.valueOf(readUTF()),
+        referenceNumber = readNullableUTF(),
+        pictureUri = readNullableUTF()?.let { Uri.parse(it) },
+        color = readNullableLong()?.toInt(),
+        transferPeerParent = readNullableLong(),
+        status = readInt(),
+        accountLabel = readNullableUTF(),
+        accountType = readNullableUTF()?.let { AccountType.valueOf(it) },
+        tagList = List(readInt()) { readUTF() },
+        year = readInt(),
+        month = readInt(),
+        week = readInt(),
+        day = readInt(),
+        icon = readNullableUTF(),
+        runningBalance = if (readBoolean()) readMoney() else null
+    )
+
+    private fun DataOutputStream.writeMoney(money: Money) {
+        writeUTF(money.currencyUnit.code)
+        writeLong(money.amountMinor)
+    }
+
+    private fun DataInputStream.readMoney() = Money(currencyContext.get(readUTF()), readLong())
+
+    private fun DataOutputStream.writeNullableUTF(value: String?) {
+        writeBoolean(value != null)
+        value?.let { writeUTF(it) }
+    }
+
+    private fun DataInputStream.readNullableUTF() = if (readBoolean()) readUTF() else null
+
+    private fun DataOutputStream.writeNullableLong(value: Long?) {
+        writeBoolean(value != null)
+        value?.let { writeLong(it) }
+    }
+
+    private fun DataInputStream.readNullableLong() = if (readBoolean()) readLong() else null
+
+    companion object {
+        const val FORMAT_VERSION = 1
+        const val FILE_NAME = "warm_start"
+    }
+}
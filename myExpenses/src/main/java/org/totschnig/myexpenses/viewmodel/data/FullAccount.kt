@@ -15,6 +15,7 @@ import org.totschnig.myexpenses.model.CurrencyUnit
 import org.totschnig.myexpenses.model.Grouping
 import org.totschnig.myexpenses.model.SortDirection
 import org.totschnig.myexpenses.model.Transaction
+import org.totschnig.myexpenses.provider.BaseTransactionProvider
 import org.totschnig.myexpenses.provider.DatabaseConstants.*
 import org.totschnig.myexpenses.provider.TransactionProvider
 import org.totschnig.myexpenses.provider.appendBooleanQueryParameter
@@ -25,6 +26,7 @@ import org.totschnig.myexpenses.provider.getInt
 import org.totschnig.myexpenses.provider.getLong
 import org.totschnig.myexpenses.provider.getString
 import org.totschnig.myexpenses.provider.getStringOrNull
+import org.totschnig.myexpenses.provider.includingArchive
 import org.totschnig.myexpenses.util.enumValueOrDefault
 import org.totschnig.myexpenses.util.enumValueOrNull
 
@@ -52,6 +54,16 @@ abstract class BaseAccount {
             isHomeAggregate -> null
             else -> arrayOf(currency.code)
         }
+
+    /**
+     * notified when transactions of this account change, observe with descendants for aggregates
+     */
+    val changesUri: Uri
+        get() = when {
+            !isAggregate -> BaseTransactionProvider.accountChangesUri(currency.code, id)
+            isHomeAggregate -> TransactionProvider.ACCOUNT_CHANGES_URI
+            else -> BaseTransactionProvider.accountChangesUri(currency.code, null)
+        }
 }
 
 @Stable
@@ -148,7 +160,7 @@ data class PageAccount(
                     } else if (!FullAccount.isHomeAggregate(id)) {
                         appendQueryParameter(KEY_CURRENCY, currency.code)
                     }
-                }.build(),
+                }.build().let { if (filter != null) it.includingArchive() else it },
             selection,
             args
         )
@@ -161,10 +173,12 @@ data class PageAccount(
         if (id < 0) {
             builder.appendQueryParameter(TransactionProvider.QUERY_PARAMETER_MERGE_TRANSFERS,
             if (isHomeAggregate) "2" else "1")
+        } else {
+            builder.appendBooleanQueryParameter(TransactionProvider.QUERY_PARAMETER_RUNNING_BALANCE)
         }
         val uri = builder.build()
         val projection = when {
-            !isAggregate -> Transaction2.projection(grouping)
+            !isAggregate -> Transaction2.projection(grouping) + Transaction2.additionalAccountColumns
             isHomeAggregate -> Transaction2.projection(grouping) +
                     Transaction2.additionalAggregateColumns + Transaction2.additionGrandTotalColumns
             else -> Transaction2.projection(grouping) + Transaction2.additionalAggregateColumns
@@ -6,6 +6,9 @@ import android.net.Uri
 import android.os.Parcelable
 import androidx.compose.runtime.Immutable
 import androidx.compose.ui.graphics.vector.ImageVector
+import androidx.core.database.getLongOrNull
+import androidx.core.database.getStringOrNull
+import kotlinx.parcelize.IgnoredOnParcel
 import kotlinx.parcelize.Parcelize
 import org.totschnig.myexpenses.model.AccountType
 import org.totschnig.myexpenses.model.CrStatus
@@ -16,21 +19,17 @@ import org.totschnig.myexpenses.model.Money
 import org.totschnig.myexpenses.model.PreDefinedPaymentMethod
 import org.totschnig.myexpenses.provider.DatabaseConstants.*
 import org.totschnig.myexpenses.provider.FULL_LABEL
-import org.totschnig.myexpenses.provider.getInt
-import org.totschnig.myexpenses.provider.getIntIfExists
-import org.totschnig.myexpenses.provider.getLong
-import org.totschnig.myexpenses.provider.getLongIfExists
-import org.totschnig.myexpenses.provider.getLongOrNull
-import org.totschnig.myexpenses.provider.getString
-import org.totschnig.myexpenses.provider.getStringIfExists
 import org.totschnig.myexpenses.provider.getStringListFromJson
-import org.totschnig.myexpenses.provider.getStringOrNull
+import org.totschnig.myexpenses.provider.runningBalanceColumn
 import org.totschnig.myexpenses.util.AppDirHelper
+import org.totschnig.myexpenses.util.ICurrencyFormatter
 import org.totschnig.myexpenses.util.enumValueOrDefault
 import org.totschnig.myexpenses.util.enumValueOrNull
 import org.totschnig.myexpenses.util.epoch2ZonedDateTime
 import java.io.File
 import java.time.ZonedDateTime
+import kotlin.math.absoluteValue
+import kotlin.math.sign
 
 @Parcelize
 @Immutable
@@ -62,7 +61,8 @@ data class Transaction2(
     val month: Int,
     val week: Int,
     val day: Int,
-    val icon: String? = null
+    val icon: String? = null,
+    val runningBalance: Money? = null
 ) : Parcelable {
 
     val currency: CurrencyUnit
@@ -74,12 +74,55 @@ data class Transaction2(
     val isTransfer: Boolean
         get() = transferPeer != null
 
+    /**
+     * a transfer shown in an aggregate list, where its direction is not meaningful
+     */
+    val isTransferAggregate: Boolean
+        get() = isTransfer && accountLabel != null
+
     val date: ZonedDateTime
         get() = epoch2ZonedDateTime(_date)
 
     val valueDate: ZonedDateTime
         get() = epoch2ZonedDateTime(_valueDate)
 
+    /**
+     * Amounts formatted for display, memoized so that recomposing the row, e.g. while scrolling,
+     * does not format them again. They are formatted anew, when the formatter or the version of its
+     * formats changes. The running balance keeps its sign, an overdrawn account must not look like
+     * one in credit.
+     */
+    class FormattedAmounts(
+        val formatter: ICurrencyFormatter,
+        val formatterVersion: Int,
+        val amount: String,
+        val amountSign: Int,
+        val runningBalance: String?
+    )
+
+    @IgnoredOnParcel
+    @Transient
+    private var memoizedAmounts: FormattedAmounts? = null
+
+    fun formattedAmounts(formatter: ICurrencyFormatter) =
+        memoizedAmounts?.takeIf {
+            it.formatter === formatter && it.formatterVersion == formatter.version
+        } ?: run {
+            //read before formatting, so that an invalidation while we format is not missed
+            val version = formatter.version
+            val displayAmount = equivalentAmount ?: amount
+            FormattedAmounts(
+                formatter,
+                version,
+                formatter.formatMinor(
+                    if (isTransferAggregate) displayAmount.amountMinor.absoluteValue else displayAmount.amountMinor,
+                    displayAmount.currencyUnit
+                ),
+                if (isTransferAggregate) 0 else displayAmount.amountMinor.sign,
+                runningBalance?.let { formatter.formatMinor(it.amountMinor, it.currencyUnit) }
+            ).also { memoizedAmounts = it }
+        }
+
     /**
      * pair of localized label and icon
      */
@@ -124,6 +167,13 @@ data class Transaction2(
             KEY_ICON
         )
 
+        /**
+         * balances are only meaningful in the list of a single account
+         */
+        val additionalAccountColumns = arrayOf(
+            runningBalanceColumn(VIEW_EXTENDED)
+        )
+
         val additionalAggregateColumns = arrayOf(
             KEY_COLOR,
             KEY_ACCOUNT_LABEL,
@@ -142,32 +192,80 @@ data class Transaction2(
             cursor: Cursor,
             currencyContext: CurrencyContext,
             homeCurrency: CurrencyUnit?
-        ): Transaction2 {
-            val currencyUnit = currencyContext.get(cursor.getString(KEY_CURRENCY))
-            val amountRaw = cursor.getLong(KEY_AMOUNT)
-            val money = Money(currencyUnit, amountRaw)
-            val transferPeer = cursor.getLongOrNull(KEY_TRANSFER_PEER)
+        ) = RowMapper(context, cursor, currencyContext, homeCurrency).map(cursor)
+    }
+
+    /**
+     * Maps the rows of a cursor, resolving the indices of its columns only once. Optional columns
+     * ([additionalAccountColumns], [additionalAggregateColumns], [additionGrandTotalColumns]) are
+     * looked up when the mapper is created.
+     */
+    class RowMapper(
+        private val context: Context,
+        cursor: Cursor,
+        private val currencyContext: CurrencyContext,
+        private val homeCurrency: CurrencyUnit?
+    ) {
+        private val rowIdIndex = cursor.getColumnIndexOrThrow(KEY_ROWID)
+        private val dateIndex = cursor.getColumnIndexOrThrow(KEY_DATE)
+        private val valueDateIndex = cursor.getColumnIndexOrThrow(KEY_VALUE_DATE)
+        private val amountIndex = cursor.getColumnIndexOrThrow(KEY_AMOUNT)
+        private val equivalentAmountIndex = cursor.getColumnIndex(KEY_EQUIVALENT_AMOUNT)
+        private val commentIndex = cursor.getColumnIndexOrThrow(KEY_COMMENT)
+        private val catIdIndex = cursor.getColumnIndexOrThrow(KEY_CATID)
+        private val labelIndex = cursor.getColumnIndexOrThrow(KEY_LABEL)
+        private val payeeIndex = cursor.getColumnIndexOrThrow(KEY_PAYEE_NAME)
+        private val transferPeerIndex = cursor.getColumnIndexOrThrow(KEY_TRANSFER_PEER)
+        private val transferAccountIndex = cursor.getColumnIndexOrThrow(KEY_TRANSFER_ACCOUNT)
+        private val accountIdIndex = cursor.getColumnIndexOrThrow(KEY_ACCOUNTID)
+        private val methodIdIndex = cursor.getColumnIndexOrThrow(KEY_METHODID)
+        private val methodLabelIndex = cursor.getColumnIndexOrThrow(KEY_METHOD_LABEL)
+        private val crStatusIndex = cursor.getColumnIndexOrThrow(KEY_CR_STATUS)
+        private val referenceNumberIndex = cursor.getColumnIndexOrThrow(KEY_REFERENCE_NUMBER)
+        private val currencyIndex = cursor.getColumnIndexOrThrow(KEY_CURRENCY)
+        private val pictureUriIndex = cursor.getColumnIndexOrThrow(KEY_PICTURE_URI)
+        private val transferPeerParentIndex = cursor.getColumnIndexOrThrow(KEY_TRANSFER_PEER_PARENT)
+        private val statusIndex = cursor.getColumnIndexOrThrow(KEY_STATUS)
+        private val tagListIndex = cursor.getColumnIndexOrThrow(KEY_TAGLIST)
+        private val yearIndex = cursor.getColumnIndexOrThrow(KEY_YEAR)
+        private val monthIndex = cursor.getColumnIndexOrThrow(KEY_MONTH)
+        private val weekIndex = cursor.getColumnIndexOrThrow(KEY_WEEK)
+        private val dayIndex = cursor.getColumnIndexOrThrow(KEY_DAY)
+        private val iconIndex = cursor.getColumnIndexOrThrow(KEY_ICON)
+        private val colorIndex = cursor.getColumnIndex(KEY_COLOR)
+        private val accountLabelIndex = cursor.getColumnIndex(KEY_ACCOUNT_LABEL)
+        private val accountTypeIndex = cursor.getColumnIndex(KEY_ACCOUNT_TYPE)
+        private val runningBalanceIndex = cursor.getColumnIndex(KEY_RUNNING_BALANCE)
+
+        /**
+         * rows of a page mostly share their currency
+         */
+        private var lastCurrency: CurrencyUnit? = null
+
+        private fun currencyUnit(code: String) = lastCurrency?.takeIf { it.code == code }
+            ?: currencyContext.get(code).also { lastCurrency = it }
 
+        fun map(cursor: Cursor): Transaction2 {
+            val transferPeer = cursor.getLongOrNull(transferPeerIndex)
+            val currencyUnit = currencyUnit(cursor.getString(currencyIndex))
             return Transaction2(
-                id = cursor.getLongOrNull(KEY_ROWID) ?: 0,
-                amount = money,
-                equivalentAmount = if (transferPeer == null) {
-                    cursor.getLongIfExists(KEY_EQUIVALENT_AMOUNT)?.let {
-                        homeCurrency?.let { it1 -> Money(it1, it) }
-                    }
+                id = cursor.getLongOrNull(rowIdIndex) ?: 0,
+                amount = Money(currencyUnit, cursor.getLong(amountIndex)),
+                equivalentAmount = if (transferPeer == null && equivalentAmountIndex != -1) {
+                    homeCurrency?.let { Money(it, cursor.getLong(equivalentAmountIndex)) }
                 } else null,
-                _date = cursor.getLong(KEY_DATE),
-                _valueDate = cursor.getLong(KEY_VALUE_DATE),
-                comment = cursor.getStringOrNull(KEY_COMMENT),
-                catId = cursor.getLongOrNull(KEY_CATID),
-                payee = cursor.getStringOrNull(KEY_PAYEE_NAME),
-                methodLabel = cursor.getStringOrNull(KEY_METHOD_LABEL),
-                label = cursor.getStringOrNull(KEY_LABEL),
+                _date = cursor.getLong(dateIndex),
+                _valueDate = cursor.getLong(valueDateIndex),
+                comment = cursor.getStringOrNull(commentIndex),
+                catId = cursor.getLongOrNull(catIdIndex),
+                payee = cursor.getStringOrNull(payeeIndex),
+                methodLabel = cursor.getStringOrNull(methodLabelIndex),
+                label = cursor.getStringOrNull(labelIndex),
                 transferPeer = transferPeer,
-                transferAccount = cursor.getLongOrNull(KEY_TRANSFER_ACCOUNT),
-                accountId = cursor.getLong(KEY_ACCOUNTID),
-                methodId = cursor.getLongOrNull(KEY_METHODID),
-                pictureUri = cursor.getStringOrNull(KEY_PICTURE_URI)
+                transferAccount = cursor.getLongOrNull(transferAccountIndex),
+                accountId = cursor.getLong(accountIdIndex),
+                methodId = cursor.getLongOrNull(methodIdIndex),
+                pictureUri = cursor.getStringOrNull(pictureUriIndex)
                     ?.let { uri ->
                         var parsedUri = Uri.parse(uri)
                         if ("file" == parsedUri.scheme) { // Upgrade from legacy uris
@@ -181,23 +279,26 @@ data class Transaction2(
                         parsedUri
                     },
                 crStatus = enumValueOrDefault(
-                    cursor.getString(KEY_CR_STATUS),
+                    cursor.getString(crStatusIndex),
                     CrStatus.UNRECONCILED
                 ),
-                referenceNumber = cursor.getStringOrNull(KEY_REFERENCE_NUMBER),
-                accountLabel = cursor.getStringIfExists(KEY_ACCOUNT_LABEL),
+                referenceNumber = cursor.getStringOrNull(referenceNumberIndex),
+                accountLabel = accountLabelIndex.takeIf { it != -1 }?.let { cursor.getString(it) },
                 accountType = enumValueOrNull<AccountType>(
-                    cursor.getStringIfExists(KEY_ACCOUNT_TYPE),
+                    accountTypeIndex.takeIf { it != -1 }?.let { cursor.getString(it) },
                 ),
-                transferPeerParent = cursor.getLongOrNull(KEY_TRANSFER_PEER_PARENT),
-                tagList = cursor.getStringListFromJson(KEY_TAGLIST),
-                color = cursor.getIntIfExists(KEY_COLOR),
-                status = cursor.getInt(KEY_STATUS),
-                year = cursor.getInt(KEY_YEAR),
-                month = cursor.getInt(KEY_MONTH),
-                week = cursor.getInt(KEY_WEEK),
-                day = cursor.getInt(KEY_DAY),
-                icon = cursor.getStringOrNull(KEY_ICON)
+                transferPeerParent = cursor.getLongOrNull(transferPeerParentIndex),
+                tagList = cursor.getStringListFromJson(tagListIndex),
+                color = colorIndex.takeIf { it != -1 }?.let { cursor.getInt(it) },
+                status = cursor.getInt(statusIndex),
+                year = cursor.getInt(yearIndex),
+                month = cursor.getInt(monthIndex),
+                week = cursor.getInt(weekIndex),
+                day = cursor.getInt(dayIndex),
+                icon = cursor.getStringOrNull(iconIndex),
+                runningBalance = runningBalanceIndex.takeIf { it != -1 }
+                    ?.let { cursor.getLongOrNull(it) }
+                    ?.let { Money(currencyUnit, it) }
             )
         }
     }
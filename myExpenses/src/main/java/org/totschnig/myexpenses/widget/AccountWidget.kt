@@ -160,9 +160,11 @@ class AccountWidget :
     }
 
     companion object {
+        //changes of transactions are attributed to accounts through ACCOUNT_CHANGES_URI,
+        //see WidgetChanges
         val OBSERVED_URIS = arrayOf(
-            TransactionProvider.ACCOUNTS_URI, //if color changes
-            TransactionProvider.TRANSACTIONS_URI
+            TransactionProvider.ACCOUNTS_URI,
+            TransactionProvider.ACCOUNT_CHANGES_URI
         )
     }
 }
\ No newline at end of file
@@ -15,8 +15,10 @@ import org.totschnig.myexpenses.fragment.AccountWidgetConfigurationFragment
 import org.totschnig.myexpenses.model.Account
 import org.totschnig.myexpenses.model.Money
 import org.totschnig.myexpenses.provider.DatabaseConstants.*
+import org.totschnig.myexpenses.provider.TransactionProvider.ACCOUNTS_BASE_URI
 import org.totschnig.myexpenses.provider.TransactionProvider.ACCOUNTS_FULL_URI
 import org.totschnig.myexpenses.provider.TransactionProvider.QUERY_PARAMETER_MERGE_CURRENCY_AGGREGATES
+import org.totschnig.myexpenses.provider.TransactionProvider.QUERY_PARAMETER_WITH_BALANCE
 import org.totschnig.myexpenses.util.formatMoney
 
 
@@ -175,8 +177,9 @@ class AccountRemoteViewsFactory(
             val selection: String
             val selectionArgs: Array<String>?
             if (accountId.toLong().let { it > 0L && it != Long.MAX_VALUE }) {
-                uri = ACCOUNTS_FULL_URI
-                selection = "$KEY_ROWID = ?"
+                uri = ACCOUNTS_BASE_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_WITH_BALANCE, "1").build()
+                selection = "$TABLE_ACCOUNTS.$KEY_ROWID = ?"
                 selectionArgs = arrayOf(accountId)
             } else {
                 uri = ACCOUNTS_FULL_URI.buildUpon().appendQueryParameter(
@@ -55,7 +55,7 @@ class TemplateWidget: AbstractWidget(TemplateWidgetService::class.java, PrefKey.
     companion object {
         val OBSERVED_URIS = arrayOf(
                 TransactionProvider.TEMPLATES_URI,
-                TransactionProvider.ACCOUNTS_URI //if color changes
+                TransactionProvider.ACCOUNTS_BASE_URI //if color changes, not notified for transactions
         )
 
     }
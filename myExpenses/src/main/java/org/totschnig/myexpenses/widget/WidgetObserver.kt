@@ -3,22 +3,23 @@ package org.totschnig.myexpenses.widget
 import android.content.Context
 import android.database.ContentObserver
 import android.net.Uri
+import org.totschnig.myexpenses.provider.TransactionProvider
 
-class WidgetObserver(private val context: Context, private val mProvider: Class<out AbstractWidget>) : ContentObserver(null) {
-    override fun onChange(selfChange: Boolean) {
-        updateWidgets(context, mProvider, WIDGET_LIST_DATA_CHANGED)
+class WidgetObserver(private val scheduler: WidgetUpdateScheduler) : ContentObserver(null) {
+    override fun onChange(selfChange: Boolean, uri: Uri?) {
+        //without uri, we can not tell what changed
+        scheduler.onChange(uri ?: TransactionProvider.ACCOUNT_CHANGES_URI)
+        if (uri == null) {
+            scheduler.onChange(TransactionProvider.TEMPLATES_URI)
+        }
     }
+
     companion object {
         fun register(context: Context) {
-            register(context, TemplateWidget::class.java, TemplateWidget.OBSERVED_URIS)
-            register(context, AccountWidget::class.java, AccountWidget.OBSERVED_URIS)
-        }
-        private fun register(context: Context, mProvider: Class<out AbstractWidget>, observedUris: Array<Uri>) {
-            WidgetObserver(context, mProvider).apply {
-                for (uri in observedUris) {
-                    context.contentResolver.registerContentObserver(uri, true, this)
-                }
+            val observer = WidgetObserver(WidgetUpdateScheduler(context))
+            (TemplateWidget.OBSERVED_URIS + AccountWidget.OBSERVED_URIS).distinct().forEach {
+                context.contentResolver.registerContentObserver(it, true, observer)
             }
         }
     }
-}
\ No newline at end of file
+}
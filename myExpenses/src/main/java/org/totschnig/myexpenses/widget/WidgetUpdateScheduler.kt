@@ -0,0 +1,102 @@
+package org.totschnig.myexpenses.widget
+
+import android.appwidget.AppWidgetManager
+import android.content.ComponentName
+import android.content.Context
+import android.net.Uri
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+import org.totschnig.myexpenses.provider.InvalidationBus
+import org.totschnig.myexpenses.provider.TransactionProvider
+
+/**
+ * Collects the uris notified while widgets are observing, and refreshes widgets once the
+ * notifications have settled: after [debounceMillis] without a further notification, but no later
+ * than [maxWaitMillis] after the first one. Only widgets whose data is affected by the collected
+ * uris are refreshed, see [WidgetChanges].
+ */
+class WidgetUpdateScheduler(
+    private val context: Context,
+    private val debounceMillis: Long = DEFAULT_DEBOUNCE_MILLIS,
+    private val maxWaitMillis: Long = DEFAULT_MAX_WAIT_MILLIS
+) {
+    private val handler = Handler(Looper.getMainLooper())
+    private val pending = mutableSetOf<Uri>()
+    private var firstChange = 0L
+    private val flush = Runnable { flush() }
+
+    fun onChange(uri: Uri) {
+        synchronized(pending) {
+            val now = SystemClock.uptimeMillis()
+            if (pending.isEmpty()) {
+                firstChange = now
+            }
+            pending.add(uri)
+            handler.removeCallbacks(flush)
+            handler.postAtTime(flush, minOf(now + debounceMillis, firstChange + maxWaitMillis))
+        }
+    }
+
+    private fun flush() {
+        val changes = synchronized(pending) {
+            pending.toList().also { pending.clear() }
+        }
+        if (changes.isEmpty()) return
+        with(WidgetChanges(changes)) {
+            if (templates) {
+                updateWidgets(context, TemplateWidget::class.java, WIDGET_LIST_DATA_CHANGED)
+            }
+            AppWidgetManager.getInstance(context)
+                .getAppWidgetIds(ComponentName(context, AccountWidget::class.java))
+                .filter {
+                    affectsAccountWidget(AccountRemoteViewsFactory.accountId(context, it).toLong())
+                }
+                .takeIf { it.isNotEmpty() }
+                ?.let {
+                    updateWidgets(context, AccountWidget::class.java, WIDGET_LIST_DATA_CHANGED, it.toIntArray())
+                }
+        }
+    }
+
+    companion object {
+        const val DEFAULT_DEBOUNCE_MILLIS = 300L
+        const val DEFAULT_MAX_WAIT_MILLIS = 2000L
+    }
+}
+
+/**
+ * Determines which widgets need to be refreshed after the [changes] notified in one window.
+ * Changes of transactions are attributed to accounts through the uris below
+ * [TransactionProvider.ACCOUNT_CHANGES_URI], so that a widget for a single account is only
+ * refreshed if its account is among them. Widgets for aggregates or for the list of all accounts
+ * are refreshed for any account change. Changes that the provider can not attribute to accounts
+ * notify [TransactionProvider.ACCOUNT_CHANGES_URI] itself and refresh all account widgets. So does
+ * a notification of [TransactionProvider.ACCOUNTS_URI] without any account changes in the same
+ * window, which comes from a change that is not reported per account, e.g. of exchange rates.
+ */
+class WidgetChanges(changes: Collection<Uri>) {
+    val templates = changes.any {
+        InvalidationBus.affects(it, TransactionProvider.TEMPLATES_URI, true) ||
+                InvalidationBus.affects(it, TransactionProvider.ACCOUNTS_BASE_URI, true)
+    }
+
+    private val accountChanges = changes.filter {
+        InvalidationBus.affects(it, TransactionProvider.ACCOUNT_CHANGES_URI, true)
+    }
+
+    private val allAccounts = accountChanges.any { it.pathSegments.size < 3 } ||
+            (accountChanges.isEmpty() && changes.any {
+                InvalidationBus.affects(it, TransactionProvider.ACCOUNTS_URI, true)
+            })
+
+    private val accountIds = accountChanges.mapNotNull { it.lastPathSegment?.toLongOrNull() }.toSet()
+
+    /**
+     * @param accountId the selection of the widget, an account, an aggregate or [Long.MAX_VALUE]
+     * for the list of all accounts
+     */
+    fun affectsAccountWidget(accountId: Long) = allAccounts ||
+            if (accountId > 0 && accountId != Long.MAX_VALUE) accountId in accountIds
+            else accountChanges.isNotEmpty()
+}
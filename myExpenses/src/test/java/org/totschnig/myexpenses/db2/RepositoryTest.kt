@@ -8,8 +8,15 @@ import org.junit.Test
 import org.junit.runner.RunWith
 import org.mockito.Mockito
 import org.totschnig.myexpenses.MyApplication
+import org.totschnig.myexpenses.model.Account
+import org.totschnig.myexpenses.model.AccountType
 import org.totschnig.myexpenses.model.CurrencyContext
+import org.totschnig.myexpenses.model.CurrencyUnit
+import org.totschnig.myexpenses.model.Money
+import org.totschnig.myexpenses.model.Payee
+import org.totschnig.myexpenses.model.Transaction
 import org.totschnig.myexpenses.preference.PrefHandler
+import org.totschnig.myexpenses.provider.fingerprint
 import org.totschnig.myexpenses.util.CurrencyFormatter
 import org.totschnig.myexpenses.viewmodel.data.Category
 
@@ -94,4 +101,33 @@ class RepositoryTest {
             assertThat(color).isNull()
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    fun loadFingerprintsMatchesComputedFingerprints() {
+        val currency = CurrencyUnit.DebugInstance
+        val account = Account("Account", currency, 0L, null, AccountType.CASH, Account.DEFAULT_COLOR)
+        account.save()
+        val date = 1_600_000_000L
+        with(Transaction.getNewInstance(account.id)) {
+            amount = Money(currency, -500L)
+            payeeId = Payee.maybeWrite("Joe Doe")
+            setDate(date)
+            save()
+        }
+        val withComment = Transaction.getNewInstance(account.id).apply {
+            amount = Money(currency, 700L)
+            comment = "Rent"
+            setDate(date)
+            save()
+        }
+        assertThat(repository.loadFingerprints(account.id)).containsExactly(
+            fingerprint(account.id, date, -500L, "Joe Doe", null),
+            fingerprint(account.id, date, 700L, null, "RENT")
+        )
+        withComment.amount = Money(currency, 800L)
+        withComment.save()
+        assertThat(repository.loadFingerprints(account.id)).contains(
+            fingerprint(account.id, date, 800L, null, "rent")
+        )
+    }
+}
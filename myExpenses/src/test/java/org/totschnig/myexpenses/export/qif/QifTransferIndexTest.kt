@@ -0,0 +1,88 @@
+package org.totschnig.myexpenses.export.qif
+
+import com.google.common.truth.Truth
+import org.junit.Before
+import org.junit.Test
+import java.math.BigDecimal
+import java.util.*
+
+class QifTransferIndexTest {
+    private val now = Date()
+    private lateinit var fromAccount: QifAccount
+    private lateinit var toAccount: QifAccount
+    private lateinit var index: QifTransferIndex
+
+    @Before
+    fun setup() {
+        fromAccount = QifAccount().apply { memo = "Konto 1" }
+        toAccount = QifAccount().apply { memo = "Konto 2" }
+        index = QifTransferIndex()
+    }
+
+    private fun transfer(to: String?, amount: Long, date: Date = now) = QifTransaction().apply {
+        toAccount = to
+        this.date = date
+        this.amount = BigDecimal(amount)
+    }
+
+    @Test
+    fun shouldMatchTwoSidesOfSameTransfer() {
+        val fromTransaction = transfer(toAccount.memo, -5)
+        val toTransaction = transfer(fromAccount.memo, 5)
+        toAccount.transactions.add(toTransaction)
+        Truth.assertThat(index.claimCounterpart(fromAccount, fromTransaction, toAccount))
+            .isSameInstanceAs(toTransaction)
+        index.removeClaimed()
+        Truth.assertThat(toAccount.transactions).isEmpty()
+    }
+
+    @Test
+    fun shouldDistinguishNonMatchingAmountsDatesAndAccounts() {
+        toAccount.transactions.add(transfer(fromAccount.memo, 6))
+        toAccount.transactions.add(transfer(fromAccount.memo, 5, Date(now.time - 100000)))
+        toAccount.transactions.add(transfer("Konto 3", 5))
+        toAccount.transactions.add(transfer(null, 5))
+        Truth.assertThat(index.claimCounterpart(fromAccount, transfer(toAccount.memo, -5), toAccount))
+            .isNull()
+        index.removeClaimed()
+        Truth.assertThat(toAccount.transactions).hasSize(4)
+    }
+
+    @Test
+    fun shouldClaimEachCounterpartOnlyOnceInOrder() {
+        val first = transfer(fromAccount.memo, 5)
+        val second = transfer(fromAccount.memo, 5)
+        val unrelated = transfer(fromAccount.memo, 7)
+        toAccount.transactions.addAll(listOf(first, unrelated, second))
+        Truth.assertThat(index.claimCounterpart(fromAccount, transfer(toAccount.memo, -5), toAccount))
+            .isSameInstanceAs(first)
+        Truth.assertThat(index.claimCounterpart(fromAccount, transfer(toAccount.memo, -5), toAccount))
+            .isSameInstanceAs(second)
+        Truth.assertThat(index.claimCounterpart(fromAccount, transfer(toAccount.memo, -5), toAccount))
+            .isNull()
+        index.removeClaimed()
+        Truth.assertThat(toAccount.transactions).containsExactly(unrelated)
+    }
+
+    @Test
+    fun shouldNotMatchSplitParts() {
+        val part = transfer(fromAccount.memo, 5)
+        toAccount.transactions.add(QifTransaction().apply {
+            date = now
+            amount = BigDecimal(5)
+            splits = mutableListOf(part)
+        })
+        Truth.assertThat(index.claimCounterpart(fromAccount, transfer(toAccount.memo, -5), toAccount))
+            .isNull()
+    }
+
+    @Test
+    fun shouldAgreeWithTwoSidesOfTheSameTransfer() {
+        val fromTransaction = transfer(toAccount.memo, -5)
+        val toTransaction = transfer(fromAccount.memo, 5)
+        toAccount.transactions.add(toTransaction)
+        Truth.assertThat(QifUtils.twoSidesOfTheSameTransfer(fromAccount, fromTransaction, toAccount, toTransaction))
+            .isTrue()
+        Truth.assertThat(index.claimCounterpart(fromAccount, fromTransaction, toAccount)).isNotNull()
+    }
+}
@@ -0,0 +1,100 @@
+package org.totschnig.myexpenses.provider
+
+import android.database.ContentObserver
+import android.net.Uri
+import androidx.test.core.app.ApplicationProvider
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.MyApplication
+import org.totschnig.myexpenses.model.Account
+import org.totschnig.myexpenses.model.AccountType
+import org.totschnig.myexpenses.model.CurrencyUnit
+import org.totschnig.myexpenses.model.Money
+import org.totschnig.myexpenses.model.Payee
+import org.totschnig.myexpenses.model.Transaction
+
+@RunWith(RobolectricTestRunner::class)
+class AccountChangesTest {
+    private val currency = CurrencyUnit.DebugInstance
+    private val resolver
+        get() = ApplicationProvider.getApplicationContext<MyApplication>().contentResolver
+
+    private class CountingObserver : ContentObserver(null) {
+        var changes = 0
+        override fun onChange(selfChange: Boolean) {
+            changes++
+        }
+    }
+
+    private class RecordingObserver : ContentObserver(null) {
+        val uris = mutableSetOf<Uri>()
+        override fun onChange(selfChange: Boolean, uri: Uri?) {
+            uri?.let { uris.add(it) }
+        }
+    }
+
+    private fun observe(uri: Uri, notifyForDescendants: Boolean) =
+        CountingObserver().also { resolver.registerContentObserver(uri, notifyForDescendants, it) }
+
+    private fun record() = RecordingObserver().also {
+        resolver.registerContentObserver(TransactionProvider.ACCOUNT_CHANGES_URI, true, it)
+    }
+
+    private fun newAccount() =
+        Account("Account", currency, 0L, null, AccountType.CASH, Account.DEFAULT_COLOR).apply { save() }
+
+    @Test
+    fun notifiesOnlyAccountsWithChangedTransactions() {
+        val changed = newAccount()
+        val unchanged = newAccount()
+        val changedObserver = observe(BaseTransactionProvider.accountChangesUri(currency.code, changed.id), false)
+        val unchangedObserver = observe(BaseTransactionProvider.accountChangesUri(currency.code, unchanged.id), false)
+        val aggregateObserver = observe(BaseTransactionProvider.accountChangesUri(currency.code, null), true)
+
+        Transaction.getNewInstance(changed.id).apply {
+            amount = Money(currency, 100L)
+            save()
+        }
+
+        assertThat(changedObserver.changes).isGreaterThan(0)
+        assertThat(aggregateObserver.changes).isGreaterThan(0)
+        assertThat(unchangedObserver.changes).isEqualTo(0)
+    }
+
+    @Test
+    fun notifiesExactlyTheAccountsOfSavedTransactions() {
+        val first = newAccount()
+        val second = newAccount()
+        newAccount()
+        val recorder = record()
+
+        Transaction.getNewInstance(first.id).apply {
+            amount = Money(currency, 100L)
+            save()
+        }
+        assertThat(recorder.uris).containsExactly(
+            BaseTransactionProvider.accountChangesUri(currency.code, first.id)
+        )
+
+        recorder.uris.clear()
+        Transaction.getNewInstance(second.id).apply {
+            amount = Money(currency, -50L)
+            save()
+        }
+        assertThat(recorder.uris).containsExactly(
+            BaseTransactionProvider.accountChangesUri(currency.code, second.id)
+        )
+    }
+
+    @Test
+    fun renamedPayeeIsNotifiedAsUnattributedChange() {
+        val payeeId = Payee.maybeWrite("John")
+        val recorder = record()
+
+        Payee(payeeId, "Jane").save()
+
+        assertThat(recorder.uris).containsExactly(TransactionProvider.ACCOUNT_CHANGES_URI)
+    }
+}
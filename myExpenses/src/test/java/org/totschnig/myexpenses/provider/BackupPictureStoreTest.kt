@@ -0,0 +1,95 @@
+package org.totschnig.myexpenses.provider
+
+import android.net.Uri
+import androidx.documentfile.provider.DocumentFile
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.google.common.truth.Truth.assertThat
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.totschnig.myexpenses.MyApplication
+import java.io.File
+
+@RunWith(AndroidJUnit4::class)
+class BackupPictureStoreTest {
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    private val contentResolver
+        get() = ApplicationProvider.getApplicationContext<MyApplication>().contentResolver
+
+    @Test
+    fun hashIsSha256OfContent() {
+        assertThat(BackupPictureStore.hash("abc".byteInputStream()))
+            .isEqualTo("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad")
+    }
+
+    private fun roundTrip(password: String?) {
+        val appDir = DocumentFile.fromFile(tempFolder.newFolder())
+        val picture = tempFolder.newFile("picture.jpg").apply { writeText("picture") }
+        val copy = tempFolder.newFile("copy.jpg").apply { writeText("picture") }
+        val store = BackupPictureStore.open(contentResolver, appDir, password, true)!!
+        val hash = store.put(Uri.fromFile(picture))!!
+        assertThat(store.put(Uri.fromFile(copy))).isEqualTo(hash)
+        assertThat(store.added).isEqualTo(1)
+        assertThat(store.put(Uri.fromFile(File(tempFolder.root, "missing.jpg")))).isNull()
+
+        val reopened = BackupPictureStore.open(contentResolver, appDir, password, false)!!
+        val target = File(tempFolder.root, "restored.jpg")
+        assertThat(reopened.get(hash, target)).isTrue()
+        assertThat(target.readText()).isEqualTo("picture")
+        assertThat(reopened.get("0".repeat(64), target)).isFalse()
+    }
+
+    @Test
+    fun storesPictureOnce() {
+        roundTrip(null)
+    }
+
+    @Test
+    fun storesPictureOnceEncrypted() {
+        roundTrip("secret")
+    }
+
+    @Test
+    fun openWithoutCreateReturnsNullIfStoreIsMissing() {
+        val appDir = DocumentFile.fromFile(tempFolder.newFolder())
+        assertThat(BackupPictureStore.open(contentResolver, appDir, null, false)).isNull()
+    }
+
+    @Test
+    fun passwordsHaveSeparateStores() {
+        val appDir = DocumentFile.fromFile(tempFolder.newFolder())
+        val picture = tempFolder.newFile("picture.jpg").apply { writeText("picture") }
+        val hash = BackupPictureStore.open(contentResolver, appDir, "old", true)!!.put(Uri.fromFile(picture))!!
+        listOf(null, "new").forEach { password ->
+            assertThat(BackupPictureStore.open(contentResolver, appDir, password, false)).isNull()
+            val store = BackupPictureStore.open(contentResolver, appDir, password, true)!!
+            assertThat(store.put(Uri.fromFile(picture))).isEqualTo(hash)
+            assertThat(store.added).isEqualTo(1)
+            val target = File(tempFolder.root, "restored-$password.jpg")
+            assertThat(store.get(hash, target)).isTrue()
+            assertThat(target.readText()).isEqualTo("picture")
+        }
+    }
+
+    @Test
+    fun cleanupRemovesPicturesOfDeletedBackups() {
+        val appDir = DocumentFile.fromFile(tempFolder.newFolder())
+        val store = BackupPictureStore.open(contentResolver, appDir, "secret", true)!!
+        val kept = store.put(Uri.fromFile(tempFolder.newFile("kept.jpg").apply { writeText("kept") }))!!
+        val dropped = store.put(Uri.fromFile(tempFolder.newFile("dropped.jpg").apply { writeText("dropped") }))!!
+        store.addReferences("backup-1", listOf(kept, dropped))
+        store.addReferences("backup-2", listOf(kept))
+        BackupPictureStore.open(contentResolver, appDir, null, true)!!
+            .put(Uri.fromFile(tempFolder.newFile("plain.jpg").apply { writeText("plain") }))
+
+        assertThat(BackupPictureStore.cleanup(contentResolver, appDir, setOf("backup-2"))).isEqualTo(2)
+        val reopened = BackupPictureStore.open(contentResolver, appDir, "secret", false)!!
+        assertThat(reopened.get(kept, File(tempFolder.root, "kept-restored.jpg"))).isTrue()
+        assertThat(reopened.get(dropped, File(tempFolder.root, "dropped-restored.jpg"))).isFalse()
+        assertThat(BackupPictureStore.open(contentResolver, appDir, null, false)).isNull()
+    }
+}
@@ -0,0 +1,74 @@
+package org.totschnig.myexpenses.provider
+
+import android.net.Uri
+import androidx.test.core.app.ApplicationProvider
+import com.google.common.truth.Truth.assertThat
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.MyApplication
+import java.util.concurrent.atomic.AtomicInteger
+
+@RunWith(RobolectricTestRunner::class)
+class InvalidationBusTest {
+    private val resolver
+        get() = ApplicationProvider.getApplicationContext<MyApplication>().contentResolver
+
+    private val accountUri: Uri = TransactionProvider.ACCOUNTS_URI.buildUpon().appendPath("1").build()
+
+    @Test
+    fun affectsMirrorsObserverRules() {
+        assertThat(InvalidationBus.affects(TransactionProvider.ACCOUNTS_URI, accountUri, false)).isTrue()
+        assertThat(InvalidationBus.affects(accountUri, TransactionProvider.ACCOUNTS_URI, false)).isFalse()
+        assertThat(InvalidationBus.affects(accountUri, TransactionProvider.ACCOUNTS_URI, true)).isTrue()
+        assertThat(InvalidationBus.affects(TransactionProvider.TRANSACTIONS_URI, accountUri, true)).isFalse()
+        assertThat(
+            InvalidationBus.affects(
+                TransactionProvider.ACCOUNTS_URI,
+                TransactionProvider.ACCOUNTS_URI.buildUpon().appendQueryParameter("any", "1").build(),
+                false
+            )
+        ).isTrue()
+    }
+
+    @Test
+    fun coalescesBurstOfNotifications() {
+        val bus = InvalidationBus(resolver, debounceMillis = 50, maxWaitMillis = 2000)
+        val count = AtomicInteger()
+        runBlocking {
+            val job = launch(Dispatchers.Default) {
+                bus.invalidations(listOf(accountUri), false).collect { count.incrementAndGet() }
+            }
+            delay(200)
+            repeat(20) { resolver.notifyChange(accountUri, null, false) }
+            delay(500)
+            assertThat(count.get()).isEqualTo(1)
+            resolver.notifyChange(TransactionProvider.TRANSACTIONS_URI, null, false)
+            delay(300)
+            assertThat(count.get()).isEqualTo(1)
+            job.cancel()
+        }
+    }
+
+    @Test
+    fun notificationWhileHandlingInitialEmissionIsNotLost() {
+        val bus = InvalidationBus(resolver, debounceMillis = 50, maxWaitMillis = 2000)
+        val count = AtomicInteger()
+        runBlocking {
+            val job = launch(Dispatchers.Default) {
+                bus.invalidations(listOf(accountUri), false, initial = true).collect {
+                    if (count.incrementAndGet() == 1) {
+                        resolver.notifyChange(accountUri, null, false)
+                    }
+                }
+            }
+            delay(500)
+            assertThat(count.get()).isEqualTo(2)
+            job.cancel()
+        }
+    }
+}
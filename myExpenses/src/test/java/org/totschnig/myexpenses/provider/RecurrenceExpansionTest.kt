@@ -0,0 +1,91 @@
+package org.totschnig.myexpenses.provider
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.time.LocalDate
+import java.time.LocalTime
+import java.time.ZoneId
+
+@RunWith(RobolectricTestRunner::class)
+class RecurrenceExpansionTest {
+    private val zoneId = ZoneId.of("Europe/Vienna")
+
+    private fun millis(date: LocalDate, time: LocalTime = LocalTime.NOON) =
+        date.atTime(time).atZone(zoneId).toInstant().toEpochMilli()
+
+    private fun expand(start: LocalDate, rRule: String?, from: LocalDate, to: LocalDate) =
+        expandRecurrence(millis(start), rRule, zoneId, millis(from, LocalTime.MIN), millis(to, LocalTime.MAX))
+
+    private fun dates(vararg dates: String) = dates.map { millis(LocalDate.parse(it)) }
+
+    @Test
+    fun lastDayOfMonth() {
+        assertThat(
+            expand(
+                LocalDate.of(2023, 1, 31),
+                "FREQ=MONTHLY;INTERVAL=1;BYDAY=SU,MO,TU,WE,TH,FR,SA;BYSETPOS=-1;WKST=MO",
+                LocalDate.of(2023, 1, 1),
+                LocalDate.of(2023, 4, 30)
+            )
+        ).containsExactlyElementsIn(dates("2023-01-31", "2023-02-28", "2023-03-31", "2023-04-30")).inOrder()
+    }
+
+    @Test
+    fun monthlySkipsMonthsWithoutDay() {
+        assertThat(
+            expand(
+                LocalDate.of(2023, 1, 31),
+                "FREQ=MONTHLY;INTERVAL=1;WKST=MO",
+                LocalDate.of(2023, 1, 1),
+                LocalDate.of(2023, 5, 31)
+            )
+        ).containsExactlyElementsIn(dates("2023-01-31", "2023-03-31", "2023-05-31")).inOrder()
+    }
+
+    @Test
+    fun weeklyWithIntervalAndCount() {
+        assertThat(
+            expand(
+                LocalDate.of(2023, 5, 1),
+                "FREQ=WEEKLY;INTERVAL=2;COUNT=3;WKST=MO;BYDAY=MO,TH",
+                LocalDate.of(2023, 5, 1),
+                LocalDate.of(2023, 12, 31)
+            )
+        ).containsExactlyElementsIn(dates("2023-05-01", "2023-05-04", "2023-05-15")).inOrder()
+    }
+
+    @Test
+    fun ordinalWeekDayAndUntil() {
+        assertThat(
+            expand(
+                LocalDate.of(2023, 1, 2),
+                "FREQ=MONTHLY;BYDAY=1MO;UNTIL=20230306",
+                LocalDate.of(2023, 1, 1),
+                LocalDate.of(2023, 12, 31)
+            )
+        ).containsExactlyElementsIn(dates("2023-01-02", "2023-02-06", "2023-03-06")).inOrder()
+    }
+
+    @Test
+    fun windowFarAfterStart() {
+        assertThat(
+            expand(
+                LocalDate.of(2015, 3, 12),
+                "FREQ=DAILY;INTERVAL=3",
+                LocalDate.of(2023, 6, 1),
+                LocalDate.of(2023, 6, 7)
+            )
+        ).containsExactlyElementsIn(dates("2023-06-01", "2023-06-04", "2023-06-07")).inOrder()
+    }
+
+    @Test
+    fun oneTimeEventAndUnsupportedRule() {
+        assertThat(expand(LocalDate.of(2023, 6, 1), null, LocalDate.of(2023, 6, 1), LocalDate.of(2023, 6, 1)))
+            .containsExactlyElementsIn(dates("2023-06-01"))
+        assertThat(expand(LocalDate.of(2023, 6, 1), "FREQ=DAILY;BYHOUR=8", LocalDate.of(2023, 6, 1), LocalDate.of(2023, 6, 1)))
+            .isNull()
+        assertThat(isRecurrenceSupported("FREQ=YEARLY;BYDAY=20MO")).isFalse()
+    }
+}
@@ -0,0 +1,71 @@
+package org.totschnig.myexpenses.provider
+
+import android.content.ContentUris
+import android.content.ContentValues
+import androidx.test.core.app.ApplicationProvider
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.MyApplication
+import org.totschnig.myexpenses.model.Account
+import org.totschnig.myexpenses.model.AccountType
+import org.totschnig.myexpenses.model.CrStatus
+import org.totschnig.myexpenses.model.CurrencyUnit
+import org.totschnig.myexpenses.model.Money
+import org.totschnig.myexpenses.model.Transaction
+import org.totschnig.myexpenses.provider.DatabaseConstants.*
+
+@RunWith(RobolectricTestRunner::class)
+class RunningBalanceTest {
+    private val currency = CurrencyUnit.DebugInstance
+    private val resolver
+        get() = ApplicationProvider.getApplicationContext<MyApplication>().contentResolver
+    private val day = 86400L
+
+    private fun insertTransaction(accountId: Long, amount: Long, date: Long) =
+        Transaction.getNewInstance(accountId).apply {
+            this.amount = Money(currency, amount)
+            setDate(date)
+            save()
+        }
+
+    private fun runningBalances(accountId: Long) = resolver.query(
+        Transaction.EXTENDED_URI.buildUpon()
+            .appendBooleanQueryParameter(TransactionProvider.QUERY_PARAMETER_RUNNING_BALANCE)
+            .build(),
+        arrayOf(KEY_ROWID, runningBalanceColumn(VIEW_EXTENDED)),
+        "$KEY_ACCOUNTID = ? AND $KEY_PARENTID IS NULL",
+        arrayOf(accountId.toString()),
+        "$KEY_DATE, $KEY_ROWID"
+    )!!.use { cursor ->
+        buildList {
+            while (cursor.moveToNext()) add(cursor.getLong(1))
+        }
+    }
+
+    @Test
+    fun balancesFollowChangesFromChangedRowOnward() {
+        val account = Account("Account", currency, 100L, null, AccountType.CASH, Account.DEFAULT_COLOR)
+        account.save()
+        insertTransaction(account.id, 10L, 40 * day)
+        val second = insertTransaction(account.id, -20L, 50 * day)
+        insertTransaction(account.id, -5L, 60 * day)
+        assertThat(runningBalances(account.id)).containsExactly(110L, 90L, 85L).inOrder()
+
+        insertTransaction(account.id, 1L, 45 * day)
+        assertThat(runningBalances(account.id)).containsExactly(110L, 111L, 91L, 86L).inOrder()
+
+        second.crStatus = CrStatus.VOID
+        second.save()
+        assertThat(runningBalances(account.id)).containsExactly(110L, 111L, 111L, 106L).inOrder()
+
+        resolver.update(
+            ContentUris.withAppendedId(TransactionProvider.ACCOUNTS_URI, account.id),
+            ContentValues().apply { put(KEY_OPENING_BALANCE, 0L) },
+            null,
+            null
+        )
+        assertThat(runningBalances(account.id)).containsExactly(10L, 11L, 11L, 6L).inOrder()
+    }
+}
@@ -0,0 +1,39 @@
+package org.totschnig.myexpenses.provider
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+
+class StringListParserTest {
+
+    @Test
+    fun parsesJsonArrays() {
+        assertThat(parseStringList("[]")).isEmpty()
+        assertThat(parseStringList("[\"a\",\"b c\"]")).containsExactly("a", "b c").inOrder()
+        assertThat(parseStringList(" [ \"a\" , \"b\" ] ")).containsExactly("a", "b").inOrder()
+    }
+
+    @Test
+    fun decodesEscapeSequences() {
+        assertThat(parseStringList("""["say \"hi\"","back\\slash","\u00e9t\u00E9","a\/b\tc"]"""))
+            .containsExactly("say \"hi\"", "back\\slash", "été", "a/b\tc").inOrder()
+    }
+
+    @Test
+    fun fallsBackToCommaSeparatedList() {
+        assertThat(parseStringList(null)).isEmpty()
+        assertThat(parseStringList("")).isEmpty()
+        assertThat(parseStringList("a,b")).containsExactly("a", "b").inOrder()
+        //not a valid array, treated like group_concat output
+        assertThat(parseStringList("[\"a\",")).containsExactly("[\"a\"", "").inOrder()
+    }
+
+    @Test
+    fun rejectsMalformedArrays() {
+        assertThat(parseJsonStringArray("[\"a\"")).isNull()
+        assertThat(parseJsonStringArray("[\"a\" \"b\"]")).isNull()
+        assertThat(parseJsonStringArray("[1]")).isNull()
+        assertThat(parseJsonStringArray("[\"a\"] x")).isNull()
+        assertThat(parseJsonStringArray("[\"\\x\"]")).isNull()
+        assertThat(parseJsonStringArray("[\"\\u00\"]")).isNull()
+    }
+}
@@ -0,0 +1,99 @@
+package org.totschnig.myexpenses.provider
+
+import android.content.ContentUris
+import androidx.test.core.app.ApplicationProvider
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.MyApplication
+import org.totschnig.myexpenses.model.Account
+import org.totschnig.myexpenses.model.AccountType
+import org.totschnig.myexpenses.model.CurrencyUnit
+import org.totschnig.myexpenses.model.Money
+import org.totschnig.myexpenses.model.Transaction
+import org.totschnig.myexpenses.provider.DatabaseConstants.*
+
+@RunWith(RobolectricTestRunner::class)
+class TransactionArchiveTest {
+    private val currency = CurrencyUnit.DebugInstance
+    private val resolver
+        get() = ApplicationProvider.getApplicationContext<MyApplication>().contentResolver
+    private val cutoff = 1_000_000L
+
+    private fun insertTransaction(accountId: Long, amount: Long, date: Long) {
+        Transaction.getNewInstance(accountId).apply {
+            this.amount = Money(currency, amount)
+            setDate(date)
+            save()
+        }
+    }
+
+    private fun openingBalance(accountId: Long) = resolver.query(
+        ContentUris.withAppendedId(TransactionProvider.ACCOUNTS_URI, accountId),
+        arrayOf(KEY_OPENING_BALANCE), null, null, null
+    )!!.use {
+        it.moveToFirst()
+        it.getLong(0)
+    }
+
+    private fun sumAndCount(accountId: Long, selection: String? = null, includeArchive: Boolean = true) = resolver.query(
+        TransactionProvider.TRANSACTIONS_URI.let { if (includeArchive) it.includingArchive() else it },
+        arrayOf("sum($KEY_AMOUNT)", "count(*)"),
+        "$KEY_ACCOUNTID = ?" + (selection?.let { " AND $it" } ?: ""),
+        arrayOf(accountId.toString()), null
+    )!!.use {
+        it.moveToFirst()
+        it.getLong(0) to it.getInt(1)
+    }
+
+    private fun sum(accountId: Long, includeArchive: Boolean) = resolver.query(
+        TransactionProvider.TRANSACTIONS_SUM_URI.buildUpon()
+            .appendQueryParameter(KEY_ACCOUNTID, accountId.toString())
+            .appendBooleanQueryParameter(TransactionProvider.QUERY_PARAMETER_AGGREGATE_TYPES)
+            .build().let { if (includeArchive) it.includingArchive() else it },
+        null, "$KEY_DATE > ?", arrayOf("0"), null
+    )!!.use {
+        it.moveToFirst()
+        it.getLong(it.getColumnIndexOrThrow(KEY_SUM))
+    }
+
+    private fun call(method: String, arg: String? = null) = resolver.call(
+        TransactionProvider.DUAL_URI, method, arg, null
+    )!!.getInt(TransactionProvider.KEY_RESULT)
+
+    @Test
+    fun archiveCarriesBalanceForwardAndIsIncludedWhenReached() {
+        val account = Account("Account", currency, 100L, null, AccountType.CASH, Account.DEFAULT_COLOR)
+        account.save()
+        insertTransaction(account.id, 10L, cutoff - 100)
+        insertTransaction(account.id, 20L, cutoff - 50)
+        insertTransaction(account.id, 40L, cutoff + 50)
+
+        assertThat(call(TransactionProvider.METHOD_ARCHIVE, cutoff.toString())).isEqualTo(2)
+        assertThat(openingBalance(account.id)).isEqualTo(130L)
+        //a query restricted to recent data does not see the archive
+        assertThat(sumAndCount(account.id, "$KEY_DATE >= $cutoff")).isEqualTo(40L to 1)
+        //a query reaching into the archived range includes it
+        assertThat(sumAndCount(account.id)).isEqualTo(70L to 3)
+        //unless it does not ask for the archive
+        assertThat(sumAndCount(account.id, includeArchive = false)).isEqualTo(40L to 1)
+
+        assertThat(call(TransactionProvider.METHOD_UNARCHIVE)).isEqualTo(2)
+        assertThat(openingBalance(account.id)).isEqualTo(100L)
+        assertThat(sumAndCount(account.id, "$KEY_DATE >= $cutoff")).isEqualTo(40L to 1)
+        assertThat(sumAndCount(account.id)).isEqualTo(70L to 3)
+    }
+
+    @Test
+    fun sumsIncludeArchiveWhenAsked() {
+        val account = Account("Account", currency, 0L, null, AccountType.CASH, Account.DEFAULT_COLOR)
+        account.save()
+        insertTransaction(account.id, 10L, cutoff - 100)
+        insertTransaction(account.id, 40L, cutoff + 50)
+
+        assertThat(call(TransactionProvider.METHOD_ARCHIVE, cutoff.toString())).isEqualTo(1)
+        assertThat(sum(account.id, includeArchive = true)).isEqualTo(50L)
+        assertThat(sum(account.id, includeArchive = false)).isEqualTo(40L)
+    }
+}
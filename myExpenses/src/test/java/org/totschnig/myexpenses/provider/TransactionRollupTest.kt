@@ -0,0 +1,83 @@
+package org.totschnig.myexpenses.provider
+
+import android.net.Uri
+import androidx.test.core.app.ApplicationProvider
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.MyApplication
+import org.totschnig.myexpenses.model.Account
+import org.totschnig.myexpenses.model.AccountType
+import org.totschnig.myexpenses.model.CurrencyUnit
+import org.totschnig.myexpenses.model.Grouping
+import org.totschnig.myexpenses.model.Money
+import org.totschnig.myexpenses.model.Transaction
+import org.totschnig.myexpenses.provider.DatabaseConstants.*
+
+@RunWith(RobolectricTestRunner::class)
+class TransactionRollupTest {
+    private val currency = CurrencyUnit.DebugInstance
+    private val resolver
+        get() = ApplicationProvider.getApplicationContext<MyApplication>().contentResolver
+    private val day = 86400L
+
+    private fun insertTransaction(accountId: Long, amount: Long, date: Long) =
+        Transaction.getNewInstance(accountId).apply {
+            this.amount = Money(currency, amount)
+            setDate(date)
+            save()
+        }
+
+    private fun groupsUri(accountId: Long, grouping: Grouping): Uri =
+        TransactionProvider.TRANSACTIONS_URI.buildUpon()
+            .appendPath(TransactionProvider.URI_SEGMENT_GROUPS)
+            .appendPath(grouping.name)
+            .appendQueryParameter(KEY_ACCOUNTID, accountId.toString())
+            .build()
+
+    /**
+     * a selection that does not restrict the result makes the provider compute the groups from
+     * the transactions
+     */
+    private fun groups(accountId: Long, grouping: Grouping, fromRollup: Boolean) = resolver.query(
+        groupsUri(accountId, grouping), null, if (fromRollup) null else "1 = 1", null, null
+    )!!.use { cursor ->
+        buildList {
+            while (cursor.moveToNext()) {
+                add(
+                    listOf(
+                        KEY_YEAR, KEY_SECOND_GROUP, KEY_SUM_INCOME, KEY_SUM_EXPENSES,
+                        KEY_SUM_TRANSFERS, KEY_MAPPED_CATEGORIES
+                    ).map { cursor.getLong(cursor.getColumnIndexOrThrow(it)) }
+                )
+            }
+        }
+    }
+
+    private fun assertRollupMatches(accountId: Long) {
+        Grouping.values().forEach {
+            assertThat(groups(accountId, it, true)).isEqualTo(groups(accountId, it, false))
+        }
+    }
+
+    @Test
+    fun rollupFollowsChangesOfTransactions() {
+        val account = Account("Account", currency, 0L, null, AccountType.CASH, Account.DEFAULT_COLOR)
+        account.save()
+        val first = insertTransaction(account.id, 10L, 40 * day)
+        insertTransaction(account.id, -20L, 40 * day + 100)
+        insertTransaction(account.id, -5L, 100 * day)
+        assertRollupMatches(account.id)
+        assertThat(groups(account.id, Grouping.NONE, true).single()[2]).isEqualTo(10L)
+
+        first.amount = Money(currency, 30L)
+        first.setDate(200 * day)
+        first.save()
+        assertRollupMatches(account.id)
+
+        resolver.delete(TransactionProvider.TRANSACTIONS_URI, "$KEY_AMOUNT = ?", arrayOf("-5"))
+        assertRollupMatches(account.id)
+        assertThat(groups(account.id, Grouping.NONE, true).single()[3]).isEqualTo(-20L)
+    }
+}
@@ -0,0 +1,100 @@
+package org.totschnig.myexpenses.util
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.google.common.truth.Truth.assertThat
+import org.junit.Assert.assertThrows
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.totschnig.myexpenses.provider.BACKUP_DB_FILE_NAME
+import org.totschnig.myexpenses.provider.BACKUP_PREF_FILE_NAME
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.IOException
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+import kotlin.random.Random
+
+@RunWith(AndroidJUnit4::class)
+class BackupArchiveExtractorTest {
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    private val db = "SQLite format 3\u0000database".toByteArray()
+
+    private fun archive(vararg entries: Pair<String, ByteArray>) = ByteArrayOutputStream().also {
+        ZipOutputStream(it).use { zip ->
+            entries.forEach { (name, content) ->
+                zip.putNextEntry(ZipEntry(name))
+                zip.write(content)
+            }
+        }
+    }.toByteArray()
+
+    private fun extractor(entries: MutableList<String> = mutableListOf()) = BackupArchiveExtractor(
+        File(tempFolder.root, "db"),
+        File(tempFolder.root, "prefs.xml"),
+        { File(tempFolder.root, "restored_$it") }
+    ) { name, count ->
+        entries.add(name)
+        assertThat(count).isEqualTo(entries.size)
+    }
+
+    @Test
+    fun writesEntriesToTheirDestinations() {
+        val entries = mutableListOf<String>()
+        val extractor = extractor(entries)
+        extractor.extract(
+            ByteArrayInputStream(
+                archive(
+                    BACKUP_DB_FILE_NAME to db,
+                    BACKUP_PREF_FILE_NAME to "prefs".toByteArray(),
+                    "${ZipUtils.PICTURES}/a.jpg" to "a".toByteArray(),
+                    ZipUtils.ALIASES to "b.jpg=a.jpg".toByteArray()
+                )
+            )
+        )
+        assertThat(extractor.hasDb).isTrue()
+        assertThat(extractor.hasPrefs).isTrue()
+        assertThat(File(tempFolder.root, "db").readBytes()).isEqualTo(db)
+        assertThat(File(tempFolder.root, "prefs.xml").readText()).isEqualTo("prefs")
+        assertThat(extractor.pictures.keys).containsExactly("a.jpg")
+        assertThat(extractor.pictures["a.jpg"]!!.readText()).isEqualTo("a")
+        assertThat(extractor.aliases!!.getProperty("b.jpg")).isEqualTo("a.jpg")
+        assertThat(extractor.manifest).isNull()
+        assertThat(entries).hasSize(4)
+
+        extractor.cleanUp()
+        assertThat(tempFolder.root.list()).isEmpty()
+    }
+
+    @Test
+    fun rejectsInvalidDatabase() {
+        assertThrows(IOException::class.java) {
+            extractor().extract(
+                ByteArrayInputStream(archive(BACKUP_DB_FILE_NAME to "not a database".toByteArray()))
+            )
+        }
+    }
+
+    @Test
+    fun rejectsPathTraversal() {
+        assertThrows(SecurityException::class.java) {
+            extractor().extract(
+                ByteArrayInputStream(archive("${ZipUtils.PICTURES}/../evil" to ByteArray(1)))
+            )
+        }
+    }
+
+    @Test
+    fun detectsCorruptedEntry() {
+        val bytes = archive(BACKUP_PREF_FILE_NAME to Random(42).nextBytes(1000))
+        //flip a byte inside the data of the entry, random data is stored nearly as is by deflate
+        bytes[500] = (bytes[500] + 1).toByte()
+        assertThrows(IOException::class.java) {
+            extractor().extract(ByteArrayInputStream(bytes))
+        }
+    }
+}
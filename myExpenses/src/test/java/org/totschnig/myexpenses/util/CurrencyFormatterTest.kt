@@ -35,4 +35,25 @@ class CurrencyFormatterTest {
         //newer Java version uses non-breaking space
         assertThat(currencyFormatter.formatMoney(Money(eur, 150))).isEqualTo(if (javaVersion >= 10) "1,50 €" else "1,50 €")
     }
-}
\ No newline at end of file
+
+    @Test
+    fun minorUnitsAreFormattedLikeBigDecimal() {
+        val currencies = listOf(
+            CurrencyUnit("EUR", "€", 2),
+            CurrencyUnit("JPY", "¥", 0),
+            CurrencyUnit("BHD", "BHD", 3),
+            CurrencyUnit("XXX", "X", 8)
+        )
+        val amounts = listOf(0L, 7L, -7L, 150L, -100000L, 123456789L, -987654321012L)
+        for (locale in listOf(Locale.GERMANY, Locale.US, Locale.FRANCE, Locale("de", "CH"), Locale("en", "IN"), Locale("ar", "EG"))) {
+            whenever(userLocaleProvider.getUserPreferredLocale()).thenReturn(locale)
+            currencyFormatter = CurrencyFormatter(prefHandler, userLocaleProvider)
+            for (currency in currencies) {
+                for (amount in amounts) {
+                    assertThat(currencyFormatter.formatMinor(amount, currency))
+                        .isEqualTo(currencyFormatter.formatCurrency(Money(currency, amount).amountMajor, currency))
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.totschnig.myexpenses.util
+
+import android.net.Uri
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.google.common.truth.Truth.assertThat
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.totschnig.myexpenses.MyApplication
+import java.io.File
+import java.util.Properties
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+import java.util.zip.ZipOutputStream
+import kotlin.random.Random
+
+@RunWith(AndroidJUnit4::class)
+class PictureZipWriterTest {
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    private val spillDir by lazy { tempFolder.newFolder("spill") }
+
+    private fun picture(name: String, content: ByteArray) =
+        Uri.fromFile(tempFolder.newFile(name).apply { writeBytes(content) })
+
+    private fun writeZip(
+        vararg uris: Uri,
+        memoryBudget: Int = PictureZipWriter.MAX_BUFFERED_BYTES
+    ): File {
+        val zipFile = File(tempFolder.root, "backup.zip")
+        ZipOutputStream(zipFile.outputStream()).use { zip ->
+            PictureZipWriter(
+                ApplicationProvider.getApplicationContext<MyApplication>().contentResolver,
+                zip,
+                ZipUtils.PICTURES,
+                spillDir,
+                memoryBudget
+            ).use { writer ->
+                uris.forEach { writer.add(it) }
+                writer.finish()
+            }
+        }
+        return zipFile
+    }
+
+    @Test
+    fun writesPicturesInOrderAndStoresCompressedFormats() {
+        val contents = (0 until 20).map { Random.nextBytes(1000 + it) }
+        val uris = contents.mapIndexed { index, bytes ->
+            picture(if (index % 2 == 0) "$index.jpg" else "$index.txt", bytes)
+        }
+        ZipFile(writeZip(*uris.toTypedArray())).use { zip ->
+            val entries = zip.entries().toList()
+            assertThat(entries.map { it.name }).containsExactlyElementsIn(
+                uris.map { "${ZipUtils.PICTURES}/${it.lastPathSegment}" }
+            ).inOrder()
+            entries.forEachIndexed { index, entry ->
+                assertThat(entry.method)
+                    .isEqualTo(if (index % 2 == 0) ZipEntry.STORED else ZipEntry.DEFLATED)
+                assertThat(zip.getInputStream(entry).readBytes()).isEqualTo(contents[index])
+            }
+        }
+    }
+
+    @Test
+    fun deduplicatesPicturesWithSameContentOrUri() {
+        val content = Random.nextBytes(1000)
+        val first = picture("first.jpg", content)
+        val second = picture("second.jpg", content)
+        val missing = Uri.fromFile(File(tempFolder.root, "missing.jpg"))
+        ZipFile(writeZip(first, first, missing, second)).use { zip ->
+            assertThat(zip.entries().toList().map { it.name }).containsExactly(
+                "${ZipUtils.PICTURES}/first.jpg", ZipUtils.ALIASES
+            ).inOrder()
+            val aliases = Properties().apply {
+                load(zip.getInputStream(zip.getEntry(ZipUtils.ALIASES)))
+            }
+            assertThat(aliases.getProperty("second.jpg")).isEqualTo("first.jpg")
+            assertThat(aliases.size).isEqualTo(1)
+        }
+    }
+
+    @Test
+    fun spillsPicturesThatExceedTheMemoryBudget() {
+        val contents = (0 until 6).map { Random.nextBytes(30_000 + it) }
+        val uris = contents.mapIndexed { index, bytes -> picture("$index.jpg", bytes) }
+        ZipFile(writeZip(*uris.toTypedArray(), memoryBudget = 50_000)).use { zip ->
+            val entries = zip.entries().toList()
+            assertThat(entries).hasSize(contents.size)
+            entries.forEachIndexed { index, entry ->
+                assertThat(entry.method).isEqualTo(ZipEntry.STORED)
+                assertThat(zip.getInputStream(entry).readBytes()).isEqualTo(contents[index])
+            }
+        }
+        assertThat(spillDir.list()).isEmpty()
+    }
+
+    @Test
+    fun writesPicturesWithSameFileNameUnderUniqueNames() {
+        val first = Uri.fromFile(File(tempFolder.newFolder("a"), "picture.jpg").apply {
+            writeBytes(Random.nextBytes(1000))
+        })
+        val second = Uri.fromFile(File(tempFolder.newFolder("b"), "picture.jpg").apply {
+            writeBytes(Random.nextBytes(1000))
+        })
+        ZipFile(writeZip(first, second)).use { zip ->
+            assertThat(zip.entries().toList().map { it.name }).containsExactly(
+                "${ZipUtils.PICTURES}/picture.jpg",
+                "${ZipUtils.PICTURES}/picture_1.jpg",
+                ZipUtils.RENAMED
+            ).inOrder()
+            val renamed = Properties().apply {
+                load(zip.getInputStream(zip.getEntry(ZipUtils.RENAMED)))
+            }
+            assertThat(renamed.getProperty(second.toString())).isEqualTo("picture_1.jpg")
+            assertThat(renamed.size).isEqualTo(1)
+        }
+    }
+}
@@ -15,6 +15,7 @@ import org.totschnig.myexpenses.export.CategoryInfo
 import org.totschnig.myexpenses.export.qif.QifBufferedReader
 import org.totschnig.myexpenses.export.qif.QifDateFormat
 import org.totschnig.myexpenses.export.qif.QifParser
+import org.totschnig.myexpenses.export.qif.QifTransaction
 import org.totschnig.myexpenses.model.CurrencyUnit.Companion.DebugInstance
 import java.io.BufferedReader
 import java.io.ByteArrayInputStream
@@ -783,7 +784,54 @@ class QifParserTest {
         )
     }
 
-    private fun parseQif(fileContent: String, dateFormat: QifDateFormat = QifDateFormat.EU) {
+    @Test
+    fun should_hand_transactions_to_listener_instead_of_collecting_them() {
+        val received = mutableListOf<Pair<Int, QifTransaction>>()
+        parseQif(
+            """
+                !Account
+                NMy Cash Account
+                TCash
+                ^
+                !Type:Cash
+                D08/02/2011
+                T10.00
+                LP1
+                ^
+                D07/02/2011
+                T-20.56
+                LP1:c1
+                PPayee 1
+                ^
+                !Account
+                NMy Bank Account
+                TBank
+                ^
+                !Type:Bank
+                D08/02/2011
+                T-20.00
+                L[My Cash Account]
+                ^
+                
+                """.trimIndent()
+        ) { accountIndex, transaction -> received.add(accountIndex to transaction) }
+        Assert.assertEquals(2, p.accounts.size.toLong())
+        Assert.assertTrue(p.accounts[0].transactions.isEmpty())
+        Assert.assertTrue(p.accounts[1].transactions.isEmpty())
+        Assert.assertEquals(2, p.accounts[0].transactionCount.toLong())
+        Assert.assertEquals(1, p.accounts[1].transactionCount.toLong())
+        Truth.assertThat(received.map { it.first }).containsExactly(0, 0, 1).inOrder()
+        Assert.assertEquals(BigDecimal("-20.56"), received[1].second.amount)
+        Assert.assertEquals("My Cash Account", received[2].second.toAccount)
+        Truth.assertThat(p.payees).containsExactly("Payee 1")
+        Assert.assertEquals(2, p.categories.size.toLong())
+    }
+
+    private fun parseQif(
+        fileContent: String,
+        dateFormat: QifDateFormat = QifDateFormat.EU,
+        transactionListener: QifParser.TransactionListener? = null
+    ) {
         val r = QifBufferedReader(
             BufferedReader(
                 InputStreamReader(
@@ -792,7 +840,7 @@ class QifParserTest {
                 )
             )
         )
-        p = QifParser(r, dateFormat, DebugInstance)
+        p = QifParser(r, dateFormat, DebugInstance, transactionListener)
         p.parse()
     }
 
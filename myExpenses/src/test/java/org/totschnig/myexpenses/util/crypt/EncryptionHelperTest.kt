@@ -0,0 +1,58 @@
+package org.totschnig.myexpenses.util.crypt
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Assert.assertThrows
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.security.GeneralSecurityException
+import kotlin.random.Random
+
+class EncryptionHelperTest {
+    private val password = "secret"
+
+    private fun encryptWithOutputStream(plain: ByteArray) = ByteArrayOutputStream().also { out ->
+        EncryptionHelper.encrypt(out, password).use { it.write(plain) }
+    }.toByteArray()
+
+    private fun decrypt(encrypted: ByteArray, password: String = this.password) =
+        EncryptionHelper.decrypt(ByteArrayInputStream(encrypted), password).use { it.readBytes() }
+
+    private val sizes = with(ChunkedAead.SEGMENT_SIZE) { listOf(0, 1, this - 1, this, this + 1, 3 * this) }
+
+    @Test
+    fun roundTripWithOutputStream() {
+        sizes.forEach { size ->
+            val plain = Random.nextBytes(size)
+            val encrypted = encryptWithOutputStream(plain)
+            assertThat(EncryptionHelper.isEncrypted(ByteArrayInputStream(encrypted))).isTrue()
+            assertThat(decrypt(encrypted)).isEqualTo(plain)
+        }
+    }
+
+    @Test
+    fun roundTripWithInputStream() {
+        sizes.forEach { size ->
+            val plain = Random.nextBytes(size)
+            val encrypted = EncryptionHelper.encrypt(ByteArrayInputStream(plain), password).readBytes()
+            assertThat(decrypt(encrypted)).isEqualTo(plain)
+        }
+    }
+
+    @Test
+    fun detectsTruncation() {
+        val encrypted = encryptWithOutputStream(Random.nextBytes(2 * ChunkedAead.SEGMENT_SIZE + 10))
+        //drop the last segment, the remaining one is not flagged as last
+        val truncated = encrypted.copyOf(encrypted.size - 26)
+        val exception = assertThrows(IOException::class.java) { decrypt(truncated) }
+        assertThat(exception.cause).isInstanceOf(GeneralSecurityException::class.java)
+    }
+
+    @Test
+    fun detectsWrongPassword() {
+        val encrypted = encryptWithOutputStream(Random.nextBytes(100))
+        val exception = assertThrows(IOException::class.java) { decrypt(encrypted, "wrong") }
+        assertThat(exception.cause).isInstanceOf(GeneralSecurityException::class.java)
+    }
+}
@@ -0,0 +1,67 @@
+package org.totschnig.myexpenses.viewmodel
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.mockito.kotlin.any
+import org.mockito.kotlin.doReturn
+import org.mockito.kotlin.mock
+import org.totschnig.myexpenses.model.AccountType
+import org.totschnig.myexpenses.model.CrStatus
+import org.totschnig.myexpenses.model.CurrencyContext
+import org.totschnig.myexpenses.model.CurrencyUnit
+import org.totschnig.myexpenses.model.Grouping
+import org.totschnig.myexpenses.model.Money
+import org.totschnig.myexpenses.viewmodel.data.FullAccount
+import org.totschnig.myexpenses.viewmodel.data.HeaderRow
+import org.totschnig.myexpenses.viewmodel.data.Transaction2
+
+class WarmStartCacheTest {
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val currency = CurrencyUnit.DebugInstance
+    private val currencyContext = mock<CurrencyContext> {
+        on { get(any()) } doReturn currency
+    }
+
+    private fun snapshot() = WarmStartCache.Snapshot(
+        accounts = listOf(
+            FullAccount(
+                id = 1, label = "Cash", description = null, currency = currency,
+                type = AccountType.CASH, openingBalance = 100, currentBalance = 50,
+                sumIncome = 10, sumExpense = -60, criterion = null, total = 40
+            )
+        ),
+        accountId = 1,
+        grouping = Grouping.MONTH,
+        headerGroups = mapOf(
+            202305 to HeaderRow.create(2023, 5, currency, 10, -60, 0, 100, true, 0, 0)
+        ),
+        firstPage = List(3) {
+            Transaction2(
+                id = it + 1L, _date = 1_000_000L + it, amount = Money(currency, -20L),
+                comment = if (it == 0) null else "comment $it", accountId = 1,
+                crStatus = CrStatus.CLEARED, tagList = listOf("Tag"),
+                year = 2023, month = 5, week = 20, day = 17,
+                runningBalance = Money(currency, 80L - 20 * it)
+            )
+        }
+    )
+
+    @Test
+    fun roundTrip() {
+        val cache = WarmStartCache(folder.newFile(), currencyContext)
+        val snapshot = snapshot()
+        cache.write(snapshot)
+        assertThat(cache.read()).isEqualTo(snapshot)
+    }
+
+    @Test
+    fun missingOrCorruptFileYieldsNull() {
+        assertThat(WarmStartCache(folder.root.resolve("missing"), currencyContext).read()).isNull()
+        val corrupt = folder.newFile().apply { writeBytes(byteArrayOf(0, 0, 0, 1, 0)) }
+        assertThat(WarmStartCache(corrupt, currencyContext).read()).isNull()
+    }
+}
@@ -0,0 +1,202 @@
+package org.totschnig.myexpenses.viewmodel.data
+
+import android.content.Context
+import android.database.Cursor
+import android.database.MatrixCursor
+import android.net.Uri
+import androidx.test.core.app.ApplicationProvider
+import com.google.common.truth.Truth.assertThat
+import com.google.gson.Gson
+import com.google.gson.JsonSyntaxException
+import com.google.gson.reflect.TypeToken
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.kotlin.any
+import org.mockito.kotlin.doReturn
+import org.mockito.kotlin.mock
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.MyApplication
+import org.totschnig.myexpenses.model.AccountType
+import org.totschnig.myexpenses.model.CrStatus
+import org.totschnig.myexpenses.model.CurrencyContext
+import org.totschnig.myexpenses.model.CurrencyUnit
+import org.totschnig.myexpenses.model.Money
+import org.totschnig.myexpenses.provider.DatabaseConstants.*
+import org.totschnig.myexpenses.provider.asSequence
+import org.totschnig.myexpenses.provider.getInt
+import org.totschnig.myexpenses.provider.getIntIfExists
+import org.totschnig.myexpenses.provider.getLong
+import org.totschnig.myexpenses.provider.getLongIfExists
+import org.totschnig.myexpenses.provider.getLongOrNull
+import org.totschnig.myexpenses.provider.getString
+import org.totschnig.myexpenses.provider.getStringIfExists
+import org.totschnig.myexpenses.provider.getStringOrNull
+import org.totschnig.myexpenses.util.AppDirHelper
+import org.totschnig.myexpenses.util.enumValueOrDefault
+import org.totschnig.myexpenses.util.enumValueOrNull
+import java.io.File
+
+@RunWith(RobolectricTestRunner::class)
+class Transaction2RowMapperTest {
+    private val context = ApplicationProvider.getApplicationContext<MyApplication>()
+    private val currencyContext = mock<CurrencyContext> {
+        on { get(any()) } doReturn CurrencyUnit.DebugInstance
+    }
+    private val homeCurrency = CurrencyUnit("EUR", "€", 2)
+    private val pageSize = 150
+
+    private val columns = arrayOf(
+        KEY_ROWID, KEY_DATE, KEY_VALUE_DATE, KEY_AMOUNT, KEY_COMMENT, KEY_CATID, KEY_LABEL,
+        KEY_PAYEE_NAME, KEY_TRANSFER_PEER, KEY_TRANSFER_ACCOUNT, KEY_ACCOUNTID,
+        KEY_METHODID, KEY_METHOD_LABEL, KEY_CR_STATUS, KEY_REFERENCE_NUMBER, KEY_CURRENCY,
+        KEY_PICTURE_URI, KEY_TRANSFER_PEER_PARENT, KEY_STATUS, KEY_TAGLIST, KEY_PARENTID,
+        KEY_YEAR, KEY_MONTH, KEY_WEEK, KEY_DAY, KEY_ICON
+    )
+
+    /**
+     * columns that are only present for aggregate accounts
+     */
+    private val aggregateColumns = arrayOf(
+        KEY_EQUIVALENT_AMOUNT, KEY_ACCOUNT_LABEL, KEY_ACCOUNT_TYPE, KEY_COLOR
+    )
+
+    private fun row(it: Int) = arrayOf<Any?>(
+        it + 1L, 1_000_000L + it, 1_000_000L + it, -100L * it, "comment $it",
+        if (it % 2 == 0) 5L else null, "Category", "Payee", if (it % 5 == 0) 7L else null, null, 1L,
+        null, null, CrStatus.CLEARED.name, null, "EUR", null, null, STATUS_NONE,
+        if (it % 3 == 0) "[\"Tag 1\",\"Tag 2\"]" else "[]", null,
+        2023, 5, 20, 17, null
+    )
+
+    private fun page(aggregate: Boolean = false): Cursor = if (aggregate) {
+        MatrixCursor(columns + aggregateColumns).apply {
+            repeat(pageSize) {
+                addRow(row(it) + arrayOf(-90L * it, "Account ${it % 4}", AccountType.CASH.name, 0xff0000))
+            }
+        }
+    } else {
+        MatrixCursor(columns).apply {
+            repeat(pageSize) { addRow(row(it)) }
+        }
+    }
+
+    private fun mapWithRowMapper(cursor: Cursor, homeCurrency: CurrencyUnit?): List<Transaction2> {
+        val mapper = Transaction2.RowMapper(context, cursor, currencyContext, homeCurrency)
+        return cursor.asSequence.map { mapper.map(it) }.toList()
+    }
+
+    private fun mapByName(cursor: Cursor, homeCurrency: CurrencyUnit?) =
+        cursor.asSequence.map { legacyFromCursor(context, it, currencyContext, homeCurrency) }.toList()
+
+    @Test
+    fun mapsLikeLookupByName() {
+        val expected = mapByName(page(), null)
+        val actual = mapWithRowMapper(page(), null)
+        assertThat(actual).isEqualTo(expected)
+        assertThat(actual[0].tagList).containsExactly("Tag 1", "Tag 2").inOrder()
+    }
+
+    @Test
+    fun mapsOptionalColumnsLikeLookupByName() {
+        val expected = mapByName(page(true), homeCurrency)
+        val actual = mapWithRowMapper(page(true), homeCurrency)
+        assertThat(actual).isEqualTo(expected)
+        assertThat(actual[1].equivalentAmount).isEqualTo(Money(homeCurrency, -90L))
+        assertThat(actual[0].equivalentAmount).isNull()
+        assertThat(actual[1].accountLabel).isEqualTo("Account 1")
+    }
+
+    /**
+     * Compares the best of several runs, so that warm up and garbage collection do not decide
+     * the result.
+     */
+    @Test
+    fun isFasterThanLookupByName() {
+        val pages = 20
+        fun bestOf(map: (Cursor) -> List<Transaction2>) = (0 until 5).minOf {
+            val cursors = List(pages) { page(true) }
+            val start = System.nanoTime()
+            cursors.forEach { map(it) }
+            System.nanoTime() - start
+        }
+        val byName = bestOf { mapByName(it, homeCurrency) }
+        val withMapper = bestOf { mapWithRowMapper(it, homeCurrency) }
+        println("Mapping $pages pages of $pageSize rows: by name $byName ns, with RowMapper $withMapper ns")
+        assertThat(withMapper).isLessThan(byName)
+    }
+
+    companion object {
+        private val gson = Gson()
+        private val stringListType = object : TypeToken<List<String>>() {}.type
+
+        /**
+         * Mapping as it was done before [Transaction2.RowMapper], looking up each column by name in
+         * every row, and decoding the tag list with Gson.
+         */
+        private fun legacyFromCursor(
+            context: Context,
+            cursor: Cursor,
+            currencyContext: CurrencyContext,
+            homeCurrency: CurrencyUnit?
+        ): Transaction2 {
+            val currencyUnit = currencyContext.get(cursor.getString(KEY_CURRENCY))
+            val transferPeer = cursor.getLongOrNull(KEY_TRANSFER_PEER)
+            return Transaction2(
+                id = cursor.getLongOrNull(KEY_ROWID) ?: 0,
+                amount = Money(currencyUnit, cursor.getLong(KEY_AMOUNT)),
+                equivalentAmount = if (transferPeer == null) {
+                    cursor.getLongIfExists(KEY_EQUIVALENT_AMOUNT)?.let {
+                        homeCurrency?.let { home -> Money(home, it) }
+                    }
+                } else null,
+                _date = cursor.getLong(KEY_DATE),
+                _valueDate = cursor.getLong(KEY_VALUE_DATE),
+                comment = cursor.getStringOrNull(KEY_COMMENT),
+                catId = cursor.getLongOrNull(KEY_CATID),
+                payee = cursor.getStringOrNull(KEY_PAYEE_NAME),
+                methodLabel = cursor.getStringOrNull(KEY_METHOD_LABEL),
+                label = cursor.getStringOrNull(KEY_LABEL),
+                transferPeer = transferPeer,
+                transferAccount = cursor.getLongOrNull(KEY_TRANSFER_ACCOUNT),
+                accountId = cursor.getLong(KEY_ACCOUNTID),
+                methodId = cursor.getLongOrNull(KEY_METHODID),
+                pictureUri = cursor.getStringOrNull(KEY_PICTURE_URI)?.let { uri ->
+                    var parsedUri = Uri.parse(uri)
+                    if ("file" == parsedUri.scheme) {
+                        parsedUri.path?.let {
+                            try {
+                                parsedUri = AppDirHelper.getContentUriForFile(context, File(it))
+                            } catch (ignored: IllegalArgumentException) {
+                            }
+                        }
+                    }
+                    parsedUri
+                },
+                crStatus = enumValueOrDefault(
+                    cursor.getString(KEY_CR_STATUS),
+                    CrStatus.UNRECONCILED
+                ),
+                referenceNumber = cursor.getStringOrNull(KEY_REFERENCE_NUMBER),
+                accountLabel = cursor.getStringIfExists(KEY_ACCOUNT_LABEL),
+                accountType = enumValueOrNull<AccountType>(
+                    cursor.getStringIfExists(KEY_ACCOUNT_TYPE),
+                ),
+                transferPeerParent = cursor.getLongOrNull(KEY_TRANSFER_PEER_PARENT),
+                tagList = cursor.getString(KEY_TAGLIST).let {
+                    try {
+                        gson.fromJson<List<String>>(it, stringListType)
+                    } catch (e: JsonSyntaxException) {
+                        null
+                    } ?: if (it.isEmpty()) emptyList() else it.split(',')
+                },
+                color = cursor.getIntIfExists(KEY_COLOR),
+                status = cursor.getInt(KEY_STATUS),
+                year = cursor.getInt(KEY_YEAR),
+                month = cursor.getInt(KEY_MONTH),
+                week = cursor.getInt(KEY_WEEK),
+                day = cursor.getInt(KEY_DAY),
+                icon = cursor.getStringOrNull(KEY_ICON)
+            )
+        }
+    }
+}
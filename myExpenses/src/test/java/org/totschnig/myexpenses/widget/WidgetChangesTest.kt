@@ -0,0 +1,93 @@
+package org.totschnig.myexpenses.widget
+
+import android.database.ContentObserver
+import android.net.Uri
+import androidx.test.core.app.ApplicationProvider
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.MyApplication
+import org.totschnig.myexpenses.model.Account
+import org.totschnig.myexpenses.model.AccountType
+import org.totschnig.myexpenses.model.CurrencyUnit
+import org.totschnig.myexpenses.model.Money
+import org.totschnig.myexpenses.model.Payee
+import org.totschnig.myexpenses.model.Transaction
+import org.totschnig.myexpenses.provider.TransactionProvider
+
+@RunWith(RobolectricTestRunner::class)
+class WidgetChangesTest {
+    private val currency = CurrencyUnit.DebugInstance
+    private val resolver
+        get() = ApplicationProvider.getApplicationContext<MyApplication>().contentResolver
+
+    private class RecordingObserver : ContentObserver(null) {
+        val uris = mutableSetOf<Uri>()
+        override fun onChange(selfChange: Boolean, uri: Uri?) {
+            uri?.let { uris.add(it) }
+        }
+    }
+
+    /**
+     * @return the uris the provider notifies to the observer of [WidgetObserver] while [block] runs
+     */
+    private fun recordChanges(block: () -> Unit): Set<Uri> {
+        val observer = RecordingObserver()
+        (TemplateWidget.OBSERVED_URIS + AccountWidget.OBSERVED_URIS).distinct().forEach {
+            resolver.registerContentObserver(it, true, observer)
+        }
+        try {
+            block()
+        } finally {
+            resolver.unregisterContentObserver(observer)
+        }
+        return observer.uris
+    }
+
+    private fun newAccount() =
+        Account("Account", currency, 0L, null, AccountType.CASH, Account.DEFAULT_COLOR).apply { save() }
+
+    @Test
+    fun transactionChangeOnlyAffectsItsAccountAndAggregates() {
+        val changed = newAccount()
+        val unchanged = newAccount()
+        val transactionChange = recordChanges {
+            Transaction.getNewInstance(changed.id).apply {
+                amount = Money(currency, 100L)
+                save()
+            }
+        }
+        assertThat(transactionChange).doesNotContain(TransactionProvider.ACCOUNT_CHANGES_URI)
+        with(WidgetChanges(transactionChange)) {
+            assertThat(templates).isFalse()
+            assertThat(affectsAccountWidget(changed.id)).isTrue()
+            assertThat(affectsAccountWidget(unchanged.id)).isFalse()
+            assertThat(affectsAccountWidget(-1)).isTrue()
+            assertThat(affectsAccountWidget(Account.HOME_AGGREGATE_ID)).isTrue()
+            assertThat(affectsAccountWidget(Long.MAX_VALUE)).isTrue()
+        }
+    }
+
+    @Test
+    fun unattributedChangesAffectAllAccounts() {
+        val account = newAccount()
+        val payeeId = Payee.maybeWrite("John")
+        listOf(
+            listOf(TransactionProvider.ACCOUNTS_URI),
+            recordChanges { Payee(payeeId, "Jane").save() }
+        ).forEach {
+            assertThat(WidgetChanges(it).affectsAccountWidget(account.id)).isTrue()
+        }
+    }
+
+    @Test
+    fun templateChangeDoesNotAffectAccounts() {
+        with(WidgetChanges(listOf(TransactionProvider.TEMPLATES_URI.buildUpon().appendPath("3").build()))) {
+            assertThat(templates).isTrue()
+            assertThat(affectsAccountWidget(1)).isFalse()
+            assertThat(affectsAccountWidget(Long.MAX_VALUE)).isFalse()
+        }
+        assertThat(WidgetChanges(listOf(TransactionProvider.ACCOUNTS_BASE_URI)).templates).isTrue()
+    }
+}